@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * This class implements a micro-benchmark harness for the core control loop primitives. It is meant to be run on the
+ * robot controller (e.g. from a test op-mode) so that performance regressions of the hot methods can be caught on the
+ * target hardware. Each benchmark is warmed up, then measured in batches. The per operation time of each batch is
+ * recorded in a latency histogram so that the median and tail are reported along with the average. If the JVM supports
+ * per-thread allocation counting, the bytes allocated per operation are reported as well.
+ */
+public class TrcBenchmark
+{
+    private static final String moduleName = TrcBenchmark.class.getSimpleName();
+    private static final TrcDbgTrace tracer = new TrcDbgTrace();
+    private static final int DEF_WARMUP_ITERATIONS = 20000;
+    private static final int DEF_MEASURE_ITERATIONS = 200000;
+    private static final int DEF_BATCH_SIZE = 1000;
+    private static final int NUM_MOCK_TASKS = 16;
+    private static final int NUM_PATH_LOADS = 10;
+
+    /**
+     * This interface is implemented by the code being benchmarked.
+     */
+    public interface Workload
+    {
+        /**
+         * This method performs one operation of the benchmark. The result should be derived from the work done so
+         * that the JIT cannot eliminate it.
+         *
+         * @param iteration specifies the iteration number.
+         * @return result of the operation.
+         */
+        double run(int iteration);
+
+    }   //interface Workload
+
+    /**
+     * This class contains the result of a benchmark. All times are in nanoseconds per operation.
+     */
+    public static class Result
+    {
+        public final String name;
+        public final long operations;
+        public final double average;
+        public final double p50;
+        public final double p99;
+        public final double max;
+        public final double allocatedBytes;
+
+        private Result(
+            String name, long operations, double average, double p50, double p99, double max, double allocatedBytes)
+        {
+            this.name = name;
+            this.operations = operations;
+            this.average = average;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+            this.allocatedBytes = allocatedBytes;
+        }   //Result
+
+        /**
+         * This method returns the result info in string form.
+         *
+         * @return result info in string form.
+         */
+        @Override
+        public String toString()
+        {
+            return String.format(
+                Locale.US, "%s: ops=%d, avg=%.1fns, p50=%.1fns, p99=%.1fns, max=%.1fns, alloc=%s",
+                name, operations, average, p50, p99, max,
+                allocatedBytes < 0.0? "n/a": String.format(Locale.US, "%.1fB", allocatedBytes));
+        }   //toString
+
+    }   //class Result
+
+    private static final Object threadMXBean = getThreadMXBean();
+    private static final Method getThreadAllocatedBytesMethod = getThreadAllocatedBytesMethod(threadMXBean);
+    // Results are accumulated here so the JIT cannot eliminate the work being benchmarked.
+    private static volatile double sink;
+
+    /**
+     * This method returns the thread MX bean of the JVM. It is looked up reflectively because the management API is
+     * not available on all JVMs (e.g. Android).
+     *
+     * @return thread MX bean, null if not supported.
+     */
+    private static Object getThreadMXBean()
+    {
+        Object bean;
+
+        try
+        {
+            bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+        }
+        catch (Exception e)
+        {
+            bean = null;
+        }
+
+        return bean;
+    }   //getThreadMXBean
+
+    /**
+     * This method returns the per-thread allocation counter method of the given thread MX bean. The allocation
+     * counter is a HotSpot extension and may not be supported even if the thread MX bean is.
+     *
+     * @param bean specifies the thread MX bean.
+     * @return allocation counter method, null if not supported.
+     */
+    private static Method getThreadAllocatedBytesMethod(Object bean)
+    {
+        Method method = null;
+
+        if (bean != null)
+        {
+            try
+            {
+                method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+                method.invoke(bean, Thread.currentThread().getId());
+            }
+            catch (Exception e)
+            {
+                method = null;
+            }
+        }
+
+        return method;
+    }   //getThreadAllocatedBytesMethod
+
+    /**
+     * This method returns the number of bytes allocated by the current thread.
+     *
+     * @return allocated bytes, -1 if not supported.
+     */
+    private static long getAllocatedBytes()
+    {
+        long bytes = -1;
+
+        if (getThreadAllocatedBytesMethod != null)
+        {
+            try
+            {
+                bytes = (Long)getThreadAllocatedBytesMethod.invoke(threadMXBean, Thread.currentThread().getId());
+            }
+            catch (Exception e)
+            {
+                bytes = -1;
+            }
+        }
+
+        return bytes;
+    }   //getAllocatedBytes
+
+    /**
+     * This method runs a benchmark.
+     *
+     * @param name specifies the name of the benchmark.
+     * @param warmupIterations specifies the number of warm up operations.
+     * @param measureIterations specifies the number of measured operations.
+     * @param batchSize specifies the number of operations timed together.
+     * @param workload specifies the code to benchmark.
+     * @return benchmark result.
+     */
+    public static Result run(
+        String name, int warmupIterations, int measureIterations, int batchSize, Workload workload)
+    {
+        TrcLatencyHistogram histogram = new TrcLatencyHistogram(name, 0);
+        int numBatches = Math.max(measureIterations/batchSize, 1);
+        double result = 0.0;
+        long totalTime = 0;
+        long startBytes, endBytes;
+
+        for (int i = 0; i < warmupIterations; i++)
+        {
+            result += workload.run(i);
+        }
+
+        startBytes = getAllocatedBytes();
+        for (int batch = 0; batch < numBatches; batch++)
+        {
+            int base = batch*batchSize;
+            long startTime = TrcTimer.getNanoTime();
+
+            for (int i = 0; i < batchSize; i++)
+            {
+                result += workload.run(base + i);
+            }
+
+            long elapsedTime = TrcTimer.getNanoTime() - startTime;
+            totalTime += elapsedTime;
+            // The histogram has nanosecond resolution, so record per operation time of the batch.
+            histogram.recordValue(Math.round((double)elapsedTime/batchSize));
+        }
+        endBytes = getAllocatedBytes();
+        sink += result;
+
+        long operations = (long)numBatches*batchSize;
+        TrcLatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        Result benchmarkResult = new Result(
+            name, operations, (double)totalTime/operations, snapshot.p50*1.0e9, snapshot.p99*1.0e9,
+            snapshot.max*1.0e9,
+            startBytes >= 0 && endBytes >= 0? (double)(endBytes - startBytes)/operations: -1.0);
+        tracer.traceInfo(moduleName, benchmarkResult.toString());
+
+        return benchmarkResult;
+    }   //run
+
+    /**
+     * This method runs a benchmark with the default number of iterations.
+     *
+     * @param name specifies the name of the benchmark.
+     * @param workload specifies the code to benchmark.
+     * @return benchmark result.
+     */
+    public static Result run(String name, Workload workload)
+    {
+        return run(name, DEF_WARMUP_ITERATIONS, DEF_MEASURE_ITERATIONS, DEF_BATCH_SIZE, workload);
+    }   //run
+
+    /**
+     * This method runs the benchmarks of the core control loop primitives: PID output calculation, pose math,
+     * warp space optimization, median, data buffer average, task type dispatch with mock tasks, event signal and
+     * callback dispatch and timer set/cancel. It should be run when the robot is idle since the task dispatch
+     * benchmark also runs any tasks registered as PRE_PERIODIC_TASK.
+     *
+     * @return array of benchmark results.
+     */
+    public static Result[] runCoreBenchmarks()
+    {
+        ArrayList<Result> results = new ArrayList<>();
+        final double[] pidInput = {0.0};
+        TrcPidController pidCtrl = new TrcPidController(
+            moduleName + ".pidCtrl", new TrcPidController.PidCoefficients(0.1, 0.01, 0.001), () -> pidInput[0]);
+        TrcPose2D robotPose = new TrcPose2D(12.0, 34.0, 45.0);
+        TrcPose2D targetPose = new TrcPose2D(56.0, 78.0, 90.0);
+        TrcPose2D relativePose = new TrcPose2D(1.0, 2.0, 3.0);
+        TrcWarpSpace warpSpace = new TrcWarpSpace(moduleName + ".warpSpace", 0.0, 360.0);
+        double[] medianData = {5.0, 3.0, 9.0, 1.0, 7.0, 2.0, 8.0, 4.0, 6.0};
+        TrcDataBuffer dataBuffer = new TrcDataBuffer(moduleName + ".dataBuffer", 50);
+
+        pidCtrl.setTarget(100.0);
+        for (int i = 0; i < 50; i++)
+        {
+            dataBuffer.addValue(i);
+        }
+
+        results.add(run("PidController.getOutput", i -> {pidInput[0] = i%100; return pidCtrl.getOutput();}));
+        results.add(run("Pose2D.relativeTo", i -> targetPose.relativeTo(robotPose).x));
+        results.add(run("Pose2D.addRelativePose", i -> robotPose.addRelativePose(relativePose).y));
+        results.add(run("WarpSpace.getOptimizedTarget", i -> warpSpace.getOptimizedTarget(i%720, 45.0)));
+        results.add(run("Util.median", i -> TrcUtil.median(medianData)));
+        results.add(run("DataBuffer.getAverageValue", i -> dataBuffer.getAverageValue()));
+        results.add(runTaskDispatchBenchmark());
+        results.add(runEventBenchmark());
+        results.add(runTimerBenchmark());
+
+        return results.toArray(new Result[0]);
+    }   //runCoreBenchmarks
+
+    /**
+     * This method benchmarks loading a path of the given size from a CSV file, from the load cache and from a binary
+     * path file. The files are created in the given directory and deleted afterwards. The CSV rows alternate between
+     * no, one and two empty trailing fields, which path files exported by spreadsheets often have, so the benchmark
+     * fails if the CSV parser stops accepting them.
+     *
+     * @param dirPath specifies the directory to create the path files in.
+     * @param numWaypoints specifies the number of waypoints of the path.
+     * @return array of benchmark results.
+     * @throws IllegalStateException if a load does not return all the waypoints.
+     */
+    public static Result[] runPathFileBenchmarks(String dirPath, int numWaypoints)
+    {
+        String[] rowEndings = {"", ",", ",,"};
+        File csvFile = new File(dirPath, moduleName + ".csv");
+        File binaryFile = new File(dirPath, moduleName + ".bin");
+        String csvPath = csvFile.getPath();
+        String binaryPath = binaryFile.getPath();
+        ArrayList<Result> results = new ArrayList<>();
+
+        try (PrintWriter writer = new PrintWriter(csvFile))
+        {
+            writer.println("timeStep,x,y,heading,position,velocity,acceleration,jerk");
+            for (int i = 0; i < numWaypoints; i++)
+            {
+                writer.printf(
+                    Locale.US, "0.01,%.2f,%.2f,%d,%d,1.5,0.1,0.0%s%n",
+                    i*0.5, i*0.25, i%360, i, rowEndings[i%rowEndings.length]);
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        try
+        {
+            TrcPathFile.clearCache();
+            TrcWaypoint.convertCsvToBinary(csvPath, false, binaryPath);
+            results.add(
+                run("PathFile.loadCsv(" + numWaypoints + ")", 1, NUM_PATH_LOADS, 1,
+                    i ->
+                    {
+                        TrcPathFile.clearCache();
+                        return checkWaypointCount(TrcWaypoint.loadPointsFromCsv(csvPath, false), numWaypoints);
+                    }));
+            results.add(
+                run("PathFile.loadCsvCached(" + numWaypoints + ")", 1, NUM_PATH_LOADS, 1,
+                    i -> checkWaypointCount(TrcWaypoint.loadPointsFromCsv(csvPath, false), numWaypoints)));
+            results.add(
+                run("PathFile.loadBinary(" + numWaypoints + ")", 1, NUM_PATH_LOADS, 1,
+                    i ->
+                    {
+                        TrcPathFile.clearCache();
+                        return checkWaypointCount(TrcWaypoint.loadPointsFromBinary(binaryPath, false), numWaypoints);
+                    }));
+        }
+        finally
+        {
+            TrcPathFile.clearCache();
+            csvFile.delete();
+            binaryFile.delete();
+        }
+
+        return results.toArray(new Result[0]);
+    }   //runPathFileBenchmarks
+
+    /**
+     * This method checks that a path load returned the expected number of waypoints.
+     *
+     * @param waypoints specifies the loaded waypoints.
+     * @param expectedCount specifies the expected number of waypoints.
+     * @return number of waypoints.
+     * @throws IllegalStateException if the number of waypoints is not the expected count.
+     */
+    private static double checkWaypointCount(TrcWaypoint[] waypoints, int expectedCount)
+    {
+        if (waypoints.length != expectedCount)
+        {
+            throw new IllegalStateException(
+                "Loaded " + waypoints.length + " waypoints, expected " + expectedCount + ".");
+        }
+
+        return waypoints.length;
+    }   //checkWaypointCount
+
+    /**
+     * This method benchmarks a PRE_PERIODIC_TASK loop with NUM_MOCK_TASKS mock tasks. The time reported is for the
+     * whole loop.
+     *
+     * @return benchmark result.
+     */
+    private static Result runTaskDispatchBenchmark()
+    {
+        TrcTaskMgr.TaskObject[] taskObjs = new TrcTaskMgr.TaskObject[NUM_MOCK_TASKS];
+        final long[] counter = {0};
+        Result result;
+
+        for (int i = 0; i < taskObjs.length; i++)
+        {
+            taskObjs[i] = TrcTaskMgr.createTask(
+                moduleName + ".mockTask" + i, (taskType, runMode, slowLoop) -> counter[0]++);
+            taskObjs[i].registerTask(TrcTaskMgr.TaskType.PRE_PERIODIC_TASK);
+        }
+
+        try
+        {
+            result = run(
+                "TaskMgr.executeTaskType(" + NUM_MOCK_TASKS + " tasks)", DEF_WARMUP_ITERATIONS/10,
+                DEF_MEASURE_ITERATIONS/10, DEF_BATCH_SIZE/10,
+                i ->
+                {
+                    TrcTaskMgr.executeTaskType(
+                        TrcTaskMgr.TaskType.PRE_PERIODIC_TASK, TrcRobot.RunMode.TEST_MODE, false);
+                    return counter[0];
+                });
+        }
+        finally
+        {
+            for (TrcTaskMgr.TaskObject taskObj: taskObjs)
+            {
+                TrcTaskMgr.destroyTask(taskObj);
+            }
+        }
+
+        return result;
+    }   //runTaskDispatchBenchmark
+
+    /**
+     * This method benchmarks signaling an event with a callback and dispatching the callback on the current thread.
+     *
+     * @return benchmark result.
+     */
+    private static Result runEventBenchmark()
+    {
+        TrcEvent event = new TrcEvent(moduleName + ".event");
+        final long[] counter = {0};
+        TrcEvent.Callback callback = context -> counter[0]++;
+        boolean registered = TrcEvent.registerEventCallback();
+        Result result;
+
+        try
+        {
+            result = run(
+                "Event.signal/performEventCallback",
+                i ->
+                {
+                    event.setCallback(callback, null);
+                    event.signal();
+                    TrcEvent.performEventCallback();
+                    return counter[0];
+                });
+        }
+        finally
+        {
+            event.setCallback(null, null);
+            if (registered)
+            {
+                TrcEvent.unregisterEventCallback();
+            }
+        }
+
+        return result;
+    }   //runEventBenchmark
+
+    /**
+     * This method benchmarks arming and canceling a timer. Expiring timers is asynchronous and is covered by the
+     * timer thread itself, so only the caller side cost is measured here.
+     *
+     * @return benchmark result.
+     */
+    private static Result runTimerBenchmark()
+    {
+        TrcTimer timer = new TrcTimer(moduleName + ".timer");
+        TrcEvent event = new TrcEvent(moduleName + ".timerEvent");
+
+        return run(
+            "Timer.set/cancel",
+            i ->
+            {
+                timer.set(60.0, event);
+                timer.cancel();
+                return i;
+            });
+    }   //runTimerBenchmark
+
+}   //class TrcBenchmark
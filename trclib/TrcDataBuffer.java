@@ -22,18 +22,45 @@
 
 package TrcCommonLib.trclib;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * This class implements a thread-safe data buffer for recording double values. It provides methods to access data
- * in the buffer. It also provides methods to return minimum, maximum and average of the data in the buffer.
+ * in the buffer. It also provides methods to return minimum, maximum, average and variance of the data in the buffer.
+ *
+ * The values are kept in a primitive circular buffer, so adding a value does not allocate. The statistics are
+ * updated incrementally when a value is added: the mean and variance with Welford's method and, for a buffer with a
+ * maximum size, the minimum and maximum with monotonic deques, so all of them are O(1) to add and to read. Writers
+ * take the write lock of a StampedLock while readers don't take any lock: they do an optimistic read and retry if a
+ * writer changed the buffer while they were reading.
  */
 public class TrcDataBuffer
 {
+    private static final int DEF_UNLIMITED_CAPACITY = 16;
+
     private final String instanceName;
     private final int bufferSize;
-    private final ArrayList<Double> bufferedData = new ArrayList<>();
+    // The lock provides the memory fences that keep optimistic reads from seeing a half-updated buffer.
+    private final StampedLock lock = new StampedLock();
+    // Values are stored in order of addition starting at headIndex.
+    private double[] data;
+    private int headIndex = 0;
+    private int numValues = 0;
+    // Total number of values added, used as the sequence number of the values in the min/max deques.
+    private long numAdded = 0;
+    private double mean = 0.0;
+    private double sumSquaredDiffs = 0.0;
+    private int numUpdatesSinceRecompute = 0;
+    // Monotonic deques of value sequence numbers for a buffer with a maximum size. The values in minDeque are
+    // increasing and the values in maxDeque are decreasing, so the front of each is the current minimum/maximum.
+    private final long[] minDeque;
+    private final long[] maxDeque;
+    private int minDequeHead = 0, minDequeSize = 0;
+    private int maxDequeHead = 0, maxDequeSize = 0;
+    // Running minimum/maximum for a buffer without maximum size since no value is ever removed.
+    private double minValue = 0.0;
+    private double maxValue = 0.0;
 
     /**
      * Constructor: Create an instance of the object.
@@ -43,8 +70,16 @@ public class TrcDataBuffer
      */
     public TrcDataBuffer(String instanceName, int bufferSize)
     {
+        if (bufferSize < 0)
+        {
+            throw new IllegalArgumentException("bufferSize must be greater than or equal to 0.");
+        }
+
         this.instanceName = instanceName;
         this.bufferSize = bufferSize;
+        this.data = new double[bufferSize > 0? bufferSize: DEF_UNLIMITED_CAPACITY];
+        this.minDeque = bufferSize > 0? new long[bufferSize]: null;
+        this.maxDeque = bufferSize > 0? new long[bufferSize]: null;
     }   //TrcDataBuffer
 
     /**
@@ -55,45 +90,238 @@ public class TrcDataBuffer
     @Override
     public String toString()
     {
-        String str;
+        Double[] bufferedData = getBufferedData();
+
+        return instanceName + "[" + bufferSize + "]=" +
+               (bufferedData != null? Arrays.toString(bufferedData): "[]");
+    }   //toString
+
+    /**
+     * This method is called by a reader before reading the buffer. It waits for any writer in progress to finish.
+     *
+     * @return stamp to be passed to endRead.
+     */
+    private long beginRead()
+    {
+        long stamp;
 
-        synchronized (bufferedData)
+        while ((stamp = lock.tryOptimisticRead()) == 0)
         {
-            str = instanceName + "[" + bufferSize + "]=" + Arrays.toString(bufferedData.toArray());
+            Thread.yield();
         }
 
-        return str;
-    }   //toString
+        return stamp;
+    }   //beginRead
+
+    /**
+     * This method is called by a reader after reading the buffer to check if the buffer was changed by a writer
+     * while it was reading.
+     *
+     * @param stamp specifies the stamp returned by beginRead.
+     * @return true if the read is consistent, false if it must be retried.
+     */
+    private boolean endRead(long stamp)
+    {
+        return lock.validate(stamp);
+    }   //endRead
 
     /**
      * This method clears the buffer.
      */
     public void clear()
     {
-        synchronized (bufferedData)
+        long stamp = lock.writeLock();
+        try
         {
-            bufferedData.clear();
+            headIndex = numValues = 0;
+            numAdded = 0;
+            mean = sumSquaredDiffs = 0.0;
+            numUpdatesSinceRecompute = 0;
+            minDequeHead = minDequeSize = maxDequeHead = maxDequeSize = 0;
+            minValue = maxValue = 0.0;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
         }
     }   //clear
 
     /**
-     * This method adds a value to the end of the buffer.
+     * This method adds a value to the end of the buffer. If the buffer is full, the value at the beginning of the
+     * buffer is removed.
      *
      * @param value specifies the value to be added to the buffer.
      */
     public void addValue(double value)
     {
-        synchronized(bufferedData)
+        long stamp = lock.writeLock();
+        try
         {
-            bufferedData.add(value);
-            if (bufferSize > 0 && bufferedData.size() > bufferSize)
+            if (bufferSize == 0 && numValues == data.length)
+            {
+                // No maximum size, grow the buffer. The values are unwrapped to the start of the new buffer.
+                double[] newData = new double[data.length*2];
+                copyValues(data, headIndex, numValues, newData);
+                data = newData;
+                headIndex = 0;
+            }
+
+            if (bufferSize > 0 && numValues == bufferSize)
+            {
+                // The buffer is full, the new value replaces the oldest value.
+                double oldValue = data[headIndex];
+                double newMean = mean + (value - oldValue)/numValues;
+
+                sumSquaredDiffs += (value - oldValue)*(value - newMean + oldValue - mean);
+                mean = newMean;
+                data[headIndex] = value;
+                headIndex = (headIndex + 1)%bufferSize;
+                numUpdatesSinceRecompute++;
+                if (numUpdatesSinceRecompute >= bufferSize)
+                {
+                    // Incremental removal accumulates rounding errors, recompute from scratch once per buffer cycle
+                    // which is still O(1) amortized.
+                    recomputeVariance();
+                }
+            }
+            else
             {
-                // We have a limit on buffer size and we are exceeding it, remove the data at the beginning.
-                bufferedData.remove(0);
+                double delta = value - mean;
+
+                data[(headIndex + numValues)%data.length] = value;
+                numValues++;
+                mean += delta/numValues;
+                sumSquaredDiffs += delta*(value - mean);
             }
+
+            if (bufferSize > 0)
+            {
+                updateMinMaxDeques(value);
+            }
+            else if (numValues == 1)
+            {
+                minValue = maxValue = value;
+            }
+            else
+            {
+                minValue = Math.min(minValue, value);
+                maxValue = Math.max(maxValue, value);
+            }
+            numAdded++;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
         }
     }   //addValue
 
+    /**
+     * This method recomputes the mean and the sum of squared differences from the buffered values. It must be called
+     * by a writer.
+     */
+    private void recomputeVariance()
+    {
+        double sum = 0.0;
+        double sumSquares = 0.0;
+
+        for (int i = 0; i < numValues; i++)
+        {
+            sum += data[(headIndex + i)%data.length];
+        }
+        mean = sum/numValues;
+
+        for (int i = 0; i < numValues; i++)
+        {
+            double diff = data[(headIndex + i)%data.length] - mean;
+            sumSquares += diff*diff;
+        }
+        sumSquaredDiffs = sumSquares;
+        numUpdatesSinceRecompute = 0;
+    }   //recomputeVariance
+
+    /**
+     * This method adds the new value to the min/max deques and removes the values that are no longer in the buffer.
+     * The new value has the sequence number numAdded. It must be called by a writer.
+     *
+     * @param value specifies the new value.
+     */
+    private void updateMinMaxDeques(double value)
+    {
+        long expiredSeq = numAdded - bufferSize;
+
+        // Remove the expired value from the front and the values that can no longer be the minimum from the back.
+        if (minDequeSize > 0 && minDeque[minDequeHead] <= expiredSeq)
+        {
+            minDequeHead = (minDequeHead + 1)%bufferSize;
+            minDequeSize--;
+        }
+        while (minDequeSize > 0 && getSeqValue(minDeque[(minDequeHead + minDequeSize - 1)%bufferSize]) >= value)
+        {
+            minDequeSize--;
+        }
+        minDeque[(minDequeHead + minDequeSize)%bufferSize] = numAdded;
+        minDequeSize++;
+
+        if (maxDequeSize > 0 && maxDeque[maxDequeHead] <= expiredSeq)
+        {
+            maxDequeHead = (maxDequeHead + 1)%bufferSize;
+            maxDequeSize--;
+        }
+        while (maxDequeSize > 0 && getSeqValue(maxDeque[(maxDequeHead + maxDequeSize - 1)%bufferSize]) <= value)
+        {
+            maxDequeSize--;
+        }
+        maxDeque[(maxDequeHead + maxDequeSize)%bufferSize] = numAdded;
+        maxDequeSize++;
+    }   //updateMinMaxDeques
+
+    /**
+     * This method returns the value of the given sequence number. The value must still be in the buffer. It is only
+     * used for a buffer with a maximum size where the value with sequence number n is stored at n%bufferSize.
+     *
+     * @param seq specifies the sequence number of the value.
+     * @return value of the sequence number.
+     */
+    private double getSeqValue(long seq)
+    {
+        return data[(int)(seq%bufferSize)];
+    }   //getSeqValue
+
+    /**
+     * This method copies values from a circular buffer into an array.
+     *
+     * @param src specifies the circular buffer.
+     * @param start specifies the index of the first value in the circular buffer.
+     * @param length specifies the number of values to copy.
+     * @param dest specifies the destination array.
+     */
+    private static void copyValues(double[] src, int start, int length, double[] dest)
+    {
+        int firstPart = Math.min(length, src.length - start);
+
+        System.arraycopy(src, start, dest, 0, firstPart);
+        System.arraycopy(src, 0, dest, firstPart, length - firstPart);
+    }   //copyValues
+
+    /**
+     * This method returns the number of values in the buffer.
+     *
+     * @return number of values in the buffer.
+     */
+    public int getNumValues()
+    {
+        int value;
+        long stamp;
+
+        do
+        {
+            stamp = beginRead();
+            value = numValues;
+        } while (!endRead(stamp));
+
+        return value;
+    }   //getNumValues
+
     /**
      * This method returns the indexed value in the buffer.
      *
@@ -103,17 +331,19 @@ public class TrcDataBuffer
      */
     public Double getValue(int index)
     {
-        Double value = null;
+        double value;
+        boolean found;
+        long stamp;
 
-        synchronized (bufferedData)
+        do
         {
-            if (index < bufferedData.size())
-            {
-                value = bufferedData.get(index);
-            }
-        }
+            stamp = beginRead();
+            double[] values = data;
+            found = index >= 0 && index < numValues;
+            value = found? values[(headIndex + index)%values.length]: 0.0;
+        } while (!endRead(stamp));
 
-        return value;
+        return found? value: null;
     }   //getValue
 
     /**
@@ -123,18 +353,52 @@ public class TrcDataBuffer
      */
     public Double getLastValue()
     {
-        Double value = null;
+        double value;
+        boolean found;
+        long stamp;
 
-        synchronized (bufferedData)
+        do
         {
-            if (!bufferedData.isEmpty())
+            stamp = beginRead();
+            double[] values = data;
+            found = numValues > 0;
+            value = found? values[(headIndex + numValues - 1)%values.length]: 0.0;
+        } while (!endRead(stamp));
+
+        return found? value: null;
+    }   //getLastValue
+
+    /**
+     * This method copies the buffered values into the given array without allocating.
+     *
+     * @param dest specifies the array to copy the values into, must be large enough to hold all values.
+     * @return number of values copied.
+     * @throws IllegalArgumentException if the array is too small.
+     */
+    public int copyTo(double[] dest)
+    {
+        int length;
+        long stamp;
+
+        do
+        {
+            stamp = beginRead();
+            double[] values = data;
+            length = numValues;
+            // The fields may be inconsistent if a writer is active, endRead will detect it, just stay in bounds.
+            if (length <= dest.length && length <= values.length && headIndex < values.length)
             {
-                value = bufferedData.get(bufferedData.size() - 1);
+                copyValues(values, headIndex, length, dest);
             }
+        } while (!endRead(stamp));
+
+        if (length > dest.length)
+        {
+            throw new IllegalArgumentException("Destination array too small (" + dest.length + " < " + length + ").");
         }
 
-        return value;
-    }   //getLastValue
+        return length;
+    }   //copyTo
 
     /**
      * This method returns an array of the buffered values.
@@ -143,20 +407,35 @@ public class TrcDataBuffer
      */
     public Double[] getBufferedData()
     {
-        Double[] data = null;
+        double[] values;
+        int length;
 
-        synchronized (bufferedData)
+        do
         {
-            int arraySize = bufferedData.size();
+            // The buffer may grow between sizing and copying, so try again if it does.
+            values = new double[Math.max(getNumValues(), 1)];
+            try
+            {
+                length = copyTo(values);
+                break;
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Buffer grew, try again.
+            }
+        } while (true);
 
-            if (arraySize > 0)
+        Double[] bufferedData = null;
+        if (length > 0)
+        {
+            bufferedData = new Double[length];
+            for (int i = 0; i < length; i++)
             {
-                data = new Double[arraySize];
-                bufferedData.toArray(data);
+                bufferedData[i] = values[i];
             }
         }
 
-        return data;
+        return bufferedData;
     }   //getBufferedData
 
     /**
@@ -166,24 +445,25 @@ public class TrcDataBuffer
      */
     public Double getMinimumValue()
     {
-        Double minValue = null;
+        double value;
+        boolean found;
+        long stamp;
 
-        synchronized (bufferedData)
+        do
         {
-            for (double value : bufferedData)
+            stamp = beginRead();
+            found = numValues > 0;
+            if (bufferSize > 0)
             {
-                if (minValue == null)
-                {
-                    minValue = value;
-                }
-                else if (value < minValue)
-                {
-                    minValue = value;
-                }
+                value = found && minDequeSize > 0? data[(int)(minDeque[minDequeHead]%bufferSize)]: 0.0;
             }
-        }
+            else
+            {
+                value = minValue;
+            }
+        } while (!endRead(stamp));
 
-        return minValue;
+        return found? value: null;
     }   //getMinimumValue
 
     /**
@@ -193,46 +473,73 @@ public class TrcDataBuffer
      */
     public Double getMaximumValue()
     {
-        Double maxValue = null;
+        double value;
+        boolean found;
+        long stamp;
 
-        synchronized (bufferedData)
+        do
         {
-            for (double value : bufferedData)
+            stamp = beginRead();
+            found = numValues > 0;
+            if (bufferSize > 0)
             {
-                if (maxValue == null)
-                {
-                    maxValue = value;
-                }
-                else if (value > maxValue)
-                {
-                    maxValue = value;
-                }
+                value = found && maxDequeSize > 0? data[(int)(maxDeque[maxDequeHead]%bufferSize)]: 0.0;
             }
-        }
+            else
+            {
+                value = maxValue;
+            }
+        } while (!endRead(stamp));
 
-        return maxValue;
+        return found? value: null;
     }   //getMaximumValue
 
     /**
-     * This method calculates the average value in the buffer.
+     * This method returns the average value in the buffer.
      *
-     * @return average value calculated.
+     * @return average value, 0.0 if buffer is empty.
      */
     public double getAverageValue()
     {
-        int numValues = 0;
-        double sum = 0.0;
+        double value;
+        long stamp;
 
-        synchronized (bufferedData)
+        do
         {
-            for (int i = 0; i < bufferedData.size(); i++)
-            {
-                sum += bufferedData.get(i);
-                numValues++;
-            }
-        }
+            stamp = beginRead();
+            value = mean;
+        } while (!endRead(stamp));
 
-        return numValues == 0? 0.0: sum/numValues;
+        return value;
     }   //getAverageValue
 
+    /**
+     * This method returns the population variance of the values in the buffer.
+     *
+     * @return variance, 0.0 if buffer is empty.
+     */
+    public double getVariance()
+    {
+        double value;
+        long stamp;
+
+        do
+        {
+            stamp = beginRead();
+            value = numValues > 0? Math.max(sumSquaredDiffs, 0.0)/numValues: 0.0;
+        } while (!endRead(stamp));
+
+        return value;
+    }   //getVariance
+
+    /**
+     * This method returns the population standard deviation of the values in the buffer.
+     *
+     * @return standard deviation, 0.0 if buffer is empty.
+     */
+    public double getStandardDeviation()
+    {
+        return Math.sqrt(getVariance());
+    }   //getStandardDeviation
+
 }   //class TrcDataBuffer
@@ -69,9 +69,56 @@ public class TrcDbgTrace
 
     }   //interface DbgLog
 
+    /**
+     * This interface is implemented by the caller of the fast trace methods to append the message text to the given
+     * StringBuilder. It is only called if the message level is enabled, so no formatting is done when tracing is off.
+     */
+    public interface MsgBuilder
+    {
+        /**
+         * This method is called to append the message text.
+         *
+         * @param sb specifies the StringBuilder to append the message text to.
+         */
+        void build(StringBuilder sb);
+
+    }   //interface MsgBuilder
+
+    /**
+     * This class identifies a trace call site for the fast trace methods. The caller typically keeps it in a static
+     * final field next to the trace call. The method name of the call site is either provided by the caller or
+     * resolved from the thread stack the first time a message is emitted and cached from then on.
+     */
+    public static class CallSite
+    {
+        private volatile String methodName;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param methodName specifies the method name of the call site.
+         */
+        public CallSite(String methodName)
+        {
+            this.methodName = methodName;
+        }   //CallSite
+
+        /**
+         * Constructor: Create an instance of the object. The method name will be resolved on first use.
+         */
+        public CallSite()
+        {
+            this(null);
+        }   //CallSite
+
+    }   //class CallSite
+
+    private static final int MAX_MSG_BUILDER_CAPACITY = 4096;
+    private static final ThreadLocal<StringBuilder> msgBuilder = new ThreadLocal<>();
     private static DbgLog dbgLog = null;
     private static TrcDbgTrace globalTracer = null;
     private static TrcTraceLogger traceLogger = null;
+    private static TrcTelemetryRecorder telemetryRecorder = null;
 
     private MsgLevel msgLevel = MsgLevel.INFO;
 
@@ -195,6 +242,31 @@ public class TrcDbgTrace
         return openTraceLog(logFileName);
     }   //openTraceLog
 
+    /**
+     * This method opens a binary log file for writing all the trace messages to it. Trace messages are put in a
+     * preallocated ring buffer without locking and written to the file by the logger thread. The binary log can be
+     * converted to a text log with TrcTraceLogger.convertBinaryLog.
+     *
+     * @param traceLogName specifies the full trace log file path name.
+     * @param numRecords specifies the number of records in the ring buffer.
+     * @param maxMsgLength specifies the maximum message length in bytes, longer messages are truncated.
+     * @param backPressure specifies whether to drop the message or block the caller when the ring buffer is full.
+     * @return true if log file is successfully opened, false if it failed.
+     */
+    public static boolean openBinaryTraceLog(
+        String traceLogName, int numRecords, int maxMsgLength, TrcTraceLogger.BackPressure backPressure)
+    {
+        boolean success = false;
+
+        if (traceLogger == null)
+        {
+            traceLogger = new TrcTraceLogger(traceLogName, numRecords, maxMsgLength, backPressure);
+            success = true;
+        }
+
+        return success;
+    }   //openBinaryTraceLog
+
     /**
      * This method closes the trace log file.
      */
@@ -250,6 +322,62 @@ public class TrcDbgTrace
         return (traceLogger != null && traceLogger.isEnabled());
     }   //isTraceLogEnabled
 
+    /**
+     * This method sets the telemetry recorder. If set, tracePostStateInfo also records the post-state info as binary
+     * telemetry regardless of the message level, so binary telemetry can be recorded with the string tracing off.
+     *
+     * @param recorder specifies the telemetry recorder, null to stop recording.
+     */
+    public static void setTelemetryRecorder(TrcTelemetryRecorder recorder)
+    {
+        telemetryRecorder = recorder;
+    }   //setTelemetryRecorder
+
+    /**
+     * This method appends a number with the given number of decimal places to a message without allocating. It is
+     * intended for message builders of the fast trace path in place of a %.nf format.
+     *
+     * @param sb specifies the StringBuilder to append to.
+     * @param value specifies the number to append.
+     * @param decimals specifies the number of decimal places.
+     * @return the StringBuilder for chaining.
+     */
+    public static StringBuilder appendFixed(StringBuilder sb, double value, int decimals)
+    {
+        long scale = 1;
+
+        for (int i = 0; i < decimals; i++)
+        {
+            scale *= 10;
+        }
+
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= Long.MAX_VALUE/scale)
+        {
+            // Let StringBuilder handle values that don't fit the fixed point conversion.
+            return sb.append(value);
+        }
+
+        long scaledValue = Math.round(Math.abs(value)*scale);
+        if (value < 0.0 && scaledValue != 0)
+        {
+            sb.append('-');
+        }
+        sb.append(scaledValue/scale);
+        if (decimals > 0)
+        {
+            long fraction = scaledValue%scale;
+
+            sb.append('.');
+            for (long digitScale = scale/10; digitScale > 1 && fraction < digitScale; digitScale /= 10)
+            {
+                sb.append('0');
+            }
+            sb.append(fraction);
+        }
+
+        return sb;
+    }   //appendFixed
+
     /**
      * This method prints the exception stack to the global tracer.
      *
@@ -310,11 +438,78 @@ public class TrcDbgTrace
             dbgLog.msg(level, msg + "\n");
             if (traceLogger != null)
             {
-                traceLogger.logMessage(msg);
+                traceLogger.logMessage(callerInstance, level, msg);
             }
         }
     }   //traceMsgWorker
 
+    /**
+     * This method checks if messages of the given level will be emitted by this tracer.
+     *
+     * @param level specifies the message level.
+     * @return true if the message level is enabled, false otherwise.
+     */
+    public boolean isMsgLevelEnabled(MsgLevel level)
+    {
+        return level.value <= msgLevel.value;
+    }   //isMsgLevelEnabled
+
+    /**
+     * This method is the common worker for all the fast trace message methods. Unlike traceMsgWorker, it does not
+     * walk the thread stack for every message and it builds the message into a reusable per-thread StringBuilder.
+     *
+     * @param callerInstance specifies the name to identify the caller.
+     * @param callSite specifies the call site of the trace message.
+     * @param level specifies the message level.
+     * @param builder specifies the message builder.
+     */
+    private void traceFastWorker(String callerInstance, CallSite callSite, MsgLevel level, MsgBuilder builder)
+    {
+        if (level.value <= msgLevel.value)
+        {
+            String methodName = callSite.methodName;
+            StringBuilder sb = msgBuilder.get();
+
+            if (methodName == null)
+            {
+                // Resolve the method name only once for this call site. Stack: traceFastWorker <- trace method
+                // <- caller.
+                methodName = new Throwable().getStackTrace()[2].getMethodName();
+                callSite.methodName = methodName;
+            }
+
+            if (sb == null || sb.capacity() > MAX_MSG_BUILDER_CAPACITY)
+            {
+                // Don't hang on to a huge buffer if somebody traced a very long message.
+                sb = new StringBuilder(256);
+                msgBuilder.set(sb);
+            }
+            sb.setLength(0);
+            sb.append(callerInstance).append('.').append(methodName).append('_').append(level)
+              .append(" [").append(TrcTimer.getModeElapsedTime()).append("] ");
+            builder.build(sb);
+
+            if (traceLogger != null)
+            {
+                traceLogger.logMessage(callerInstance, level, sb.toString());
+            }
+            dbgLog.msg(level, sb.append('\n').toString());
+        }
+    }   //traceFastWorker
+
+    /**
+     * This method is called to print a message with the specified level using the fast trace path.
+     *
+     * @param level specifies the message level.
+     * @param callerInstance specifies the name to identify the caller.
+     * @param callSite specifies the call site of the trace message.
+     * @param builder specifies the message builder, only called if the message level is enabled.
+     */
+    public void traceMsg(MsgLevel level, String callerInstance, CallSite callSite, MsgBuilder builder)
+    {
+        traceFastWorker(callerInstance, callSite, level, builder);
+    }   //traceMsg
+
     /**
      * This method is called to print a fatal message.
      *
@@ -431,6 +626,18 @@ public class TrcDbgTrace
         }
     }   //traceInfo
 
+    /**
+     * This method is called to print an information message using the fast trace path.
+     *
+     * @param callerInstance specifies the name to identify the caller.
+     * @param callSite specifies the call site of the trace message.
+     * @param builder specifies the message builder, only called if the message level is enabled.
+     */
+    public void traceInfo(String callerInstance, CallSite callSite, MsgBuilder builder)
+    {
+        traceFastWorker(callerInstance, callSite, MsgLevel.INFO, builder);
+    }   //traceInfo
+
     /**
      * This method is called to print a debug message.
      *
@@ -460,6 +667,18 @@ public class TrcDbgTrace
         }
     }   //traceDebug
 
+    /**
+     * This method is called to print a debug message using the fast trace path.
+     *
+     * @param callerInstance specifies the name to identify the caller.
+     * @param callSite specifies the call site of the trace message.
+     * @param builder specifies the message builder, only called if the message level is enabled.
+     */
+    public void traceDebug(String callerInstance, CallSite callSite, MsgBuilder builder)
+    {
+        traceFastWorker(callerInstance, callSite, MsgLevel.DEBUG, builder);
+    }   //traceDebug
+
     /**
      * This method is called to print a verbose message.
      *
@@ -489,6 +708,18 @@ public class TrcDbgTrace
         }
     }   //traceVerbose
 
+    /**
+     * This method is called to print a verbose message using the fast trace path.
+     *
+     * @param callerInstance specifies the name to identify the caller.
+     * @param callSite specifies the call site of the trace message.
+     * @param builder specifies the message builder, only called if the message level is enabled.
+     */
+    public void traceVerbose(String callerInstance, CallSite callSite, MsgBuilder builder)
+    {
+        traceFastWorker(callerInstance, callSite, MsgLevel.VERBOSE, builder);
+    }   //traceVerbose
+
     /**
      * This method is called to print a fatal message using the global tracer.
      *
@@ -634,6 +865,18 @@ public class TrcDbgTrace
         }
     }   //globalTraceDebug
 
+    /**
+     * This method is called to print a debug message using the global tracer and the fast trace path.
+     *
+     * @param callerInstance specifies the name to identify the caller.
+     * @param callSite specifies the call site of the trace message.
+     * @param builder specifies the message builder, only called if the message level is enabled.
+     */
+    public static void globalTraceDebug(String callerInstance, CallSite callSite, MsgBuilder builder)
+    {
+        globalTracer.traceFastWorker(callerInstance, callSite, MsgLevel.DEBUG, builder);
+    }   //globalTraceDebug
+
     /**
      * This method is called to print a verbose message using the global tracer.
      *
@@ -843,6 +1086,13 @@ public class TrcDbgTrace
         String name, Object state, TrcDriveBase driveBase, TrcPidDrive pidDrive, TrcPurePursuitDrive ppDrive,
         TrcRobotBattery battery)
     {
+        TrcTelemetryRecorder recorder = telemetryRecorder;
+
+        if (recorder != null)
+        {
+            recorder.recordStateInfo(name, state, driveBase, pidDrive, ppDrive, battery);
+        }
+
         if (msgLevel.value >= MsgLevel.INFO.value)
         {
             tracePostStateInfoWorker(name, state, driveBase, pidDrive, ppDrive, battery);
@@ -862,6 +1112,13 @@ public class TrcDbgTrace
      */
     public void tracePostStateInfo(String name, Object state, TrcDriveBase driveBase, TrcPidDrive pidDrive)
     {
+        TrcTelemetryRecorder recorder = telemetryRecorder;
+
+        if (recorder != null)
+        {
+            recorder.recordStateInfo(name, state, driveBase, pidDrive, null, null);
+        }
+
         if (msgLevel.value >= MsgLevel.INFO.value)
         {
             tracePostStateInfoWorker(name, state, driveBase, pidDrive, null, null);
@@ -882,6 +1139,13 @@ public class TrcDbgTrace
      */
     public void tracePostStateInfo(String name, Object state, TrcDriveBase driveBase, TrcPurePursuitDrive ppDrive)
     {
+        TrcTelemetryRecorder recorder = telemetryRecorder;
+
+        if (recorder != null)
+        {
+            recorder.recordStateInfo(name, state, driveBase, null, ppDrive, null);
+        }
+
         if (msgLevel.value >= MsgLevel.INFO.value)
         {
             tracePostStateInfoWorker(name, state, driveBase, null, ppDrive, null);
@@ -900,6 +1164,13 @@ public class TrcDbgTrace
      */
     public void tracePostStateInfo(String name, Object state, TrcRobotBattery battery)
     {
+        TrcTelemetryRecorder recorder = telemetryRecorder;
+
+        if (recorder != null)
+        {
+            recorder.recordStateInfo(name, state, null, null, null, battery);
+        }
+
         if (msgLevel.value >= MsgLevel.INFO.value)
         {
             tracePostStateInfoWorker(name, state, null, null, null, battery);
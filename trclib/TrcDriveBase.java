@@ -22,10 +22,6 @@
 
 package TrcCommonLib.trclib;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-
 import java.util.Arrays;
 import java.util.Stack;
 
@@ -223,6 +219,8 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
     private final TrcMotor[] motors;
     private final TrcGyro gyro;
     protected final Odometry odometry;
+    // Reference pose for getVelocityRelativeTo, only used while holding the odometry lock.
+    private final TrcPose2D velRefPose = new TrcPose2D();
     private final MotorsState motorsState;
     private final TrcTimer driveTimer;
     private TrcEvent driveTimerEvent = null;
@@ -251,10 +249,7 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
     private boolean antiTippingEnabled = false;
     private Odometry referenceOdometry = null;
     private boolean synchronizeOdometries = false;
-    // Change of basis matrices to convert between coordinate systems
-    private final RealMatrix enuToNwuChangeOfBasis = MatrixUtils
-        .createRealMatrix(new double[][] { { 0, 1 }, { -1, 0 } });
-    private final RealMatrix nwuToEnuChangeOfBasis = enuToNwuChangeOfBasis.transpose();
+    private TrcPoseHistory poseHistory = null;
 
     /**
      * Constructor: Create an instance of the object.
@@ -477,13 +472,79 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
      * @return a copy of the robot position relative to the field origin.
      */
     public TrcPose2D getFieldPosition()
+    {
+        return getFieldPosition(new TrcPose2D());
+    }   //getFieldPosition
+
+    /**
+     * This method returns the robot position in reference to the field origin in the given pose so that periodic
+     * callers don't need to allocate a new pose every loop.
+     *
+     * @param result specifies the pose to store the robot position in.
+     * @return result pose.
+     */
+    public TrcPose2D getFieldPosition(TrcPose2D result)
     {
         synchronized (odometry)
         {
-            return odometry.position.clone();
+            result.setAs(odometry.position);
+            return result;
         }
     }   //getFieldPosition
 
+    /**
+     * This method enables recording the robot field position history. When enabled, the odometry task adds the
+     * robot position to the history on every update so that getFieldPositionAt can look up where the robot was at
+     * an earlier time, such as when a vision frame was captured.
+     *
+     * @param capacity specifies the maximum number of positions to keep in the history.
+     */
+    public void enablePoseHistory(int capacity)
+    {
+        synchronized (odometry)
+        {
+            poseHistory = new TrcPoseHistory(moduleName + ".poseHistory", capacity);
+        }
+    }   //enablePoseHistory
+
+    /**
+     * This method disables recording the robot field position history.
+     */
+    public void disablePoseHistory()
+    {
+        synchronized (odometry)
+        {
+            poseHistory = null;
+        }
+    }   //disablePoseHistory
+
+    /**
+     * This method returns the robot field position history.
+     *
+     * @return robot field position history, null if it is not enabled.
+     */
+    public TrcPoseHistory getPoseHistory()
+    {
+        synchronized (odometry)
+        {
+            return poseHistory;
+        }
+    }   //getPoseHistory
+
+    /**
+     * This method returns the robot position in reference to the field origin at the given time, interpolated from
+     * the position history.
+     *
+     * @param timestamp specifies the time in seconds.
+     * @param result specifies the pose to store the robot position in.
+     * @return result pose, null if the position history is not enabled or does not go back to the given time.
+     */
+    public TrcPose2D getFieldPositionAt(double timestamp, TrcPose2D result)
+    {
+        TrcPoseHistory history = getPoseHistory();
+        return history != null? history.getPoseAt(timestamp, result): null;
+    }   //getFieldPositionAt
+
     /**
      * This method returns the robot velocity in reference to the field origin. By default, the field origin is the
      * robot's starting position.
@@ -491,10 +552,23 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
      * @return a copy of the robot velocity relative to the field origin.
      */
     public TrcPose2D getFieldVelocity()
+    {
+        return getFieldVelocity(new TrcPose2D());
+    }   //getFieldVelocity
+
+    /**
+     * This method returns the robot velocity in reference to the field origin in the given pose so that periodic
+     * callers don't need to allocate a new pose every loop.
+     *
+     * @param result specifies the pose to store the robot velocity in.
+     * @return result pose.
+     */
+    public TrcPose2D getFieldVelocity(TrcPose2D result)
     {
         synchronized (odometry)
         {
-            return odometry.velocity.clone();
+            result.setAs(odometry.velocity);
+            return result;
         }
     }   //getFieldVelocity
 
@@ -538,10 +612,24 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
      * @return position transformed into the new reference pose.
      */
     public TrcPose2D getPositionRelativeTo(TrcPose2D posPose, boolean transformAngle)
+    {
+        return getPositionRelativeTo(posPose, transformAngle, new TrcPose2D());
+    }   //getPositionRelativeTo
+
+    /**
+     * This method returns the robot position relative to <code>pose</code> in the given pose so that periodic
+     * callers don't need to allocate a new pose every loop.
+     *
+     * @param posPose specifies the position to be referenced to.
+     * @param transformAngle specifies true to also transform angle, false to leave it alone.
+     * @param result specifies the pose to store the relative position in.
+     * @return result pose.
+     */
+    public TrcPose2D getPositionRelativeTo(TrcPose2D posPose, boolean transformAngle, TrcPose2D result)
     {
         synchronized (odometry)
         {
-            return odometry.position.relativeTo(posPose, transformAngle);
+            return odometry.position.relativeTo(posPose, transformAngle, result);
         }
     }   //getPositionRelativeTo
 
@@ -564,17 +652,30 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
      * @return velocity transformed into the new reference pose.
      */
     public TrcPose2D getVelocityRelativeTo(TrcPose2D velPose, double refAngle)
+    {
+        return getVelocityRelativeTo(velPose, refAngle, new TrcPose2D());
+    }   //getVelocityRelativeTo
+
+    /**
+     * This method returns the robot velocity relative to <code>pose</code> in the given pose so that periodic
+     * callers don't need to allocate a new pose every loop.
+     *
+     * @param velPose specifies the velocity to be referenced to.
+     * @param refAngle specifies the reference angle to be relative to.
+     * @param result specifies the pose to store the relative velocity in, may be velPose.
+     * @return result pose.
+     */
+    public TrcPose2D getVelocityRelativeTo(TrcPose2D velPose, double refAngle, TrcPose2D result)
     {
         synchronized (odometry)
         {
             //
             // relativeTo will transform the odometry velocity vector to be relative to the angle of pose but the
-            // angle of velPose is really the angular velocity not an angle, so we must duplicate velPose to a new
-            // pose and change the angle member to be the refAngle and let the caller provide that angle.
+            // angle of velPose is really the angular velocity not an angle, so we must use a pose with velPose's
+            // vector and the angle member set to the refAngle and let the caller provide that angle.
             //
-            TrcPose2D pose = velPose.clone();
-            pose.angle = refAngle;
-            return odometry.velocity.relativeTo(pose, false);
+            velRefPose.set(velPose.x, velPose.y, refAngle);
+            return odometry.velocity.relativeTo(velRefPose, false, result);
         }
     }   //getVelocityRelativeTo
 
@@ -855,6 +956,11 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
 
             odometry.position.x = odometry.position.y = 0.0;
             odometry.velocity.x = odometry.velocity.y = 0.0;
+            if (poseHistory != null)
+            {
+                // Don't interpolate across the reset.
+                poseHistory.clear();
+            }
         }
     }   //resetOdometry
 
@@ -1915,6 +2021,11 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
                     ", delta=" + odometryDelta +
                     ", odometry=" + odometry);
             }
+
+            if (poseHistory != null)
+            {
+                poseHistory.addPose(TrcTimer.getCurrentTime(), odometry.position);
+            }
         }
     }   //odometryTask
 
@@ -1972,78 +2083,92 @@ public abstract class TrcDriveBase implements TrcExclusiveSubsystem
      */
     private void updateOdometry(Odometry delta, double angle)
     {
+        //
+        // The math below is written out in scalar form so that the odometry update, which runs every loop, doesn't
+        // create any matrices or vectors.
+        //
         if (USE_CURVED_PATH)
         {
             // The math below uses a different coordinate system (NWU) so we have to convert
-            double[] posArr = enuToNwuChangeOfBasis.operate(new double[] { delta.position.x, delta.position.y });
-            double x = posArr[0];
-            double y = posArr[1];
+            double x = delta.position.y;
+            double y = -delta.position.x;
             // Convert clockwise degrees to counter-clockwise radians
             double theta = Math.toRadians(-delta.position.angle);
             double headingRad = Math.toRadians(-angle);
 
             // The derivation of the following math is here in section 11.1
             // (https://file.tavsys.net/control/state-space-guide.pdf)
-            // A is a transformation matrix representing a CCW rotation by headingRad radians
-            // This is used to bring the change in pose into the global reference frame
-            RealMatrix A = MatrixUtils.createRealMatrix(
-                new double[][] { { Math.cos(headingRad), -Math.sin(headingRad), 0 },
-                                 { Math.sin(headingRad), Math.cos(headingRad), 0 },
-                                 { 0, 0, 1 } });
             // B is used to apply a nonzero curvature to the path. When the curvature is zero, B resolves to the
             // identity matrix.
             // The math involved isn't immediately intuitive, but it's basically the integration of the forward odometry
             // matrix equation.
-            RealMatrix B;
+            double b00, b01, b10, b11;
             if (Math.abs(theta) <= 1E-9)
             {
                 // Use the taylor series approximations, since some values are indeterminate
-                B = MatrixUtils.createRealMatrix(new double[][] { { 1 - theta * theta / 6.0, -theta / 2.0, 0 },
-                    { theta / 2.0, 1 - theta * theta / 6.0, 0 }, { 0, 0, 1 } });
+                b00 = b11 = 1 - theta * theta / 6.0;
+                b01 = -theta / 2.0;
+                b10 = theta / 2.0;
             }
             else
             {
-                B = MatrixUtils.createRealMatrix(new double[][] { { Math.sin(theta), Math.cos(theta) - 1, 0 },
-                    { 1 - Math.cos(theta), Math.sin(theta), 0 }, { 0, 0, theta } });
-                B = B.scalarMultiply(1.0 / theta);
+                b00 = b11 = Math.sin(theta) / theta;
+                b01 = (Math.cos(theta) - 1) / theta;
+                b10 = (1 - Math.cos(theta)) / theta;
             }
-            // C is the column vector containing the "raw" change in pose. This is the immediate output of the forward
-            // odometry multiplied by timestep
-            RealVector C = MatrixUtils.createRealVector(new double[] { x, y, theta });
-            // Get the change in global pose
-            RealVector globalPose = A.multiply(B).operate(C);
-            // Convert back to our (ENU) reference frame
-            RealVector pos = nwuToEnuChangeOfBasis.operate(globalPose.getSubVector(0, 2));
-            // Convert back to clockwise degrees for angle
-            theta = Math.toDegrees(-globalPose.getEntry(2));
-
+            // Apply the curvature to the "raw" change in pose, which is the immediate output of the forward odometry
+            // multiplied by timestep.
+            double curvedX = b00 * x + b01 * y;
+            double curvedY = b10 * x + b11 * y;
+            // A CCW rotation by headingRad radians brings the change in pose into the global reference frame.
+            double cosHeading = Math.cos(headingRad);
+            double sinHeading = Math.sin(headingRad);
+            double globalX = cosHeading * curvedX - sinHeading * curvedY;
+            double globalY = sinHeading * curvedX + cosHeading * curvedY;
+            // Convert back to our (ENU) reference frame and update the odometry values. Convert back to clockwise
+            // degrees for angle.
+            odometry.position.x -= globalY;
+            odometry.position.y += globalX;
+            odometry.position.angle += Math.toDegrees(-theta);
             // Rotate the velocity vector into the global reference frame
-            RealVector vel = MatrixUtils.createRealVector(new double[] { delta.velocity.x, delta.velocity.y });
-            vel = TrcUtil.rotateCW(vel, angle);
-
-            // Update the odometry values
-            odometry.position.x += pos.getEntry(0);
-            odometry.position.y += pos.getEntry(1);
-            odometry.position.angle += theta;
-            odometry.velocity.x = vel.getEntry(0);
-            odometry.velocity.y = vel.getEntry(1);
+            rotateCW(delta.velocity, angle, odometry.velocity);
             odometry.velocity.angle = delta.velocity.angle;
         }
         else
         {
-            RealVector pos = MatrixUtils.createRealVector(new double[] { delta.position.x, delta.position.y });
-            RealVector vel = MatrixUtils.createRealVector(new double[] { delta.velocity.x, delta.velocity.y });
+            double posX = delta.position.x;
+            double posY = delta.position.y;
+            double posAngle = odometry.position.angle;
 
-            pos = TrcUtil.rotateCW(pos, odometry.position.angle);
-            vel = TrcUtil.rotateCW(vel, odometry.position.angle);
-
-            odometry.position.x += pos.getEntry(0);
-            odometry.position.y += pos.getEntry(1);
-            odometry.velocity.x = vel.getEntry(0);
-            odometry.velocity.y = vel.getEntry(1);
-            odometry.position.angle += delta.position.angle;
+            rotateCW(delta.velocity, posAngle, odometry.velocity);
             odometry.velocity.angle = delta.velocity.angle;
+            double angleRadians = Math.toRadians(posAngle);
+            double cosAngle = Math.cos(angleRadians);
+            double sinAngle = Math.sin(angleRadians);
+            odometry.position.x += posX * cosAngle + posY * sinAngle;
+            odometry.position.y += -posX * sinAngle + posY * cosAngle;
+            odometry.position.angle += delta.position.angle;
         }
     }   //updateOdometry
 
+    /**
+     * This method rotates the x and y components of the given pose clockwise by the given angle and stores them in
+     * the result pose. The angle of the result pose is not changed.
+     *
+     * @param pose specifies the pose to rotate.
+     * @param angle specifies the angle in degrees to rotate by.
+     * @param result specifies the pose to store the rotated x and y in.
+     */
+    private static void rotateCW(TrcPose2D pose, double angle, TrcPose2D result)
+    {
+        double angleRadians = Math.toRadians(angle);
+        double cosAngle = Math.cos(angleRadians);
+        double sinAngle = Math.sin(angleRadians);
+        double x = pose.x;
+        double y = pose.y;
+
+        result.x = x * cosAngle + y * sinAngle;
+        result.y = -x * sinAngle + y * cosAngle;
+    }   //rotateCW
+
 }   //class TrcDriveBase
@@ -22,8 +22,8 @@
 
 package TrcCommonLib.trclib;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -100,7 +100,16 @@ public class TrcEvent
      */
     public void signal()
     {
-        eventState.compareAndSet(EventState.CLEARED, EventState.SIGNALED);
+        if (eventState.compareAndSet(EventState.CLEARED, EventState.SIGNALED))
+        {
+            CallbackEventList callbackEventList = this.callbackEventList;
+
+            if (callbackEventList != null)
+            {
+                // There is a pending callback, hand the event to the callback thread.
+                callbackEventList.push(this);
+            }
+        }
     }   //signal
 
     /**
@@ -147,15 +156,72 @@ public class TrcEvent
         void notify(Object context);
     }   //interface Callback
 
+    /**
+     * This class implements the per-thread ready queue of events that have pending callbacks. It is a lock-free
+     * multi-producer single-consumer intrusive stack: signaling threads push events onto it and the owner thread
+     * drains the whole stack at once. Since the link is a field in the event itself, neither pushing nor draining
+     * allocates memory.
+     */
     private static class CallbackEventList
     {
-        final ArrayList<TrcEvent> eventList = new ArrayList<>();
-        final Object listLock = new Object();
+        final Thread thread;
+        final AtomicReference<TrcEvent> readyHead = new AtomicReference<>(null);
+
+        CallbackEventList(Thread thread)
+        {
+            this.thread = thread;
+        }   //CallbackEventList
+
+        /**
+         * This method pushes the event onto the ready queue if it is not already in it.
+         *
+         * @param event specifies the event to be pushed.
+         */
+        void push(TrcEvent event)
+        {
+            if (event.readyQueued.compareAndSet(false, true))
+            {
+                TrcEvent head;
+
+                do
+                {
+                    head = readyHead.get();
+                    event.nextReady = head;
+                } while (!readyHead.compareAndSet(head, event));
+            }
+        }   //push
+
+        /**
+         * This method removes all events from the ready queue and returns them in the order they were pushed.
+         *
+         * @return first event of the ready chain, null if the queue is empty.
+         */
+        TrcEvent drain()
+        {
+            TrcEvent event = readyHead.getAndSet(null);
+            TrcEvent reversed = null;
+
+            // The stack returns the events in LIFO order, reverse it in place so callbacks are done in FIFO order.
+            while (event != null)
+            {
+                TrcEvent next = event.nextReady;
+                event.nextReady = reversed;
+                reversed = event;
+                event = next;
+            }
+
+            return reversed;
+        }   //drain
+
     }   //class CallbackEventList
 
     private static final HashMap<Thread, CallbackEventList> callbackEventListMap = new HashMap<>();
-    private Callback callback;
-    private Object callbackContext;
+    private static final ThreadLocal<CallbackEventList> threadCallbackEventList = new ThreadLocal<>();
+    private final AtomicBoolean readyQueued = new AtomicBoolean(false);
+    private volatile TrcEvent nextReady = null;
+    private volatile CallbackEventList callbackEventList = null;
+    private volatile Callback callback;
+    private volatile Object callbackContext;
 
     /**
      * This method sets a callback handler so that when the event is signaled, the callback handler is called on
@@ -186,28 +252,27 @@ public class TrcEvent
 
         if (callbackEventList != null)
         {
-            synchronized (callbackEventList.listLock)
+            this.callback = callback;
+            this.callbackContext = callbackContext;
+            if (callback != null)
             {
-                boolean inList = callbackEventList.eventList.contains(this);
-
-                this.callback = callback;
-                this.callbackContext = callbackContext;
-                if (callback != null && !inList)
-                {
-                    // Callback handler is not already in the callback list, add it.
-                    callbackEventList.eventList.add(this);
-                    tracer.traceDebug(
-                        instanceName, "Adding event to the callback list for thread " + thread.getName() + ".");
-                }
-                else if (callback == null && inList)
+                this.callbackEventList = callbackEventList;
+                tracer.traceDebug(
+                    instanceName, "Setting event callback for thread " + thread.getName() + ".");
+                if (isSignaled())
                 {
-                    // Remove the callback from the list.
-                    callbackEventList.eventList.remove(this);
-                    this.callbackContext = null;
-                    tracer.traceDebug(
-                        instanceName, "Removing event from the callback list for thread " + thread.getName() + ".");
+                    // The event got signaled before we attached the callback thread, queue it ourselves.
+                    callbackEventList.push(this);
                 }
             }
+            else
+            {
+                // Detach the callback. If the event is already in the ready queue, the callback thread will skip it.
+                this.callbackEventList = null;
+                this.callbackContext = null;
+                tracer.traceDebug(
+                    instanceName, "Removing event callback for thread " + thread.getName() + ".");
+            }
         }
         else
         {
@@ -246,9 +311,8 @@ public class TrcEvent
     /**
      * This method is called by a periodic thread when the thread has just been started and before it enters its
      * thread loop to register for event callback. When a callback handler is set for an event, the event is added
-     * to the event list for the thread. The periodic thread will then periodically call checkForEventCallback
-     * to check if any events in the list are signaled or canceled. When that happens, the callback will be performed
-     * and the event will be removed from the event list.
+     * to the ready queue of the thread when it is signaled. The periodic thread will then periodically call
+     * performEventCallback to drain the ready queue and perform the callbacks.
      *
      * @return true if registration was successful, false if the thread has already registered an event list before.
      */
@@ -263,7 +327,9 @@ public class TrcEvent
 
             if (!alreadyRegistered)
             {
-                callbackEventListMap.put(thread, new CallbackEventList());
+                CallbackEventList callbackEventList = new CallbackEventList(thread);
+                callbackEventListMap.put(thread, callbackEventList);
+                threadCallbackEventList.set(callbackEventList);
                 staticTracer.traceDebug(
                     moduleName, "Registering thread " + thread.getName() + " for event callback.");
             }
@@ -292,6 +358,7 @@ public class TrcEvent
         {
             callbackEventList = callbackEventListMap.remove(thread);
         }
+        threadCallbackEventList.remove();
 
         if (callbackEventList == null)
         {
@@ -308,58 +375,57 @@ public class TrcEvent
     }   //unregisterEventCallback
 
     /**
-     * This method is called by a periodic thread in its thread loop to check if any events in the list are signaled
-     * or canceled. When that happens, it performs the event callback on the periodic thread.
+     * This method is called by a periodic thread in its thread loop to perform the callbacks of events that have
+     * been signaled. It only drains the thread's ready queue, so it takes no lock and allocates nothing when there
+     * is no signaled event.
      */
     public static void performEventCallback()
     {
-        final Thread thread = Thread.currentThread();
-        CallbackEventList callbackEventList;
-
-        synchronized (callbackEventListMap)
-        {
-            callbackEventList = callbackEventListMap.get(thread);
-        }
+        CallbackEventList callbackEventList = threadCallbackEventList.get();
 
         if (callbackEventList != null)
         {
-            ArrayList<TrcEvent> callbackList = new ArrayList<>();
+            TrcEvent event = callbackEventList.drain();
 
-            synchronized (callbackEventList.listLock)
+            while (event != null)
             {
-//                // Use a list Iterator because it is fail-fast and allows removing entries while iterating the list.
-//                Iterator<TrcEvent> listIterator = callbackEventList.iterator();
-//                while (listIterator.hasNext())
-                // Iterating the list backward so that removing an event will not affect iteration.
-                for (int i = callbackEventList.eventList.size() - 1; i >= 0; i--)
+                TrcEvent next = event.nextReady;
+                Callback callback = event.callback;
+                Object context = event.callbackContext;
+
+                event.nextReady = null;
+                event.readyQueued.set(false);
+                // Skip events whose callback was removed or moved to another thread after they were queued.
+                if (callback != null && event.callbackEventList == callbackEventList && event.isSignaled())
                 {
-//                    TrcEvent event = listIterator.next();
-                    TrcEvent event = callbackEventList.eventList.get(i);
-                    if (event.isSignaled() || event.isCanceled())
+                    staticTracer.traceDebug(
+                        moduleName,
+                        "Doing event callback for " + event + " on thread " + callbackEventList.thread.getName() +
+                        ".");
+                    // Clear the callback stuff before doing the callback since the callback may reuse and chain to
+                    // another callback.
+                    event.callback = null;
+                    event.callbackContext = null;
+                    event.callbackEventList = null;
+                    callback.notify(context);
+                }
+                else
+                {
+                    CallbackEventList otherList = event.callbackEventList;
+                    // The callback was moved to another thread while the event was in our queue. Pushing the event
+                    // to the other thread failed since it was still marked queued here, so hand it over now or its
+                    // callback would be lost.
+                    if (otherList != null && otherList != callbackEventList && event.isSignaled())
                     {
-                        callbackList.add(event);
-//                        listIterator.remove();
-                        callbackEventList.eventList.remove(i);
+                        otherList.push(event);
                     }
                 }
-            }
-
-            for (TrcEvent event: callbackList)
-            {
-                staticTracer.traceDebug(
-                    moduleName, "Doing event callback for " + event + " on thread " + thread.getName() + ".");
-                Callback callback = event.callback;
-                Object context = event.callbackContext;
-                // Clear the callback stuff before doing the callback since the callback may reuse and chain to
-                // another callback.
-                event.callback = null;
-                event.callbackContext = null;
-                callback.notify(context);
+                event = next;
             }
         }
         else
         {
-            staticTracer.traceWarn(moduleName, thread.getName() + " was never registered.");
+            staticTracer.traceWarn(moduleName, Thread.currentThread().getName() + " was never registered.");
             TrcDbgTrace.printThreadStack();
         }
     }   //performEventCallback
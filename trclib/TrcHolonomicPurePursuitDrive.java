@@ -22,8 +22,6 @@
 
 package TrcCommonLib.trclib;
 
-import org.apache.commons.math3.linear.RealVector;
-
 /**
  * This class implements a platform independent Pure Pursuit drive for holonomic robots.
  * Essentially, a pure pursuit drive navigates the robot to chase a point along the path. The point to chase is
@@ -97,6 +95,8 @@ public class TrcHolonomicPurePursuitDrive
     private volatile boolean maintainHeading = false;
     private double startHeading;
     private TrcPose2D referencePose;
+    // Robot pose relative to the reference pose, updated in place every loop.
+    private final TrcPose2D robotPose = new TrcPose2D();
     private double moveOutputLimit = Double.POSITIVE_INFINITY;
     private double rotOutputLimit = Double.POSITIVE_INFINITY;
 
@@ -654,7 +654,7 @@ public class TrcHolonomicPurePursuitDrive
     private synchronized void driveTask(
         TrcTaskMgr.TaskType taskType, TrcRobot.RunMode runMode, boolean slowPeriodicLoop)
     {
-        TrcPose2D pose = driveBase.getPositionRelativeTo(referencePose, false);
+        TrcPose2D pose = driveBase.getPositionRelativeTo(referencePose, false, robotPose);
         double robotX = pose.x;
         double robotY = pose.y;
         TrcWaypoint point = getFollowingPoint(pose);
@@ -786,16 +786,14 @@ public class TrcHolonomicPurePursuitDrive
     private TrcWaypoint getFollowingPointOnSegment(TrcWaypoint prev, TrcWaypoint point, TrcPose2D robotPose)
     {
         // Find intersection of path segment with the proximity circle of the robot.
-        RealVector start = prev.getPositionPose().toPosVector();
-        RealVector end = point.getPositionPose().toPosVector();
-        RealVector robot = robotPose.toPosVector();
-
-        RealVector startToEnd = end.subtract(start);
-        RealVector robotToStart = start.subtract(robot);
+        double startToEndX = point.pose.x - prev.pose.x;
+        double startToEndY = point.pose.y - prev.pose.y;
+        double robotToStartX = prev.pose.x - robotPose.x;
+        double robotToStartY = prev.pose.y - robotPose.y;
         // Solve quadratic formula
-        double a = startToEnd.dotProduct(startToEnd);
-        double b = 2 * robotToStart.dotProduct(startToEnd);
-        double c = robotToStart.dotProduct(robotToStart) - proximityRadius * proximityRadius;
+        double a = startToEndX * startToEndX + startToEndY * startToEndY;
+        double b = 2 * (robotToStartX * startToEndX + robotToStartY * startToEndY);
+        double c = robotToStartX * robotToStartX + robotToStartY * robotToStartY - proximityRadius * proximityRadius;
 
         double discriminant = b * b - 4 * a * c;
         if (discriminant < 0)
@@ -22,8 +22,6 @@
 
 package TrcCommonLib.trclib;
 
-import org.apache.commons.math3.linear.RealVector;
-
 /**
  * This class implements a platform independent Pure Pursuit drive for holonomic robots.
  * Essentially, a pure pursuit drive navigates the robot to chase a point along the path. The point to chase is
@@ -64,12 +62,19 @@ public class TrcHolonomicPurePursuitDriveV2
     private double turnTolerance;
     private volatile double velTolerance;
     private TrcPath path;
+    private TrcPathSegmentIndex segmentIndex;
     private int pathIndex = 1;
     private TrcEvent onFinishedEvent;
     private double timedOutTime;
     private final TrcWarpSpace warpSpace;
     private double startHeading;
     private TrcPose2D referencePose;
+    // Robot pose relative to the reference pose, updated in place every loop.
+    private final TrcPose2D robotPose = new TrcPose2D();
+    // The following and target points are interpolated into these scratch waypoints, so they are only valid until
+    // the next loop.
+    private final TrcWaypoint scratchFollowingPoint = new TrcWaypoint(0.0, new TrcPose2D(), 0.0, 0.0, 0.0, 0.0);
+    private final TrcWaypoint scratchTargetPoint = new TrcWaypoint(0.0, new TrcPose2D(), 0.0, 0.0, 0.0, 0.0);
     private double moveOutputLimit = Double.POSITIVE_INFINITY;
     private double rotOutputLimit = Double.POSITIVE_INFINITY;
     private final double accelFF; // acceleration feedforward
@@ -307,6 +312,7 @@ public class TrcHolonomicPurePursuitDriveV2
         this.onFinishedEvent = onFinishedEvent;
 
         this.path = path;
+        segmentIndex = new TrcPathSegmentIndex(path);
         timedOutTime = timeout == 0.0 ? Double.POSITIVE_INFINITY : TrcTimer.getCurrentTime() + timeout;
         pathIndex = 1;
         startHeading = driveBase.getHeading();
@@ -449,7 +455,7 @@ public class TrcHolonomicPurePursuitDriveV2
     private synchronized void driveTask(
         TrcTaskMgr.TaskType taskType, TrcRobot.RunMode runMode, boolean slowPeriodicLoop)
     {
-        TrcPose2D pose = driveBase.getPositionRelativeTo(referencePose, false);
+        TrcPose2D pose = driveBase.getPositionRelativeTo(referencePose, false, robotPose);
         TrcWaypoint followingPoint = getFollowingPoint(pose);
         TrcWaypoint targetPoint = getTargetPointDistParameterized(pose);
 
@@ -504,14 +510,16 @@ public class TrcHolonomicPurePursuitDriveV2
     }   //driveTask
 
     /**
-     * Interpolates a waypoint that's weighted between two given waypoints.
+     * Interpolates a waypoint that's weighted between two given waypoints. The result is written into the given
+     * scratch waypoint so that no waypoint is allocated on each loop.
      *
      * @param point1 specifies the start point of the path segment.
      * @param point2 specifies the end point of the path segment.
      * @param weight specifies the weight between the two provided points.
-     * @return weighted interpolated waypoint.
+     * @param result specifies the scratch waypoint to hold the result.
+     * @return weighted interpolated waypoint, same as result.
      */
-    private TrcWaypoint interpolate(TrcWaypoint point1, TrcWaypoint point2, double weight)
+    private TrcWaypoint interpolate(TrcWaypoint point1, TrcWaypoint point2, double weight, TrcWaypoint result)
     {
         double timestep = interpolate(point1.timeStep, point2.timeStep, weight);
         double x = interpolate(point1.pose.x, point2.pose.x, weight);
@@ -522,7 +530,17 @@ public class TrcHolonomicPurePursuitDriveV2
         double jerk = point1.jerk;//interpolate(point1.jerk, point2.jerk, weight);
         double heading = interpolate(point1.pose.angle, warpSpace.getOptimizedTarget(point2.pose.angle, point1.pose.angle),
             weight);
-        return new TrcWaypoint(timestep, new TrcPose2D(x, y, heading), position, velocity, acceleration, jerk);
+
+        result.timeStep = timestep;
+        result.pose.x = x;
+        result.pose.y = y;
+        result.pose.angle = heading;
+        result.encoderPosition = position;
+        result.velocity = velocity;
+        result.acceleration = acceleration;
+        result.jerk = jerk;
+
+        return result;
     }   //interpolate
 
     /**
@@ -550,21 +568,19 @@ public class TrcHolonomicPurePursuitDriveV2
      * @param prev specifies the start point of the path segment.
      * @param point specifies the end point of the path segment.
      * @param robotPose specifies the robot's position.
-     * @return calculated waypoint.
+     * @return calculated waypoint in the scratchFollowingPoint waypoint, null if none.
      */
     private TrcWaypoint getFollowingPointOnSegment(TrcWaypoint prev, TrcWaypoint point, TrcPose2D robotPose)
     {
         // Find intersection of path segment with the proximity circle of the robot.
-        RealVector start = prev.getPositionPose().toPosVector();
-        RealVector end = point.getPositionPose().toPosVector();
-        RealVector robot = robotPose.toPosVector();
-
-        RealVector startToEnd = end.subtract(start);
-        RealVector robotToStart = start.subtract(robot);
+        double startToEndX = point.pose.x - prev.pose.x;
+        double startToEndY = point.pose.y - prev.pose.y;
+        double robotToStartX = prev.pose.x - robotPose.x;
+        double robotToStartY = prev.pose.y - robotPose.y;
         // Solve quadratic formula
-        double a = startToEnd.dotProduct(startToEnd);
-        double b = 2 * robotToStart.dotProduct(startToEnd);
-        double c = robotToStart.dotProduct(robotToStart) - proximityRadius * proximityRadius;
+        double a = startToEndX * startToEndX + startToEndY * startToEndY;
+        double b = 2 * (robotToStartX * startToEndX + robotToStartY * startToEndY);
+        double c = robotToStartX * robotToStartX + robotToStartY * robotToStartY - proximityRadius * proximityRadius;
 
         double discriminant = b * b - 4 * a * c;
         if (discriminant < 0)
@@ -597,46 +613,74 @@ public class TrcHolonomicPurePursuitDriveV2
                 return null;
             }
 
-            return interpolate(prev, point, t);
+            return interpolate(prev, point, t, scratchFollowingPoint);
         }
     }   //getFollowingPointOnSegment
 
+    /**
+     * This method finds the point on the path that is closest to the robot. Segments whose bounding box is farther
+     * away than the closest point found so far can't contain a closer point, so they are skipped without projecting
+     * the robot position onto them.
+     *
+     * @param robotPose specifies the robot's location.
+     * @return closest point on the path in the scratchTargetPoint waypoint, null if none.
+     */
     private TrcWaypoint getTargetPointDistParameterized(TrcPose2D robotPose)
     {
-        RealVector robotPos = robotPose.toPosVector();
         double closestDist = Double.MAX_VALUE;
-        TrcWaypoint closestPoint = null;
+        int closestIndex = 0;
+        double closestT = 0.0;
         for (int i = 0; i < path.getSize() - 1; i++)
         {
-            RealVector start = path.getWaypoint(i).getPositionPose().toPosVector();
-            RealVector startToEnd = path.getWaypoint(i + 1).getPositionPose().toPosVector().subtract(start);
-            RealVector startToRobot = robotPos.subtract(start);
-            double t = startToRobot.dotProduct(startToEnd) / Math.pow(startToEnd.getNorm(), 2);
-            t = TrcUtil.clipRange(t, 0, 1);
-            TrcWaypoint point = interpolate(path.getWaypoint(i), path.getWaypoint(i + 1), t);
-            double dist = robotPos.getDistance(point.getPositionPose().toPosVector());
+            if (segmentIndex.distanceToBoundingBox(i + 1, robotPose.x, robotPose.y) >= closestDist)
+            {
+                continue;
+            }
+
+            TrcPose2D start = path.getWaypoint(i).pose;
+            TrcPose2D end = path.getWaypoint(i + 1).pose;
+            double startToEndX = end.x - start.x;
+            double startToEndY = end.y - start.y;
+            double startToRobotX = robotPose.x - start.x;
+            double startToRobotY = robotPose.y - start.y;
+            double lengthSquared = startToEndX * startToEndX + startToEndY * startToEndY;
+            double t = lengthSquared > 0.0?
+                TrcUtil.clipRange((startToRobotX * startToEndX + startToRobotY * startToEndY) / lengthSquared, 0, 1):
+                0.0;
+            double dx = startToRobotX - t * startToEndX;
+            double dy = startToRobotY - t * startToEndY;
+            double dist = Math.sqrt(dx * dx + dy * dy);
             if (dist < closestDist)
             {
                 closestDist = dist;
-                closestPoint = point;
+                closestIndex = i;
+                closestT = t;
             }
         }
-        return closestPoint;
+        return closestDist == Double.MAX_VALUE? null:
+            interpolate(
+                path.getWaypoint(closestIndex), path.getWaypoint(closestIndex + 1), closestT, scratchTargetPoint);
     }   //getTargetPointDistParameterized
 
     /**
      * Determines the next target point for Pure Pursuit Drive to follow.
      *
      * @param robotPose specifies the robot's location.
-     * @return next target point for the robot to follow.
+     * @return next target point for the robot to follow, either a waypoint of the path or the scratchFollowingPoint
+     *         waypoint, so it must not be modified or kept beyond this loop.
      */
     private TrcWaypoint getFollowingPoint(TrcPose2D robotPose)
     {
+        int pathSize = path.getSize();
         //
         // Find the next segment that intersects with the proximity circle of the robot.
         // If there are tiny segments that are completely within the proximity circle, we will skip them all.
+        // The segment index skips the segments that are entirely inside or outside of the circle.
         //
-        for (int i = Math.max(pathIndex, 1); i < path.getSize(); i++)
+        for (int i = segmentIndex.findCandidateSegment(Math.max(pathIndex, 1), robotPose.x, robotPose.y,
+                                                       proximityRadius, true);
+             i < pathSize;
+             i = segmentIndex.findCandidateSegment(i + 1, robotPose.x, robotPose.y, proximityRadius, true))
         {
             // If there is a valid intersection, return it.
             TrcWaypoint interpolated = getFollowingPointOnSegment(
@@ -91,7 +91,10 @@ public class TrcHomographyMapper
 
     }   //class Rectangle
 
-    private final Mat homographyMatrix;
+    // Homography matrix coefficients cached at construction, row major.
+    private final double h00, h01, h02;
+    private final double h10, h11, h12;
+    private final double h20, h21, h22;
 
     /**
      * Constructor: Create an instance of the object.
@@ -128,10 +131,24 @@ public class TrcHomographyMapper
         dstPoints.fromList(dstList);
 
         // Find the 3x3 homography matrix.
-        homographyMatrix = Calib3d.findHomography(srcPoints, dstPoints);
+        Mat homographyMatrix = Calib3d.findHomography(srcPoints, dstPoints);
         // release MatOfPoint2f to prevent memory leak.
         srcPoints.release();
         dstPoints.release();
+        //
+        // Copy the coefficients out of the matrix with a single JNI call so that mapping a point doesn't need to
+        // access the native matrix at all. If no homography was found, the matrix is empty and all coefficients are
+        // zero.
+        //
+        double[] h = new double[9];
+        if (!homographyMatrix.empty())
+        {
+            homographyMatrix.get(0, 0, h);
+        }
+        homographyMatrix.release();
+        h00 = h[0]; h01 = h[1]; h02 = h[2];
+        h10 = h[3]; h11 = h[4]; h12 = h[5];
+        h20 = h[6]; h21 = h[7]; h22 = h[8];
     }   //TrcHomographyMapper
 
     /**
@@ -154,55 +171,49 @@ public class TrcHomographyMapper
      */
     public Point mapPoint(Point srcPoint)
     {
-        double[][] pmat = new double[3][1];
-        pmat[0][0] = srcPoint.x;
-        pmat[1][0] = srcPoint.y;
-        pmat[2][0] = 1.0;
-
-        double[][] h = new double[3][3];
-
-        for (int i = 0; i < homographyMatrix.rows(); i++)
-        {
-            for (int j = 0; j < homographyMatrix.cols(); j++)
-            {
-                h[i][j] = homographyMatrix.get(i, j)[0];
-            }
-        }
+        double[] result = new double[2];
 
-        double[][] result = multiply(h, pmat);
+        mapPoint(srcPoint.x, srcPoint.y, result);
+        return new Point(result[0], result[1]);
+    }   //mapPoint
 
+    /**
+     * This method maps a source point to the destination point using the homography matrix without allocating
+     * any object.
+     *
+     * @param x specifies the x coordinate of the source point.
+     * @param y specifies the y coordinate of the source point.
+     * @param result specifies an array of at least 2 elements to receive the x and y of the mapped point.
+     */
+    public void mapPoint(double x, double y, double[] result)
+    {
         // Results need to be scaled by the Z-axis.
-        for (int i = 0; i < result.length; i++)
-        {
-            result[i][0] *= (1.0 / result[2][0]);
-        }
+        double scale = 1.0/(h20*x + h21*y + h22);
 
-        return new Point(result[0][0], result[1][0]);
+        result[0] = (h00*x + h01*y + h02)*scale;
+        result[1] = (h10*x + h11*y + h12)*scale;
     }   //mapPoint
 
     /**
-     * This method multiplies two matrixes. The multiply in Core.gemm is not functioning correctly for the job.
+     * This method maps a batch of source points to destination points using the homography matrix. The points are
+     * stored as interleaved x and y coordinates. The source and destination arrays may be the same array to map the
+     * points in place.
      *
-     * @param firstMatrix specifies the first matrix for the multiplication.
-     * @param secondMatrix specifies the second matrix for the multiplication.
-     * @return product matrix.
+     * @param src specifies the source points (x0, y0, x1, y1, ...).
+     * @param dst specifies the array to receive the mapped points, must hold at least 2*numPoints elements.
+     * @param numPoints specifies the number of points to map.
      */
-    private double[][] multiply(double[][] firstMatrix, double[][] secondMatrix)
+    public void mapPoints(double[] src, double[] dst, int numPoints)
     {
-        double[][] product = new double[firstMatrix.length][secondMatrix[0].length];
-
-        for (int i = 0; i < firstMatrix.length; i++)
+        for (int i = 0; i < 2*numPoints; i += 2)
         {
-            for (int j = 0; j < secondMatrix[0].length; j++)
-            {
-                for (int k = 0; k < firstMatrix[0].length; k++)
-                {
-                    product[i][j] += firstMatrix[i][k] * secondMatrix[k][j];
-                }
-            }
-        }
+            double x = src[i];
+            double y = src[i + 1];
+            double scale = 1.0/(h20*x + h21*y + h22);
 
-        return product;
-    }   //multiply
+            dst[i] = (h00*x + h01*y + h02)*scale;
+            dst[i + 1] = (h10*x + h11*y + h12)*scale;
+        }
+    }   //mapPoints
 
 }   //class TrcHomographyMapper
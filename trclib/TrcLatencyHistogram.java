@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class implements a fixed memory latency histogram. Latencies are recorded in nanoseconds into log-linear
+ * buckets: each power of 2 range is divided into SUB_BUCKET_COUNT linear sub-buckets, so any recorded value is
+ * reported within about 6% of its real value. Recording is lock-free and allocation-free and may be done by multiple
+ * threads. Snapshots can be taken at any time without stopping the recording threads.
+ */
+public class TrcLatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values are clamped to 2^MAX_VALUE_BITS - 1 nsec (about 68 seconds).
+    private static final int MAX_VALUE_BITS = 36;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int NUM_BUCKETS = SUB_BUCKET_COUNT*(MAX_VALUE_BITS - SUB_BUCKET_BITS + 1);
+
+    /**
+     * This class contains a snapshot of the histogram. All times are in seconds.
+     */
+    public static class Snapshot
+    {
+        public final long count;
+        public final long overrunCount;
+        public final double average;
+        public final double p50;
+        public final double p99;
+        public final double p999;
+        public final double max;
+
+        private Snapshot(
+            long count, long overrunCount, double average, double p50, double p99, double p999, double max)
+        {
+            this.count = count;
+            this.overrunCount = overrunCount;
+            this.average = average;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }   //Snapshot
+
+        /**
+         * This method returns the snapshot info in string form.
+         *
+         * @return snapshot info in string form.
+         */
+        @Override
+        public String toString()
+        {
+            return String.format(
+                Locale.US, "count=%d, avg=%.6f, p50=%.6f, p99=%.6f, p999=%.6f, max=%.6f, overruns=%d",
+                count, average, p50, p99, p999, max, overrunCount);
+        }   //toString
+
+    }   //class Snapshot
+
+    private final String instanceName;
+    private final long overrunThreshold;
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong(0);
+    private final AtomicLong totalValue = new AtomicLong(0);
+    private final AtomicLong maxValue = new AtomicLong(0);
+    private final AtomicLong overrunCount = new AtomicLong(0);
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     * @param overrunThreshold specifies the latency in nanoseconds above which a value is counted as an overrun,
+     *        0 to disable overrun counting.
+     */
+    public TrcLatencyHistogram(String instanceName, long overrunThreshold)
+    {
+        this.instanceName = instanceName;
+        this.overrunThreshold = overrunThreshold;
+    }   //TrcLatencyHistogram
+
+    /**
+     * This method returns the instance name and the histogram snapshot.
+     *
+     * @return instance name and snapshot info.
+     */
+    @Override
+    public String toString()
+    {
+        return instanceName + ": " + getSnapshot();
+    }   //toString
+
+    /**
+     * This method records a latency value.
+     *
+     * @param latency specifies the latency in nanoseconds.
+     */
+    public void recordValue(long latency)
+    {
+        recordValue(latency, overrunThreshold);
+    }   //recordValue
+
+    /**
+     * This method records a latency value checking overrun against the given threshold instead of the one given at
+     * construction.
+     *
+     * @param latency specifies the latency in nanoseconds.
+     * @param threshold specifies the overrun threshold in nanoseconds, 0 to not check for overrun.
+     */
+    public void recordValue(long latency, long threshold)
+    {
+        long value = Math.min(Math.max(latency, 0L), MAX_VALUE);
+        long currMax;
+
+        bucketCounts.incrementAndGet(getBucketIndex(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+        if (threshold > 0 && value > threshold)
+        {
+            overrunCount.incrementAndGet();
+        }
+
+        do
+        {
+            currMax = maxValue.get();
+        } while (value > currMax && !maxValue.compareAndSet(currMax, value));
+    }   //recordValue
+
+    /**
+     * This method returns the number of recorded values.
+     *
+     * @return number of recorded values.
+     */
+    public long getCount()
+    {
+        return totalCount.get();
+    }   //getCount
+
+    /**
+     * This method returns the average of the recorded values.
+     *
+     * @return average value in seconds.
+     */
+    public double getAverage()
+    {
+        long count = totalCount.get();
+        return count == 0? 0.0: totalValue.get()/1000000000.0/count;
+    }   //getAverage
+
+    /**
+     * This method clears all recorded values. Values recorded concurrently with the reset may be partially counted.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+        {
+            bucketCounts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+        overrunCount.set(0);
+    }   //reset
+
+    /**
+     * This method takes a snapshot of the histogram.
+     *
+     * @return histogram snapshot.
+     */
+    public Snapshot getSnapshot()
+    {
+        long[] counts = new long[NUM_BUCKETS];
+        long count = 0;
+
+        // Count from the buckets so that the percentiles are consistent with the bucket counts we read.
+        for (int i = 0; i < NUM_BUCKETS; i++)
+        {
+            counts[i] = bucketCounts.get(i);
+            count += counts[i];
+        }
+
+        return new Snapshot(
+            count, overrunCount.get(), getAverage(), getPercentile(counts, count, 0.5),
+            getPercentile(counts, count, 0.99), getPercentile(counts, count, 0.999), maxValue.get()/1000000000.0);
+    }   //getSnapshot
+
+    /**
+     * This method returns the value at the given percentile from the given bucket counts.
+     *
+     * @param counts specifies the bucket counts.
+     * @param totalCount specifies the total of the bucket counts.
+     * @param percentile specifies the percentile between 0.0 and 1.0.
+     * @return value at percentile in seconds.
+     */
+    private double getPercentile(long[] counts, long totalCount, double percentile)
+    {
+        double value = 0.0;
+
+        if (totalCount > 0)
+        {
+            long targetCount = Math.max((long)Math.ceil(totalCount*percentile), 1L);
+            long runningCount = 0;
+
+            for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+                runningCount += counts[i];
+                if (runningCount >= targetCount)
+                {
+                    // Report the upper bound of the bucket but never more than the max value seen.
+                    value = Math.min(getBucketUpperBound(i), maxValue.get())/1000000000.0;
+                    break;
+                }
+            }
+        }
+
+        return value;
+    }   //getPercentile
+
+    /**
+     * This method returns the bucket index of the given value.
+     *
+     * @param value specifies the value, must be between 0 and MAX_VALUE.
+     * @return bucket index.
+     */
+    private static int getBucketIndex(long value)
+    {
+        int index;
+
+        if (value < SUB_BUCKET_COUNT)
+        {
+            index = (int)value;
+        }
+        else
+        {
+            int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+            // The top SUB_BUCKET_BITS + 1 bits of the value select the sub-bucket within its power of 2 range.
+            index = SUB_BUCKET_COUNT*(shift + 1) + (int)(value >>> shift) - SUB_BUCKET_COUNT;
+        }
+
+        return index;
+    }   //getBucketIndex
+
+    /**
+     * This method returns the largest value that falls into the given bucket.
+     *
+     * @param index specifies the bucket index.
+     * @return largest value of the bucket.
+     */
+    private static long getBucketUpperBound(int index)
+    {
+        long upperBound;
+
+        if (index < SUB_BUCKET_COUNT)
+        {
+            upperBound = index;
+        }
+        else
+        {
+            int shift = index/SUB_BUCKET_COUNT - 1;
+            long subBucket = index%SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+            upperBound = ((subBucket + 1) << shift) - 1;
+        }
+
+        return upperBound;
+    }   //getBucketUpperBound
+
+}   //class TrcLatencyHistogram
@@ -116,6 +116,7 @@ public abstract class TrcMotor implements TrcMotorController, TrcExclusiveSubsys
 
     private static final ArrayList<TrcMotor> odometryMotors = new ArrayList<>();
     private static TrcTaskMgr.TaskObject odometryTaskObj;
+    private static final TrcDbgTrace.CallSite odometryTaskCallSite = new TrcDbgTrace.CallSite("odometryTask");
     protected static TrcElapsedTimer motorGetPositionElapsedTimer;
     protected static TrcElapsedTimer motorSetPowerElapsedTimer;
     protected static TrcElapsedTimer motorSetVelocityElapsedTimer;
@@ -3622,7 +3623,8 @@ public abstract class TrcMotor implements TrcMotorController, TrcExclusiveSubsys
                         motor.odometry.velocity =
                             timeDelta == 0.0 ? 0.0 : (motor.odometry.currPos - motor.odometry.prevPos) / timeDelta;
                     }
-                    TrcDbgTrace.globalTraceDebug(motor.instanceName, "Odometry=" + motor.odometry);
+                    TrcDbgTrace.globalTraceDebug(
+                        motor.instanceName, odometryTaskCallSite, sb -> sb.append("Odometry=").append(motor.odometry));
                 }
             }
         }
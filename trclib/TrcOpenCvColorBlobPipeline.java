@@ -28,18 +28,25 @@ import org.opencv.core.Mat;
 import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * This class implements a generic OpenCV color blob detection pipeline.
+ * This class implements a generic OpenCV color blob detection pipeline. By default, every stage of the pipeline runs
+ * on the full input frame. To save CPU time, the search can be limited to a region of interest (ROI) that is either
+ * set statically or tracked automatically around the detections of the previous frame. In addition, a pyramid
+ * pre-pass can threshold a downscaled copy of the search area first so that the full resolution stages only run on
+ * the candidate regions it found. Either way, the detected objects are always in full frame coordinates.
  */
 public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDetector.DetectedObject<?>>
 {
@@ -49,6 +56,9 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
      */
     public static class DetectedObject extends TrcOpenCvDetector.DetectedObject<MatOfPoint>
     {
+        // Only used in object reuse mode, true while the object sits in the object pool.
+        private boolean pooled = false;
+
         /**
          * Constructor: Creates an instance of the object.
          *
@@ -199,6 +209,14 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
     private static final Scalar ANNOTATE_RECT_WHITE = new Scalar(255, 255, 255, 255);
     private static final int ANNOTATE_RECT_THICKNESS = 3;
     private static final double ANNOTATE_FONT_SCALE = 0.3;
+    private static final Scalar ZERO_SCALAR = new Scalar(0.0);
+    private static final Point DEFAULT_ANCHOR = new Point(-1, -1);
+    private static final int DEF_AUTO_ROI_MARGIN = 40;              // in pixels.
+    private static final int DEF_AUTO_ROI_FULL_FRAME_INTERVAL = 30; // in frames.
+    // Extra padding in full resolution pixels around a pyramid candidate region, on top of one downscaled pixel.
+    private static final int PYRAMID_REGION_PADDING = 8;
+    // Object reuse mode keeps one released result array of each length up to this length.
+    private static final int MAX_POOLED_ARRAY_LENGTH = 32;
 
     private final TrcDbgTrace tracer;
     private final String instanceName;
@@ -211,6 +229,34 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
     private final Mat morphologyOutput = new Mat();
     private final Mat hierarchy = new Mat();
     private final Mat[] intermediateMats;
+    private final Scalar lowerThreshold = new Scalar(0.0, 0.0, 0.0);
+    private final Scalar upperThreshold = new Scalar(0.0, 0.0, 0.0);
+    private final ArrayList<MatOfPoint> contoursOutput = new ArrayList<>();
+    private final ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<>();
+    // Scratch Mats used by filterContours.
+    private final MatOfInt hull = new MatOfInt();
+    private final MatOfPoint2f contour2f = new MatOfPoint2f();
+    private final MatOfPoint mopHull = new MatOfPoint();
+    private final int[] hullIndex = new int[1];
+    private final int[] hullPoint = new int[2];
+    private final ArrayDeque<DetectedObject> objectPool = new ArrayDeque<>();
+    private final DetectedObject[][] arrayPool = new DetectedObject[MAX_POOLED_ARRAY_LENGTH + 1][];
+    private volatile boolean objectReuseEnabled = false;
+    private int matAllocCount = 0;
+    // Region of interest and pyramid pre-pass.
+    private final ArrayList<MatOfPoint> regionContours = new ArrayList<>();
+    private final ArrayList<Rect> candidateRegions = new ArrayList<>();
+    private final Mat conversionProbe = new Mat();
+    private final Mat pyramidConversionOutput = new Mat();
+    private final Mat pyramidThresholdOutput = new Mat();
+    private Mat[] pyramidMats = new Mat[0];
+    private volatile Rect staticRoi = null;
+    private volatile boolean autoRoiEnabled = false;
+    private volatile int autoRoiMargin = DEF_AUTO_ROI_MARGIN;
+    private volatile int autoRoiFullFrameInterval = DEF_AUTO_ROI_FULL_FRAME_INTERVAL;
+    private volatile int pyramidLevels = 0;
+    private Rect autoRoi = null;
+    private int autoRoiFrameCount = 0;
 
     private final AtomicReference<DetectedObject[]> detectedObjectsUpdate = new AtomicReference<>();
     private int intermediateStep = 0;
@@ -361,6 +407,556 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
         setMorphologyOp(Imgproc.MORPH_CLOSE, Imgproc.MORPH_ELLIPSE, new Size(5, 5));
     }   //setMorphologyOp
 
+    /**
+     * This method enables/disables object reuse mode. In this mode, the DetectedObject holders and their contour
+     * Mats are recycled across frames instead of being allocated for every frame. Since the detected objects are
+     * handed to other threads, the pipeline can't tell when they are no longer in use, so the caller must give them
+     * back by calling releaseDetectedObjects when done with them. Objects that are never released are simply garbage
+     * collected like they are when this mode is disabled. The result arrays are recycled the same way.
+     * <p>
+     * Since a released object is handed out again with a new frame, this mode requires a single exclusive consumer
+     * of the detected objects that releases them only when nobody else can still see them. In particular, it must
+     * not be enabled if several readers look at the non-consuming TrcVisionTask detection snapshots, since a reader
+     * may still hold the objects of a snapshot that another one has released.
+     * </p>
+     *
+     * @param enabled specifies true to enable object reuse, false to disable.
+     */
+    public void setObjectReuseEnabled(boolean enabled)
+    {
+        objectReuseEnabled = enabled;
+        if (!enabled)
+        {
+            synchronized (objectPool)
+            {
+                for (DetectedObject obj: objectPool)
+                {
+                    obj.object.release();
+                }
+                objectPool.clear();
+                Arrays.fill(arrayPool, null);
+            }
+        }
+    }   //setObjectReuseEnabled
+
+    /**
+     * This method checks if object reuse mode is enabled.
+     *
+     * @return true if object reuse is enabled, false otherwise.
+     */
+    public boolean isObjectReuseEnabled()
+    {
+        return objectReuseEnabled;
+    }   //isObjectReuseEnabled
+
+    /**
+     * This method releases detected objects returned by process or getDetectedObjects. In object reuse mode, the
+     * objects and the array are put back in the pools for reuse by the next frames. Otherwise, their contour Mats are
+     * released right away instead of waiting for the garbage collector to free the native memory. Either way, the
+     * objects must not be accessed after this call.
+     *
+     * @param detectedObjects specifies the detected objects to release, can be null.
+     */
+    public void releaseDetectedObjects(DetectedObject[] detectedObjects)
+    {
+        if (detectedObjects != null)
+        {
+            boolean reuse = objectReuseEnabled;
+
+            synchronized (objectPool)
+            {
+                for (DetectedObject obj: detectedObjects)
+                {
+                    if (obj != null && !obj.pooled)
+                    {
+                        if (reuse)
+                        {
+                            obj.pooled = true;
+                            objectPool.add(obj);
+                        }
+                        else
+                        {
+                            obj.object.release();
+                        }
+                    }
+                }
+
+                int length = detectedObjects.length;
+                if (reuse && length <= MAX_POOLED_ARRAY_LENGTH && arrayPool[length] == null)
+                {
+                    Arrays.fill(detectedObjects, null);
+                    arrayPool[length] = detectedObjects;
+                }
+            }
+        }
+    }   //releaseDetectedObjects
+
+    /**
+     * This method returns an array to hold the detected objects of a frame. In object reuse mode, the array comes
+     * from the array pool if a released one of the same length is available.
+     *
+     * @param length specifies the number of detected objects.
+     * @return array of the given length.
+     */
+    private DetectedObject[] obtainDetectedObjectArray(int length)
+    {
+        DetectedObject[] array = null;
+
+        if (objectReuseEnabled && length <= MAX_POOLED_ARRAY_LENGTH)
+        {
+            synchronized (objectPool)
+            {
+                array = arrayPool[length];
+                arrayPool[length] = null;
+            }
+        }
+
+        return array != null? array: new DetectedObject[length];
+    }   //obtainDetectedObjectArray
+
+    /**
+     * This method returns a DetectedObject holding a copy of the given contour. In object reuse mode, the holder
+     * comes from the object pool if available and the copy reuses its contour Mat memory.
+     *
+     * @param contour specifies the contour of the detected object.
+     * @return detected object.
+     */
+    private DetectedObject obtainDetectedObject(MatOfPoint contour)
+    {
+        DetectedObject obj;
+
+        if (objectReuseEnabled)
+        {
+            synchronized (objectPool)
+            {
+                obj = objectPool.poll();
+            }
+
+            if (obj != null)
+            {
+                obj.pooled = false;
+            }
+            else
+            {
+                obj = new DetectedObject(instanceName, new MatOfPoint());
+                matAllocCount++;
+            }
+            contour.copyTo(obj.object);
+            // The contour is copied, so free its native memory right away.
+            contour.release();
+        }
+        else
+        {
+            obj = new DetectedObject(instanceName, contour);
+        }
+
+        return obj;
+    }   //obtainDetectedObject
+
+    /**
+     * This method sets a static region of interest. Only objects inside the region are detected.
+     *
+     * @param roi specifies the region of interest in full frame coordinates, null to search the full frame.
+     */
+    public void setRoi(Rect roi)
+    {
+        staticRoi = roi != null? roi.clone(): null;
+    }   //setRoi
+
+    /**
+     * This method returns the static region of interest.
+     *
+     * @return static region of interest, null if not set.
+     */
+    public Rect getRoi()
+    {
+        Rect roi = staticRoi;
+        return roi != null? roi.clone(): null;
+    }   //getRoi
+
+    /**
+     * This method enables/disables the auto tracked region of interest. When enabled, a frame is only searched in
+     * the area around the objects detected in the previous frame expanded by the given margin. The full frame (or
+     * the static ROI if set) is searched when nothing was detected in the previous frame and periodically to pick up
+     * objects that newly came into view.
+     *
+     * @param enabled specifies true to enable auto ROI, false to disable.
+     * @param margin specifies the margin in pixels added around the previous detections, it should be more than
+     *        the distance the objects move between frames.
+     * @param fullFrameInterval specifies the number of frames between full frame searches, 0 to never force one.
+     */
+    public void setAutoRoiEnabled(boolean enabled, int margin, int fullFrameInterval)
+    {
+        autoRoiMargin = margin;
+        autoRoiFullFrameInterval = fullFrameInterval;
+        autoRoiEnabled = enabled;
+    }   //setAutoRoiEnabled
+
+    /**
+     * This method enables/disables the auto tracked region of interest with default margin and full frame interval.
+     *
+     * @param enabled specifies true to enable auto ROI, false to disable.
+     */
+    public void setAutoRoiEnabled(boolean enabled)
+    {
+        setAutoRoiEnabled(enabled, DEF_AUTO_ROI_MARGIN, DEF_AUTO_ROI_FULL_FRAME_INTERVAL);
+    }   //setAutoRoiEnabled
+
+    /**
+     * This method sets the number of pyramid levels of the pre-pass. Each level halves the image size, so the color
+     * thresholding of the pre-pass costs about 1/4^levels of the full resolution. Blobs smaller than about 2^levels
+     * pixels may be missed by the pre-pass, so the levels should be chosen according to the smallest object size.
+     *
+     * @param levels specifies the number of pyramid levels, 0 to disable the pre-pass.
+     */
+    public void setPyramidLevels(int levels)
+    {
+        if (levels < 0)
+        {
+            throw new IllegalArgumentException("levels must not be negative.");
+        }
+        pyramidLevels = levels;
+    }   //setPyramidLevels
+
+    /**
+     * This method returns the number of pyramid levels of the pre-pass.
+     *
+     * @return number of pyramid levels, 0 if the pre-pass is disabled.
+     */
+    public int getPyramidLevels()
+    {
+        return pyramidLevels;
+    }   //getPyramidLevels
+
+    /**
+     * This method determines the area of the frame to be searched from the static and the auto tracked ROI.
+     *
+     * @param frameWidth specifies the frame width.
+     * @param frameHeight specifies the frame height.
+     * @return search area in full frame coordinates, null to search the full frame.
+     */
+    private Rect getSearchRect(int frameWidth, int frameHeight)
+    {
+        Rect searchRect = staticRoi;
+
+        if (searchRect != null)
+        {
+            searchRect = clipRect(searchRect.x, searchRect.y, searchRect.x + searchRect.width,
+                                  searchRect.y + searchRect.height, 0, 0, frameWidth, frameHeight);
+        }
+
+        if (autoRoiEnabled)
+        {
+            int interval = autoRoiFullFrameInterval;
+
+            autoRoiFrameCount++;
+            if (interval > 0 && autoRoiFrameCount >= interval)
+            {
+                autoRoiFrameCount = 0;
+            }
+            else if (autoRoi != null)
+            {
+                // The auto ROI comes from detections inside the static ROI, so it is already inside it. Clip it to
+                // the frame anyway in case the frame size has changed.
+                searchRect = clipRect(
+                    autoRoi.x, autoRoi.y, autoRoi.x + autoRoi.width, autoRoi.y + autoRoi.height,
+                    0, 0, frameWidth, frameHeight);
+            }
+        }
+
+        return searchRect;
+    }   //getSearchRect
+
+    /**
+     * This method updates the auto tracked ROI from the objects detected in this frame.
+     *
+     * @param detectedObjects specifies the detected objects, null if none detected.
+     * @param frameWidth specifies the frame width.
+     * @param frameHeight specifies the frame height.
+     */
+    private void updateAutoRoi(DetectedObject[] detectedObjects, int frameWidth, int frameHeight)
+    {
+        autoRoi = null;
+        if (autoRoiEnabled && detectedObjects != null)
+        {
+            int left = frameWidth, top = frameHeight, right = 0, bottom = 0;
+
+            for (DetectedObject obj: detectedObjects)
+            {
+                Rect rect = obj.getObjectRect();
+
+                left = Math.min(left, rect.x);
+                top = Math.min(top, rect.y);
+                right = Math.max(right, rect.x + rect.width);
+                bottom = Math.max(bottom, rect.y + rect.height);
+            }
+
+            int margin = autoRoiMargin;
+            int minX = 0, minY = 0, maxX = frameWidth, maxY = frameHeight;
+            Rect roi = staticRoi;
+
+            if (roi != null)
+            {
+                minX = roi.x;
+                minY = roi.y;
+                maxX = Math.min(roi.x + roi.width, frameWidth);
+                maxY = Math.min(roi.y + roi.height, frameHeight);
+            }
+            autoRoi = clipRect(
+                left - margin, top - margin, right + margin, bottom + margin, minX, minY, maxX, maxY);
+        }
+    }   //updateAutoRoi
+
+    /**
+     * This method creates a rectangle from the given edges clipped to the given bounds.
+     *
+     * @param left specifies the left edge.
+     * @param top specifies the top edge.
+     * @param right specifies the right edge (exclusive).
+     * @param bottom specifies the bottom edge (exclusive).
+     * @param minX specifies the left bound.
+     * @param minY specifies the top bound.
+     * @param maxX specifies the right bound (exclusive).
+     * @param maxY specifies the bottom bound (exclusive).
+     * @return clipped rectangle, may be empty.
+     */
+    private static Rect clipRect(int left, int top, int right, int bottom, int minX, int minY, int maxX, int maxY)
+    {
+        left = Math.max(left, Math.max(minX, 0));
+        top = Math.max(top, Math.max(minY, 0));
+        right = Math.min(right, maxX);
+        bottom = Math.min(bottom, maxY);
+
+        return new Rect(left, top, Math.max(right - left, 0), Math.max(bottom - top, 0));
+    }   //clipRect
+
+    /**
+     * This method makes sure the intermediate Mats have the size of the input frame so that ROI processing can
+     * write its results into the corresponding regions of them.
+     *
+     * @param input specifies the input frame.
+     */
+    private void prepareIntermediateMats(Mat input)
+    {
+        int rows = input.rows();
+        int cols = input.cols();
+
+        if (colorConversion != null && (colorConversionOutput.rows() != rows || colorConversionOutput.cols() != cols))
+        {
+            // Convert a single pixel to find out the Mat type produced by the color conversion.
+            Mat pixel = input.submat(0, 1, 0, 1);
+            Imgproc.cvtColor(pixel, conversionProbe, colorConversion);
+            pixel.release();
+            colorConversionOutput.create(rows, cols, conversionProbe.type());
+            matAllocCount += 2;
+        }
+        colorThresholdOutput.create(rows, cols, CvType.CV_8UC1);
+        if (kernelMat != null)
+        {
+            morphologyOutput.create(rows, cols, CvType.CV_8UC1);
+        }
+    }   //prepareIntermediateMats
+
+    /**
+     * This method runs the pipeline stages on a region of the input frame and appends the found contours to
+     * contoursOutput in full frame coordinates.
+     *
+     * @param input specifies the input frame.
+     * @param region specifies the region to process, null to process the full frame.
+     */
+    private void processRegion(Mat input, Rect region)
+    {
+        Mat conversionMat = colorConversionOutput;
+        Mat thresholdMat = colorThresholdOutput;
+        Mat morphologyMat = morphologyOutput;
+        Mat inputMat = input;
+        Mat mat;
+
+        if (region != null)
+        {
+            // Submats share the memory of the full frame Mats so the results land in the right place.
+            inputMat = input.submat(region);
+            conversionMat = colorConversion != null? colorConversionOutput.submat(region): null;
+            thresholdMat = colorThresholdOutput.submat(region);
+            morphologyMat = kernelMat != null? morphologyOutput.submat(region): null;
+            matAllocCount += 2 + (conversionMat != null? 1: 0) + (morphologyMat != null? 1: 0);
+        }
+        mat = inputMat;
+        // Do color space conversion.
+        if (colorConversion != null)
+        {
+            Imgproc.cvtColor(mat, conversionMat, colorConversion);
+            mat = conversionMat;
+        }
+        // Do color filtering.
+        Core.inRange(mat, lowerThreshold, upperThreshold, thresholdMat);
+        mat = thresholdMat;
+        // Do morphology.
+        if (kernelMat != null)
+        {
+            if (region != null)
+            {
+                //
+                // The pixels around the region in the full frame Mat are stale threshold output from other regions
+                // or earlier frames. Isolate the submat so the kernel does not read them at the region border.
+                //
+                Imgproc.morphologyEx(
+                    mat, morphologyMat, morphOp, kernelMat, DEFAULT_ANCHOR, 1,
+                    Core.BORDER_CONSTANT | Core.BORDER_ISOLATED);
+            }
+            else
+            {
+                Imgproc.morphologyEx(mat, morphologyMat, morphOp, kernelMat);
+            }
+            mat = morphologyMat;
+        }
+        // Find contours. OpenCV allocates a new MatOfPoint for every contour found.
+        regionContours.clear();
+        if (region != null)
+        {
+            Imgproc.findContours(
+                mat, regionContours, hierarchy, externalContourOnly? Imgproc.RETR_EXTERNAL: Imgproc.RETR_LIST,
+                Imgproc.CHAIN_APPROX_SIMPLE, new Point(region.x, region.y));
+            releaseSubmats(input, inputMat, conversionMat, thresholdMat, morphologyMat);
+        }
+        else
+        {
+            Imgproc.findContours(
+                mat, regionContours, hierarchy, externalContourOnly? Imgproc.RETR_EXTERNAL: Imgproc.RETR_LIST,
+                Imgproc.CHAIN_APPROX_SIMPLE);
+        }
+        matAllocCount += regionContours.size();
+        contoursOutput.addAll(regionContours);
+        regionContours.clear();
+    }   //processRegion
+
+    /**
+     * This method releases the submat headers created by processRegion. The underlying full frame memory is not
+     * affected.
+     *
+     * @param input specifies the input frame, not released.
+     * @param submats specifies the submats to release, entries that are null or the input frame are skipped.
+     */
+    private void releaseSubmats(Mat input, Mat... submats)
+    {
+        for (Mat submat: submats)
+        {
+            if (submat != null && submat != input)
+            {
+                submat.release();
+            }
+        }
+    }   //releaseSubmats
+
+    /**
+     * This method runs the pyramid pre-pass. It thresholds a downscaled copy of the search area and collects the
+     * bounding rectangles of the blobs found, scaled back to full frame coordinates with some padding and merged if
+     * they overlap, into candidateRegions.
+     *
+     * @param input specifies the input frame.
+     * @param searchRect specifies the search area, null to search the full frame.
+     * @param levels specifies the number of pyramid levels.
+     */
+    private void findCandidateRegions(Mat input, Rect searchRect, int levels)
+    {
+        Mat mat = searchRect != null? input.submat(searchRect): input;
+        int offsetX = searchRect != null? searchRect.x: 0;
+        int offsetY = searchRect != null? searchRect.y: 0;
+        int maxX = offsetX + mat.cols();
+        int maxY = offsetY + mat.rows();
+        int scale = 1 << levels;
+        int padding = scale + PYRAMID_REGION_PADDING;
+
+        if (pyramidMats.length != levels)
+        {
+            for (Mat pyramidMat: pyramidMats)
+            {
+                pyramidMat.release();
+            }
+            pyramidMats = new Mat[levels];
+            for (int i = 0; i < levels; i++)
+            {
+                pyramidMats[i] = new Mat();
+            }
+            matAllocCount += levels;
+        }
+
+        candidateRegions.clear();
+        for (int i = 0; i < levels; i++)
+        {
+            Imgproc.pyrDown(i == 0? mat: pyramidMats[i - 1], pyramidMats[i]);
+        }
+
+        if (searchRect != null)
+        {
+            mat.release();
+            matAllocCount++;
+        }
+        mat = pyramidMats[levels - 1];
+
+        if (colorConversion != null)
+        {
+            Imgproc.cvtColor(mat, pyramidConversionOutput, colorConversion);
+            mat = pyramidConversionOutput;
+        }
+        Core.inRange(mat, lowerThreshold, upperThreshold, pyramidThresholdOutput);
+
+        regionContours.clear();
+        Imgproc.findContours(
+            pyramidThresholdOutput, regionContours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        matAllocCount += regionContours.size();
+        for (MatOfPoint contour: regionContours)
+        {
+            Rect rect = Imgproc.boundingRect(contour);
+
+            contour.release();
+            addCandidateRegion(
+                clipRect(offsetX + rect.x*scale - padding, offsetY + rect.y*scale - padding,
+                         offsetX + (rect.x + rect.width)*scale + padding,
+                         offsetY + (rect.y + rect.height)*scale + padding,
+                         offsetX, offsetY, maxX, maxY));
+        }
+        regionContours.clear();
+    }   //findCandidateRegions
+
+    /**
+     * This method adds a region to candidateRegions merging it with any overlapping regions, so that no pixel is
+     * processed twice and no blob is split between regions.
+     *
+     * @param region specifies the region to add.
+     */
+    private void addCandidateRegion(Rect region)
+    {
+        boolean merged;
+
+        do
+        {
+            merged = false;
+            for (int i = candidateRegions.size() - 1; i >= 0; i--)
+            {
+                Rect rect = candidateRegions.get(i);
+
+                if (rect.x < region.x + region.width && region.x < rect.x + rect.width &&
+                    rect.y < region.y + region.height && region.y < rect.y + rect.height)
+                {
+                    int left = Math.min(rect.x, region.x);
+                    int top = Math.min(rect.y, region.y);
+                    int right = Math.max(rect.x + rect.width, region.x + region.width);
+                    int bottom = Math.max(rect.y + rect.height, region.y + region.height);
+
+                    region = new Rect(left, top, right - left, bottom - top);
+                    candidateRegions.remove(i);
+                    merged = true;
+                }
+            }
+        } while (merged);
+
+        if (region.width > 0 && region.height > 0)
+        {
+            candidateRegions.add(region);
+        }
+    }   //addCandidateRegion
+
     //
     // Implements TrcOpenCvPipeline interface.
     //
@@ -376,6 +972,8 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
             performanceMetrics.reset();
         }
         intermediateStep = 0;
+        autoRoi = null;
+        autoRoiFrameCount = 0;
     }   //reset
 
     /**
@@ -388,48 +986,77 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
     public DetectedObject[] process(Mat input)
     {
         DetectedObject[] detectedObjects = null;
-        ArrayList<MatOfPoint> contoursOutput = new ArrayList<>();
-        ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<>();
+        List<MatOfPoint> contours = contoursOutput;
+        double[] thresholds = colorThresholds;
+        int levels = pyramidLevels;
+        int frameWidth = input.cols();
+        int frameHeight = input.rows();
+        Rect searchRect = getSearchRect(frameWidth, frameHeight);
         double startTime = TrcTimer.getCurrentTime();
 
         intermediateMats[0] = input;
-        // Do color space conversion.
-        if (colorConversion != null)
+        for (int i = 0; i < 3; i++)
         {
-            Imgproc.cvtColor(input, colorConversionOutput, colorConversion);
-            input = colorConversionOutput;
+            lowerThreshold.val[i] = thresholds[i*2];
+            upperThreshold.val[i] = thresholds[i*2 + 1];
         }
-        // Do color filtering.
-        Core.inRange(
-            input, new Scalar(colorThresholds[0], colorThresholds[2], colorThresholds[4]),
-            new Scalar(colorThresholds[1], colorThresholds[3], colorThresholds[5]), colorThresholdOutput);
-        input = colorThresholdOutput;
-        // Do morphology.
-        if (kernelMat != null)
+
+        contoursOutput.clear();
+        if (searchRect == null && levels == 0)
         {
-            Imgproc.morphologyEx(input, morphologyOutput, morphOp, kernelMat);
-            input = morphologyOutput;
+            processRegion(input, null);
+        }
+        else if (searchRect == null || searchRect.width > 0 && searchRect.height > 0)
+        {
+            prepareIntermediateMats(input);
+            if (intermediateStep > 0)
+            {
+                // Only the searched regions are written, clear the rest of the Mat being displayed.
+                intermediateMats[intermediateStep].setTo(ZERO_SCALAR);
+            }
+
+            if (levels > 0)
+            {
+                findCandidateRegions(input, searchRect, levels);
+                for (Rect region: candidateRegions)
+                {
+                    processRegion(input, region);
+                }
+            }
+            else
+            {
+                processRegion(input, searchRect);
+            }
         }
-        // Find contours.
-        Imgproc.findContours(
-            input, contoursOutput, hierarchy, externalContourOnly? Imgproc.RETR_EXTERNAL: Imgproc.RETR_LIST,
-            Imgproc.CHAIN_APPROX_SIMPLE);
         // Do contour filtering.
         if (filterContourParams != null)
         {
             filterContours(contoursOutput, filterContourParams, filterContoursOutput);
-            contoursOutput = filterContoursOutput;
+            contours = filterContoursOutput;
         }
-        if (performanceMetrics != null) performanceMetrics.logProcessingTime(startTime);
 
-        if (contoursOutput.size() > 0)
+        if (contours.size() > 0)
         {
-            detectedObjects = new DetectedObject[contoursOutput.size()];
+            detectedObjects = obtainDetectedObjectArray(contours.size());
             for (int i = 0; i < detectedObjects.length; i++)
             {
-                detectedObjects[i] = new DetectedObject(instanceName, contoursOutput.get(i));
+                detectedObjects[i] = obtainDetectedObject(contours.get(i));
             }
+        }
+        // Don't hold on to the contours until the next frame.
+        contoursOutput.clear();
+        filterContoursOutput.clear();
+        updateAutoRoi(detectedObjects, frameWidth, frameHeight);
+
+        if (performanceMetrics != null)
+        {
+            performanceMetrics.logProcessingTime(startTime);
+            performanceMetrics.logMatAllocations(matAllocCount);
+        }
+        matAllocCount = 0;
 
+        if (detectedObjects != null)
+        {
             if (annotateEnabled)
             {
                 Mat output = getIntermediateOutput(intermediateStep);
@@ -535,7 +1162,8 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
     }   //getSelectedOutput
 
     /**
-     * This method filters out contours that do not meet certain criteria.
+     * This method filters out contours that do not meet certain criteria. The native memory of the rejected contours
+     * is released right away since nothing else refers to them.
      *
      * @param inputContours specifies the input list of contours.
      * @param filterContourParams specifies the filter contour parameters.
@@ -544,7 +1172,6 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
     private void filterContours(
         List<MatOfPoint> inputContours, FilterContourParams filterContourParams, List<MatOfPoint> output)
     {
-        final MatOfInt hull = new MatOfInt();
         output.clear();
         //
         // Perform the filtering.
@@ -552,58 +1179,73 @@ public class TrcOpenCvColorBlobPipeline implements TrcOpenCvPipeline<TrcOpenCvDe
         for (int i = 0; i < inputContours.size(); i++)
         {
             final MatOfPoint contour = inputContours.get(i);
-            final Rect bb = Imgproc.boundingRect(contour);
-            // Check width.
-            if (bb.width < filterContourParams.widthRange[0] || bb.width > filterContourParams.widthRange[1])
-            {
-                continue;
-            }
-            // Check height.
-            if (bb.height < filterContourParams.heightRange[0] || bb.height > filterContourParams.heightRange[1])
-            {
-                continue;
-            }
-            // Check area.
-            final double area = Imgproc.contourArea(contour);
-            if (area < filterContourParams.minArea)
-            {
-                continue;
-            }
-            // Check perimeter.
-            if (Imgproc.arcLength(new MatOfPoint2f(contour.toArray()), true) < filterContourParams.minPerimeter)
-            {
-                continue;
-            }
-            // Check solidity.
-            Imgproc.convexHull(contour, hull);
-            MatOfPoint mopHull = new MatOfPoint();
-            mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-            for (int j = 0; j < hull.size().height; j++)
-            {
-                int index = (int)hull.get(j, 0)[0];
-                double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1]};
-                mopHull.put(j, 0, point);
-            }
-            final double solid = 100 * area / Imgproc.contourArea(mopHull);
-            if (solid < filterContourParams.solidityRange[0] || solid > filterContourParams.solidityRange[1])
-            {
-                continue;
-            }
-            // Check vertex count.
-            if (contour.rows() < filterContourParams.verticesRange[0] ||
-                contour.rows() > filterContourParams.verticesRange[1])
+
+            if (isContourAccepted(contour, filterContourParams))
             {
-                continue;
+                output.add(contour);
             }
-            // Check aspect ratio.
-            final double ratio = bb.width / (double)bb.height;
-            if (ratio < filterContourParams.aspectRatioRange[0] || ratio > filterContourParams.aspectRatioRange[1])
+            else
             {
-                continue;
+                contour.release();
             }
-
-            output.add(contour);
         }
     }   //filterContours
 
+    /**
+     * This method checks if the contour meets the filter criteria.
+     *
+     * @param contour specifies the contour to check.
+     * @param filterContourParams specifies the filter contour parameters.
+     * @return true if the contour meets the criteria, false otherwise.
+     */
+    private boolean isContourAccepted(MatOfPoint contour, FilterContourParams filterContourParams)
+    {
+        final Rect bb = Imgproc.boundingRect(contour);
+        // Check width.
+        if (bb.width < filterContourParams.widthRange[0] || bb.width > filterContourParams.widthRange[1])
+        {
+            return false;
+        }
+        // Check height.
+        if (bb.height < filterContourParams.heightRange[0] || bb.height > filterContourParams.heightRange[1])
+        {
+            return false;
+        }
+        // Check area.
+        final double area = Imgproc.contourArea(contour);
+        if (area < filterContourParams.minArea)
+        {
+            return false;
+        }
+        // Check perimeter.
+        contour.convertTo(contour2f, CvType.CV_32F);
+        if (Imgproc.arcLength(contour2f, true) < filterContourParams.minPerimeter)
+        {
+            return false;
+        }
+        // Check solidity.
+        Imgproc.convexHull(contour, hull);
+        mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
+        for (int j = 0; j < hull.size().height; j++)
+        {
+            hull.get(j, 0, hullIndex);
+            contour.get(hullIndex[0], 0, hullPoint);
+            mopHull.put(j, 0, hullPoint);
+        }
+        final double solid = 100 * area / Imgproc.contourArea(mopHull);
+        if (solid < filterContourParams.solidityRange[0] || solid > filterContourParams.solidityRange[1])
+        {
+            return false;
+        }
+        // Check vertex count.
+        if (contour.rows() < filterContourParams.verticesRange[0] ||
+            contour.rows() > filterContourParams.verticesRange[1])
+        {
+            return false;
+        }
+        // Check aspect ratio.
+        final double ratio = bb.width / (double)bb.height;
+        return !(ratio < filterContourParams.aspectRatioRange[0] || ratio > filterContourParams.aspectRatioRange[1]);
+    }   //isContourAccepted
+
 }  //class TrcOpenCvColorBlobPipeline
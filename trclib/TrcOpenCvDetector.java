@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class implements a generic OpenCV detector. Typically, it is extended by a specific detector that provides
@@ -82,6 +83,10 @@ public abstract class TrcOpenCvDetector implements TrcVisionProcessor<Mat, TrcOp
     private final TrcHomographyMapper homographyMapper;
     private final TrcVisionTask<Mat, DetectedObject<?>> visionTask;
     private volatile TrcOpenCvPipeline<DetectedObject<?>> openCvPipeline = null;
+    // Sequence number of the last detection snapshot returned by getDetectedTargetsInfo.
+    private final AtomicLong consumedSequence = new AtomicLong(-1);
+    private volatile TrcPoseHistory poseHistory = null;
+    private volatile TrcPose2D cameraPose = null;
 
     /**
      * Constructor: Create an instance of the object.
@@ -163,6 +168,13 @@ public abstract class TrcOpenCvDetector implements TrcVisionProcessor<Mat, TrcOp
                 pipeline.reset();
             }
             openCvPipeline = pipeline;
+            // Don't report detections made by the previous pipeline. This must be done before the task is enabled,
+            // or a snapshot of the new pipeline could be marked as consumed.
+            TrcVisionTask.DetectionSnapshot<DetectedObject<?>> snapshot = visionTask.getDetectionSnapshot();
+            if (snapshot != null)
+            {
+                consumedSequence.set(snapshot.sequence);
+            }
             visionTask.setTaskEnabled(pipeline != null);
         }
     }   //setPipeline
@@ -177,6 +189,21 @@ public abstract class TrcOpenCvDetector implements TrcVisionProcessor<Mat, TrcOp
         return openCvPipeline;
     }   //getPipeline
 
+    /**
+     * This method sets the robot pose history used to correct the detected target poses for the vision latency.
+     * When set, getDetectedTargetsInfo looks up the robot pose at the time the frame was captured and fills in the
+     * field pose of each target.
+     *
+     * @param poseHistory specifies the robot pose history (e.g. from TrcDriveBase.getPoseHistory), null to disable.
+     * @param cameraPose specifies the camera pose relative to the robot, can be null if the camera is at the robot
+     *        center facing forward.
+     */
+    public void setPoseHistory(TrcPoseHistory poseHistory, TrcPose2D cameraPose)
+    {
+        this.cameraPose = cameraPose;
+        this.poseHistory = poseHistory;
+    }   //setPoseHistory
+
     /**
      * This method returns an array of detected targets from Grip vision.
      *
@@ -192,11 +219,25 @@ public abstract class TrcOpenCvDetector implements TrcVisionProcessor<Mat, TrcOp
         double objHeightOffset, double cameraHeight)
     {
         TrcVisionTargetInfo<DetectedObject<?>>[] detectedTargets = null;
-        DetectedObject<?>[] objects = visionTask.getDetectedObjects();
+        TrcVisionTask.DetectionSnapshot<DetectedObject<?>> snapshot = visionTask.getDetectionSnapshot();
+        DetectedObject<?>[] objects = null;
+
+        if (snapshot != null)
+        {
+            // Each snapshot is only returned once, the same as consuming the detected objects.
+            long lastSequence = consumedSequence.get();
+            if (snapshot.sequence > lastSequence && consumedSequence.compareAndSet(lastSequence, snapshot.sequence))
+            {
+                objects = snapshot.objects;
+            }
+        }
 
         if (objects != null)
         {
             ArrayList<TrcVisionTargetInfo<DetectedObject<?>>> targetList = new ArrayList<>();
+            TrcPoseHistory history = poseHistory;
+            TrcPose2D camPose = cameraPose;
+            TrcPose2D robotPose = history != null? history.getPoseAt(snapshot.timestamp): null;
 
             for (DetectedObject<?> obj : objects)
             {
@@ -204,6 +245,11 @@ public abstract class TrcOpenCvDetector implements TrcVisionProcessor<Mat, TrcOp
                 {
                     TrcVisionTargetInfo<DetectedObject<?>> targetInfo =
                         new TrcVisionTargetInfo<>(obj, homographyMapper, objHeightOffset, cameraHeight);
+                    targetInfo.timestamp = snapshot.timestamp;
+                    if (robotPose != null)
+                    {
+                        targetInfo.setFieldPose(robotPose.clone(), camPose);
+                    }
                     targetList.add(targetInfo);
                 }
             }
@@ -45,6 +45,19 @@ public class TrcPath
         return new TrcPath(inDegrees, TrcWaypoint.loadPointsFromCsv(path, loadFromResources));
     }   //loadPathFromCsv
 
+    /**
+     * This method loads waypoints from a binary path file (see TrcPathFile) and create a path with them.
+     *
+     * @param inDegrees         specifies true if the heading values are in degrees, false if they are radians.
+     * @param path              specifies the file path or the resource name where we load the waypoints.
+     * @param loadFromResources specifies true if waypoints are loaded from resources, false if from file path.
+     * @return created path with the loaded waypoints.
+     */
+    public static TrcPath loadPathFromBinary(boolean inDegrees, String path, boolean loadFromResources)
+    {
+        return new TrcPath(inDegrees, TrcWaypoint.loadPointsFromBinary(path, loadFromResources));
+    }   //loadPathFromBinary
+
     private final TrcWaypoint[] waypoints;
     private boolean inDegrees;
 
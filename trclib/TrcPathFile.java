@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class implements the loading of path data files (e.g. waypoints and poses). A path data file is a table of
+ * doubles with a fixed number of columns, either in CSV format with a header line or in a compact binary format.
+ * The binary format is a header of MAGIC (int), VERSION (int), number of columns (int) and number of records (int)
+ * followed by the records packed as doubles. Binary files are memory-mapped and bulk copied, so loading them does no
+ * parsing at all. Loaded records are cached by path, so loading the same file again returns immediately unless the
+ * file has been modified since.
+ */
+public class TrcPathFile
+{
+    private static final String moduleName = TrcPathFile.class.getSimpleName();
+    private static final TrcDbgTrace tracer = new TrcDbgTrace();
+    private static final int MAGIC = 0x54726350;     //"TrcP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * This class keeps the records of a loaded file and the file attributes used to detect modification.
+     */
+    private static class CacheEntry
+    {
+        final double[] records;
+        final long lastModified;
+        final long fileLength;
+
+        CacheEntry(double[] records, long lastModified, long fileLength)
+        {
+            this.records = records;
+            this.lastModified = lastModified;
+            this.fileLength = fileLength;
+        }   //CacheEntry
+
+    }   //class CacheEntry
+
+    private static final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+    /**
+     * This method clears the cache of loaded files.
+     */
+    public static void clearCache()
+    {
+        cache.clear();
+    }   //clearCache
+
+    /**
+     * This method loads the records of a CSV file. The first line of the file is a header and is skipped.
+     * The returned array is shared with the cache and must not be modified.
+     *
+     * @param path specifies the file system path or resource name.
+     * @param loadFromResources specifies true if the data is from attached resources, false if from file system.
+     * @param numColumns specifies the number of columns of each record.
+     * @return records packed in an array, numColumns values per record.
+     * @throws IllegalArgumentException if a record does not have numColumns values.
+     */
+    static double[] loadCsvRecords(String path, boolean loadFromResources, int numColumns)
+    {
+        String key = getCacheKey(path, loadFromResources, numColumns);
+        File file = loadFromResources? null: new File(path);
+        CacheEntry entry = getCacheEntry(key, file);
+
+        if (entry == null)
+        {
+            double[] records;
+
+            try (BufferedReader in = new BufferedReader(
+                    loadFromResources? new InputStreamReader(openResource(path)): new FileReader(path)))
+            {
+                records = parseCsv(in, numColumns);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+
+            entry = putCacheEntry(key, file, records);
+        }
+
+        return entry.records;
+    }   //loadCsvRecords
+
+    /**
+     * This method loads the records of a binary path file. A file on the file system is memory-mapped, a resource is
+     * read into memory. The returned array is shared with the cache and must not be modified.
+     *
+     * @param path specifies the file system path or resource name.
+     * @param loadFromResources specifies true if the data is from attached resources, false if from file system.
+     * @param numColumns specifies the expected number of columns of each record.
+     * @return records packed in an array, numColumns values per record.
+     * @throws IllegalArgumentException if the file is not a binary path file with numColumns columns.
+     */
+    static double[] loadBinaryRecords(String path, boolean loadFromResources, int numColumns)
+    {
+        String key = getCacheKey(path, loadFromResources, numColumns);
+        File file = loadFromResources? null: new File(path);
+        CacheEntry entry = getCacheEntry(key, file);
+
+        if (entry == null)
+        {
+            double[] records;
+
+            try
+            {
+                if (loadFromResources)
+                {
+                    records = decodeBinary(path, ByteBuffer.wrap(readResource(path)), numColumns);
+                }
+                else
+                {
+                    try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileChannel channel = raf.getChannel())
+                    {
+                        records = decodeBinary(
+                            path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), numColumns);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+
+            entry = putCacheEntry(key, file, records);
+        }
+
+        return entry.records;
+    }   //loadBinaryRecords
+
+    /**
+     * This method converts a CSV path file to the binary format.
+     *
+     * @param csvPath specifies the file system path or resource name of the CSV file.
+     * @param loadFromResources specifies true if the CSV file is from attached resources, false if from file system.
+     * @param numColumns specifies the number of columns of each record.
+     * @param binaryPath specifies the file system path of the binary file to create.
+     * @return number of records converted.
+     */
+    public static int convertCsvToBinary(String csvPath, boolean loadFromResources, int numColumns, String binaryPath)
+    {
+        double[] records = loadCsvRecords(csvPath, loadFromResources, numColumns);
+        int numRecords = records.length/numColumns;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + records.length*Double.BYTES);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(numColumns).putInt(numRecords);
+        buffer.asDoubleBuffer().put(records);
+        // The double view does not advance the buffer position, so write from the start of the buffer.
+        buffer.rewind();
+        try (RandomAccessFile raf = new RandomAccessFile(binaryPath, "rw"); FileChannel channel = raf.getChannel())
+        {
+            channel.truncate(0);
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        tracer.traceInfo(moduleName, "Converted " + csvPath + " to " + binaryPath + " (" + numRecords + " records).");
+
+        return numRecords;
+    }   //convertCsvToBinary
+
+    /**
+     * This method returns the cache key of a file.
+     *
+     * @param path specifies the file system path or resource name.
+     * @param loadFromResources specifies true if the data is from attached resources, false if from file system.
+     * @param numColumns specifies the number of columns of each record.
+     * @return cache key.
+     */
+    private static String getCacheKey(String path, boolean loadFromResources, int numColumns)
+    {
+        return (loadFromResources? "res:": "file:") + path + "#" + numColumns;
+    }   //getCacheKey
+
+    /**
+     * This method returns the cache entry of a file if it is still valid.
+     *
+     * @param key specifies the cache key.
+     * @param file specifies the file, null if it is a resource which never changes.
+     * @return cache entry, null if not cached or the file has been modified.
+     */
+    private static CacheEntry getCacheEntry(String key, File file)
+    {
+        CacheEntry entry = cache.get(key);
+
+        if (entry != null && file != null &&
+            (entry.lastModified != file.lastModified() || entry.fileLength != file.length()))
+        {
+            tracer.traceDebug(moduleName, "Reloading modified file " + file);
+            entry = null;
+        }
+
+        return entry;
+    }   //getCacheEntry
+
+    /**
+     * This method adds the loaded records of a file to the cache.
+     *
+     * @param key specifies the cache key.
+     * @param file specifies the file, null if it is a resource.
+     * @param records specifies the loaded records.
+     * @return the new cache entry.
+     */
+    private static CacheEntry putCacheEntry(String key, File file, double[] records)
+    {
+        CacheEntry entry = new CacheEntry(
+            records, file != null? file.lastModified(): 0, file != null? file.length(): 0);
+
+        cache.put(key, entry);
+        return entry;
+    }   //putCacheEntry
+
+    /**
+     * This method opens a resource for reading.
+     *
+     * @param path specifies the resource name.
+     * @return resource input stream.
+     */
+    private static InputStream openResource(String path)
+    {
+        return Objects.requireNonNull(
+            Objects.requireNonNull(TrcPathFile.class.getClassLoader()).getResourceAsStream(path),
+            "Resource " + path + " not found.");
+    }   //openResource
+
+    /**
+     * This method reads the whole content of a resource.
+     *
+     * @param path specifies the resource name.
+     * @return resource content.
+     * @throws IOException if the resource cannot be read.
+     */
+    private static byte[] readResource(String path) throws IOException
+    {
+        try (InputStream in = openResource(path))
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int len;
+
+            while ((len = in.read(chunk)) > 0)
+            {
+                out.write(chunk, 0, len);
+            }
+
+            return out.toByteArray();
+        }
+    }   //readResource
+
+    /**
+     * This method parses CSV records. It scans the fields of each line instead of splitting it, and packs the values
+     * into a growing primitive array. Empty fields after the last column are ignored.
+     *
+     * @param in specifies the reader of the CSV data.
+     * @param numColumns specifies the number of columns of each record.
+     * @return records packed in an array, numColumns values per record.
+     * @throws IOException if the data cannot be read.
+     * @throws IllegalArgumentException if a record does not have numColumns values.
+     */
+    private static double[] parseCsv(BufferedReader in, int numColumns) throws IOException
+    {
+        double[] records = new double[numColumns*64];
+        int numValues = 0;
+        String line;
+
+        in.readLine();  // Get rid of the first header line
+        while ((line = in.readLine()) != null)
+        {
+            int start = 0;
+            int column = 0;
+
+            if (numValues + numColumns > records.length)
+            {
+                records = Arrays.copyOf(records, records.length*2);
+            }
+
+            while (start <= line.length())
+            {
+                int end = line.indexOf(',', start);
+
+                if (end == -1)
+                {
+                    end = line.length();
+                }
+
+                if (column == numColumns)
+                {
+                    // Like String.split, which the loaders used to use, ignore empty trailing fields.
+                    if (end != start)
+                    {
+                        column++;
+                        break;
+                    }
+                    start = end + 1;
+                    continue;
+                }
+                records[numValues + column] = Double.parseDouble(line.substring(start, end));
+                column++;
+                start = end + 1;
+            }
+
+            if (column != numColumns)
+            {
+                throw new IllegalArgumentException("There must be " + numColumns + " columns in the csv file!");
+            }
+            numValues += numColumns;
+        }
+
+        return Arrays.copyOf(records, numValues);
+    }   //parseCsv
+
+    /**
+     * This method decodes the records of a binary path file.
+     *
+     * @param path specifies the path of the file for error messages.
+     * @param buffer specifies the file content.
+     * @param numColumns specifies the expected number of columns of each record.
+     * @return records packed in an array, numColumns values per record.
+     * @throws IllegalArgumentException if the content is not a binary path file with numColumns columns.
+     */
+    private static double[] decodeBinary(String path, ByteBuffer buffer, int numColumns)
+    {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+        {
+            throw new IllegalArgumentException(path + " is not a binary path file!");
+        }
+
+        if (buffer.getInt(8) != numColumns)
+        {
+            throw new IllegalArgumentException("There must be " + numColumns + " columns in the binary file!");
+        }
+
+        int numRecords = buffer.getInt(12);
+        if (numRecords < 0 || HEADER_SIZE + (long)numRecords*numColumns*Double.BYTES > buffer.capacity())
+        {
+            throw new IllegalArgumentException(path + " is truncated!");
+        }
+
+        double[] records = new double[numRecords*numColumns];
+        buffer.position(HEADER_SIZE);
+        buffer.asDoubleBuffer().get(records);
+
+        return records;
+    }   //decodeBinary
+
+}   //class TrcPathFile
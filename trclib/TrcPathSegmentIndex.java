@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+/**
+ * This class implements a lookup index of the segments of a path for path following. It is built once when path
+ * following starts and keeps the waypoint positions, the cumulative arc length at each waypoint and the bounding box
+ * of each segment in primitive arrays. Segment i is the segment from waypoint i - 1 to waypoint i.
+ *
+ * The main query finds the first segment, starting from a given one, that may intersect the robot's proximity circle.
+ * Since the path between two waypoints is at least as long as the straight distance between them, a waypoint at
+ * distance d from the robot is followed by at least |radius - d| of arc length that is entirely inside (or entirely
+ * outside) the circle. Those segments cannot intersect the circle, so the query skips them with a binary search on
+ * the cumulative arc length instead of testing them one by one.
+ */
+public class TrcPathSegmentIndex
+{
+    private final double[] x;
+    private final double[] y;
+    private final double[] arcLengths;
+    private final double[] minX, maxX, minY, maxY;
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param path specifies the path to index.
+     */
+    public TrcPathSegmentIndex(TrcPath path)
+    {
+        int size = path.getSize();
+
+        x = new double[size];
+        y = new double[size];
+        arcLengths = new double[size];
+        minX = new double[size];
+        maxX = new double[size];
+        minY = new double[size];
+        maxY = new double[size];
+        for (int i = 0; i < size; i++)
+        {
+            TrcPose2D pose = path.getWaypoint(i).pose;
+
+            x[i] = pose.x;
+            y[i] = pose.y;
+            if (i > 0)
+            {
+                arcLengths[i] = arcLengths[i - 1] + TrcUtil.magnitude(x[i] - x[i - 1], y[i] - y[i - 1]);
+                minX[i] = Math.min(x[i - 1], x[i]);
+                maxX[i] = Math.max(x[i - 1], x[i]);
+                minY[i] = Math.min(y[i - 1], y[i]);
+                maxY[i] = Math.max(y[i - 1], y[i]);
+            }
+        }
+    }   //TrcPathSegmentIndex
+
+    /**
+     * This method returns the number of waypoints of the path.
+     *
+     * @return number of waypoints.
+     */
+    public int getSize()
+    {
+        return x.length;
+    }   //getSize
+
+    /**
+     * This method returns the cumulative arc length of the path at the given waypoint.
+     *
+     * @param index specifies the waypoint index.
+     * @return arc length from the first waypoint.
+     */
+    public double getArcLength(int index)
+    {
+        return arcLengths[index];
+    }   //getArcLength
+
+    /**
+     * This method returns the index of the first waypoint at or beyond the given arc length.
+     *
+     * @param arcLength specifies the arc length from the first waypoint.
+     * @param fromIndex specifies the waypoint index to start searching from.
+     * @return waypoint index, getSize() if the arc length is beyond the end of the path.
+     */
+    public int findWaypoint(double arcLength, int fromIndex)
+    {
+        int low = fromIndex;
+        int high = x.length;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (arcLengths[mid] < arcLength)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }   //findWaypoint
+
+    /**
+     * This method returns the distance from a point to the bounding box of a segment.
+     *
+     * @param segment specifies the segment index.
+     * @param px specifies the x coordinate of the point.
+     * @param py specifies the y coordinate of the point.
+     * @return distance to the bounding box, 0 if the point is inside the box.
+     */
+    public double distanceToBoundingBox(int segment, double px, double py)
+    {
+        double dx = Math.max(Math.max(minX[segment] - px, px - maxX[segment]), 0.0);
+        double dy = Math.max(Math.max(minY[segment] - py, py - maxY[segment]), 0.0);
+
+        return Math.sqrt(dx*dx + dy*dy);
+    }   //distanceToBoundingBox
+
+    /**
+     * This method finds the first segment, starting from the given segment, that may intersect the circle of the
+     * given radius around the given point. Segments that are entirely inside the circle are always skipped. Segments
+     * that are entirely outside the circle are skipped only if requested, since some callers treat them specially.
+     *
+     * @param fromSegment specifies the segment to start from, must be at least 1.
+     * @param px specifies the x coordinate of the circle center.
+     * @param py specifies the y coordinate of the circle center.
+     * @param radius specifies the radius of the circle.
+     * @param skipOutside specifies true to also skip segments entirely outside the circle.
+     * @return index of the first segment that may intersect the circle, getSize() if none.
+     */
+    public int findCandidateSegment(int fromSegment, double px, double py, double radius, boolean skipOutside)
+    {
+        int segment = fromSegment;
+
+        while (segment < x.length)
+        {
+            double startDx = x[segment - 1] - px;
+            double startDy = y[segment - 1] - py;
+            double startDist = Math.sqrt(startDx*startDx + startDy*startDy);
+            double clearance = skipOutside? Math.abs(radius - startDist): radius - startDist;
+            int next = segment;
+
+            if (clearance > 0.0)
+            {
+                // Every point within the clearance arc length of the start waypoint is strictly on the same side of
+                // the circle as the start waypoint. Skip the segments that end before it.
+                next = findWaypoint(arcLengths[segment - 1] + clearance, segment);
+            }
+
+            if (next == segment)
+            {
+                if (skipOutside && distanceToBoundingBox(segment, px, py) > radius)
+                {
+                    // The segment is entirely outside the circle, try the next one.
+                    next = segment + 1;
+                }
+                else
+                {
+                    break;
+                }
+            }
+            segment = next;
+        }
+
+        return segment;
+    }   //findCandidateSegment
+
+}   //class TrcPathSegmentIndex
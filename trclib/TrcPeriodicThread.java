@@ -22,7 +22,9 @@
 
 package TrcCommonLib.trclib;
 
+import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class implements a platform independent periodic task by using a separate thread. When enabled, the thread
@@ -33,6 +35,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * data but arguably, one could just call TrcTaskMgr to create a STANDALONE_TASK instead. In other words, this
  * class is mainly used by TrcTaskMgr, there is really no reason for others to use this class. One should always
  * use TrcTaskMgr to create a STANDALONE_TASK.
+ * <p>
+ * Alternatively, if a shared pool is configured with setSharedPoolSize, periodic tasks created with useSharedPool
+ * set to true do not get their own thread. Instead, they are scheduled on a small pool of shared threads at a fixed
+ * rate. Each task is pinned to one pool thread for its whole life, so its event callbacks are still performed on the
+ * thread that runs the task and never concurrently with it. Because a pool thread runs its tasks one at a time, a
+ * task that blocks for a long time delays every other task on the same pool thread, so such a task should still use
+ * its own thread.
  *
  * @param <T> specifies the data type that the periodic task will be acquiring/processing.
  */
@@ -45,6 +54,19 @@ public class TrcPeriodicThread<T>
         void runPeriodic(Object context);
     }   //interface PeriodicTask
 
+    /**
+     * This specifies what the periodic task does when a run takes longer than the processing interval and one or
+     * more scheduled run times have already passed. Either way, the schedule stays on the fixed-rate grid of
+     * start time plus multiples of the processing interval.
+     */
+    public enum OverrunPolicy
+    {
+        // Run the task once right away for the latest missed run time and drop the earlier missed ones.
+        SKIP,
+        // Run the task back to back for every missed run time until it has caught up with the schedule.
+        CATCH_UP
+    }   //enum OverrunPolicy
+
     /**
      * This class keeps track of the state of the periodic task. It also provides thread synchronization control to
      * make sure the integrity of the task state.
@@ -52,28 +74,64 @@ public class TrcPeriodicThread<T>
     private class TaskState
     {
         private final Thread periodicThread;
+        private final PoolThread poolThread;
+        // Only used by pooled tasks, dedicated threads use the thread state instead.
+        private volatile boolean terminateRequested = false;
+        private volatile boolean terminated = false;
         private boolean taskEnabled;
         private T data;
 
         /**
          * Constructor: Create an instance of the object.
+         *
+         * @param instanceName specifies the instance name.
+         * @param runnable specifies the runnable of the dedicated thread, ignored if poolThread is not null.
+         * @param taskPriority specifies the priority of the dedicated thread, ignored if poolThread is not null.
+         * @param poolThread specifies the shared pool thread to run the task on, null to create a dedicated thread.
          */
-        public TaskState(String instanceName, Runnable runnable, int taskPriority)
+        public TaskState(String instanceName, Runnable runnable, int taskPriority, PoolThread poolThread)
         {
-            periodicThread = new Thread(runnable, instanceName);
-            periodicThread.setPriority(taskPriority);
+            if (poolThread == null)
+            {
+                periodicThread = new Thread(runnable, instanceName);
+                periodicThread.setPriority(taskPriority);
+            }
+            else
+            {
+                periodicThread = null;
+            }
+            this.poolThread = poolThread;
             taskEnabled = false;
             data = null;
         }   //TaskState
 
         /**
-         * This method is called after TaskState is created to start the task thread.
+         * This method is called after TaskState is created to start the task thread or to schedule the task on
+         * its pool thread.
          */
         public void start()
         {
-            periodicThread.start();
+            if (periodicThread != null)
+            {
+                TrcTimer.registerThread(periodicThread);
+                periodicThread.start();
+            }
+            else
+            {
+                poolThread.addTask(TrcPeriodicThread.this);
+            }
         }   //start
 
+        /**
+         * This method checks if the periodic task is still alive, i.e. it has not been asked to terminate.
+         *
+         * @return true if the task is alive, false otherwise.
+         */
+        private boolean isAlive()
+        {
+            return periodicThread != null? periodicThread.isAlive(): !terminateRequested;
+        }   //isAlive
+
         /**
          * This method checks if the periodic task has been terminated.
          *
@@ -81,7 +139,7 @@ public class TrcPeriodicThread<T>
          */
         public boolean isTaskTerminated()
         {
-            return !periodicThread.isAlive();
+            return periodicThread != null? !periodicThread.isAlive(): terminated;
         }   //isTaskTerminated
 
         /**
@@ -89,7 +147,15 @@ public class TrcPeriodicThread<T>
          */
         public void terminateTask()
         {
-            periodicThread.interrupt();
+            if (periodicThread != null)
+            {
+                periodicThread.interrupt();
+            }
+            else
+            {
+                terminateRequested = true;
+                poolThread.removeTask(TrcPeriodicThread.this);
+            }
         }   //terminateTask
 
         /**
@@ -99,7 +165,7 @@ public class TrcPeriodicThread<T>
          */
         public synchronized boolean isTaskEnabled()
         {
-            return robotInitialized && taskEnabled && periodicThread.isAlive();
+            return robotInitialized && taskEnabled && isAlive();
         }   //isTaskEnabled
 
         /**
@@ -110,7 +176,7 @@ public class TrcPeriodicThread<T>
          */
         public synchronized void setTaskEnabled(boolean enabled)
         {
-            if (periodicThread.isAlive())
+            if (isAlive())
             {
                 taskEnabled = enabled;
             }
@@ -134,7 +200,7 @@ public class TrcPeriodicThread<T>
         {
             T newData = null;
 
-            if (periodicThread.isAlive())
+            if (isAlive())
             {
                 //
                 // Consume the data by transferring it out.
@@ -154,7 +220,7 @@ public class TrcPeriodicThread<T>
          */
         public synchronized void setData(T data)
         {
-            if (periodicThread.isAlive())
+            if (isAlive())
             {
                 this.data = data;
             }
@@ -162,13 +228,169 @@ public class TrcPeriodicThread<T>
 
     }   //class TaskState
 
+    /**
+     * This class implements a shared pool thread. It keeps its periodic tasks in a min-heap ordered by their next
+     * run time and runs the earliest due task, parking on the TrcTimer time source in between so that it follows
+     * simulated time just like a dedicated periodic thread.
+     */
+    private static class PoolThread implements Runnable
+    {
+        // Park at most this long when idle so the pool thread keeps sending watchdog heartbeats.
+        private static final long IDLE_PARK_NANOS = 500000000L;
+
+        private final PriorityQueue<TrcPeriodicThread<?>> taskQueue =
+            new PriorityQueue<>(8, (a, b) -> Long.compare(a.nextRunNanoTime, b.nextRunNanoTime));
+        private final String threadName;
+        private final Thread thread;
+        private int numTasks = 0;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param threadName specifies the name of the pool thread.
+         */
+        public PoolThread(String threadName)
+        {
+            this.threadName = threadName;
+            thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+            TrcTimer.registerThread(thread);
+            thread.start();
+        }   //PoolThread
+
+        /**
+         * This method returns the number of tasks assigned to this pool thread.
+         *
+         * @return number of assigned tasks.
+         */
+        public synchronized int getNumTasks()
+        {
+            return numTasks;
+        }   //getNumTasks
+
+        /**
+         * This method assigns a task to this pool thread. The task is due to run immediately.
+         *
+         * @param task specifies the periodic task to add.
+         */
+        public void addTask(TrcPeriodicThread<?> task)
+        {
+            synchronized (this)
+            {
+                task.nextRunNanoTime = TrcTimer.getNanoTime();
+                taskQueue.add(task);
+                numTasks++;
+            }
+            TrcTimer.unpark(thread);
+        }   //addTask
+
+        /**
+         * This method removes a task that has been asked to terminate. If the task is running at the moment, it
+         * will be retired by the pool thread when it finishes its current run.
+         *
+         * @param task specifies the periodic task to remove.
+         */
+        public synchronized void removeTask(TrcPeriodicThread<?> task)
+        {
+            if (taskQueue.remove(task))
+            {
+                retireTask(task);
+            }
+        }   //removeTask
+
+        /**
+         * This method marks the task terminated. The caller must hold the lock of this object.
+         *
+         * @param task specifies the periodic task to retire.
+         */
+        private void retireTask(TrcPeriodicThread<?> task)
+        {
+            task.taskState.terminated = true;
+            numTasks--;
+        }   //retireTask
+
+        /**
+         * This method runs the pool thread. It never exits, pool threads are daemon threads.
+         */
+        @Override
+        public void run()
+        {
+            numActiveThreads.incrementAndGet();
+            TrcWatchdogMgr.Watchdog threadWatchdog = TrcWatchdogMgr.registerWatchdog(threadName);
+            TrcEvent.registerEventCallback();
+            while (true)
+            {
+                TrcPeriodicThread<?> task = null;
+                long waitNanoTime;
+
+                synchronized (this)
+                {
+                    TrcPeriodicThread<?> nextTask = taskQueue.peek();
+
+                    if (nextTask == null)
+                    {
+                        waitNanoTime = IDLE_PARK_NANOS;
+                    }
+                    else
+                    {
+                        waitNanoTime = Math.min(
+                            nextTask.nextRunNanoTime - TrcTimer.getNanoTime(), IDLE_PARK_NANOS);
+                        if (waitNanoTime <= 0)
+                        {
+                            task = taskQueue.poll();
+                        }
+                    }
+                }
+
+                if (task != null)
+                {
+                    task.runScheduledTask(TrcTimer.getNanoTime());
+                    synchronized (this)
+                    {
+                        if (task.taskState.terminateRequested)
+                        {
+                            retireTask(task);
+                        }
+                        else
+                        {
+                            taskQueue.add(task);
+                        }
+                    }
+                }
+                //
+                // Tasks are pinned to this thread, so callbacks set up by them are performed here between task runs.
+                //
+                TrcEvent.performEventCallback();
+                threadWatchdog.sendHeartBeat();
+
+                if (task == null)
+                {
+                    TrcTimer.parkNanos(this, waitNanoTime);
+                }
+                else if (task.processingInterval == 0)
+                {
+                    Thread.yield();
+                }
+            }
+        }   //run
+
+    }   //class PoolThread
+
     private static final AtomicInteger numActiveThreads = new AtomicInteger(0);
+    private static PoolThread[] sharedPool = null;
     private final TrcDbgTrace tracer;
     private final String instanceName;
     private final PeriodicTask task;
     private final Object context;
     private final TaskState taskState;
     private volatile long processingInterval = 0;   // in msec
+    private volatile OverrunPolicy overrunPolicy = OverrunPolicy.SKIP;
+    private volatile long spinNanoTime = 0;
+    private final TrcLatencyHistogram jitterHistogram;
+    private final AtomicLong overrunCount = new AtomicLong(0);
+    private final AtomicLong skippedCount = new AtomicLong(0);
+    // Only used by pooled tasks, accessed by the pool thread or under the pool thread lock.
+    private long nextRunNanoTime = 0;
 
     /**
      * Constructor: Create an instance of the object.
@@ -176,18 +398,38 @@ public class TrcPeriodicThread<T>
      * @param instanceName specifies the instance name.
      * @param task specifies the periodic task the thread is to execute.
      * @param context specifies the task context to be passed to the periodic thread.
-     * @param taskPriority specifies the periodic thread priority.
+     * @param taskPriority specifies the periodic thread priority, ignored if the task runs on the shared pool.
+     * @param useSharedPool specifies true to run the task on the shared pool if one is configured, false to always
+     *        create a dedicated thread.
      */
-    public TrcPeriodicThread(String instanceName, PeriodicTask task, Object context, int taskPriority)
+    public TrcPeriodicThread(
+        String instanceName, PeriodicTask task, Object context, int taskPriority, boolean useSharedPool)
     {
         this.tracer = new TrcDbgTrace();
         this.instanceName = instanceName;
         this.task = task;
         this.context = context;
-        taskState = new TaskState(instanceName, this::run, taskPriority);
+        this.jitterHistogram = new TrcLatencyHistogram(instanceName + ".jitter", 0);
+        // The Watchdog Manager task always gets its own thread so it can still detect a stuck pool thread.
+        PoolThread poolThread =
+            useSharedPool && !instanceName.equals(TrcWatchdogMgr.moduleName)? getPoolThread(): null;
+        taskState = new TaskState(instanceName, this::run, taskPriority, poolThread);
         taskState.start();
     }   //TrcPeriodicThread
 
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     * @param task specifies the periodic task the thread is to execute.
+     * @param context specifies the task context to be passed to the periodic thread.
+     * @param taskPriority specifies the periodic thread priority.
+     */
+    public TrcPeriodicThread(String instanceName, PeriodicTask task, Object context, int taskPriority)
+    {
+        this(instanceName, task, context, taskPriority, false);
+    }   //TrcPeriodicThread
+
     /**
      * Constructor: Create an instance of the object.
      *
@@ -222,6 +464,78 @@ public class TrcPeriodicThread<T>
         robotInitialized = init;
     }   //setRobotInitialized
 
+    /**
+     * This method configures the shared pool that runs periodic tasks created with useSharedPool set to true. It
+     * should be called once during robot initialization before any such task is created. The pool threads are
+     * created on demand and live for the rest of the program, so the pool can't be resized once it is in use.
+     *
+     * @param numThreads specifies the number of pool threads, 0 to give every periodic task its own thread.
+     * @throws IllegalStateException if the pool is already in use with a different size.
+     */
+    public static synchronized void setSharedPoolSize(int numThreads)
+    {
+        if (numThreads < 0)
+        {
+            throw new IllegalArgumentException("numThreads must not be negative.");
+        }
+
+        if (sharedPool == null || sharedPool.length != numThreads)
+        {
+            if (sharedPool != null)
+            {
+                for (PoolThread poolThread: sharedPool)
+                {
+                    if (poolThread != null)
+                    {
+                        throw new IllegalStateException("Shared pool is already in use.");
+                    }
+                }
+            }
+            sharedPool = numThreads > 0? new PoolThread[numThreads]: null;
+        }
+    }   //setSharedPoolSize
+
+    /**
+     * This method checks if the shared pool is configured.
+     *
+     * @return true if the shared pool is configured, false otherwise.
+     */
+    public static synchronized boolean isSharedPoolEnabled()
+    {
+        return sharedPool != null;
+    }   //isSharedPoolEnabled
+
+    /**
+     * This method picks the pool thread with the fewest tasks for a new periodic task, creating the pool thread if
+     * it hasn't been started yet.
+     *
+     * @return the pool thread to run the new task on, null if the shared pool is not configured.
+     */
+    private static synchronized PoolThread getPoolThread()
+    {
+        PoolThread bestThread = null;
+
+        if (sharedPool != null)
+        {
+            for (int i = 0; i < sharedPool.length; i++)
+            {
+                if (sharedPool[i] == null)
+                {
+                    // An unstarted pool thread has no task, it can't be beaten.
+                    sharedPool[i] = new PoolThread(TrcPeriodicThread.class.getSimpleName() + ".pool" + i);
+                    bestThread = sharedPool[i];
+                    break;
+                }
+                else if (bestThread == null || sharedPool[i].getNumTasks() < bestThread.getNumTasks())
+                {
+                    bestThread = sharedPool[i];
+                }
+            }
+        }
+
+        return bestThread;
+    }   //getPoolThread
+
     /**
      * This method returns the number of active threads.
      *
@@ -292,6 +606,95 @@ public class TrcPeriodicThread<T>
         return processingInterval;
     }   //getProcessingInterval
 
+    /**
+     * This method sets what the periodic task does when a run overruns the processing interval.
+     *
+     * @param policy specifies the overrun policy, SKIP by default.
+     */
+    public void setOverrunPolicy(OverrunPolicy policy)
+    {
+        overrunPolicy = policy;
+    }   //setOverrunPolicy
+
+    /**
+     * This method returns the overrun policy of the periodic task.
+     *
+     * @return overrun policy.
+     */
+    public OverrunPolicy getOverrunPolicy()
+    {
+        return overrunPolicy;
+    }   //getOverrunPolicy
+
+    /**
+     * This method sets the spin wait time for a dedicated thread. The thread parks until this much time before its
+     * next run time and then spins the rest of the way for sub-millisecond wake up accuracy at the cost of CPU
+     * time. Spinning only makes sense on the system time source and is ignored for tasks running on the shared
+     * pool.
+     *
+     * @param spinNanoTime specifies the spin wait time in nanoseconds, 0 to disable spinning.
+     */
+    public void setSpinWaitTime(long spinNanoTime)
+    {
+        if (spinNanoTime < 0)
+        {
+            throw new IllegalArgumentException("spinNanoTime must not be negative.");
+        }
+        this.spinNanoTime = spinNanoTime;
+    }   //setSpinWaitTime
+
+    /**
+     * This method returns the snapshot of the wake up jitter histogram. The jitter of a run is how late it started
+     * compared to its scheduled run time. Nothing is recorded while the processing interval is zero.
+     *
+     * @return jitter histogram snapshot.
+     */
+    public TrcLatencyHistogram.Snapshot getJitterSnapshot()
+    {
+        return jitterHistogram.getSnapshot();
+    }   //getJitterSnapshot
+
+    /**
+     * This method returns the number of runs that finished after the next scheduled run time had already passed.
+     *
+     * @return number of overruns.
+     */
+    public long getOverrunCount()
+    {
+        return overrunCount.get();
+    }   //getOverrunCount
+
+    /**
+     * This method returns the number of scheduled runs dropped by the SKIP overrun policy.
+     *
+     * @return number of skipped runs.
+     */
+    public long getSkippedCount()
+    {
+        return skippedCount.get();
+    }   //getSkippedCount
+
+    /**
+     * This method clears the jitter, overrun and skip statistics.
+     */
+    public void resetLoopStats()
+    {
+        jitterHistogram.reset();
+        overrunCount.set(0);
+        skippedCount.set(0);
+    }   //resetLoopStats
+
+    /**
+     * This method returns the loop statistics in string form.
+     *
+     * @return loop statistics in string form.
+     */
+    public String getLoopStats()
+    {
+        return "jitter=(" + jitterHistogram.getSnapshot() + "), overruns=" + overrunCount.get() +
+               ", skipped=" + skippedCount.get();
+    }   //getLoopStats
+
     /**
      * This method is called to set new data after new data have been acquired/processed.
      *
@@ -312,6 +715,77 @@ public class TrcPeriodicThread<T>
         return taskState.getData();
     }   //getData
 
+    /**
+     * This method is called by the pool thread when the task is due. It runs the task once if it is enabled and
+     * schedules its next run.
+     *
+     * @param startNanoTime specifies the time the pool thread picked up the task.
+     */
+    private void runScheduledTask(long startNanoTime)
+    {
+        recordJitter(startNanoTime, nextRunNanoTime);
+        if (taskState.isTaskEnabled())
+        {
+            task.runPeriodic(context);
+            tracer.traceVerbose(
+                instanceName, "start=%.6f, elapsed=%.6f",
+                startNanoTime/1000000000.0, (TrcTimer.getNanoTime() - startNanoTime)/1000000000.0);
+        }
+        nextRunNanoTime = getNextRunTime(nextRunNanoTime, TrcTimer.getNanoTime());
+    }   //runScheduledTask
+
+    /**
+     * This method records the wake up jitter of a run.
+     *
+     * @param startNanoTime specifies the time the run started.
+     * @param scheduledNanoTime specifies the time the run was scheduled to start.
+     */
+    private void recordJitter(long startNanoTime, long scheduledNanoTime)
+    {
+        if (processingInterval > 0)
+        {
+            jitterHistogram.recordValue(startNanoTime - scheduledNanoTime);
+        }
+    }   //recordJitter
+
+    /**
+     * This method determines the next run time on a fixed-rate schedule: it advances by exactly one interval from
+     * the previous scheduled run time instead of from the end of the run, so the processing time doesn't make the
+     * task drift. If the next run time has already passed, the run is counted as an overrun and the missed run times
+     * are handled according to the overrun policy.
+     *
+     * @param prevRunNanoTime specifies the scheduled time of the run that just finished.
+     * @param currNanoTime specifies the current time.
+     * @return next scheduled run time, current time if the processing interval is zero.
+     */
+    private long getNextRunTime(long prevRunNanoTime, long currNanoTime)
+    {
+        long intervalNanoTime = processingInterval*1000000L;
+        long nextRunTime;
+
+        if (intervalNanoTime > 0)
+        {
+            nextRunTime = prevRunNanoTime + intervalNanoTime;
+            if (nextRunTime <= currNanoTime)
+            {
+                overrunCount.incrementAndGet();
+                if (overrunPolicy == OverrunPolicy.SKIP)
+                {
+                    long missedCount = (currNanoTime - nextRunTime)/intervalNanoTime;
+
+                    skippedCount.addAndGet(missedCount);
+                    nextRunTime += missedCount*intervalNanoTime;
+                }
+            }
+        }
+        else
+        {
+            nextRunTime = currNanoTime;
+        }
+
+        return nextRunTime;
+    }   //getNextRunTime
+
     //
     // Implements Runnable interface.
     //
@@ -337,11 +811,13 @@ public class TrcPeriodicThread<T>
         TrcWatchdogMgr.Watchdog threadWatchdog =
             instanceName.equals(TrcWatchdogMgr.moduleName)? null: TrcWatchdogMgr.registerWatchdog(instanceName);
         TrcEvent.registerEventCallback();
+        long scheduledNanoTime = TrcTimer.getNanoTime();
         while (!Thread.interrupted())
         {
             long startNanoTime = TrcTimer.getNanoTime();
             long elapsedNanoTime;
 
+            recordJitter(startNanoTime, scheduledNanoTime);
             if (taskState.isTaskEnabled())
             {
                 task.runPeriodic(context);
@@ -358,23 +834,26 @@ public class TrcPeriodicThread<T>
                 threadWatchdog.sendHeartBeat();
             }
 
+            scheduledNanoTime = getNextRunTime(scheduledNanoTime, TrcTimer.getNanoTime());
             if (processingInterval > 0)
             {
-                long sleepTime = processingInterval - (TrcTimer.getNanoTime() - startNanoTime)/1000000;
+                long spinTime = spinNanoTime;
+                long sleepNanoTime = scheduledNanoTime - spinTime - TrcTimer.getNanoTime();
                 //
-                // If the processing time does not use up the processingInterval time, make the thread sleep the
-                // remaining time left.
+                // If the processing time does not use up the processingInterval time, make the thread sleep until
+                // the next scheduled run time. The thread parks on the TrcTimer time source so it follows simulated
+                // time. An interrupt makes park return early and terminates the thread loop. If spin wait is enabled,
+                // the thread wakes up early and spins the remaining time for better accuracy.
                 //
-                if (sleepTime > 0)
+                while (sleepNanoTime > 0 && !thread.isInterrupted())
                 {
-                    try
-                    {
-                        Thread.sleep(sleepTime);
-                    }
-                    catch (InterruptedException e)
-                    {
-                        break;
-                    }
+                    TrcTimer.parkNanos(this, sleepNanoTime);
+                    sleepNanoTime = scheduledNanoTime - spinTime - TrcTimer.getNanoTime();
+                }
+
+                while (spinTime > 0 && TrcTimer.getNanoTime() < scheduledNanoTime && !thread.isInterrupted())
+                {
+                    Thread.yield();
                 }
             }
             else
@@ -395,8 +874,8 @@ public class TrcPeriodicThread<T>
 
         numThreads = numActiveThreads.decrementAndGet();
         tracer.traceDebug(
-            instanceName, "Exiting thread: numThreads=%d, AvgLoopTime=%.6f",
-            numThreads, totalThreadNanoTime/1000000000.0/loopCount);
+            instanceName, "Exiting thread: numThreads=%d, AvgLoopTime=%.6f, %s",
+            numThreads, totalThreadNanoTime/1000000000.0/loopCount, getLoopStats());
     }   //run
 
 }   //class TrcPeriodicThread
@@ -22,15 +22,8 @@
 
 package TrcCommonLib.trclib;
 
-import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealVector;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 
@@ -39,6 +32,9 @@ import java.util.Objects;
  */
 public class TrcPose2D
 {
+    private static final int NUM_SCRATCH_POSES = 8;
+    private static final ThreadLocal<TrcPose2D[]> scratchPoses = new ThreadLocal<>();
+
     public double x;
     public double y;
     public double angle;
@@ -100,6 +96,7 @@ public class TrcPose2D
 
     /**
      * This method loads pose data from a CSV file either on the external file system or attached resources.
+     * The parsed data is cached, so loading the same file again does not parse it again.
      *
      * @param path specifies the file system path or resource name.
      * @param loadFromResources specifies true if the data is from attached resources, false if from file system.
@@ -107,49 +104,17 @@ public class TrcPose2D
      */
     public static TrcPose2D[] loadPosesFromCsv(String path, boolean loadFromResources)
     {
-        TrcPose2D[] poses;
-
         if (!path.endsWith(".csv"))
         {
             throw new IllegalArgumentException(path + " is not a csv file!");
         }
 
-        try
-        {
-            BufferedReader in = new BufferedReader(
-                loadFromResources?
-                    new InputStreamReader(TrcPose2D.class.getClassLoader().getResourceAsStream(path)):
-                    new FileReader(path));
-            List<TrcPose2D> poseList = new ArrayList<>();
-            String line;
-
-            in.readLine();  // Get rid of the first header line
-            while ((line = in.readLine()) != null)
-            {
-                String[] tokens = line.split(",");
-
-                if (tokens.length != 3)
-                {
-                    throw new IllegalArgumentException("There must be 3 columns in the csv file!");
-                }
-
-                double[] elements = new double[tokens.length];
+        double[] records = TrcPathFile.loadCsvRecords(path, loadFromResources, 3);
+        TrcPose2D[] poses = new TrcPose2D[records.length/3];
 
-                for (int i = 0; i < elements.length; i++)
-                {
-                    elements[i] = Double.parseDouble(tokens[i]);
-                }
-
-                TrcPose2D pose = new TrcPose2D(elements[0], elements[1], elements[2]);
-                poseList.add(pose);
-            }
-            in.close();
-
-            poses = poseList.toArray(new TrcPose2D[0]);
-        }
-        catch (IOException e)
+        for (int i = 0, j = 0; i < poses.length; i++, j += 3)
         {
-            throw new RuntimeException(e);
+            poses[i] = new TrcPose2D(records[j], records[j + 1], records[j + 2]);
         }
 
         return poses;
@@ -183,6 +148,47 @@ public class TrcPose2D
         return Objects.hash(x, y, angle);
     }   //hashCode
 
+    /**
+     * This method returns a scratch pose owned by the calling thread. Scratch poses let static or shared code do pose
+     * math without allocating. The content of a scratch pose is only valid until the same index is requested again
+     * by the same thread, so it must not be kept or returned to callers and nested code must use different indices.
+     *
+     * @param index specifies the scratch pose index, must be less than NUM_SCRATCH_POSES (8).
+     * @return scratch pose of the calling thread.
+     */
+    public static TrcPose2D getScratchPose(int index)
+    {
+        TrcPose2D[] poses = scratchPoses.get();
+
+        if (poses == null)
+        {
+            poses = new TrcPose2D[NUM_SCRATCH_POSES];
+            for (int i = 0; i < poses.length; i++)
+            {
+                poses[i] = new TrcPose2D();
+            }
+            scratchPoses.set(poses);
+        }
+
+        return poses[index];
+    }   //getScratchPose
+
+    /**
+     * This method sets the components of this pose.
+     *
+     * @param x     specifies the x component of the position.
+     * @param y     specifies the y component of the position.
+     * @param angle specifies the angle.
+     * @return this pose.
+     */
+    public TrcPose2D set(double x, double y, double angle)
+    {
+        this.x = x;
+        this.y = y;
+        this.angle = angle;
+        return this;
+    }   //set
+
     /**
      * This method creates and returns a copy of this pose.
      *
@@ -212,7 +218,10 @@ public class TrcPose2D
      */
     public double distanceTo(TrcPose2D pose)
     {
-        return toPosVector().getDistance(pose.toPosVector());
+        double deltaX = x - pose.x;
+        double deltaY = y - pose.y;
+
+        return Math.sqrt(deltaX*deltaX + deltaY*deltaY);
     }   //distanceTo
 
     /**
@@ -235,19 +244,29 @@ public class TrcPose2D
      * @return pose relative to the given pose.
      */
     public TrcPose2D relativeTo(TrcPose2D pose, boolean transformAngle)
+    {
+        return relativeTo(pose, transformAngle, new TrcPose2D());
+    }   //relativeTo
+
+    /**
+     * This method transforms this pose relative to the given pose and stores the result in the given output pose.
+     * The output pose may be this pose or the reference pose.
+     *
+     * @param pose           specifies the reference pose.
+     * @param transformAngle specifies true to also transform angle, false to leave it alone.
+     * @param result         specifies the pose to store the result in.
+     * @return result pose.
+     */
+    public TrcPose2D relativeTo(TrcPose2D pose, boolean transformAngle, TrcPose2D result)
     {
         double deltaX = x - pose.x;
         double deltaY = y - pose.y;
-        double newAngle = angle;
-
-        RealVector newPos =
-            TrcUtil.rotateCCW(MatrixUtils.createRealVector(new double[]{deltaX, deltaY}), pose.angle);
-        if (transformAngle)
-        {
-            newAngle -= pose.angle;
-        }
-
-        return new TrcPose2D(newPos.getEntry(0), newPos.getEntry(1), newAngle);
+        double newAngle = transformAngle? angle - pose.angle: angle;
+        double angleRadians = Math.toRadians(pose.angle);
+        double cosAngle = Math.cos(angleRadians);
+        double sinAngle = Math.sin(angleRadians);
+        // Rotate the delta vector counter-clockwise by the angle of the reference pose.
+        return result.set(deltaX*cosAngle - deltaY*sinAngle, deltaX*sinAngle + deltaY*cosAngle, newAngle);
     }   //relativeTo
 
     /**
@@ -270,15 +289,26 @@ public class TrcPose2D
      */
     public TrcPose2D translatePose(double xOffset, double yOffset)
     {
-        TrcPose2D newPose = clone();
-        double angleRadians = Math.toRadians(newPose.angle);
+        return translatePose(xOffset, yOffset, new TrcPose2D());
+    }   //translatePose
+
+    /**
+     * This method translates this pose with the x and y offset in reference to the angle of the pose and stores the
+     * result in the given output pose. The output pose may be this pose.
+     *
+     * @param xOffset specifies the x offset in reference to the angle of the pose.
+     * @param yOffset specifies the y offset in reference to the angle of the pose.
+     * @param result  specifies the pose to store the result in.
+     * @return result pose.
+     */
+    public TrcPose2D translatePose(double xOffset, double yOffset, TrcPose2D result)
+    {
+        double angleRadians = Math.toRadians(angle);
         double cosAngle = Math.cos(angleRadians);
         double sinAngle = Math.sin(angleRadians);
 
-        newPose.x += xOffset * cosAngle + yOffset * sinAngle;
-        newPose.y += -xOffset * sinAngle + yOffset * cosAngle;
-
-        return newPose;
+        return result.set(
+            x + xOffset * cosAngle + yOffset * sinAngle, y - xOffset * sinAngle + yOffset * cosAngle, angle);
     }   //translatePose
 
     /**
@@ -289,8 +319,24 @@ public class TrcPose2D
      */
     public TrcPose2D rotatePose(double angle)
     {
-        RealVector vec = TrcUtil.rotateCW(toPosVector(), angle);
-        return new TrcPose2D(vec.getEntry(0), vec.getEntry(1), this.angle + angle);
+        return rotatePose(angle, new TrcPose2D());
+    }   //rotatePose
+
+    /**
+     * This method rotates this pose with the specified angle and stores the result in the given output pose. The
+     * output pose may be this pose.
+     *
+     * @param angle  specifies the angle to rotate the pose.
+     * @param result specifies the pose to store the result in.
+     * @return result pose.
+     */
+    public TrcPose2D rotatePose(double angle, TrcPose2D result)
+    {
+        double angleRadians = Math.toRadians(angle);
+        double cosAngle = Math.cos(angleRadians);
+        double sinAngle = Math.sin(angleRadians);
+        // Rotate the position vector clockwise.
+        return result.set(x*cosAngle + y*sinAngle, -x*sinAngle + y*cosAngle, this.angle + angle);
     }   //rotatePose
 
     /**
@@ -302,9 +348,27 @@ public class TrcPose2D
      */
     public TrcPose2D addRelativePose(TrcPose2D relativePose)
     {
-        RealVector vec =
-            TrcUtil.createVector(this.x, this.y).add(TrcUtil.rotateCW(relativePose.toPosVector(), this.angle));
-        return new TrcPose2D(vec.getEntry(0), vec.getEntry(1), this.angle + relativePose.angle);
+        return addRelativePose(relativePose, new TrcPose2D());
+    }   //addRelativePose
+
+    /**
+     * This method adds a relative pose to this pose and stores the resulting pose in the given output pose. The
+     * output pose may be this pose or the relative pose.
+     *
+     * @param relativePose specifies the pose relative to the previous pose.
+     * @param result       specifies the pose to store the result in.
+     * @return result pose.
+     */
+    public TrcPose2D addRelativePose(TrcPose2D relativePose, TrcPose2D result)
+    {
+        double angleRadians = Math.toRadians(this.angle);
+        double cosAngle = Math.cos(angleRadians);
+        double sinAngle = Math.sin(angleRadians);
+        // Rotate the relative vector clockwise by the angle of this pose.
+        double deltaX = relativePose.x*cosAngle + relativePose.y*sinAngle;
+        double deltaY = -relativePose.x*sinAngle + relativePose.y*cosAngle;
+
+        return result.set(this.x + deltaX, this.y + deltaY, this.angle + relativePose.angle);
     }   //addRelativePose
 
     /**
@@ -317,9 +381,27 @@ public class TrcPose2D
      */
     public TrcPose2D subtractRelativePose(TrcPose2D relativePose)
     {
-        RealVector vec =
-            TrcUtil.createVector(this.x, this.y).subtract(TrcUtil.rotateCW(relativePose.toPosVector(), this.angle));
-        return new TrcPose2D(vec.getEntry(0), vec.getEntry(1), this.angle - relativePose.angle);
+        return subtractRelativePose(relativePose, new TrcPose2D());
+    }   //subtractRelativePose
+
+    /**
+     * This method subtracts a relative pose from this pose and stores the resulting pose in the given output pose.
+     * The output pose may be this pose or the relative pose.
+     *
+     * @param relativePose specifies the relative pose from the resulting pose.
+     * @param result       specifies the pose to store the result in.
+     * @return result pose.
+     */
+    public TrcPose2D subtractRelativePose(TrcPose2D relativePose, TrcPose2D result)
+    {
+        double angleRadians = Math.toRadians(this.angle);
+        double cosAngle = Math.cos(angleRadians);
+        double sinAngle = Math.sin(angleRadians);
+        // Rotate the relative vector clockwise by the angle of this pose.
+        double deltaX = relativePose.x*cosAngle + relativePose.y*sinAngle;
+        double deltaY = -relativePose.x*sinAngle + relativePose.y*cosAngle;
+
+        return result.set(this.x - deltaX, this.y - deltaY, this.angle - relativePose.angle);
     }   //subtractRelativePose
 
 }   //class TrcPose2D
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+/**
+ * This class implements a time-indexed history of robot poses. The drive base odometry task adds the robot pose to
+ * the history every time it updates the odometry. A consumer that has data captured at an earlier time, such as a
+ * vision frame, can then look up where the robot was at the capture time instead of using the current pose, which
+ * may be off by the distance traveled during the processing latency. The poses are kept in a primitive circular
+ * buffer so adding a pose does not allocate.
+ */
+public class TrcPoseHistory
+{
+    private final TrcDbgTrace tracer;
+    private final String instanceName;
+    private final double[] timestamps;
+    private final double[] xPositions;
+    private final double[] yPositions;
+    private final double[] angles;
+    // Poses are stored in order of timestamp starting at headIndex.
+    private int headIndex = 0;
+    private int numPoses = 0;
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     * @param capacity specifies the maximum number of poses to keep. With the odometry task running every 10 msec,
+     *        a capacity of 100 covers one second of history.
+     */
+    public TrcPoseHistory(String instanceName, int capacity)
+    {
+        if (capacity < 2)
+        {
+            throw new IllegalArgumentException("capacity must be at least 2.");
+        }
+
+        this.tracer = new TrcDbgTrace();
+        this.instanceName = instanceName;
+        timestamps = new double[capacity];
+        xPositions = new double[capacity];
+        yPositions = new double[capacity];
+        angles = new double[capacity];
+    }   //TrcPoseHistory
+
+    /**
+     * This method returns the instance name.
+     *
+     * @return instance name.
+     */
+    @Override
+    public String toString()
+    {
+        return instanceName;
+    }   //toString
+
+    /**
+     * This method returns the maximum number of poses the history can keep.
+     *
+     * @return capacity of the history.
+     */
+    public int getCapacity()
+    {
+        return timestamps.length;
+    }   //getCapacity
+
+    /**
+     * This method returns the number of poses in the history.
+     *
+     * @return number of poses in the history.
+     */
+    public synchronized int size()
+    {
+        return numPoses;
+    }   //size
+
+    /**
+     * This method removes all poses from the history. This should be called when the pose jumps, such as when the
+     * odometry is reset, so that lookups won't interpolate across the jump.
+     */
+    public synchronized void clear()
+    {
+        headIndex = 0;
+        numPoses = 0;
+    }   //clear
+
+    /**
+     * This method adds a pose to the history. If the history is full, the oldest pose is discarded. Timestamps are
+     * expected to be increasing. If the timestamp goes backward (e.g. the clock was reset), the history is cleared
+     * first.
+     *
+     * @param timestamp specifies the time of the pose in seconds.
+     * @param pose specifies the robot pose, it is copied into the history.
+     */
+    public synchronized void addPose(double timestamp, TrcPose2D pose)
+    {
+        if (numPoses > 0 && timestamp < timestamps[physicalIndex(numPoses - 1)])
+        {
+            tracer.traceDebug(instanceName, "Timestamp went backward, clear history (timestamp=%.3f).", timestamp);
+            clear();
+        }
+
+        int index;
+        if (numPoses < timestamps.length)
+        {
+            index = physicalIndex(numPoses);
+            numPoses++;
+        }
+        else
+        {
+            // History is full, overwrite the oldest pose.
+            index = headIndex;
+            headIndex = (headIndex + 1) % timestamps.length;
+        }
+        timestamps[index] = timestamp;
+        xPositions[index] = pose.x;
+        yPositions[index] = pose.y;
+        angles[index] = pose.angle;
+    }   //addPose
+
+    /**
+     * This method returns the timestamp of the oldest pose in the history.
+     *
+     * @return timestamp of the oldest pose in seconds, null if the history is empty.
+     */
+    public synchronized Double getOldestTimestamp()
+    {
+        return numPoses > 0? timestamps[headIndex]: null;
+    }   //getOldestTimestamp
+
+    /**
+     * This method returns the timestamp of the newest pose in the history.
+     *
+     * @return timestamp of the newest pose in seconds, null if the history is empty.
+     */
+    public synchronized Double getNewestTimestamp()
+    {
+        return numPoses > 0? timestamps[physicalIndex(numPoses - 1)]: null;
+    }   //getNewestTimestamp
+
+    /**
+     * This method returns the robot pose at the given time by linearly interpolating between the two poses around
+     * it. The heading is interpolated along the shorter direction. If the time is newer than the newest pose, the
+     * newest pose is returned since the odometry has not caught up yet.
+     *
+     * @param timestamp specifies the time in seconds.
+     * @param result specifies the pose to store the interpolated pose in.
+     * @return result pose, null if the history is empty or the time is older than the oldest pose.
+     */
+    public synchronized TrcPose2D getPoseAt(double timestamp, TrcPose2D result)
+    {
+        if (numPoses == 0 || timestamp < timestamps[headIndex])
+        {
+            return null;
+        }
+
+        int newestIndex = physicalIndex(numPoses - 1);
+        if (timestamp >= timestamps[newestIndex])
+        {
+            return result.set(xPositions[newestIndex], yPositions[newestIndex], angles[newestIndex]);
+        }
+        //
+        // Binary search for the last pose at or before the given time. There is always a pose after it because
+        // the time is older than the newest pose.
+        //
+        int low = 0, high = numPoses - 1;
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+            if (timestamps[physicalIndex(mid)] <= timestamp)
+            {
+                low = mid;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+
+        int index0 = physicalIndex(low);
+        int index1 = physicalIndex(low + 1);
+        double dt = timestamps[index1] - timestamps[index0];
+        double fraction = dt > 0.0? (timestamp - timestamps[index0])/dt: 0.0;
+        double deltaAngle = TrcUtil.modulo(angles[index1] - angles[index0] + 180.0, 360.0) - 180.0;
+
+        return result.set(
+            xPositions[index0] + (xPositions[index1] - xPositions[index0])*fraction,
+            yPositions[index0] + (yPositions[index1] - yPositions[index0])*fraction,
+            angles[index0] + deltaAngle*fraction);
+    }   //getPoseAt
+
+    /**
+     * This method returns the robot pose at the given time by linearly interpolating between the two poses around
+     * it.
+     *
+     * @param timestamp specifies the time in seconds.
+     * @return interpolated pose, null if the history is empty or the time is older than the oldest pose.
+     */
+    public TrcPose2D getPoseAt(double timestamp)
+    {
+        return getPoseAt(timestamp, new TrcPose2D());
+    }   //getPoseAt
+
+    /**
+     * This method converts a logical index counting from the oldest pose to the index in the circular buffer.
+     *
+     * @param logicalIndex specifies the logical index.
+     * @return index in the circular buffer.
+     */
+    private int physicalIndex(int logicalIndex)
+    {
+        return (headIndex + logicalIndex) % timestamps.length;
+    }   //physicalIndex
+
+}   //class TrcPoseHistory
@@ -22,8 +22,6 @@
 
 package TrcCommonLib.trclib;
 
-import org.apache.commons.math3.linear.RealVector;
-
 /**
  * This class implements a platform independent Pure Pursuit drive for holonomic or non-holonomic robots.
  * Essentially, a pure pursuit drive navigates the robot to chase a point along the path. The point to chase is
@@ -51,6 +49,7 @@ import org.apache.commons.math3.linear.RealVector;
 public class TrcPurePursuitDrive
 {
     private static final boolean INVERTED_TARGET = false;
+    private static final TrcDbgTrace.CallSite driveTaskCallSite = new TrcDbgTrace.CallSite("driveTask");
 
     public interface WaypointEventHandler
     {
@@ -108,10 +107,15 @@ public class TrcPurePursuitDrive
 
     private String owner = null;
     private TrcPath path;
+    private TrcPathSegmentIndex segmentIndex;
+    // The following point is interpolated into this scratch waypoint, so it is only valid until the next loop.
+    private final TrcWaypoint followingPoint = new TrcWaypoint(0.0, new TrcPose2D(), 0.0, 0.0, 0.0, 0.0);
     private TrcEvent onFinishedEvent;
     private double timedOutTime;
     private int pathIndex;
     private TrcPose2D referencePose;
+    // Robot pose relative to the reference pose and target pose relative to the robot, updated in place every loop.
+    private final TrcPose2D robotPose = new TrcPose2D();
     private TrcPose2D relativeTargetPose;
     private boolean fastModeEnabled = false;
     private boolean resetError = false;
@@ -627,6 +631,7 @@ public class TrcPurePursuitDrive
             }
 
             this.path = maxVel != null && maxAccel != null? path.trapezoidVelocity(maxVel, maxAccel): path;
+            segmentIndex = new TrcPathSegmentIndex(this.path);
 
             double currTime = TrcTimer.getCurrentTime();
             timedOutTime = timeout == 0.0 ? Double.POSITIVE_INFINITY : currTime + timeout;
@@ -988,6 +993,7 @@ public class TrcPurePursuitDrive
         driveTaskObj.unregisterTask();
         driveBase.stop(owner);
         path = null;
+        segmentIndex = null;
         owner = null;
     }   //stop
 
@@ -1042,9 +1048,13 @@ public class TrcPurePursuitDrive
     private synchronized void driveTask(
         TrcTaskMgr.TaskType taskType, TrcRobot.RunMode runMode, boolean slowPeriodicLoop)
     {
-        TrcPose2D robotPose = driveBase.getPositionRelativeTo(referencePose, true);
+        TrcPose2D robotPose = driveBase.getPositionRelativeTo(referencePose, true, this.robotPose);
         TrcWaypoint targetPoint = getFollowingPoint(robotPose);
-        relativeTargetPose = targetPoint.pose.relativeTo(robotPose, true);
+        if (relativeTargetPose == null)
+        {
+            relativeTargetPose = new TrcPose2D();
+        }
+        targetPoint.pose.relativeTo(robotPose, true, relativeTargetPose);
         boolean lastSegment = pathIndex == path.getSize() - 1;
 
         if (!INVERTED_TARGET)
@@ -1086,18 +1096,31 @@ public class TrcPurePursuitDrive
         turnPower = TrcUtil.clipRange(turnPower, -rotOutputLimit, rotOutputLimit);
 
         tracer.traceDebug(
-            instanceName,
-            "[" + pathIndex +
-            "] RobotPose=" + robotPose +
-            ",TargetPose=" + targetPoint.pose +
-            ",relPose=" + relativeTargetPose);
+            instanceName, driveTaskCallSite,
+            sb -> sb.append('[').append(pathIndex)
+                    .append("] RobotPose=").append(robotPose)
+                    .append(",TargetPose=").append(targetPoint.pose)
+                    .append(",relPose=").append(relativeTargetPose));
+        final double finalXPosPower = xPosPower;
+        final double finalYPosPower = yPosPower;
+        final double finalTurnPower = turnPower;
         tracer.traceDebug(
-            instanceName,
-            "RobotVel=%.1f,TargetVel=%.1f,xError=%.1f,yError=%.1f,turnError=%.1f,velError=%.1f,theta=%.1f," +
-            "xPower=%.1f,yPower=%.1f,turnPower=%.1f,velPower=%.1f",
-            getVelocityInput(), targetPoint.velocity, xPosPidCtrl != null? xPosPidCtrl.getError(): 0.0,
-            yPosPidCtrl.getError(), turnPidCtrl.getError(), velPidCtrl.getError(), Math.toDegrees(theta),
-            xPosPower, yPosPower, turnPower, velPower);
+            instanceName, driveTaskCallSite,
+            sb ->
+            {
+                sb.append("RobotVel=");
+                TrcDbgTrace.appendFixed(sb, getVelocityInput(), 1).append(",TargetVel=");
+                TrcDbgTrace.appendFixed(sb, targetPoint.velocity, 1).append(",xError=");
+                TrcDbgTrace.appendFixed(sb, xPosPidCtrl != null? xPosPidCtrl.getError(): 0.0, 1).append(",yError=");
+                TrcDbgTrace.appendFixed(sb, yPosPidCtrl.getError(), 1).append(",turnError=");
+                TrcDbgTrace.appendFixed(sb, turnPidCtrl.getError(), 1).append(",velError=");
+                TrcDbgTrace.appendFixed(sb, velPidCtrl.getError(), 1).append(",theta=");
+                TrcDbgTrace.appendFixed(sb, Math.toDegrees(theta), 1).append(",xPower=");
+                TrcDbgTrace.appendFixed(sb, finalXPosPower, 1).append(",yPower=");
+                TrcDbgTrace.appendFixed(sb, finalYPosPower, 1).append(",turnPower=");
+                TrcDbgTrace.appendFixed(sb, finalTurnPower, 1).append(",velPower=");
+                TrcDbgTrace.appendFixed(sb, velPower, 1);
+            });
 
         // If we have timed out or finished, stop the operation.
         double currTime = TrcTimer.getCurrentTime();
@@ -1210,7 +1233,8 @@ public class TrcPurePursuitDrive
     }   //interpolate
 
     /**
-     * Interpolates a waypoint that's weighted between two given waypoints.
+     * Interpolates a waypoint that's weighted between two given waypoints. The result is stored in the followingPoint
+     * scratch waypoint so that no waypoint is allocated on each loop.
      *
      * @param point1 specifies the start point of the path segment.
      * @param point2 specifies the end point of the path segment.
@@ -1249,14 +1273,22 @@ public class TrcPurePursuitDrive
         {
             //
             // For non-holonomic drivebase, maintain the robot heading pointing to the end-waypoint unless the
-            // end-waypoint is within the robot's proximity circle.
+            // end-waypoint is within the robot's proximity circle. This is the angle of the end-waypoint pose with
+            // the start-waypoint heading relative to the robot pose, computed without creating the poses.
             //
-            TrcPose2D endpointPose = point2.pose.clone();
-            endpointPose.angle = point1.pose.angle;
-            heading = point1.pose.angle + endpointPose.relativeTo(robotPose).angle;
+            heading = point1.pose.angle + (point1.pose.angle - robotPose.angle);
         }
 
-        return new TrcWaypoint(timestep, new TrcPose2D(x, y, heading), position, velocity, acceleration, jerk);
+        followingPoint.timeStep = timestep;
+        followingPoint.pose.x = x;
+        followingPoint.pose.y = y;
+        followingPoint.pose.angle = heading;
+        followingPoint.encoderPosition = position;
+        followingPoint.velocity = velocity;
+        followingPoint.acceleration = acceleration;
+        followingPoint.jerk = jerk;
+
+        return followingPoint;
     }   //interpolate
 
     /**
@@ -1272,29 +1304,35 @@ public class TrcPurePursuitDrive
     private TrcWaypoint getFollowingPointOnSegment(
         TrcWaypoint startWaypoint, TrcWaypoint endWaypoint, TrcPose2D robotPose)
     {
+        boolean debugEnabled = tracer.isMsgLevelEnabled(TrcDbgTrace.MsgLevel.DEBUG);
+
         if (fastModeEnabled && robotPose.distanceTo(endWaypoint.getPositionPose()) > proximityRadius)
         {
-            tracer.traceDebug(
-                instanceName,
-                "pathIndex=" + pathIndex +
-                ", startPose=" + startWaypoint.getPositionPose() +
-                ", endPose=" + endWaypoint.getPositionPose());
+            if (debugEnabled)
+            {
+                tracer.traceDebug(
+                    instanceName,
+                    "pathIndex=" + pathIndex +
+                    ", startPose=" + startWaypoint.getPositionPose() +
+                    ", endPose=" + endWaypoint.getPositionPose());
+            }
             return interpolate(
                 startWaypoint, endWaypoint, 1.0, !incrementalTurn? robotPose: null);
         }
         else
         {
             // Find intersection of path segment with the proximity circle of the robot.
-            RealVector startVector = startWaypoint.getPositionPose().toPosVector();
-            RealVector endVector = endWaypoint.getPositionPose().toPosVector();
-            RealVector robotVector = robotPose.toPosVector();
-
-            RealVector startToEnd = endVector.subtract(startVector);
-            RealVector robotToStart = startVector.subtract(robotVector);
+            TrcPose2D startPose = startWaypoint.getPositionPose();
+            TrcPose2D endPose = endWaypoint.getPositionPose();
+            double startToEndX = endPose.x - startPose.x;
+            double startToEndY = endPose.y - startPose.y;
+            double robotToStartX = startPose.x - robotPose.x;
+            double robotToStartY = startPose.y - robotPose.y;
             // Solve quadratic formula
-            double a = startToEnd.dotProduct(startToEnd);
-            double b = 2 * robotToStart.dotProduct(startToEnd);
-            double c = robotToStart.dotProduct(robotToStart) - proximityRadius * proximityRadius;
+            double a = startToEndX * startToEndX + startToEndY * startToEndY;
+            double b = 2 * (robotToStartX * startToEndX + robotToStartY * startToEndY);
+            double c = robotToStartX * robotToStartX + robotToStartY * robotToStartY -
+                       proximityRadius * proximityRadius;
 
             double discriminant = b * b - 4 * a * c;
             if (discriminant < 0 || a == 0.0)
@@ -1332,20 +1370,26 @@ public class TrcPurePursuitDrive
                     //
                     // The furthest intersection point is not on the line segment, so skip this segment.
                     //
-                    tracer.traceDebug(
-                        instanceName, "Intersection not on line segment t1=%f, t2=%f, t=%f, stalled=%s",
-                        t1, t2, t, stalled);
+                    if (debugEnabled)
+                    {
+                        tracer.traceDebug(
+                            instanceName, "Intersection not on line segment t1=%f, t2=%f, t=%f, stalled=%s",
+                            t1, t2, t, stalled);
+                    }
                     return null;
                 }
 
                 TrcWaypoint interpolated =
                     interpolate(startWaypoint, endWaypoint, t, xPosPidCtrl == null? robotPose: null);
 
-                tracer.traceDebug(
-                    instanceName,
-                    "startPoint=" + startWaypoint.getPositionPose() +
-                    ", endPoint=" + endWaypoint.getPositionPose() +
-                    ", interpolatedPoint=" + interpolated.getPositionPose());
+                if (debugEnabled)
+                {
+                    tracer.traceDebug(
+                        instanceName,
+                        "startPoint=" + startWaypoint.getPositionPose() +
+                        ", endPoint=" + endWaypoint.getPositionPose() +
+                        ", interpolatedPoint=" + interpolated.getPositionPose());
+                }
 
                 return interpolated;
             }
@@ -1353,19 +1397,41 @@ public class TrcPurePursuitDrive
     }   //getFollowingPointOnSegment
 
     /**
-     * Determines the next target point for Pure Pursuit Drive to follow.
+     * Determines the next target point for Pure Pursuit Drive to follow. The returned waypoint is either a waypoint
+     * of the path or the followingPoint scratch waypoint, so it must not be modified or kept beyond this loop.
      *
      * @param robotPose specifies the robot's location.
      * @return next target point for the robot to follow.
      */
     private TrcWaypoint getFollowingPoint(TrcPose2D robotPose)
     {
+        int pathSize = path.getSize();
+        int i = Math.max(pathIndex, 1);
         //
         // Find the next segment that intersects with the proximity circle of the robot.
         // If there are tiny segments that are completely within the proximity circle, we will skip them all.
         //
-        for (int i = Math.max(pathIndex, 1); i < path.getSize(); i++)
+        while (i < pathSize)
         {
+            // Skip the segments that can't intersect the proximity circle using the arc length index. In fast mode,
+            // segments outside of the circle are followed directly, so only the segments inside are skipped.
+            int candidate = segmentIndex.findCandidateSegment(
+                i, robotPose.x, robotPose.y, proximityRadius, !fastModeEnabled);
+
+            if (candidate > i && stalled)
+            {
+                tracer.traceInfo(
+                    instanceName,
+                    "Segments " + i + "-" + (candidate - 1) + " are stalled, moving to the next segment.");
+                pathIndex = candidate - 1;
+            }
+
+            i = candidate;
+            if (i >= pathSize)
+            {
+                break;
+            }
+
             TrcWaypoint segmentStart = path.getWaypoint(i - 1);
             TrcWaypoint segmentEnd = path.getWaypoint(i);
             // If there is a valid intersection, return it.
@@ -1399,6 +1465,7 @@ public class TrcPurePursuitDrive
                 tracer.traceInfo(instanceName, "Segment " + i + " is stalled, moving to the next segment.");
                 pathIndex = i;
             }
+            i++;
         }
         //
         // Found no intersection. The robot must be off-path. Just proceed to the immediate next waypoint.
@@ -22,28 +22,85 @@
 
 package TrcCommonLib.trclib;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class implements a generic request queue that runs on its own thread. It allows the caller to add requests
  * to the end of the queue. The request thread will call the client to process the request asynchronously from the
  * head of the queue. When the request is completed, an optional event will be signaled as well as an optional
  * callback if provided.
+ * <p>
+ * Requests can be added from any thread without locking. The queue is either unbounded or backed by a fixed size
+ * lock-free ring buffer. Canceling a request only marks its entry, the request thread skips canceled entries when it
+ * gets to them. Several request queues can share one worker thread instead of having a thread each.
  *
  * @param <R> specifies the type of the request.
  */
 public class TrcRequestQueue<R>
 {
+    /**
+     * This interface is implemented by the owner of the request queue to process requests directly on the request
+     * thread. It allows consecutive requests that can be combined to be processed together as a batch.
+     *
+     * @param <R> specifies the type of the request.
+     */
+    public interface RequestProcessor<R>
+    {
+        /**
+         * This method is called on the request thread to check if the next request in the queue can be processed
+         * together with the requests already in the batch.
+         *
+         * @param batch specifies the requests already in the batch.
+         * @param request specifies the next request in the queue.
+         * @return true if the request can be added to the batch, false otherwise.
+         */
+        boolean canCoalesce(List<R> batch, R request);
+
+        /**
+         * This method is called on the request thread to process a batch of requests. The requests are in queue
+         * order. The request entries are checked for cancellation before being put in the batch.
+         *
+         * @param batch specifies the batch of requests to be processed.
+         */
+        void processRequests(List<R> batch);
+
+        /**
+         * This method is called with the untracked requests that were canceled because the request queue was
+         * disabled. It is called on the request thread when the queue is emptied, or on the thread adding a request
+         * if the queue was disabled while it was waiting for space. Nobody else can see these requests, so the owner
+         * must complete them with a canceled status or whoever is waiting for them will never be notified.
+         *
+         * @param canceled specifies the canceled requests.
+         */
+        void cancelRequests(List<R> canceled);
+
+    }   //interface RequestProcessor
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_ACTIVE = 2;
+    private static final int STATE_DONE = 3;
+    private static final int STATE_CANCELED = 4;
+
     /**
      * This class implements a request entry. Typically, an entry will be put into a FIFO request queue so that each
      * entry will be processed in the order they came in.
      */
     public class RequestEntry
     {
-        private final R request;
-        private final TrcEvent notifyEvent;
-        private final boolean repeat;
-        private boolean canceled;
+        private final AtomicInteger state = new AtomicInteger(STATE_FREE);
+        private R request;
+        private TrcEvent notifyEvent;
+        private boolean repeat;
+        // Untracked entries are not returned to the caller, so they can be recycled once processed.
+        private boolean untracked;
 
         /**
          * Constructor: Create an instance of the object.
@@ -53,12 +110,26 @@ public class TrcRequestQueue<R>
          * @param repeat specifies true to re-queue the request when completed.
          */
         public RequestEntry(R request, TrcEvent event, boolean repeat)
+        {
+            init(request, event, repeat, false);
+        }   //RequestEntry
+
+        /**
+         * This method initializes the entry for a new request.
+         *
+         * @param request specifies the request.
+         * @param event specifies the event to notify when the request is up for processing.
+         * @param repeat specifies true to re-queue the request when completed.
+         * @param untracked specifies true if the entry is not returned to the caller.
+         */
+        private void init(R request, TrcEvent event, boolean repeat, boolean untracked)
         {
             this.request = request;
             this.notifyEvent = event;
             this.repeat = repeat;
-            this.canceled = false;
-        }   //RequestEntry
+            this.untracked = untracked;
+            state.set(STATE_QUEUED);
+        }   //init
 
         /**
          * This method retrieves the request object.
@@ -70,6 +141,26 @@ public class TrcRequestQueue<R>
             return request;
         }   //getRequest
 
+        /**
+         * This method retrieves the notify event of the entry.
+         *
+         * @return notify event, null if none.
+         */
+        public TrcEvent getNotifyEvent()
+        {
+            return notifyEvent;
+        }   //getNotifyEvent
+
+        /**
+         * This method checks if the request is re-queued when completed.
+         *
+         * @return true if the request is re-queued when completed, false otherwise.
+         */
+        public boolean isRepeat()
+        {
+            return repeat;
+        }   //isRepeat
+
         /**
          * This method checks if the request entry is canceled.
          *
@@ -77,7 +168,7 @@ public class TrcRequestQueue<R>
          */
         public boolean isCanceled()
         {
-            return canceled;
+            return state.get() == STATE_CANCELED;
         }   //isCanceled
 
         /**
@@ -88,17 +179,200 @@ public class TrcRequestQueue<R>
         @Override
         public String toString()
         {
-            return "request=" + request + ", repeat=" + repeat + ", canceled=" + canceled;
+            return "request=" + request + ", repeat=" + repeat + ", canceled=" + isCanceled();
         }   //toString
 
     }   //class RequestEntry
 
+    /**
+     * This class implements a worker thread that processes the requests of several request queues. The queues are
+     * served round-robin one request at a time. The thread is started when the first queue is enabled and exits
+     * when the last queue is disabled.
+     */
+    public static class SharedWorker
+    {
+        private final TrcDbgTrace tracer;
+        private final String instanceName;
+        private volatile TrcRequestQueue<?>[] queues = new TrcRequestQueue<?>[0];
+        private volatile Thread workerThread = null;
+        private volatile boolean waiting = false;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param instanceName specifies the instance name.
+         */
+        public SharedWorker(String instanceName)
+        {
+            this.tracer = new TrcDbgTrace();
+            this.instanceName = instanceName;
+        }   //SharedWorker
+
+        /**
+         * This method returns the instance name.
+         *
+         * @return instance name.
+         */
+        @Override
+        public String toString()
+        {
+            return instanceName;
+        }   //toString
+
+        /**
+         * This method adds a request queue to be served by this worker and starts the worker thread if necessary.
+         *
+         * @param queue specifies the request queue to add.
+         */
+        private synchronized void attach(TrcRequestQueue<?> queue)
+        {
+            TrcRequestQueue<?>[] newQueues = new TrcRequestQueue<?>[queues.length + 1];
+
+            System.arraycopy(queues, 0, newQueues, 0, queues.length);
+            newQueues[queues.length] = queue;
+            queues = newQueues;
+
+            if (workerThread == null)
+            {
+                workerThread = new Thread(this::workerTask, instanceName);
+                workerThread.start();
+            }
+            else
+            {
+                wakeup();
+            }
+        }   //attach
+
+        /**
+         * This method removes a request queue from this worker. It is called on the worker thread.
+         *
+         * @param queue specifies the request queue to remove.
+         * @return true if there are no more request queues, in which case the worker thread must exit.
+         */
+        private synchronized boolean detach(TrcRequestQueue<?> queue)
+        {
+            int count = 0;
+            TrcRequestQueue<?>[] newQueues = new TrcRequestQueue<?>[queues.length - 1];
+
+            for (TrcRequestQueue<?> q : queues)
+            {
+                if (q != queue)
+                {
+                    newQueues[count++] = q;
+                }
+            }
+            queues = newQueues;
+
+            if (newQueues.length == 0)
+            {
+                workerThread = null;
+            }
+
+            return newQueues.length == 0;
+        }   //detach
+
+        /**
+         * This method wakes up the worker thread if it is waiting for requests.
+         */
+        private void wakeup()
+        {
+            Thread thread = workerThread;
+
+            if (waiting && thread != null)
+            {
+                LockSupport.unpark(thread);
+            }
+        }   //wakeup
+
+        /**
+         * This method runs on the worker thread. It processes one request of each queue in turn until all queues are
+         * idle, then waits for new requests.
+         */
+        private void workerTask()
+        {
+            tracer.traceDebug(instanceName, "SharedWorker starting...");
+            while (true)
+            {
+                boolean busy = false;
+                boolean exit = false;
+                TrcRequestQueue<?>[] snapshot = queues;
+
+                for (TrcRequestQueue<?> queue : snapshot)
+                {
+                    if (!queue.enabled)
+                    {
+                        // Detach first, the queue can't be enabled again until terminate marks it inactive.
+                        exit = detach(queue);
+                        queue.terminate();
+                    }
+                    else if (queue.processNextRequest())
+                    {
+                        busy = true;
+                    }
+                }
+
+                if (exit)
+                {
+                    break;
+                }
+                else if (!busy)
+                {
+                    waiting = true;
+                    if (isIdle(queues))
+                    {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                }
+            }
+            tracer.traceDebug(instanceName, "SharedWorker is terminated.");
+        }   //workerTask
+
+        /**
+         * This method checks if all the given queues are idle.
+         *
+         * @param queues specifies the queues to check.
+         * @return true if all the queues are idle, false otherwise.
+         */
+        private boolean isIdle(TrcRequestQueue<?>[] queues)
+        {
+            for (TrcRequestQueue<?> queue : queues)
+            {
+                if (!queue.isIdle())
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }   //isIdle
+
+    }   //class SharedWorker
+
     private final TrcDbgTrace tracer;
     private final String instanceName;
-    private final LinkedBlockingQueue<RequestEntry> requestQueue;
+    private final SharedWorker sharedWorker;
+    // Exactly one of these is used depending on whether the queue is bounded.
+    private final ConcurrentLinkedQueue<RequestEntry> linkedQueue;
+    private final TrcRingQueue<RequestEntry> ringQueue;
+    // Recycled untracked entries, only used by a bounded queue.
+    private final TrcRingQueue<RequestEntry> entryPool;
+    private final AtomicReference<RequestEntry> priorityRequest = new AtomicReference<>(null);
+    // Producers waiting for space in a full ring buffer, woken up by the request thread as it frees slots.
+    private final ConcurrentLinkedQueue<Thread> fullWaiters = new ConcurrentLinkedQueue<>();
+    // Only accessed by the request thread.
+    private final ArrayDeque<RequestEntry> overflowQueue = new ArrayDeque<>();
+    private final ArrayList<RequestEntry> batchEntries = new ArrayList<>();
+    private final ArrayList<R> batchRequests = new ArrayList<>();
+    private volatile RequestProcessor<R> requestProcessor = null;
+    // The last request processor set, it still processes the entries without a notify event queued before it was
+    // removed.
+    private volatile RequestProcessor<R> lastRequestProcessor = null;
     private volatile Thread requestThread = null;
-    private boolean enabled = false;
-    private RequestEntry priorityRequest = null;
+    private volatile boolean waiting = false;
+    private volatile boolean enabled = false;
+    // True while the queue is served by the request thread or the shared worker.
+    private boolean active = false;
     private boolean perfTracingEnabled = false;
     private double totalNanoTime = 0.0;
     private int totalRequests = 0;
@@ -107,12 +381,37 @@ public class TrcRequestQueue<R>
      * Constructor: Creates an instance of the object.
      *
      * @param instanceName specifies the instance name.
+     * @param capacity specifies the capacity of the ring buffer backing the queue, 0 for an unbounded queue.
+     * @param sharedWorker specifies the shared worker to process the requests, null to create a thread for this
+     *        queue.
      */
-    public TrcRequestQueue(String instanceName)
+    public TrcRequestQueue(String instanceName, int capacity, SharedWorker sharedWorker)
     {
         this.tracer = new TrcDbgTrace();
         this.instanceName = instanceName;
-        requestQueue = new LinkedBlockingQueue<>();
+        this.sharedWorker = sharedWorker;
+        if (capacity > 0)
+        {
+            linkedQueue = null;
+            ringQueue = new TrcRingQueue<>(capacity);
+            entryPool = new TrcRingQueue<>(capacity);
+        }
+        else
+        {
+            linkedQueue = new ConcurrentLinkedQueue<>();
+            ringQueue = null;
+            entryPool = null;
+        }
+    }   //TrcRequestQueue
+
+    /**
+     * Constructor: Creates an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     */
+    public TrcRequestQueue(String instanceName)
+    {
+        this(instanceName, 0, null);
     }   //TrcRequestQueue
 
     /**
@@ -127,9 +426,9 @@ public class TrcRequestQueue<R>
     }   //toString
 
     /**
-     * This method enables/disables the request queue. On enable, it creates the request thread to start processing
-     * request entries in the queue. On disable, it shuts down the request thread and cancels all pending requests
-     * still in the queue.
+     * This method enables/disables the request queue. On enable, it creates the request thread or attaches to the
+     * shared worker to start processing request entries in the queue. On disable, it shuts down the request thread
+     * or detaches from the shared worker and cancels all pending requests still in the queue.
      *
      * @param enabled specifies true to enable request queue, false to disable.
      */
@@ -140,25 +439,33 @@ public class TrcRequestQueue<R>
             //
             // Enabling request queue, make sure the request queue is not already enabled.
             //
-            if (requestThread == null)
+            if (!active)
             {
-                requestThread = new Thread(this::requestTask, instanceName);
-                requestThread.start();
+                active = true;
                 this.enabled = true;
+                if (sharedWorker != null)
+                {
+                    sharedWorker.attach(this);
+                }
+                else
+                {
+                    requestThread = new Thread(this::requestTask, instanceName);
+                    requestThread.start();
+                }
             }
         }
-        else if (requestThread != null)
+        else if (active)
         {
             //
             // Disabling request queue, make sure the request queue is indeed active.
             // The request queue may not be empty. So we need to signal termination but allow the request queue to
-            // orderly shut down. If request queue is already disabled but the request thread is still active, it
-            // means the thread is busy emptying its queue. So we don't need to double signal termination.
+            // orderly shut down. If request queue is already disabled but it is still active, it means the request
+            // thread is busy emptying its queue. So we don't need to double signal termination.
             //
             if (this.enabled)
             {
                 this.enabled = false;
-                requestThread.interrupt();
+                wakeup();
             }
         }
     }   //setEnabled
@@ -168,11 +475,30 @@ public class TrcRequestQueue<R>
      *
      * @return true if request queue is enabled, false if disabled.
      */
-    public synchronized boolean isEnabled()
+    public boolean isEnabled()
     {
         return enabled;
     }   //isEnabled
 
+    /**
+     * This method sets the request processor. If set, requests are processed by calling the request processor on the
+     * request thread instead of signaling the notify event of the request entry, and consecutive requests that the
+     * request processor accepts are processed together as a batch.
+     *
+     * Entries without a notify event that were queued while a processor was set can't be notified, so they are still
+     * processed one at a time by the last processor after it is removed.
+     *
+     * @param processor specifies the request processor, null to notify the request events instead.
+     */
+    public void setRequestProcessor(RequestProcessor<R> processor)
+    {
+        if (processor != null)
+        {
+            this.lastRequestProcessor = processor;
+        }
+        this.requestProcessor = processor;
+    }   //setRequestProcessor
+
     /**
      * This method enables/disables performance report.
      *
@@ -185,6 +511,8 @@ public class TrcRequestQueue<R>
 
     /**
      * This method queues a request at the end of the request queue to be processed asynchronously on a thread.
+     * If the queue is bounded and full, this method waits until there is space. If the queue is disabled while
+     * waiting, the request is not queued: the returned entry is canceled and the event is signaled.
      *
      * @param request specifies the request to be queued.
      * @param event specifies the event to notify when the request is up for processing.
@@ -199,12 +527,42 @@ public class TrcRequestQueue<R>
         if (isEnabled())
         {
             entry = new RequestEntry(request, event, repeat);
-            requestQueue.add(entry);
+            addEntry(entry);
         }
 
         return entry;
     }   //add
 
+    /**
+     * This method queues a request that will not be canceled at the end of the request queue. No request entry is
+     * returned, so a bounded queue takes the entry from a pool of recycled entries and returns it to the pool once
+     * it is processed by the request processor, and steady state fire-and-forget requests don't allocate.
+     *
+     * @param request specifies the request to be queued.
+     * @param event specifies the event to notify when the request is up for processing.
+     * @return true if the request is queued, false if the request queue is disabled. If the queue is disabled while
+     *         waiting for space, the request is completed as canceled the same way as the pending untracked requests
+     *         when the queue is emptied.
+     */
+    public boolean addUntracked(R request, TrcEvent event)
+    {
+        boolean added = false;
+
+        if (isEnabled())
+        {
+            RequestEntry entry = entryPool != null? entryPool.poll(): null;
+
+            if (entry == null)
+            {
+                entry = new RequestEntry(request, event, false);
+            }
+            entry.init(request, event, false, true);
+            added = addEntry(entry);
+        }
+
+        return added;
+    }   //addUntracked
+
     /**
      * This method adds the priority request to the head of the queue. It will be processed once the current active
      * request is done processing. If there is already an existing priority request pending, this request will not
@@ -215,127 +573,476 @@ public class TrcRequestQueue<R>
      * @return request entry added to the head of the queue. It can be used to cancel the request if it is still in
      *         queue. It may return null if the priority request failed to be added to the queue.
      */
-    public synchronized RequestEntry addPriorityRequest(R request, TrcEvent event)
+    public RequestEntry addPriorityRequest(R request, TrcEvent event)
     {
-        RequestEntry entry = null;
+        RequestEntry entry = new RequestEntry(request, event, false);
 
         tracer.traceDebug(instanceName, "request=" + request);
-        if (priorityRequest == null)
+        if (priorityRequest.compareAndSet(null, entry))
+        {
+            wakeup();
+        }
+        else
         {
-            entry = new RequestEntry(request, event, false);
-            priorityRequest = entry;
+            entry = null;
         }
 
         return entry;
     }   //addPriorityRequest
 
     /**
-     * This method cancels a request.
+     * This method cancels a request. The entry is only marked canceled, the request thread drops it when it gets to
+     * it, so this is a constant time operation.
      *
      * @param entry specifies the request entry from add or addPriorityRequest to be canceled.
-     * @return true if the request entry is found in the queue and canceled, false otherwise.
+     * @return true if the request entry is still in the queue and canceled, false otherwise.
      */
-    public synchronized boolean cancelRequest(RequestEntry entry)
+    public boolean cancelRequest(RequestEntry entry)
     {
-        boolean foundEntry;
+        boolean canceled = entry.state.compareAndSet(STATE_QUEUED, STATE_CANCELED);
 
-        tracer.traceDebug(instanceName, "entry=" + entry);
-        if (entry == priorityRequest)
+        tracer.traceDebug(instanceName, "entry=" + entry + ", canceled=" + canceled);
+        if (canceled)
         {
-            priorityRequest = null;
-            foundEntry = true;
+            // Allow a new priority request to be added if this was the pending one.
+            priorityRequest.compareAndSet(entry, null);
+        }
+
+        return canceled;
+    }   //cancelRequest
+
+    /**
+     * This method adds an entry to the tail of the queue and wakes up the request thread. If the queue is full and
+     * gets disabled while waiting for space, the entry is canceled and completed instead of being queued since the
+     * queue may already have been emptied.
+     *
+     * @param entry specifies the entry to add.
+     * @return true if the entry is queued, false if it is canceled.
+     */
+    private boolean addEntry(RequestEntry entry)
+    {
+        if (ringQueue != null)
+        {
+            while (true)
+            {
+                if (!enabled)
+                {
+                    // Don't queue into a disabled queue, nobody would process or cancel the entry.
+                    entry.state.set(STATE_CANCELED);
+                    completeCanceledEntry(entry, true);
+                    return false;
+                }
+                else if (ringQueue.offer(entry))
+                {
+                    if (!enabled && cancelRequest(entry))
+                    {
+                        //
+                        // The queue was disabled while we were adding the entry and it may have been emptied
+                        // already. The entry stays in the ring marked canceled, so it can't be recycled.
+                        //
+                        completeCanceledEntry(entry, false);
+                        return false;
+                    }
+                    break;
+                }
+                //
+                // The ring buffer is full, wait for the request thread to free a slot. Check again after registering
+                // as a waiter, so a slot freed in between can't be missed: either we see it or the request thread sees
+                // us and unparks us.
+                //
+                Thread thread = Thread.currentThread();
+
+                fullWaiters.add(thread);
+                wakeup();
+                if (enabled && ringQueue.size() >= ringQueue.getCapacity())
+                {
+                    LockSupport.park(this);
+                }
+                fullWaiters.remove(thread);
+            }
         }
         else
         {
-            foundEntry = requestQueue.contains(entry);
-            if (foundEntry) requestQueue.remove(entry);
+            linkedQueue.add(entry);
         }
+        wakeup();
+
+        return true;
+    }   //addEntry
 
-        if (foundEntry)
+    /**
+     * This method completes a canceled entry that could not be queued because the queue was disabled, the same way
+     * terminate completes the pending entries: the notify event is signaled with the entry marked canceled, or if
+     * there is none, the request processor is asked to cancel the untracked request.
+     *
+     * @param entry specifies the canceled entry to complete.
+     * @param recycle specifies true if the entry is not in the queue and can be recycled.
+     */
+    private void completeCanceledEntry(RequestEntry entry, boolean recycle)
+    {
+        tracer.traceDebug(instanceName, "Queue disabled, canceling request " + entry);
+        if (entry.notifyEvent != null)
         {
-            entry.canceled = true;
+            entry.notifyEvent.signal();
         }
+        else if (entry.untracked)
+        {
+            RequestProcessor<R> processor = lastRequestProcessor;
 
-        return foundEntry;
-    }   //cancelRequest
+            if (processor != null)
+            {
+                processor.cancelRequests(Collections.singletonList(entry.request));
+            }
+
+            if (recycle && entryPool != null)
+            {
+                entry.request = null;
+                entry.state.set(STATE_FREE);
+                entryPool.offer(entry);
+            }
+        }
+    }   //completeCanceledEntry
+
+    /**
+     * This method is called on the request thread to put a repeat entry back to the tail of the queue. The request
+     * thread can't wait for space in a full ring buffer since it is the one emptying it, so the entry is kept in an
+     * overflow queue until there is space.
+     *
+     * @param entry specifies the entry to put back.
+     */
+    private void requeueEntry(RequestEntry entry)
+    {
+        if (ringQueue == null)
+        {
+            linkedQueue.add(entry);
+        }
+        else if (!overflowQueue.isEmpty() || !ringQueue.offer(entry))
+        {
+            overflowQueue.add(entry);
+        }
+    }   //requeueEntry
+
+    /**
+     * This method is called on the request thread to remove the entry at the head of the queue.
+     *
+     * @return entry at the head of the queue, null if the queue is empty.
+     */
+    private RequestEntry pollEntry()
+    {
+        if (ringQueue == null)
+        {
+            return linkedQueue.poll();
+        }
+
+        while (!overflowQueue.isEmpty() && ringQueue.offer(overflowQueue.peek()))
+        {
+            overflowQueue.poll();
+        }
+
+        RequestEntry entry = ringQueue.poll();
+        if (entry != null)
+        {
+            // A slot is freed, let a producer waiting for space have it.
+            Thread waiter = fullWaiters.poll();
+            if (waiter != null)
+            {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        return entry;
+    }   //pollEntry
+
+    /**
+     * This method is called on the request thread to look at the entry at the head of the queue without removing it.
+     *
+     * @return entry at the head of the queue, null if the queue is empty.
+     */
+    private RequestEntry peekEntry()
+    {
+        return ringQueue != null? ringQueue.peek(): linkedQueue.peek();
+    }   //peekEntry
+
+    /**
+     * This method checks if there is nothing for the request thread to do.
+     *
+     * @return true if the queue is idle, false otherwise.
+     */
+    private boolean isIdle()
+    {
+        return enabled && priorityRequest.get() == null && overflowQueue.isEmpty() &&
+               (ringQueue != null? ringQueue.isEmpty(): linkedQueue.isEmpty());
+    }   //isIdle
+
+    /**
+     * This method wakes up the thread processing this queue if it is waiting for requests.
+     */
+    private void wakeup()
+    {
+        if (sharedWorker != null)
+        {
+            sharedWorker.wakeup();
+        }
+        else
+        {
+            Thread thread = requestThread;
+
+            if (waiting && thread != null)
+            {
+                LockSupport.unpark(thread);
+            }
+        }
+    }   //wakeup
 
     /**
      * This method is called when the request queue thread is started. It processes all entries in the request queue
-     * when they arrive. If the request queue is empty, the thread is blocked until a new request arrives. Therefore,
-     * this thread only runs when there are requests in the queue. If this thread is interrupted, it will clean up
+     * when they arrive. If the request queue is empty, the thread waits until a new request arrives. Therefore,
+     * this thread only runs when there are requests in the queue. If the request queue is disabled, it will clean up
      * the request queue before exiting.
      */
     private void requestTask()
     {
-        RequestEntry entry;
-
         tracer.traceDebug(instanceName, "RequestQueue starting...");
-        while (!Thread.currentThread().isInterrupted())
+        while (enabled)
         {
-            synchronized (this)
+            if (!processNextRequest())
             {
-                if (priorityRequest != null)
-                {
-                    entry = priorityRequest;
-                    priorityRequest = null;
-                }
-                else
+                waiting = true;
+                if (isIdle())
                 {
-                    entry = null;
+                    LockSupport.park(this);
                 }
+                waiting = false;
             }
+        }
+        tracer.traceDebug(instanceName, "Terminating RequestQueue.");
+        terminate();
+    }   //requestTask
 
-            try
+    /**
+     * This method is called on the request thread to process the next request in the queue. Canceled entries are
+     * dropped.
+     *
+     * @return true if an entry was taken from the queue, false if the queue is empty.
+     */
+    private boolean processNextRequest()
+    {
+        RequestEntry entry = priorityRequest.getAndSet(null);
+
+        if (entry == null)
+        {
+            entry = pollEntry();
+            if (entry == null)
             {
-                if (entry == null)
-                {
-                    entry = requestQueue.take();
-                }
-                tracer.traceDebug(instanceName, "processing request " + entry);
+                return false;
+            }
+        }
+
+        if (entry.state.compareAndSet(STATE_QUEUED, STATE_ACTIVE))
+        {
+            tracer.traceDebug(instanceName, "processing request " + entry);
 
-                long startNanoTime = TrcTimer.getNanoTime();
+            long startNanoTime = TrcTimer.getNanoTime();
+            RequestProcessor<R> processor = requestProcessor;
+            if (processor != null)
+            {
+                processBatch(processor, entry);
+            }
+            else if (entry.notifyEvent != null)
+            {
                 entry.notifyEvent.signal();
-                long elapsedTime = TrcTimer.getNanoTime() - startNanoTime;
-        
-                totalNanoTime += elapsedTime;
-                totalRequests++;
-        
-                if (perfTracingEnabled)
+            }
+            else if ((processor = lastRequestProcessor) != null)
+            {
+                // The entry was queued without a notify event for a processor that has since been removed, it has
+                // no other way to complete.
+                batchEntries.clear();
+                batchRequests.clear();
+                batchEntries.add(entry);
+                batchRequests.add(entry.request);
+                processor.processRequests(batchRequests);
+            }
+            long elapsedTime = TrcTimer.getNanoTime() - startNanoTime;
+
+            totalNanoTime += elapsedTime;
+            totalRequests++;
+
+            if (perfTracingEnabled)
+            {
+                tracer.traceInfo(
+                    instanceName,
+                    "Average request process time=%.6f sec", totalNanoTime/totalRequests/1000000000.0);
+            }
+
+            if (processor != null)
+            {
+                for (int i = 0; i < batchEntries.size(); i++)
                 {
-                    tracer.traceInfo(
-                        instanceName,
-                        "Average request process time=%.6f sec", totalNanoTime/totalRequests/1000000000.0);
+                    finishEntry(batchEntries.get(i), true);
                 }
-        
-                if (entry.repeat)
+                batchEntries.clear();
+                batchRequests.clear();
+            }
+            else
+            {
+                finishEntry(entry, false);
+            }
+        }
+        else
+        {
+            tracer.traceDebug(instanceName, "dropping canceled request " + entry);
+        }
+
+        return true;
+    }   //processNextRequest
+
+    /**
+     * This method is called on the request thread after an entry is processed. Repeat entries are added back to the
+     * tail of the queue. Untracked entries processed by the request processor are recycled.
+     *
+     * @param entry specifies the processed entry.
+     * @param processed specifies true if the request processor has finished with the entry.
+     */
+    private void finishEntry(RequestEntry entry, boolean processed)
+    {
+        if (entry.repeat)
+        {
+            //
+            // This is a repeat request, add it back to the tail of the queue.
+            //
+            entry.state.set(STATE_QUEUED);
+            requeueEntry(entry);
+        }
+        else
+        {
+            entry.state.set(STATE_DONE);
+            //
+            // When notifying, the owner may still be using the entry, so only recycle entries that the request
+            // processor is done with.
+            //
+            if (processed && entry.untracked && entryPool != null)
+            {
+                entry.request = null;
+                entry.notifyEvent = null;
+                entry.state.set(STATE_FREE);
+                entryPool.offer(entry);
+            }
+        }
+    }   //finishEntry
+
+    /**
+     * This method is called on the request thread to collect the given entry and the consecutive entries at the head
+     * of the queue that can be coalesced with it into a batch and process them with the request processor.
+     *
+     * @param processor specifies the request processor.
+     * @param entry specifies the request entry taken from the queue.
+     */
+    private void processBatch(RequestProcessor<R> processor, RequestEntry entry)
+    {
+        RequestEntry next;
+
+        batchEntries.clear();
+        batchRequests.clear();
+        batchEntries.add(entry);
+        batchRequests.add(entry.request);
+        while ((next = peekEntry()) != null)
+        {
+            if (next.state.get() == STATE_CANCELED)
+            {
+                // Drop the canceled entry and keep going.
+                pollEntry();
+            }
+            else if (processor.canCoalesce(batchRequests, next.request))
+            {
+                pollEntry();
+                //
+                // The entry may have been canceled after we peeked it. If so, it is dropped.
+                //
+                if (next.state.compareAndSet(STATE_QUEUED, STATE_ACTIVE))
                 {
-                    //
-                    // This is a repeat request, add it back to the tail of the queue.
-                    //
-                    requestQueue.add(entry);
+                    batchEntries.add(next);
+                    batchRequests.add(next.request);
                 }
             }
-            catch (InterruptedException e)
+            else
             {
-                tracer.traceDebug(instanceName, "Terminating RequestQueue.");
                 break;
             }
         }
+
+        tracer.traceDebug(instanceName, "processing %d request(s)", batchRequests.size());
+        processor.processRequests(batchRequests);
+    }   //processBatch
+
+    /**
+     * This method is called on the request thread when the request queue is disabled. It cancels all the pending
+     * entries and marks the queue inactive so that it can be enabled again. The callers of untracked entries don't
+     * have the entries to check, so untracked entries are completed as canceled: their notify event is signaled with
+     * the entry marked canceled, or if they have none, the request processor is asked to cancel them.
+     */
+    private void terminate()
+    {
+        RequestEntry entry;
         //
-        // The thread is terminating, empty the queue before exiting and make sure nobody is trying to start another
-        // thread until this one has exited.
+        // Empty the queue before exiting and make sure nobody is trying to restart the queue until it is done.
         //
         synchronized (this)
         {
-            while ((entry = requestQueue.poll()) != null)
+            if ((entry = priorityRequest.getAndSet(null)) != null)
             {
                 tracer.traceDebug(instanceName, "Canceling request " + entry);
                 cancelRequest(entry);
             }
 
+            batchEntries.clear();
+            batchRequests.clear();
+            while ((entry = pollEntry()) != null)
+            {
+                tracer.traceDebug(instanceName, "Canceling request " + entry);
+                if (cancelRequest(entry) && entry.untracked)
+                {
+                    if (entry.notifyEvent != null)
+                    {
+                        entry.notifyEvent.signal();
+                    }
+                    else
+                    {
+                        batchEntries.add(entry);
+                        batchRequests.add(entry.request);
+                    }
+                }
+            }
+
+            RequestProcessor<R> processor = lastRequestProcessor;
+            if (processor != null && !batchRequests.isEmpty())
+            {
+                processor.cancelRequests(batchRequests);
+                if (entryPool != null)
+                {
+                    // Nobody else has these entries, recycle them.
+                    for (int i = 0; i < batchEntries.size(); i++)
+                    {
+                        entry = batchEntries.get(i);
+                        entry.request = null;
+                        entry.state.set(STATE_FREE);
+                        entryPool.offer(entry);
+                    }
+                }
+            }
+            batchEntries.clear();
+            batchRequests.clear();
+
+            // Producers may still be waiting for space if there were more of them than entries.
+            Thread waiter;
+            while ((waiter = fullWaiters.poll()) != null)
+            {
+                LockSupport.unpark(waiter);
+            }
+
             requestThread = null;
+            active = false;
         }
         tracer.traceDebug(instanceName, "RequestQueue is terminated.");
-    }   //requestTask
+    }   //terminate
 
 }   //class TrcRequestQueue
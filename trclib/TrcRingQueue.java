@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class implements a bounded lock-free FIFO queue backed by a preallocated ring buffer. Any number of threads
+ * may add and remove elements concurrently and no memory is allocated once the queue is created. Each slot has a
+ * sequence number that tells whether the slot is free for the producer or holds an element for the consumer at the
+ * current position, so producers and consumers only contend on the position counters.
+ *
+ * @param <E> specifies the type of the elements.
+ */
+public class TrcRingQueue<E>
+{
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tailPosition = new AtomicLong(0);
+    private final AtomicLong headPosition = new AtomicLong(0);
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param capacity specifies the minimum capacity of the queue, rounded up to a power of 2.
+     */
+    public TrcRingQueue(int capacity)
+    {
+        if (capacity <= 0 || capacity > (1 << 30))
+        {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + ".");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }   //TrcRingQueue
+
+    /**
+     * This method returns the capacity of the queue.
+     *
+     * @return queue capacity.
+     */
+    public int getCapacity()
+    {
+        return mask + 1;
+    }   //getCapacity
+
+    /**
+     * This method adds an element to the tail of the queue.
+     *
+     * @param element specifies the element to add, must not be null.
+     * @return true if the element is added, false if the queue is full.
+     */
+    public boolean offer(E element)
+    {
+        long pos = tailPosition.get();
+
+        while (true)
+        {
+            int index = (int)pos & mask;
+            long diff = sequences.get(index) - pos;
+
+            if (diff == 0)
+            {
+                // The slot is free for this position, claim it.
+                if (tailPosition.compareAndSet(pos, pos + 1))
+                {
+                    elements.set(index, element);
+                    // Publish the element to the consumer of this position.
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tailPosition.get();
+            }
+            else if (diff < 0)
+            {
+                // The slot still holds the element from the previous lap, the queue is full.
+                return false;
+            }
+            else
+            {
+                // Another producer claimed this position, catch up.
+                pos = tailPosition.get();
+            }
+        }
+    }   //offer
+
+    /**
+     * This method removes the element at the head of the queue.
+     *
+     * @return element at the head of the queue, null if the queue is empty.
+     */
+    public E poll()
+    {
+        long pos = headPosition.get();
+
+        while (true)
+        {
+            int index = (int)pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+
+            if (diff == 0)
+            {
+                if (headPosition.compareAndSet(pos, pos + 1))
+                {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    // Free the slot for the producer of the next lap.
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+                pos = headPosition.get();
+            }
+            else if (diff < 0)
+            {
+                // The element of this position is not published yet, the queue is empty.
+                return null;
+            }
+            else
+            {
+                pos = headPosition.get();
+            }
+        }
+    }   //poll
+
+    /**
+     * This method returns the element at the head of the queue without removing it. The element returned may be
+     * removed by another consumer at any time, so this is only meaningful if there is a single consumer.
+     *
+     * @return element at the head of the queue, null if the queue is empty.
+     */
+    public E peek()
+    {
+        long pos = headPosition.get();
+        int index = (int)pos & mask;
+
+        return sequences.get(index) == pos + 1? elements.get(index): null;
+    }   //peek
+
+    /**
+     * This method checks if the queue is empty.
+     *
+     * @return true if the queue is empty, false otherwise.
+     */
+    public boolean isEmpty()
+    {
+        long pos = headPosition.get();
+
+        return sequences.get((int)pos & mask) != pos + 1;
+    }   //isEmpty
+
+    /**
+     * This method returns the number of elements in the queue. The value is only a snapshot if other threads are
+     * adding or removing elements.
+     *
+     * @return number of elements in the queue.
+     */
+    public int size()
+    {
+        long size = tailPosition.get() - headPosition.get();
+
+        return (int)Math.max(Math.min(size, mask + 1), 0);
+    }   //size
+
+}   //class TrcRingQueue
@@ -23,6 +23,8 @@
 package TrcCommonLib.trclib;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class implements a platform independent serial bus device. This class is intended to be inherited by a
@@ -109,20 +111,42 @@ public abstract class TrcSerialBusDevice
 
     protected final TrcDbgTrace tracer;
     protected final String instanceName;
+    private static final int NOTIFY_EVENT_POOL_SIZE = 16;
+
     private final TrcRequestQueue<Request> requestQueue;
-    private final TrcEvent processRequestEvent;
+    // Notify events of completed requests are recycled so that queuing a request doesn't create a new event.
+    private final TrcRingQueue<TrcEvent> notifyEventPool = new TrcRingQueue<>(NOTIFY_EVENT_POOL_SIZE);
+    private final TrcEvent.Callback requestHandlerCallback = this::requestHandler;
+    private final AtomicLong totalRequests = new AtomicLong(0);
+    private final AtomicLong totalTransfers = new AtomicLong(0);
+    private volatile int maxCoalescedLength = 0;
 
     /**
      * Constructor: Creates an instance of the object.
      *
      * @param instanceName specifies the instance name.
+     * @param queueCapacity specifies the capacity of the request queue ring buffer, 0 for an unbounded queue.
+     * @param sharedWorker specifies the shared worker to process the requests, null to have a request thread for
+     *        this device.
+     */
+    public TrcSerialBusDevice(String instanceName, int queueCapacity, TrcRequestQueue.SharedWorker sharedWorker)
+    {
+        this.tracer = new TrcDbgTrace();
+        this.instanceName = instanceName;
+        requestQueue = new TrcRequestQueue<>(instanceName, queueCapacity, sharedWorker);
+    }   //TrcSerialBusDevice
+
+    /**
+     * Constructor: Creates an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     * @param useRequestQueue specifies true to create a request queue for asynchronous access.
      */
     public TrcSerialBusDevice(String instanceName, boolean useRequestQueue)
     {
         this.tracer = new TrcDbgTrace();
         this.instanceName = instanceName;
         requestQueue = useRequestQueue ? new TrcRequestQueue<>(instanceName) : null;
-        processRequestEvent = new TrcEvent(instanceName + ".processRequestEvent");
     }   //TrcSerialBusDevice
 
     /**
@@ -149,6 +173,84 @@ public abstract class TrcSerialBusDevice
         }
     }   //setEnabled
 
+    /**
+     * This method sets the maximum length of a coalesced transfer. When enabled, pending read requests with
+     * overlapping or adjacent address ranges are read in a single transfer and the data is split back to each
+     * request. Likewise, pending write requests with overlapping or adjacent address ranges are combined into a
+     * single write. Only consecutive requests of the same kind are combined, so the request order is preserved.
+     * This must only be enabled for devices that auto-increment the register address within a transfer.
+     *
+     * @param maxLength specifies the maximum number of bytes of a coalesced transfer, 0 to disable coalescing.
+     */
+    public void setMaxCoalescedLength(int maxLength)
+    {
+        if (requestQueue == null)
+        {
+            throw new UnsupportedOperationException("Coalescing is not supported without a request queue.");
+        }
+        //
+        // Coalescing needs to see the pending requests, so the requests are processed directly on the request
+        // thread instead of being handed to the requester's callback thread.
+        //
+        maxCoalescedLength = maxLength;
+        requestQueue.setRequestProcessor(
+            maxLength > 0? new TrcRequestQueue.RequestProcessor<Request>()
+            {
+                @Override
+                public boolean canCoalesce(List<Request> batch, Request request)
+                {
+                    return TrcSerialBusDevice.this.canCoalesce(batch, request);
+                }   //canCoalesce
+
+                @Override
+                public void processRequests(List<Request> batch)
+                {
+                    TrcSerialBusDevice.this.processRequests(batch);
+                }   //processRequests
+
+                @Override
+                public void cancelRequests(List<Request> canceled)
+                {
+                    for (int i = 0; i < canceled.size(); i++)
+                    {
+                        Request request = canceled.get(i);
+                        request.canceled = true;
+                        completeRequest(request);
+                    }
+                }   //cancelRequests
+            }: null);
+    }   //setMaxCoalescedLength
+
+    /**
+     * This method returns the number of requests processed from the request queue.
+     *
+     * @return number of requests processed.
+     */
+    public long getRequestCount()
+    {
+        return totalRequests.get();
+    }   //getRequestCount
+
+    /**
+     * This method returns the number of bus transfers performed for the requests from the request queue.
+     *
+     * @return number of bus transfers.
+     */
+    public long getTransferCount()
+    {
+        return totalTransfers.get();
+    }   //getTransferCount
+
+    /**
+     * This method returns the number of bus transfers saved by coalescing requests.
+     *
+     * @return number of bus transfers saved.
+     */
+    public long getTransfersSaved()
+    {
+        return totalRequests.get() - totalTransfers.get();
+    }   //getTransfersSaved
+
     /**
      * This method checks if the serial bus device is enabled.
      *
@@ -178,8 +280,7 @@ public abstract class TrcSerialBusDevice
         {
             TrcEvent completionEvent = new TrcEvent(instanceName + ".syncReadEvent");
             Request request = new Request(null, true, address, null, length, completionEvent);
-            TrcRequestQueue<Request>.RequestEntry entry = requestQueue.add(request, processRequestEvent, false);
-            processRequestEvent.setCallback(this::requestHandler, entry);
+            TrcRequestQueue<Request>.RequestEntry entry = queueRequest(request, false);
 
             while (!completionEvent.isSignaled())
             {
@@ -236,8 +337,7 @@ public abstract class TrcSerialBusDevice
         {
             TrcEvent completionEvent = new TrcEvent(instanceName + ".syncWriteEvent");
             Request request = new Request(null, false, address, data, length, completionEvent);
-            TrcRequestQueue<Request>.RequestEntry  entry = requestQueue.add(request, processRequestEvent, false);
-            processRequestEvent.setCallback(this::requestHandler, entry);
+            TrcRequestQueue<Request>.RequestEntry entry = queueRequest(request, false);
 
             while (!completionEvent.isSignaled())
             {
@@ -296,9 +396,7 @@ public abstract class TrcSerialBusDevice
             ", event=" + completionEvent);
         if (requestQueue != null)
         {
-            Request request = new Request(requestId, true, address, null, length, completionEvent);
-            TrcRequestQueue<Request>.RequestEntry entry = requestQueue.add(request, processRequestEvent, repeat);
-            processRequestEvent.setCallback(this::requestHandler, entry);
+            queueAsyncRequest(new Request(requestId, true, address, null, length, completionEvent), repeat);
         }
         else
         {
@@ -393,9 +491,7 @@ public abstract class TrcSerialBusDevice
             ", event=" + completionEvent);
         if (requestQueue != null)
         {
-            Request request = new Request(requestId, false, address, data, length, completionEvent);
-            TrcRequestQueue<Request>.RequestEntry entry = requestQueue.add(request, processRequestEvent, false);
-            processRequestEvent.setCallback(this::requestHandler, entry);
+            queueAsyncRequest(new Request(requestId, false, address, data, length, completionEvent), false);
         }
         else
         {
@@ -457,9 +553,19 @@ public abstract class TrcSerialBusDevice
             ", len=" + length);
         if (requestQueue != null)
         {
+            // The callback is performed on this thread, so the context can be filled in after the entry is added.
+            TrcEvent notifyEvent = obtainNotifyEvent();
             TrcRequestQueue<Request>.RequestEntry entry = requestQueue.addPriorityRequest(
-                new Request(null, false, address, data, length, null), processRequestEvent);
-            processRequestEvent.setCallback(this::requestHandler, entry);
+                new Request(null, false, address, data, length, null), notifyEvent);
+
+            if (entry != null)
+            {
+                notifyEvent.setCallbackContext(entry);
+            }
+            else
+            {
+                releaseNotifyEvent(notifyEvent);
+            }
         }
         else
         {
@@ -518,6 +624,86 @@ public abstract class TrcSerialBusDevice
         }
     }   //sendWordCommand
 
+    /**
+     * This method takes a notify event from the pool, or creates one if the pool is empty, and sets its callback to
+     * the request handler on this thread. Setting the callback also clears the event.
+     *
+     * @return notify event.
+     */
+    private TrcEvent obtainNotifyEvent()
+    {
+        TrcEvent notifyEvent = notifyEventPool.poll();
+
+        if (notifyEvent == null)
+        {
+            notifyEvent = new TrcEvent(instanceName + ".processRequestEvent");
+        }
+        notifyEvent.setCallback(requestHandlerCallback, null);
+
+        return notifyEvent;
+    }   //obtainNotifyEvent
+
+    /**
+     * This method returns a notify event that is no longer used by any request entry to the pool. If the pool is
+     * full, the event is dropped. The event is cleared when it is obtained again.
+     *
+     * @param notifyEvent specifies the notify event.
+     */
+    private void releaseNotifyEvent(TrcEvent notifyEvent)
+    {
+        notifyEventPool.offer(notifyEvent);
+    }   //releaseNotifyEvent
+
+    /**
+     * This method adds a request to the request queue. Each request entry has its own notify event so that the
+     * request handler is called with the entry that is up for processing. The events are recycled once their
+     * requests are done.
+     *
+     * @param request specifies the request to be queued.
+     * @param repeat specifies true to re-queue the request when completed.
+     * @return request entry added to the queue, null if the request queue is disabled.
+     */
+    private TrcRequestQueue<Request>.RequestEntry queueRequest(Request request, boolean repeat)
+    {
+        //
+        // Set the callback before adding the request so that the notification can't be lost. The callback is
+        // performed on this thread, so the context can be filled in after the entry is added.
+        //
+        TrcEvent notifyEvent = obtainNotifyEvent();
+        TrcRequestQueue<Request>.RequestEntry entry = requestQueue.add(request, notifyEvent, repeat);
+
+        if (entry != null)
+        {
+            notifyEvent.setCallbackContext(entry);
+        }
+        else
+        {
+            releaseNotifyEvent(notifyEvent);
+        }
+
+        return entry;
+    }   //queueRequest
+
+    /**
+     * This method adds an asynchronous request to the request queue. The caller doesn't need the request entry, so
+     * when the request thread processes the requests itself, the request is added untracked and the entry is
+     * recycled by the request queue.
+     *
+     * @param request specifies the request to be queued.
+     * @param repeat specifies true to re-queue the request when completed.
+     */
+    private void queueAsyncRequest(Request request, boolean repeat)
+    {
+        if (maxCoalescedLength > 0 && !repeat)
+        {
+            requestQueue.addUntracked(request, null);
+        }
+        else
+        {
+            queueRequest(request, repeat);
+        }
+    }   //queueAsyncRequest
+
     /**
      * This method processes a request.
      *
@@ -531,30 +717,172 @@ public abstract class TrcSerialBusDevice
         request.canceled = entry.isCanceled();
         if (!request.canceled)
         {
-            if (request.readRequest)
+            performRequest(request);
+        }
+        completeRequest(request);
+        if (!entry.isRepeat() || request.canceled)
+        {
+            // The callback is done with the event and the entry won't signal it again, so it can be reused.
+            releaseNotifyEvent(entry.getNotifyEvent());
+        }
+    }   //requestHandler
+
+    /**
+     * This method performs the transfer of a single request.
+     *
+     * @param request specifies the request to be performed.
+     */
+    private void performRequest(Request request)
+    {
+        if (request.readRequest)
+        {
+            request.buffer = readData(request.address, request.length);
+            if (request.buffer != null)
             {
-                request.buffer = readData(request.address, request.length);
-                if (request.buffer != null)
+                tracer.traceDebug(
+                    instanceName,
+                    "readData(addr=0x" + Integer.toHexString(request.address) +
+                    ",len=" + request.length +
+                    ")=" + Arrays.toString(request.buffer));
+            }
+        }
+        else
+        {
+            request.length = writeData(request.address, request.buffer, request.length);
+        }
+        totalRequests.incrementAndGet();
+        totalTransfers.incrementAndGet();
+    }   //performRequest
+
+    /**
+     * This method signals the completion of a request.
+     *
+     * @param request specifies the request that is completed.
+     */
+    private void completeRequest(Request request)
+    {
+        if (request.completionEvent != null)
+        {
+            request.completionEvent.setCallbackContext(request);
+            request.completionEvent.signal();
+        }
+        tracer.traceDebug(instanceName, "request=" + request);
+    }   //completeRequest
+
+    /**
+     * This method is called on the request thread to check if a pending request can be combined with the requests
+     * in the batch into a single transfer.
+     *
+     * @param batch specifies the requests already in the batch.
+     * @param request specifies the pending request to check.
+     * @return true if the pending request can be combined, false otherwise.
+     */
+    private boolean canCoalesce(List<Request> batch, Request request)
+    {
+        Request first = batch.get(0);
+        int start = Integer.MAX_VALUE;
+        int end = Integer.MIN_VALUE;
+
+        if (request.readRequest != first.readRequest || !isCoalescable(first) || !isCoalescable(request))
+        {
+            return false;
+        }
+
+        for (int i = 0; i < batch.size(); i++)
+        {
+            Request r = batch.get(i);
+            start = Math.min(start, r.address);
+            end = Math.max(end, r.address + r.length);
+        }
+        // The request must overlap or be adjacent to the batch address range.
+        return request.address <= end && request.address + request.length >= start &&
+               Math.max(end, request.address + request.length) - Math.min(start, request.address) <=
+               maxCoalescedLength;
+    }   //canCoalesce
+
+    /**
+     * This method checks if a request addresses a register range and so can be combined with other requests.
+     *
+     * @param request specifies the request to check.
+     * @return true if the request can be combined, false otherwise.
+     */
+    private boolean isCoalescable(Request request)
+    {
+        return request.address >= 0 &&
+               (request.readRequest || request.buffer != null && request.length <= request.buffer.length);
+    }   //isCoalescable
+
+    /**
+     * This method is called on the request thread to process a batch of requests with a single transfer. For reads,
+     * the data read is split back to each request. For writes, the data of the requests is combined in queue order
+     * so that later writes to the same address win.
+     *
+     * @param batch specifies the requests to be processed.
+     */
+    private void processRequests(List<Request> batch)
+    {
+        if (batch.size() == 1)
+        {
+            performRequest(batch.get(0));
+        }
+        else
+        {
+            boolean readRequest = batch.get(0).readRequest;
+            int start = Integer.MAX_VALUE;
+            int end = Integer.MIN_VALUE;
+
+            for (int i = 0; i < batch.size(); i++)
+            {
+                Request request = batch.get(i);
+                start = Math.min(start, request.address);
+                end = Math.max(end, request.address + request.length);
+            }
+
+            if (readRequest)
+            {
+                byte[] data = readData(start, end - start);
+
+                for (int i = 0; i < batch.size(); i++)
                 {
-                    tracer.traceDebug(
-                        instanceName,
-                        "readData(addr=0x" + Integer.toHexString(request.address) +
-                        ",len=" + request.length +
-                        ")=" + Arrays.toString(request.buffer));
+                    Request request = batch.get(i);
+                    int offset = request.address - start;
+
+                    request.buffer = data != null && data.length >= offset + request.length?
+                        Arrays.copyOfRange(data, offset, offset + request.length): null;
                 }
             }
             else
             {
-                request.length = writeData(request.address, request.buffer, request.length);
+                byte[] data = new byte[end - start];
+
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    Request request = batch.get(i);
+                    System.arraycopy(request.buffer, 0, data, request.address - start, request.length);
+                }
+
+                int bytesWritten = writeData(start, data, data.length);
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    Request request = batch.get(i);
+                    request.length = Math.max(Math.min(bytesWritten - (request.address - start), request.length), 0);
+                }
             }
+            totalRequests.addAndGet(batch.size());
+            totalTransfers.incrementAndGet();
+
+            tracer.traceDebug(
+                instanceName,
+                (readRequest? "readData": "writeData") +
+                "(addr=0x" + Integer.toHexString(start) +
+                ",len=" + (end - start) +
+                ") coalesced " + batch.size() + " requests.");
         }
 
-        if (request.completionEvent != null)
+        for (int i = 0; i < batch.size(); i++)
         {
-            request.completionEvent.setCallbackContext(request);
-            request.completionEvent.signal();
+            completeRequest(batch.get(i));
         }
-        tracer.traceDebug(instanceName, "request=" + request);
-    }   //requestHandler
+    }   //processRequests
 
 }   //class TrcSerialBusDevice
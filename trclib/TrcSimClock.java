@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * This class implements a deterministic simulated clock to be used as the TrcTimer time source. Simulated time only
+ * moves when it is advanced, either explicitly by calling advanceTime or automatically when all threads that use the
+ * clock are parked waiting for time to pass. In auto-advance mode, time jumps straight to the earliest wakeup time,
+ * so code that mostly waits (e.g. an autonomous routine) runs much faster than real time, and since time never moves
+ * while any of those threads is still working, every run sees the same sequence of timestamps.
+ *
+ * Usage: create the clock and call TrcTimer.setTimeSource before creating timers or starting any threads. In
+ * auto-advance mode, a thread takes part once it is registered or has parked on the clock and stops taking part when
+ * it dies, so a thread that uses the clock must not block on anything else (e.g. Thread.join) or time will stop.
+ */
+public class TrcSimClock implements TrcTimer.TimeSource
+{
+    private static final String moduleName = TrcSimClock.class.getSimpleName();
+    private static final TrcDbgTrace tracer = new TrcDbgTrace();
+
+    /**
+     * This class keeps the park state of a thread.
+     */
+    private static class Waiter
+    {
+        boolean parked = false;
+        boolean permit = false;
+        long wakeupTime = 0;
+    }   //class Waiter
+
+    private final Map<Thread, Waiter> waiters = new WeakHashMap<>();
+    private final long startEpochMillis;
+    private long currNanoTime = 0;
+    private boolean autoAdvanceEnabled = false;
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param startEpochMillis specifies the epoch time in msec that corresponds to simulated time zero.
+     */
+    public TrcSimClock(long startEpochMillis)
+    {
+        this.startEpochMillis = startEpochMillis;
+    }   //TrcSimClock
+
+    /**
+     * Constructor: Create an instance of the object starting at epoch time zero.
+     */
+    public TrcSimClock()
+    {
+        this(0);
+    }   //TrcSimClock
+
+    /**
+     * This method returns the current simulated time.
+     *
+     * @return current simulated time.
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return moduleName + ": nanoTime=" + currNanoTime;
+    }   //toString
+
+    /**
+     * This method enables/disables auto-advance mode. In auto-advance mode, when all live threads that use the clock
+     * are parked waiting for time to pass, time advances to the earliest wakeup time.
+     *
+     * @param enabled specifies true to enable auto-advance, false to disable.
+     */
+    public synchronized void setAutoAdvanceEnabled(boolean enabled)
+    {
+        autoAdvanceEnabled = enabled;
+        tracer.traceDebug(moduleName, "AutoAdvance=" + enabled);
+        checkAutoAdvance();
+    }   //setAutoAdvanceEnabled
+
+    /**
+     * This method advances the simulated time and wakes up all threads whose wakeup time has been reached.
+     *
+     * @param nanos specifies the time to advance in nano seconds.
+     */
+    public synchronized void advanceTime(long nanos)
+    {
+        if (nanos < 0)
+        {
+            throw new IllegalArgumentException("Time cannot go backward.");
+        }
+
+        currNanoTime += nanos;
+        notifyAll();
+        checkAutoAdvance();
+    }   //advanceTime
+
+    /**
+     * This method advances the simulated time by the given time in seconds.
+     *
+     * @param seconds specifies the time to advance in seconds.
+     */
+    public void advanceTime(double seconds)
+    {
+        advanceTime((long)(seconds*1000000000.0));
+    }   //advanceTime
+
+    /**
+     * This method returns the park state of the given thread, creating it if necessary.
+     *
+     * @param thread specifies the thread.
+     * @return park state of the thread.
+     */
+    private Waiter getWaiter(Thread thread)
+    {
+        Waiter waiter = waiters.get(thread);
+
+        if (waiter == null)
+        {
+            waiter = new Waiter();
+            waiters.put(thread, waiter);
+        }
+
+        return waiter;
+    }   //getWaiter
+
+    /**
+     * This method advances time to the earliest wakeup time if auto-advance is enabled and all live threads that use
+     * the clock are parked. Threads that are due to wake up or have been unparked are still running, so time won't
+     * move again before they have done their work. It must be called with the clock lock held.
+     */
+    private void checkAutoAdvance()
+    {
+        if (autoAdvanceEnabled)
+        {
+            long earliestWakeupTime = Long.MAX_VALUE;
+
+            for (Map.Entry<Thread, Waiter> entry: waiters.entrySet())
+            {
+                Waiter waiter = entry.getValue();
+
+                if (waiter.parked && !waiter.permit && waiter.wakeupTime > currNanoTime)
+                {
+                    earliestWakeupTime = Math.min(earliestWakeupTime, waiter.wakeupTime);
+                }
+                else if (entry.getKey().getState() != Thread.State.TERMINATED)
+                {
+                    // This thread is still running or registered but not started yet.
+                    return;
+                }
+            }
+
+            if (earliestWakeupTime != Long.MAX_VALUE)
+            {
+                currNanoTime = earliestWakeupTime;
+                notifyAll();
+            }
+        }
+    }   //checkAutoAdvance
+
+    //
+    // Implements TrcTimer.TimeSource interface.
+    //
+
+    /**
+     * This method returns the simulated nano second timestamp since the clock was created.
+     *
+     * @return current simulated time in nano second.
+     */
+    @Override
+    public synchronized long getNanoTime()
+    {
+        return currNanoTime;
+    }   //getNanoTime
+
+    /**
+     * This method returns the simulated epoch time in msec.
+     *
+     * @return current simulated time in msec.
+     */
+    @Override
+    public synchronized long getCurrentTimeMillis()
+    {
+        return startEpochMillis + currNanoTime/1000000L;
+    }   //getCurrentTimeMillis
+
+    /**
+     * This method parks the current thread until the given simulated time has passed, it is unparked or interrupted.
+     *
+     * @param blocker specifies the object the thread is parked on.
+     * @param nanos specifies the time to park in nano seconds, negative to park until unparked.
+     */
+    @Override
+    public synchronized void parkNanos(Object blocker, long nanos)
+    {
+        Thread thread = Thread.currentThread();
+        Waiter waiter = getWaiter(thread);
+
+        if (waiter.permit)
+        {
+            waiter.permit = false;
+        }
+        else if (nanos != 0 && !thread.isInterrupted())
+        {
+            waiter.wakeupTime = nanos < 0? Long.MAX_VALUE: currNanoTime + nanos;
+            waiter.parked = true;
+            checkAutoAdvance();
+            try
+            {
+                while (!waiter.permit && currNanoTime < waiter.wakeupTime)
+                {
+                    wait();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Keep the interrupt status like LockSupport.park does.
+                thread.interrupt();
+            }
+            finally
+            {
+                waiter.parked = false;
+                waiter.permit = false;
+            }
+        }
+    }   //parkNanos
+
+    /**
+     * This method unparks the given thread if it is parked, or makes its next park return immediately.
+     *
+     * @param thread specifies the thread to unpark.
+     */
+    @Override
+    public synchronized void unpark(Thread thread)
+    {
+        if (thread != null)
+        {
+            getWaiter(thread).permit = true;
+            notifyAll();
+        }
+    }   //unpark
+
+    /**
+     * This method registers a thread that is about to be started. The thread is considered running until it first
+     * parks, so time won't auto-advance before the thread has started.
+     *
+     * @param thread specifies the thread about to be started.
+     */
+    @Override
+    public synchronized void registerThread(Thread thread)
+    {
+        getWaiter(thread);
+    }   //registerThread
+
+}   //class TrcSimClock
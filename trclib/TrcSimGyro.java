@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * This class implements a simulated Z-axis gyro. The heading is either integrated from a simulated rotation rate or
+ * read from a heading source (e.g. a simulated drive base). It is integrated lazily using the TrcTimer time source, so
+ * with a TrcSimClock it behaves the same on every run.
+ */
+public class TrcSimGyro extends TrcGyro
+{
+    private DoubleSupplier headingSource = null;
+    private double prevTime;
+    private double rotationRate = 0.0;
+    private double heading = 0.0;
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     */
+    public TrcSimGyro(String instanceName)
+    {
+        super(instanceName, 1, GYRO_HAS_Z_AXIS, null);
+        prevTime = TrcTimer.getCurrentTime();
+    }   //TrcSimGyro
+
+    /**
+     * This method sets the heading source. When set, the heading is read from the source and the rotation rate is
+     * derived from it.
+     *
+     * @param headingSource specifies the heading source in degrees, null to integrate the simulated rotation rate.
+     */
+    public synchronized void setHeadingSource(DoubleSupplier headingSource)
+    {
+        updateState();
+        this.headingSource = headingSource;
+    }   //setHeadingSource
+
+    /**
+     * This method sets the simulated rotation rate. It is ignored if there is a heading source.
+     *
+     * @param rate specifies the rotation rate in degrees per second.
+     */
+    public synchronized void setRotationRate(double rate)
+    {
+        updateState();
+        rotationRate = rate;
+    }   //setRotationRate
+
+    /**
+     * This method sets the simulated heading. It is ignored if there is a heading source.
+     *
+     * @param heading specifies the heading in degrees.
+     */
+    public synchronized void setHeading(double heading)
+    {
+        updateState();
+        this.heading = heading;
+    }   //setHeading
+
+    /**
+     * This method brings the simulated heading up to the current time. It must be called with the object lock held.
+     */
+    private void updateState()
+    {
+        double currTime = TrcTimer.getCurrentTime();
+        double dt = currTime - prevTime;
+
+        if (headingSource != null)
+        {
+            double newHeading = headingSource.getAsDouble();
+
+            if (dt > 0.0)
+            {
+                rotationRate = (newHeading - heading)/dt;
+            }
+            heading = newHeading;
+        }
+        else if (dt > 0.0)
+        {
+            heading += rotationRate*dt;
+        }
+        prevTime = currTime;
+    }   //updateState
+
+    //
+    // Implements TrcGyro abstract methods.
+    //
+
+    /**
+     * This method returns the raw data with the specified type of the x-axis. The simulated gyro has no x-axis.
+     *
+     * @param dataType specifies the data type.
+     * @return zero data.
+     */
+    @Override
+    public SensorData<Double> getRawXData(DataType dataType)
+    {
+        return new SensorData<>(TrcTimer.getCurrentTime(), 0.0);
+    }   //getRawXData
+
+    /**
+     * This method returns the raw data with the specified type of the y-axis. The simulated gyro has no y-axis.
+     *
+     * @param dataType specifies the data type.
+     * @return zero data.
+     */
+    @Override
+    public SensorData<Double> getRawYData(DataType dataType)
+    {
+        return new SensorData<>(TrcTimer.getCurrentTime(), 0.0);
+    }   //getRawYData
+
+    /**
+     * This method returns the raw data with the specified type of the z-axis.
+     *
+     * @param dataType specifies the data type.
+     * @return raw data with the specified type of the z-axis.
+     */
+    @Override
+    public synchronized SensorData<Double> getRawZData(DataType dataType)
+    {
+        updateState();
+        return new SensorData<>(prevTime, dataType == DataType.HEADING? heading: rotationRate);
+    }   //getRawZData
+
+}   //class TrcSimGyro
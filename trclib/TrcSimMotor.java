@@ -0,0 +1,680 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.util.Locale;
+
+/**
+ * This class implements a simulated motor controller. The motor is modeled as a first order system: its velocity
+ * approaches the commanded velocity with the given time constant, where full power commands the free speed. The
+ * motor state is integrated lazily whenever it is read or commanded, using the TrcTimer time source, so with a
+ * TrcSimClock the motor behaves the same on every run regardless of how fast the simulation runs. All positions and
+ * velocities are in raw sensor units.
+ */
+public class TrcSimMotor extends TrcMotor
+{
+    private enum ControlMode
+    {
+        POWER,
+        VELOCITY,
+        POSITION,
+        CURRENT
+    }   //enum ControlMode
+
+    private static final double DEF_POSITION_GAIN = 10.0;
+    private static final double MAX_STEP_TIME = 0.005;
+
+    private final double freeSpeed;
+    private final double timeConstant;
+    private final double stallCurrent;
+    private ControlMode controlMode = ControlMode.POWER;
+    private double commandValue = 0.0;
+    private double positionPowerLimit = 1.0;
+    private double prevTime;
+    private double position = 0.0;
+    private double velocity = 0.0;
+    private double busVoltage = 12.0;
+    private boolean motorInverted = false;
+    private boolean positionSensorInverted = false;
+    private boolean brakeModeEnabled = true;
+    private boolean revLimitSwitchEnabled = false;
+    private boolean fwdLimitSwitchEnabled = false;
+    private boolean revLimitSwitchInverted = false;
+    private boolean fwdLimitSwitchInverted = false;
+    private Double revLimitSwitchPosition = null;
+    private Double fwdLimitSwitchPosition = null;
+    private Double revSoftPositionLimit = null;
+    private Double fwdSoftPositionLimit = null;
+    private TrcPidController.PidCoefficients velPidCoeffs = null;
+    private TrcPidController.PidCoefficients posPidCoeffs = null;
+    private TrcPidController.PidCoefficients currentPidCoeffs = null;
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     * @param freeSpeed specifies the motor velocity at full power in sensor units per second.
+     * @param timeConstant specifies the time in seconds for the motor to reach 63% of a velocity change, 0 for
+     *        instantaneous response.
+     * @param stallCurrent specifies the motor current in amperes at full power with the motor stalled.
+     */
+    public TrcSimMotor(String instanceName, double freeSpeed, double timeConstant, double stallCurrent)
+    {
+        super(instanceName, null, null, null);
+        this.freeSpeed = freeSpeed;
+        this.timeConstant = timeConstant;
+        this.stallCurrent = stallCurrent;
+        this.prevTime = TrcTimer.getCurrentTime();
+    }   //TrcSimMotor
+
+    /**
+     * This method returns the simulated motor state in string form.
+     *
+     * @return simulated motor state.
+     */
+    public synchronized String getSimState()
+    {
+        updateState();
+        return String.format(
+            Locale.US, "%s: mode=%s, cmd=%.3f, pos=%.3f, vel=%.3f", this, controlMode, commandValue, position,
+            velocity);
+    }   //getSimState
+
+    /**
+     * This method sets the simulated bus voltage.
+     *
+     * @param voltage specifies the bus voltage.
+     */
+    public synchronized void setBusVoltage(double voltage)
+    {
+        busVoltage = voltage;
+    }   //setBusVoltage
+
+    /**
+     * This method sets the motor positions at which the simulated limit switches are triggered.
+     *
+     * @param revPosition specifies the position at or below which the reverse limit switch is active, null if none.
+     * @param fwdPosition specifies the position at or above which the forward limit switch is active, null if none.
+     */
+    public synchronized void setLimitSwitchPositions(Double revPosition, Double fwdPosition)
+    {
+        revLimitSwitchPosition = revPosition;
+        fwdLimitSwitchPosition = fwdPosition;
+    }   //setLimitSwitchPositions
+
+    /**
+     * This method integrates the motor state up to the current time. It must be called with the object lock held.
+     */
+    private void updateState()
+    {
+        double currTime = TrcTimer.getCurrentTime();
+        // Integrate in small steps since the position control target velocity depends on the position.
+        while (currTime - prevTime > 0.0)
+        {
+            double dt = Math.min(currTime - prevTime, MAX_STEP_TIME);
+            integrate(dt);
+            prevTime += dt;
+        }
+        prevTime = currTime;
+    }   //updateState
+
+    /**
+     * This method integrates the motor state over the given time step assuming the target velocity is constant
+     * during the step.
+     *
+     * @param dt specifies the time step in seconds.
+     */
+    private void integrate(double dt)
+    {
+        double targetVel;
+
+        switch (controlMode)
+        {
+            case VELOCITY:
+                targetVel = TrcUtil.clipRange(commandValue, -freeSpeed, freeSpeed);
+                break;
+
+            case POSITION:
+                targetVel = TrcUtil.clipRange(
+                    (commandValue - position)*DEF_POSITION_GAIN, -positionPowerLimit*freeSpeed,
+                    positionPowerLimit*freeSpeed);
+                break;
+
+            case CURRENT:
+                targetVel = TrcUtil.clipRange(commandValue/stallCurrent, -1.0, 1.0)*freeSpeed;
+                break;
+
+            case POWER:
+            default:
+                // Without brake mode, the motor coasts to a stop much slower than it brakes.
+                targetVel = commandValue == 0.0 && !brakeModeEnabled? velocity*Math.exp(-dt): commandValue*freeSpeed;
+                break;
+        }
+
+        if (timeConstant > 0.0)
+        {
+            // Exact solution of the first order response for a constant target velocity.
+            double decay = Math.exp(-dt/timeConstant);
+            position += targetVel*dt + (velocity - targetVel)*timeConstant*(1.0 - decay);
+            velocity = targetVel + (velocity - targetVel)*decay;
+        }
+        else
+        {
+            position += targetVel*dt;
+            velocity = targetVel;
+        }
+
+        if (revSoftPositionLimit != null && position < revSoftPositionLimit ||
+            isLimitActive(revLimitSwitchEnabled, revLimitSwitchPosition, false) && velocity < 0.0)
+        {
+            position = revSoftPositionLimit != null? Math.max(position, revSoftPositionLimit): position;
+            velocity = 0.0;
+        }
+        else if (fwdSoftPositionLimit != null && position > fwdSoftPositionLimit ||
+                 isLimitActive(fwdLimitSwitchEnabled, fwdLimitSwitchPosition, true) && velocity > 0.0)
+        {
+            position = fwdSoftPositionLimit != null? Math.min(position, fwdSoftPositionLimit): position;
+            velocity = 0.0;
+        }
+    }   //integrate
+
+    /**
+     * This method checks if a simulated limit switch is triggered by the motor position.
+     *
+     * @param enabled specifies true if the limit switch is enabled.
+     * @param limitPosition specifies the limit switch position, null if none.
+     * @param forward specifies true for the forward limit switch, false for the reverse limit switch.
+     * @return true if the limit switch is triggered, false otherwise.
+     */
+    private boolean isLimitActive(boolean enabled, Double limitPosition, boolean forward)
+    {
+        return enabled && limitPosition != null && (forward? position >= limitPosition: position <= limitPosition);
+    }   //isLimitActive
+
+    /**
+     * This method changes the control mode after bringing the state up to date. Power and current commands are in
+     * motor direction, velocity and position commands are in the direction of the simulated motor state.
+     *
+     * @param mode specifies the control mode.
+     * @param value specifies the command value of the control mode.
+     */
+    private synchronized void setCommand(ControlMode mode, double value)
+    {
+        updateState();
+        controlMode = mode;
+        commandValue = value;
+    }   //setCommand
+
+    //
+    // Implements TrcMotorController interface.
+    //
+
+    /**
+     * This method resets the motor controller configurations to factory default.
+     */
+    @Override
+    public synchronized void resetFactoryDefault()
+    {
+        updateState();
+        controlMode = ControlMode.POWER;
+        commandValue = 0.0;
+        motorInverted = positionSensorInverted = false;
+        brakeModeEnabled = true;
+        revSoftPositionLimit = fwdSoftPositionLimit = null;
+    }   //resetFactoryDefault
+
+    /**
+     * This method returns the bus voltage of the motor controller.
+     *
+     * @return bus voltage of the motor controller.
+     */
+    @Override
+    public synchronized double getBusVoltage()
+    {
+        return busVoltage;
+    }   //getBusVoltage
+
+    /**
+     * This method sets the current limit of the motor. It is ignored by the simulation.
+     *
+     * @param currentLimit specifies the current limit (holding current) in amperes when feature is activated.
+     * @param triggerThresholdCurrent specifies threshold current in amperes to be exceeded before limiting occurs.
+     * @param triggerThresholdTime specifies the time in seconds that current must exceed threshold before limiting.
+     */
+    @Override
+    public void setCurrentLimit(double currentLimit, double triggerThresholdCurrent, double triggerThresholdTime)
+    {
+    }   //setCurrentLimit
+
+    /**
+     * This method sets the stator current limit of the motor. It is ignored by the simulation.
+     *
+     * @param currentLimit specifies the stator current limit in amperes.
+     */
+    @Override
+    public void setStatorCurrentLimit(double currentLimit)
+    {
+    }   //setStatorCurrentLimit
+
+    /**
+     * This method sets the close loop percentage output ramp rate. It is ignored by the simulation.
+     *
+     * @param rampTime specifies the ramp time in seconds from neutral to full speed.
+     */
+    @Override
+    public void setCloseLoopRampRate(double rampTime)
+    {
+    }   //setCloseLoopRampRate
+
+    /**
+     * This method sets the open loop percentage output ramp rate. It is ignored by the simulation.
+     *
+     * @param rampTime specifies the ramp time in seconds from neutral to full speed.
+     */
+    @Override
+    public void setOpenLoopRampRate(double rampTime)
+    {
+    }   //setOpenLoopRampRate
+
+    /**
+     * This method enables/disables motor brake mode. In brake mode, set power to 0 would stop the motor quickly
+     * instead of coasting to a stop.
+     *
+     * @param enabled specifies true to enable brake mode, false otherwise.
+     */
+    @Override
+    public synchronized void setBrakeModeEnabled(boolean enabled)
+    {
+        updateState();
+        brakeModeEnabled = enabled;
+    }   //setBrakeModeEnabled
+
+    /**
+     * This method enables the reverse limit switch and configures it to the specified type.
+     *
+     * @param normalClose specifies true as the normal close switch type, false as normal open.
+     */
+    @Override
+    public synchronized void enableMotorRevLimitSwitch(boolean normalClose)
+    {
+        revLimitSwitchEnabled = true;
+    }   //enableMotorRevLimitSwitch
+
+    /**
+     * This method enables the forward limit switch and configures it to the specified type.
+     *
+     * @param normalClose specifies true as the normal close switch type, false as normal open.
+     */
+    @Override
+    public synchronized void enableMotorFwdLimitSwitch(boolean normalClose)
+    {
+        fwdLimitSwitchEnabled = true;
+    }   //enableMotorFwdLimitSwitch
+
+    /**
+     * This method disables the reverse limit switch.
+     */
+    @Override
+    public synchronized void disableMotorRevLimitSwitch()
+    {
+        revLimitSwitchEnabled = false;
+    }   //disableMotorRevLimitSwitch
+
+    /**
+     * This method disables the forward limit switch.
+     */
+    @Override
+    public synchronized void disableMotorFwdLimitSwitch()
+    {
+        fwdLimitSwitchEnabled = false;
+    }   //disableMotorFwdLimitSwitch
+
+    /**
+     * This method checks if the reverse limit switch is enabled.
+     *
+     * @return true if enabled, false if disabled.
+     */
+    @Override
+    public synchronized boolean isMotorRevLimitSwitchEnabled()
+    {
+        return revLimitSwitchEnabled;
+    }   //isMotorRevLimitSwitchEnabled
+
+    /**
+     * This method checks if the forward limit switch is enabled.
+     *
+     * @return true if enabled, false if disabled.
+     */
+    @Override
+    public synchronized boolean isMotorFwdLimitSwitchEnabled()
+    {
+        return fwdLimitSwitchEnabled;
+    }   //isMotorFwdLimitSwitchEnabled
+
+    /**
+     * This method inverts the active state of the reverse limit switch, typically reflecting whether the switch is
+     * wired normally open or normally close.
+     *
+     * @param inverted specifies true to invert and false otherwise.
+     */
+    @Override
+    public synchronized void setMotorRevLimitSwitchInverted(boolean inverted)
+    {
+        revLimitSwitchInverted = inverted;
+    }   //setMotorRevLimitSwitchInverted
+
+    /**
+     * This method inverts the active state of the forward limit switch, typically reflecting whether the switch is
+     * wired normally open or normally close.
+     *
+     * @param inverted specifies true to invert and false otherwise.
+     */
+    @Override
+    public synchronized void setMotorFwdLimitSwitchInverted(boolean inverted)
+    {
+        fwdLimitSwitchInverted = inverted;
+    }   //setMotorFwdLimitSwitchInverted
+
+    /**
+     * This method returns the state of the reverse limit switch.
+     *
+     * @return true if reverse limit switch is active, false otherwise.
+     */
+    @Override
+    public synchronized boolean isMotorRevLimitSwitchActive()
+    {
+        updateState();
+        return isLimitActive(true, revLimitSwitchPosition, false) ^ revLimitSwitchInverted;
+    }   //isMotorRevLimitSwitchActive
+
+    /**
+     * This method returns the state of the forward limit switch.
+     *
+     * @return true if forward limit switch is active, false otherwise.
+     */
+    @Override
+    public synchronized boolean isMotorFwdLimitSwitchActive()
+    {
+        updateState();
+        return isLimitActive(true, fwdLimitSwitchPosition, true) ^ fwdLimitSwitchInverted;
+    }   //isMotorFwdLimitSwitchActive
+
+    /**
+     * This method sets the lower soft position limit for motor.
+     *
+     * @param limit specifies the position of the lower limit, null to disable lower soft limit.
+     */
+    @Override
+    public synchronized void setMotorRevSoftPositionLimit(Double limit)
+    {
+        revSoftPositionLimit = limit;
+    }   //setMotorRevSoftPositionLimit
+
+    /**
+     * This method sets the upper soft position limit for motor.
+     *
+     * @param limit specifies the position of the upper limit, null to disable upper soft limit.
+     */
+    @Override
+    public synchronized void setMotorFwdSoftPositionLimit(Double limit)
+    {
+        fwdSoftPositionLimit = limit;
+    }   //setMotorFwdSoftPositionLimit
+
+    /**
+     * This method inverts the position sensor direction.
+     *
+     * @param inverted specifies true to invert position sensor direction, false otherwise.
+     */
+    @Override
+    public synchronized void setMotorPositionSensorInverted(boolean inverted)
+    {
+        positionSensorInverted = inverted;
+    }   //setMotorPositionSensorInverted
+
+    /**
+     * This method returns the state of the position sensor direction.
+     *
+     * @return true if the motor direction is inverted, false otherwise.
+     */
+    @Override
+    public synchronized boolean isMotorPositionSensorInverted()
+    {
+        return positionSensorInverted;
+    }   //isMotorPositionSensorInverted
+
+    /**
+     * This method resets the motor position sensor.
+     */
+    @Override
+    public synchronized void resetMotorPosition()
+    {
+        updateState();
+        position = 0.0;
+    }   //resetMotorPosition
+
+    /**
+     * This method inverts the spinning direction of the motor.
+     *
+     * @param inverted specifies true to invert motor direction, false otherwise.
+     */
+    @Override
+    public synchronized void setMotorInverted(boolean inverted)
+    {
+        motorInverted = inverted;
+    }   //setMotorInverted
+
+    /**
+     * This method checks if the motor direction is inverted.
+     *
+     * @return true if motor direction is inverted, false otherwise.
+     */
+    @Override
+    public synchronized boolean isMotorInverted()
+    {
+        return motorInverted;
+    }   //isMotorInverted
+
+    /**
+     * This method sets the percentage motor power.
+     *
+     * @param power specifies the percentage power (range -1.0 to 1.0).
+     */
+    @Override
+    public void setMotorPower(double power)
+    {
+        setCommand(ControlMode.POWER, TrcUtil.clipRange(isMotorInverted()? -power: power, -1.0, 1.0));
+    }   //setMotorPower
+
+    /**
+     * This method gets the current motor power.
+     *
+     * @return current motor power.
+     */
+    @Override
+    public synchronized double getMotorPower()
+    {
+        double power;
+
+        updateState();
+        power = controlMode == ControlMode.POWER? commandValue: velocity/freeSpeed;
+
+        return motorInverted? -power: power;
+    }   //getMotorPower
+
+    /**
+     * This method commands the motor to spin at the given velocity using close loop control.
+     *
+     * @param velocity specifies the motor velocity in sensor units per second.
+     * @param acceleration specifies the max motor acceleration, ignored by the simulation.
+     * @param feedForward specifies feedforward in volts, ignored by the simulation.
+     */
+    @Override
+    public void setMotorVelocity(double velocity, double acceleration, double feedForward)
+    {
+        setCommand(ControlMode.VELOCITY, isMotorPositionSensorInverted()? -velocity: velocity);
+    }   //setMotorVelocity
+
+    /**
+     * This method returns the current motor velocity.
+     *
+     * @return current motor velocity in raw sensor units per sec.
+     */
+    @Override
+    public synchronized double getMotorVelocity()
+    {
+        updateState();
+        return positionSensorInverted? -velocity: velocity;
+    }   //getMotorVelocity
+
+    /**
+     * This method commands the motor to go to the given position using close loop control and optionally limits the
+     * power of the motor movement.
+     *
+     * @param position specifies the position in sensor units.
+     * @param powerLimit specifies the maximum power output limits, can be null if not provided. If not provided, the
+     *        previous set limit is applied.
+     * @param velocity specifies the max motor velocity, ignored by the simulation.
+     * @param feedForward specifies feedforward in volts, ignored by the simulation.
+     */
+    @Override
+    public synchronized void setMotorPosition(double position, Double powerLimit, double velocity, double feedForward)
+    {
+        if (powerLimit != null)
+        {
+            positionPowerLimit = Math.abs(powerLimit);
+        }
+        setCommand(ControlMode.POSITION, positionSensorInverted? -position: position);
+    }   //setMotorPosition
+
+    /**
+     * This method returns the motor position by reading the simulated position sensor.
+     *
+     * @return current motor position in sensor units.
+     */
+    @Override
+    public synchronized double getMotorPosition()
+    {
+        updateState();
+        return positionSensorInverted? -position: position;
+    }   //getMotorPosition
+
+    /**
+     * This method commands the motor to spin at the given current value. The simulation treats current as torque,
+     * so stall current commands full power.
+     *
+     * @param current specifies current in amperes.
+     */
+    @Override
+    public void setMotorCurrent(double current)
+    {
+        setCommand(ControlMode.CURRENT, isMotorInverted()? -current: current);
+    }   //setMotorCurrent
+
+    /**
+     * This method returns the simulated motor current. It is proportional to the difference between the applied
+     * power and the back EMF of the motor.
+     *
+     * @return motor current in amperes.
+     */
+    @Override
+    public synchronized double getMotorCurrent()
+    {
+        double appliedPower;
+
+        updateState();
+        appliedPower = controlMode == ControlMode.POWER? commandValue: velocity/freeSpeed;
+
+        return Math.abs(appliedPower - velocity/freeSpeed)*stallCurrent;
+    }   //getMotorCurrent
+
+    /**
+     * This method sets the PID coefficients of the motor controller's velocity PID controller. The simulation stores
+     * them but uses its own model.
+     *
+     * @param pidCoeff specifies the PID coefficients to set.
+     */
+    @Override
+    public synchronized void setMotorVelocityPidCoefficients(TrcPidController.PidCoefficients pidCoeff)
+    {
+        velPidCoeffs = pidCoeff;
+    }   //setMotorVelocityPidCoefficients
+
+    /**
+     * This method returns the PID coefficients of the motor controller's velocity PID controller.
+     *
+     * @return PID coefficients of the motor's veloicty PID controller.
+     */
+    @Override
+    public synchronized TrcPidController.PidCoefficients getMotorVelocityPidCoefficients()
+    {
+        return velPidCoeffs;
+    }   //getMotorVelocityPidCoefficients
+
+    /**
+     * This method sets the PID coefficients of the motor controller's position PID controller. The simulation stores
+     * them but uses its own model.
+     *
+     * @param pidCoeff specifies the PID coefficients to set.
+     */
+    @Override
+    public synchronized void setMotorPositionPidCoefficients(TrcPidController.PidCoefficients pidCoeff)
+    {
+        posPidCoeffs = pidCoeff;
+    }   //setMotorPositionPidCoefficients
+
+    /**
+     * This method returns the PID coefficients of the motor controller's position PID controller.
+     *
+     * @return PID coefficients of the motor's position PID controller.
+     */
+    @Override
+    public synchronized TrcPidController.PidCoefficients getMotorPositionPidCoefficients()
+    {
+        return posPidCoeffs;
+    }   //getMotorPositionPidCoefficients
+
+    /**
+     * This method sets the PID coefficients of the motor controller's current PID controller. The simulation stores
+     * them but uses its own model.
+     *
+     * @param pidCoeff specifies the PID coefficients to set.
+     */
+    @Override
+    public synchronized void setMotorCurrentPidCoefficients(TrcPidController.PidCoefficients pidCoeff)
+    {
+        currentPidCoeffs = pidCoeff;
+    }   //setMotorCurrentPidCoefficients
+
+    /**
+     * This method returns the PID coefficients of the motor controller's current PID controller.
+     *
+     * @return PID coefficients of the motor's current PID controller.
+     */
+    @Override
+    public synchronized TrcPidController.PidCoefficients getMotorCurrentPidCoefficients()
+    {
+        return currentPidCoeffs;
+    }   //getMotorCurrentPidCoefficients
+
+}   //class TrcSimMotor
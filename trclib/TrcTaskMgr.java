@@ -22,10 +22,20 @@
 
 package TrcCommonLib.trclib;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class provides methods for the callers to register/unregister cooperative multi-tasking tasks. It manages
@@ -93,6 +103,18 @@ public class TrcTaskMgr
 
     }   //enum TaskType
 
+    /**
+     * These are the priority classes of tasks. Within a task type, CRITICAL tasks are run first, then NORMAL tasks,
+     * then LOW tasks. Within a priority class, tasks with an earlier deadline are run first. LOW tasks may be shed
+     * when the loop budget of the task type is exhausted (see setLoopBudget).
+     */
+    public enum PriorityClass
+    {
+        CRITICAL,
+        NORMAL,
+        LOW
+    }   //enum PriorityClass
+
     /**
      * Any class that is registering a task must implement this interface.
      */
@@ -178,11 +200,18 @@ public class TrcTaskMgr
         private final String taskName;
         private final Task task;
         private final HashSet<TaskType> taskTypes;
+        // Each task type of a task is only run by one thread, so the start time and interval arrays have a single
+        // writer per entry and need no lock. The elapsed time histograms are lock-free.
         private final long[] taskStartTimes = new long[TaskType.values().length];
-        private final long[] taskTotalIntervals = new long[TaskType.values().length];
-        private final long[] taskTotalElapsedTimes = new long[TaskType.values().length];
-        private final int[] taskTimeSlotCounts = new int[TaskType.values().length];
-        private TrcPeriodicThread<Object> taskThread = null;
+        private final AtomicLongArray taskTotalIntervals = new AtomicLongArray(TaskType.values().length);
+        private final TrcLatencyHistogram[] taskElapsedTimeHistograms =
+            new TrcLatencyHistogram[TaskType.values().length];
+        private volatile TrcPeriodicThread<Object> taskThread = null;
+        private volatile String ioGroup = null;
+        private final PriorityClass[] priorityClasses = new PriorityClass[TaskType.values().length];
+        private final long[] taskDeadlines = new long[TaskType.values().length];
+        private final AtomicLongArray taskShedCounts = new AtomicLongArray(TaskType.values().length);
+        private final AtomicLongArray taskDeadlineMisses = new AtomicLongArray(TaskType.values().length);
 
         /**
          * Constructor: Creates an instance of the task object with the given name
@@ -199,9 +228,8 @@ public class TrcTaskMgr
             for (int i = 0; i < TaskType.values().length; i++)
             {
                 taskStartTimes[i] = 0;
-                taskTotalIntervals[i] = 0;
-                taskTotalElapsedTimes[i] = 0;
-                taskTimeSlotCounts[i] = 0;
+                priorityClasses[i] = PriorityClass.NORMAL;
+                taskDeadlines[i] = 0;
             }
         }   //TaskObject
 
@@ -223,10 +251,15 @@ public class TrcTaskMgr
          * @param taskInterval specifies the periodic interval for STANDALONE_TASK, ignore for any other task types.
          *                     If zero interval is specified, the task will be run in a tight loop.
          * @param taskPriority specifies the priority of the associated thread. Only valid for STANDALONE_TASK,
-         *                     ignored for any other task types.
+         *                     ignored for any other task types or if the task runs on the shared pool.
+         * @param useSharedPool specifies true to run a STANDALONE_TASK on the shared pool if the robot has configured
+         *                      one with TrcPeriodicThread.setSharedPoolSize, false to give it its own thread. Only
+         *                      short non-blocking tasks should opt in since a pool thread runs its tasks one at a
+         *                      time. Ignored for any other task types.
          * @return true if successful, false if the task with that task type is already registered in the task list.
          */
-        public synchronized boolean registerTask(TaskType type, long taskInterval, int taskPriority)
+        public synchronized boolean registerTask(
+            TaskType type, long taskInterval, int taskPriority, boolean useSharedPool)
         {
             if (type == TaskType.STANDALONE_TASK && taskInterval < 0)
             {
@@ -237,9 +270,18 @@ public class TrcTaskMgr
 
             if (added)
             {
+                taskListVersion.incrementAndGet();
+                if (taskElapsedTimeHistograms[type.value] == null)
+                {
+                    // Histograms are created on first registration so unused task types don't take up memory.
+                    taskElapsedTimeHistograms[type.value] = new TrcLatencyHistogram(
+                        taskName + "." + type, TASKTIME_THRESHOLD_MS*1000000L);
+                }
+
                 if (type == TaskType.STANDALONE_TASK)
                 {
-                    taskThread = new TrcPeriodicThread<>(taskName, this::standaloneTask, null, taskPriority);
+                    taskThread = new TrcPeriodicThread<>(
+                        taskName, this::standaloneTask, null, taskPriority, useSharedPool);
                     taskThread.setProcessingInterval(taskInterval);
                     taskThread.setTaskEnabled(true);
                 }
@@ -261,6 +303,21 @@ public class TrcTaskMgr
             return added;
         }   //registerTask
 
+        /**
+         * This method adds the given task type to the task object. A STANDALONE_TASK gets its own thread.
+         *
+         * @param type specifies the task type.
+         * @param taskInterval specifies the periodic interval for STANDALONE_TASK, ignore for any other task types.
+         *                     If zero interval is specified, the task will be run in a tight loop.
+         * @param taskPriority specifies the priority of the associated thread. Only valid for STANDALONE_TASK,
+         *                     ignored for any other task types.
+         * @return true if successful, false if the task with that task type is already registered in the task list.
+         */
+        public boolean registerTask(TaskType type, long taskInterval, int taskPriority)
+        {
+            return registerTask(type, taskInterval, taskPriority, false);
+        }   //registerTask
+
         /**
          * This method adds the given task type to the task object.
          *
@@ -285,6 +342,89 @@ public class TrcTaskMgr
             return registerTask(type, 0, Thread.NORM_PRIORITY);
         }   //registerTask
 
+        /**
+         * This method adds the given task type to the task object with the given priority class and deadline. The
+         * priority class and deadline determine the order the task is run among the tasks of the same task type.
+         * They don't apply to STANDALONE_TASK which runs on its own thread.
+         *
+         * @param type specifies the task type.
+         * @param priorityClass specifies the priority class of the task.
+         * @param deadline specifies the time in msec from the start of the task type loop by which the task should
+         *        have started, 0 if no deadline.
+         * @return true if successful, false if the task with that task type is already registered in the task list.
+         */
+        public boolean registerTask(TaskType type, PriorityClass priorityClass, long deadline)
+        {
+            setPriorityClass(type, priorityClass, deadline);
+            return registerTask(type, 0, Thread.NORM_PRIORITY);
+        }   //registerTask
+
+        /**
+         * This method sets the priority class and deadline of the task for the given task type.
+         *
+         * @param type specifies the task type.
+         * @param priorityClass specifies the priority class of the task.
+         * @param deadline specifies the time in msec from the start of the task type loop by which the task should
+         *        have started, 0 if no deadline.
+         */
+        public synchronized void setPriorityClass(TaskType type, PriorityClass priorityClass, long deadline)
+        {
+            if (deadline < 0)
+            {
+                throw new IllegalArgumentException("deadline must be greater than or equal to 0.");
+            }
+
+            priorityClasses[type.value] = priorityClass;
+            taskDeadlines[type.value] = deadline*1000000L;
+            taskListVersion.incrementAndGet();
+        }   //setPriorityClass
+
+        /**
+         * This method returns the priority class of the task for the given task type.
+         *
+         * @param type specifies the task type.
+         * @return priority class of the task.
+         */
+        public synchronized PriorityClass getPriorityClass(TaskType type)
+        {
+            return priorityClasses[type.value];
+        }   //getPriorityClass
+
+        /**
+         * This method returns the deadline of the task for the given task type for ordering, tasks without a deadline
+         * are ordered last.
+         *
+         * @param type specifies the task type.
+         * @return deadline in nsec from the start of the loop, Long.MAX_VALUE if none.
+         */
+        private synchronized long getDeadline(TaskType type)
+        {
+            return taskDeadlines[type.value] == 0? Long.MAX_VALUE: taskDeadlines[type.value];
+        }   //getDeadline
+
+        /**
+         * This method returns the number of times the task of the given task type was shed because the loop budget
+         * was exhausted.
+         *
+         * @param type specifies the task type.
+         * @return number of times the task was shed.
+         */
+        public long getShedCount(TaskType type)
+        {
+            return taskShedCounts.get(type.value);
+        }   //getShedCount
+
+        /**
+         * This method returns the number of times the task of the given task type started after its deadline.
+         *
+         * @param type specifies the task type.
+         * @return number of deadline misses.
+         */
+        public long getDeadlineMissCount(TaskType type)
+        {
+            return taskDeadlineMisses.get(type.value);
+        }   //getDeadlineMissCount
+
         /**
          * This method removes the given task type from the task object.
          *
@@ -299,7 +439,13 @@ public class TrcTaskMgr
             }
             taskThread = null;
 
-            return taskTypes.remove(type);
+            boolean removed = taskTypes.remove(type);
+            if (removed)
+            {
+                taskListVersion.incrementAndGet();
+            }
+
+            return removed;
         }   //unregisterTask
 
         /**
@@ -411,6 +557,30 @@ public class TrcTaskMgr
             }
         }   //setTaskData
 
+        /**
+         * This method sets the IO group of the task. When input tasks are run in parallel (see setInputTaskWorkers),
+         * INPUT_TASKs in the same IO group are run sequentially on the same worker while different IO groups run in
+         * parallel. Tasks that access the same bus (e.g. the same I2C bus) must be put in the same IO group. A task
+         * without an IO group is considered independent of all other tasks.
+         *
+         * @param groupName specifies the IO group name, null for no group.
+         */
+        public void setIoGroup(String groupName)
+        {
+            ioGroup = groupName;
+            taskListVersion.incrementAndGet();
+        }   //setIoGroup
+
+        /**
+         * This method returns the IO group of the task.
+         *
+         * @return IO group name, null if none.
+         */
+        public String getIoGroup()
+        {
+            return ioGroup;
+        }   //getIoGroup
+
         /**
          * This method runs the periodic standalone task.
          *
@@ -429,37 +599,45 @@ public class TrcTaskMgr
          *
          * @param taskType specifies the task type to index into the task performance arrays.
          */
-        private synchronized void recordStartTime(TaskType taskType)
+        private void recordStartTime(TaskType taskType)
         {
             long currNanoTime = TrcTimer.getNanoTime();
             long taskInterval = taskStartTimes[taskType.value] > 0 ? currNanoTime - taskStartTimes[taskType.value] : 0;
 
             taskStartTimes[taskType.value] = currNanoTime;
-            taskTotalIntervals[taskType.value] += taskInterval;
+            taskTotalIntervals.addAndGet(taskType.value, taskInterval);
         }   //recordStartTime
 
         /**
-         * This method records the task elapsed time in the task performance arrays.
+         * This method records the task elapsed time in the task performance histograms. It also counts the task as
+         * overrun if the elapsed time exceeds the task interval for STANDALONE_TASK or TASKTIME_THRESHOLD_MS for any
+         * other task types.
          *
          * @param taskType specifies the task type to index into the task performance arrays.
          */
-        private synchronized void recordElapsedTime(TaskType taskType)
+        private void recordElapsedTime(TaskType taskType)
         {
             long currNanoTime = TrcTimer.getNanoTime();
             long startTime = taskStartTimes[taskType.value];
             long elapsedTime = currNanoTime - startTime;
+            TrcPeriodicThread<Object> thread = taskThread;
+            long timeThreshold = taskType == TaskType.STANDALONE_TASK && thread != null?
+                thread.getProcessingInterval()*1000000L: 0L;    //convert to nanoseconds.
+            TrcLatencyHistogram histogram = taskElapsedTimeHistograms[taskType.value];
 
-            taskTotalElapsedTimes[taskType.value] += elapsedTime;
-            taskTimeSlotCounts[taskType.value]++;
+            if (timeThreshold == 0) timeThreshold = TASKTIME_THRESHOLD_MS*1000000L;
+            if (histogram != null)
+            {
+                histogram.recordValue(elapsedTime, timeThreshold);
+            }
+            taskTypeElapsedTimeHistograms[taskType.value].recordValue(elapsedTime, timeThreshold);
 
             if (tracer.getTraceLevel().value >= TrcDbgTrace.MsgLevel.DEBUG.value)
             {
                 tracer.traceVerbose(
                     moduleName, "%s.%s: start=.6f, elapsed=%.6f",
                     taskName, taskType, (startTime/1000000000.0), elapsedTime/1000000000.0);
-                long timeThreshold = getTaskInterval()*1000000; //convert to nanoseconds.
-                if (timeThreshold == 0) timeThreshold = TASKTIME_THRESHOLD_MS * 1000000L;
-                if (timeThreshold > 0 && elapsedTime > timeThreshold)
+                if (elapsedTime > timeThreshold)
                 {
                     tracer.traceWarn(
                         moduleName, "%s.%s takes too long (%.3f)", taskName, taskType, elapsedTime/1000000000.0);
@@ -468,36 +646,296 @@ public class TrcTaskMgr
         }   //recordElapsedTime
 
         /**
-         * This method returns the average task elapsed time in seconds.
+         * This method returns the average task interval time in seconds.
          *
          * @param taskType specifies the task type to index into the task performance arrays.
-         * @return average task elapsed time in seconds.
+         * @return average task interval time in seconds.
          */
-        private synchronized double getAverageTaskElapsedTime(TaskType taskType)
+        private double getAverageTaskInterval(TaskType taskType)
         {
-            int slotCount = taskTimeSlotCounts[taskType.value];
-            return slotCount == 0 ? 0.0 : (double)taskTotalElapsedTimes[taskType.value]/slotCount/1000000000.0;
-        }   //getAverageTaskElapsedTime
+            TrcLatencyHistogram histogram = taskElapsedTimeHistograms[taskType.value];
+            long slotCount = histogram == null ? 0 : histogram.getCount();
+            return slotCount == 0 ? 0.0 : (double)taskTotalIntervals.get(taskType.value)/slotCount/1000000000.0;
+        }   //getAverageTaskInterval
 
         /**
-         * This method returns the average task interval time in seconds.
+         * This method returns a snapshot of the elapsed time histogram of the given task type. It can be called at
+         * any time without stopping the task.
          *
-         * @param taskType specifies the task type to index into the task performance arrays.
-         * @return average task interval time in seconds.
+         * @param taskType specifies the task type.
+         * @return elapsed time histogram snapshot, null if the task was never registered with the task type.
          */
-        private synchronized double getAverageTaskInterval(TaskType taskType)
+        public TrcLatencyHistogram.Snapshot getPerformanceSnapshot(TaskType taskType)
         {
-            int slotCount = taskTimeSlotCounts[taskType.value];
-            return slotCount == 0 ? 0.0 : (double)taskTotalIntervals[taskType.value]/slotCount/1000000000.0;
-        }   //getAverageTaskInterval
+            TrcLatencyHistogram histogram = taskElapsedTimeHistograms[taskType.value];
+            return histogram == null ? null : histogram.getSnapshot();
+        }   //getPerformanceSnapshot
 
     }   //class TaskObject
 
+    /**
+     * This class keeps tasks of a task type in execution order, LOW priority tasks last. It runs the tasks for one
+     * loop of the task type. Both the serial and the parallel input task paths run their tasks through this class so
+     * they get the same ordering, shedding and deadline accounting.
+     */
+    private static class OrderedTasks
+    {
+        TaskObject[] order = new TaskObject[0];
+        int numLowTasks = 0;
+        int nextLowIndex = 0;
+
+        /**
+         * This method sets the execution order of the tasks.
+         *
+         * @param order specifies the tasks in execution order, LOW priority tasks must be last.
+         * @param type specifies the task type.
+         */
+        void setOrder(TaskObject[] order, TaskType type)
+        {
+            this.order = order;
+            numLowTasks = 0;
+            for (TaskObject taskObj: order)
+            {
+                if (taskObj.getPriorityClass(type) == PriorityClass.LOW)
+                {
+                    numLowTasks++;
+                }
+            }
+            nextLowIndex = 0;
+        }   //setOrder
+
+        /**
+         * This method runs the tasks in order. If the loop budget of the task type is exhausted, the remaining LOW
+         * priority tasks are shed. A task exception stops the loop and is propagated to the caller.
+         *
+         * @param schedule specifies the schedule of the task type.
+         * @param mode specifies the robot run mode.
+         * @param slowPeriodicLoop specifies true if it is running the slow periodic loop on the main robot thread,
+         *        false otherwise.
+         * @param loopStartTime specifies the nano time the task type loop started.
+         */
+        void runTasks(TaskTypeSchedule schedule, TrcRobot.RunMode mode, boolean slowPeriodicLoop, long loopStartTime)
+        {
+            TaskType type = schedule.taskType;
+            long loopBudget = schedule.loopBudget;
+            int numHighTasks = order.length - numLowTasks;
+            boolean shedding = false;
+
+            for (int i = 0; i < numHighTasks; i++)
+            {
+                TaskObject taskObj = order[i];
+                // The task may have been unregistered since the order was built.
+                if (taskObj.hasType(type))
+                {
+                    runTask(taskObj, type, mode, slowPeriodicLoop, loopStartTime);
+                }
+            }
+
+            if (numLowTasks > 0)
+            {
+                // LOW tasks are run round robin starting from the first task shed in the last loop.
+                int startIndex = nextLowIndex;
+
+                nextLowIndex = 0;
+                for (int i = 0; i < numLowTasks; i++)
+                {
+                    int lowIndex = (startIndex + i)%numLowTasks;
+                    TaskObject taskObj = order[numHighTasks + lowIndex];
+
+                    if (!taskObj.hasType(type))
+                    {
+                        continue;
+                    }
+
+                    if (!shedding && loopBudget > 0 && TrcTimer.getNanoTime() - loopStartTime > loopBudget)
+                    {
+                        shedding = true;
+                        nextLowIndex = lowIndex;
+                    }
+
+                    if (shedding)
+                    {
+                        taskObj.taskShedCounts.incrementAndGet(type.value);
+                        synchronized (schedule.shedTasks)
+                        {
+                            schedule.shedTasks.add(taskObj);
+                        }
+                        tracer.traceDebug(moduleName, "Shedding " + taskObj + "." + type);
+                    }
+                    else
+                    {
+                        runTask(taskObj, type, mode, slowPeriodicLoop, loopStartTime);
+                    }
+                }
+            }
+        }   //runTasks
+
+    }   //class OrderedTasks
+
+    /**
+     * This class implements a group of INPUT_TASKs that must be run sequentially because they share an IO group.
+     */
+    private static class InputTaskGroup extends OrderedTasks implements Runnable
+    {
+        TrcRobot.RunMode runMode;
+        long loopStartTime;
+        // Set by the IO thread when the group is dispatched, cleared when the group is done.
+        volatile boolean busy = false;
+
+        /**
+         * This method runs all tasks in the group and notifies the IO thread when done. A task exception is kept
+         * for the IO thread to rethrow so the IO loop fails the same way as in serial mode.
+         */
+        @Override
+        public void run()
+        {
+            try
+            {
+                runTasks(taskTypeSchedules[TaskType.INPUT_TASK.value], runMode, false, loopStartTime);
+            }
+            catch (RuntimeException | Error e)
+            {
+                inputTaskFailure.compareAndSet(null, e);
+            }
+            finally
+            {
+                busy = false;
+                LockSupport.unpark(inputTaskWaiter);
+            }
+        }   //run
+
+    }   //class InputTaskGroup
+
+    /**
+     * This class keeps the execution order of the tasks of a task type. The order is rebuilt by the thread running the
+     * task type whenever the task list version changes.
+     */
+    private static class TaskTypeSchedule extends OrderedTasks
+    {
+        final TaskType taskType;
+        final ArrayList<TaskObject> shedTasks = new ArrayList<>();
+        volatile long loopBudget = 0;
+        int builtVersion = -1;
+
+        TaskTypeSchedule(TaskType taskType)
+        {
+            this.taskType = taskType;
+        }   //TaskTypeSchedule
+
+        /**
+         * This method rebuilds the execution order if the task list has changed. Tasks are ordered by priority class,
+         * then by deadline, then by creation order.
+         */
+        void update()
+        {
+            int version = taskListVersion.get();
+
+            if (version != builtVersion)
+            {
+                ArrayList<TaskObject> tasks = new ArrayList<>();
+
+                for (TaskObject taskObj: taskList)
+                {
+                    if (taskObj.hasType(taskType))
+                    {
+                        tasks.add(taskObj);
+                    }
+                }
+                // The sort is stable, so tasks with the same priority class and deadline keep their creation order.
+                Collections.sort(tasks, this::compareTasks);
+                setOrder(tasks.toArray(new TaskObject[0]), taskType);
+                builtVersion = version;
+            }
+        }   //update
+
+        /**
+         * This method clears the tasks shed in the last loop.
+         */
+        void clearShedTasks()
+        {
+            synchronized (shedTasks)
+            {
+                shedTasks.clear();
+            }
+        }   //clearShedTasks
+
+        /**
+         * This method compares two tasks for execution order.
+         *
+         * @param task1 specifies the first task.
+         * @param task2 specifies the second task.
+         * @return negative if task1 runs first, positive if task2 runs first, 0 if no preference.
+         */
+        int compareTasks(TaskObject task1, TaskObject task2)
+        {
+            int result = task1.getPriorityClass(taskType).compareTo(task2.getPriorityClass(taskType));
+
+            if (result == 0)
+            {
+                result = Long.compare(task1.getDeadline(taskType), task2.getDeadline(taskType));
+            }
+
+            return result;
+        }   //compareTasks
+
+    }   //class TaskTypeSchedule
+
     private static final List<TaskObject> taskList = new CopyOnWriteArrayList<>();
+    // Incremented whenever a task registration, priority class or IO group changes.
+    private static final AtomicInteger taskListVersion = new AtomicInteger(0);
+    private static final TrcLatencyHistogram[] taskTypeElapsedTimeHistograms = createTaskTypeHistograms();
+    private static final TaskTypeSchedule[] taskTypeSchedules = createTaskTypeSchedules();
     private static TrcPeriodicThread<Object> ioThread = null;
+    //
+    // Parallel input tasks: the INPUT_TASKs are partitioned into groups by their IO group, each group keeping the
+    // INPUT_TASK execution order. The groups are rebuilt on the IO thread whenever the task list version changes and
+    // no group is still running. On each IO loop, all groups but the first are handed to the worker pool, the IO
+    // thread runs the first group itself, then waits until all groups are done or the INPUT_TASK loop budget is
+    // exhausted before running the OUTPUT_TASKs.
+    //
+    private static final ArrayList<InputTaskGroup> inputTaskGroups = new ArrayList<>();
+    private static final AtomicReference<Throwable> inputTaskFailure = new AtomicReference<>(null);
+    private static volatile ExecutorService inputTaskPool = null;
+    private static volatile Thread inputTaskWaiter = null;
+    private static int inputTaskGroupsBuiltVersion = -1;
     private static IoTaskCallback ioTaskLoopBegin = null;
     private static IoTaskCallback ioTaskLoopEnd = null;
 
+    /**
+     * This method creates the elapsed time histograms of all task types.
+     *
+     * @return array of histograms indexed by task type value.
+     */
+    private static TrcLatencyHistogram[] createTaskTypeHistograms()
+    {
+        TrcLatencyHistogram[] histograms = new TrcLatencyHistogram[TaskType.values().length];
+
+        for (TaskType taskType : TaskType.values())
+        {
+            histograms[taskType.value] =
+                new TrcLatencyHistogram(moduleName + "." + taskType, TASKTIME_THRESHOLD_MS*1000000L);
+        }
+
+        return histograms;
+    }   //createTaskTypeHistograms
+
+    /**
+     * This method creates the execution schedules of all task types.
+     *
+     * @return array of schedules indexed by task type value.
+     */
+    private static TaskTypeSchedule[] createTaskTypeSchedules()
+    {
+        TaskTypeSchedule[] schedules = new TaskTypeSchedule[TaskType.values().length];
+
+        for (TaskType taskType : TaskType.values())
+        {
+            schedules[taskType.value] = new TaskTypeSchedule(taskType);
+        }
+
+        return schedules;
+    }   //createTaskTypeSchedules
+
     /**
      * This method creates a TRC task. If the TRC task is registered as a STANDALONE task, it is run on a separately
      * created thread. Otherwise, it is run on the main robot thread as a cooperative multi-tasking task.
@@ -517,6 +955,28 @@ public class TrcTaskMgr
         return taskObj;
     }   //createTask
 
+    /**
+     * This method destroys a TRC task. The task is unregistered from all task types and removed from the task list so
+     * it is no longer walked by the scheduler or reported in the performance metrics.
+     *
+     * @param taskObj specifies the task object to be destroyed.
+     * @return true if the task was in the task list, false otherwise.
+     */
+    public static boolean destroyTask(TaskObject taskObj)
+    {
+        boolean removed;
+
+        taskObj.unregisterTask();
+        removed = taskList.remove(taskObj);
+        if (removed)
+        {
+            taskListVersion.incrementAndGet();
+        }
+        tracer.traceDebug(moduleName, "taskObj=" + taskObj + ", removed=" + removed);
+
+        return removed;
+    }   //destroyTask
+
     /**
      * This method is mainly for FtcOpMode to call at the end of the opMode loop because runOpMode could be terminated
      * before shutdown can be called especially if stopMode code is doing logging I/O (e.g. printPerformanceMetrics).
@@ -542,6 +1002,8 @@ public class TrcTaskMgr
             ioThread.terminateTask();
             ioThread = null;
         }
+
+        setInputTaskWorkers(0);
     }   //terminateAllThreads
 
     /**
@@ -552,11 +1014,78 @@ public class TrcTaskMgr
     {
         terminateAllThreads();
         taskList.clear();
+        taskListVersion.incrementAndGet();
     }   //shutdown
 
+    /**
+     * This method sets the loop budget of the given task type. When running the tasks of the task type takes longer
+     * than the budget, the remaining LOW priority tasks are shed for the loop. The shed tasks will be run first among
+     * the LOW priority tasks in the next loop so they are not starved.
+     *
+     * @param type specifies the task type.
+     * @param budget specifies the loop budget in msec, 0 for no budget.
+     */
+    public static void setLoopBudget(TaskType type, long budget)
+    {
+        if (budget < 0)
+        {
+            throw new IllegalArgumentException("budget must be greater than or equal to 0.");
+        }
+
+        taskTypeSchedules[type.value].loopBudget = budget*1000000L;
+    }   //setLoopBudget
+
+    /**
+     * This method returns the names of the tasks of the given task type that were shed in the last loop.
+     *
+     * @param type specifies the task type.
+     * @return array of shed task names, empty if none.
+     */
+    public static String[] getShedTasks(TaskType type)
+    {
+        TaskTypeSchedule schedule = taskTypeSchedules[type.value];
+        String[] shedTasks;
+
+        synchronized (schedule.shedTasks)
+        {
+            shedTasks = new String[schedule.shedTasks.size()];
+            for (int i = 0; i < shedTasks.length; i++)
+            {
+                shedTasks[i] = schedule.shedTasks.get(i).taskName;
+            }
+        }
+
+        return shedTasks;
+    }   //getShedTasks
+
+    /**
+     * This method runs a task of the given task type and records its performance.
+     *
+     * @param taskObj specifies the task to run.
+     * @param type specifies the task type.
+     * @param mode specifies the robot run mode.
+     * @param slowPeriodicLoop specifies true if it is running the slow periodic loop on the main robot thread,
+     *        false otherwise.
+     * @param loopStartTime specifies the nano time the task type loop started.
+     */
+    private static void runTask(
+        TaskObject taskObj, TaskType type, TrcRobot.RunMode mode, boolean slowPeriodicLoop, long loopStartTime)
+    {
+        long deadline = taskObj.taskDeadlines[type.value];
+
+        taskObj.recordStartTime(type);
+        if (deadline > 0 && taskObj.taskStartTimes[type.value] - loopStartTime > deadline)
+        {
+            taskObj.taskDeadlineMisses.incrementAndGet(type.value);
+        }
+        taskObj.getTask().runTask(type, mode, slowPeriodicLoop);
+        taskObj.recordElapsedTime(type);
+    }   //runTask
+
     /**
      * This method is called by the main robot thread to enumerate the task list and calls all the tasks that matches
-     * the given task type.
+     * the given task type. Tasks are run in the order of priority class and deadline. If the task type has a loop
+     * budget and it is exhausted, the remaining LOW priority tasks are shed.
      *
      * @param type specifies the task type to be executed.
      * @param mode specifies the robot run mode.
@@ -565,16 +1094,12 @@ public class TrcTaskMgr
      */
     public static void executeTaskType(TaskType type, TrcRobot.RunMode mode, boolean slowPeriodicLoop)
     {
-        for (TaskObject taskObj: taskList)
-        {
-            if (taskObj.hasType(type))
-            {
-                Task task = taskObj.getTask();
-                taskObj.recordStartTime(type);
-                task.runTask(type, mode, slowPeriodicLoop);
-                taskObj.recordElapsedTime(type);
-            }
-        }
+        TaskTypeSchedule schedule = taskTypeSchedules[type.value];
+        long loopStartTime = TrcTimer.getNanoTime();
+
+        schedule.update();
+        schedule.clearShedTasks();
+        schedule.runTasks(schedule, mode, slowPeriodicLoop, loopStartTime);
     }   //executeTaskType
 
     /**
@@ -590,6 +1115,189 @@ public class TrcTaskMgr
         ioTaskLoopEnd = ioLoopEnd;
     }   //registerIoTaskLoopCallback
 
+    /**
+     * This method enables parallel execution of INPUT_TASKs on a pool of worker threads. Input tasks in different IO
+     * groups (see TaskObject.setIoGroup) run in parallel and all input tasks are done before any OUTPUT_TASK is run,
+     * unless the INPUT_TASK loop budget (see setLoopBudget) is exhausted first. Note that tasks without an IO group
+     * are each considered independent, so they must be thread safe with respect to each other.
+     *
+     * @param numWorkers specifies the number of worker threads, 0 to run all IO tasks on the IO thread.
+     */
+    public static synchronized void setInputTaskWorkers(int numWorkers)
+    {
+        ExecutorService pool = inputTaskPool;
+
+        if (numWorkers < 0)
+        {
+            throw new IllegalArgumentException("numWorkers must not be negative.");
+        }
+
+        inputTaskPool = null;
+        if (pool != null)
+        {
+            // Outstanding groups of the current loop will still be run before the pool terminates.
+            pool.shutdown();
+        }
+
+        if (numWorkers > 0)
+        {
+            final AtomicInteger workerCount = new AtomicInteger(0);
+            inputTaskPool = Executors.newFixedThreadPool(
+                numWorkers,
+                runnable ->
+                {
+                    Thread thread = new Thread(
+                        runnable, moduleName + ".inputWorker" + workerCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MAX_PRIORITY);
+                    return thread;
+                });
+        }
+    }   //setInputTaskWorkers
+
+    /**
+     * This method rebuilds the input task groups from the INPUT_TASK schedule so that the tasks in each group keep
+     * the INPUT_TASK execution order. It is called on the IO thread only.
+     *
+     * @param schedule specifies the INPUT_TASK schedule.
+     */
+    private static void buildInputTaskGroups(TaskTypeSchedule schedule)
+    {
+        HashMap<String, ArrayList<TaskObject>> namedGroups = new HashMap<>();
+        ArrayList<ArrayList<TaskObject>> groups = new ArrayList<>();
+
+        inputTaskGroups.clear();
+        for (TaskObject taskObj: schedule.order)
+        {
+            String groupName = taskObj.getIoGroup();
+            ArrayList<TaskObject> group = groupName != null? namedGroups.get(groupName): null;
+
+            if (group == null)
+            {
+                group = new ArrayList<>();
+                groups.add(group);
+                if (groupName != null)
+                {
+                    namedGroups.put(groupName, group);
+                }
+            }
+            group.add(taskObj);
+        }
+
+        for (ArrayList<TaskObject> group: groups)
+        {
+            InputTaskGroup inputTaskGroup = new InputTaskGroup();
+            inputTaskGroup.setOrder(group.toArray(new TaskObject[0]), TaskType.INPUT_TASK);
+            inputTaskGroups.add(inputTaskGroup);
+        }
+        tracer.traceDebug(moduleName, "Built " + inputTaskGroups.size() + " input task groups.");
+    }   //buildInputTaskGroups
+
+    /**
+     * This method checks if any input task group is still running from a previous IO loop.
+     *
+     * @return true if any input task group is running, false otherwise.
+     */
+    private static boolean isInputTaskGroupBusy()
+    {
+        for (int i = 0; i < inputTaskGroups.size(); i++)
+        {
+            if (inputTaskGroups.get(i).busy)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }   //isInputTaskGroupBusy
+
+    /**
+     * This method runs all INPUT_TASKs with independent groups in parallel and waits for them to finish. The wait is
+     * bounded by the INPUT_TASK loop budget if there is one. A group that is still running when the wait times out
+     * is skipped in the following loops until it is done. If a task throws, the exception is rethrown on the IO
+     * thread after the wait, like in serial mode.
+     *
+     * @param pool specifies the worker pool, null to run the groups on the IO thread.
+     * @param runMode specifies the robot run mode.
+     */
+    private static void executeInputTasksInParallel(ExecutorService pool, TrcRobot.RunMode runMode)
+    {
+        TaskTypeSchedule schedule = taskTypeSchedules[TaskType.INPUT_TASK.value];
+        long loopStartTime = TrcTimer.getNanoTime();
+        long loopBudget = schedule.loopBudget;
+        int version = taskListVersion.get();
+
+        // Don't rebuild the groups while one is still running, or its tasks could be run twice at the same time.
+        if (version != inputTaskGroupsBuiltVersion && !isInputTaskGroupBusy())
+        {
+            schedule.update();
+            buildInputTaskGroups(schedule);
+            inputTaskGroupsBuiltVersion = version;
+        }
+        schedule.clearShedTasks();
+        inputTaskWaiter = Thread.currentThread();
+
+        int numGroups = inputTaskGroups.size();
+        for (int i = 0; i < numGroups; i++)
+        {
+            InputTaskGroup group = inputTaskGroups.get(i);
+
+            if (group.busy)
+            {
+                tracer.traceDebug(moduleName, "Input task group " + i + " is still running, skipping it.");
+                continue;
+            }
+
+            group.runMode = runMode;
+            group.loopStartTime = loopStartTime;
+            group.busy = true;
+            // The IO thread runs the first group itself while the workers are running the others.
+            if (i > 0 && pool != null)
+            {
+                try
+                {
+                    pool.execute(group);
+                    continue;
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // The pool is shutting down, run the group ourselves.
+                }
+            }
+            group.run();
+        }
+
+        long waitDeadline = loopStartTime + loopBudget;
+        while (isInputTaskGroupBusy())
+        {
+            if (loopBudget > 0)
+            {
+                long remainingTime = waitDeadline - TrcTimer.getNanoTime();
+
+                if (remainingTime <= 0)
+                {
+                    tracer.traceDebug(moduleName, "Input task loop budget exhausted, not waiting for busy groups.");
+                    break;
+                }
+                LockSupport.parkNanos(inputTaskGroups, remainingTime);
+            }
+            else
+            {
+                LockSupport.parkNanos(inputTaskGroups, IO_INTERVAL_MS*1000000L);
+            }
+        }
+
+        Throwable failure = inputTaskFailure.getAndSet(null);
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+        else if (failure != null)
+        {
+            throw (Error) failure;
+        }
+    }   //executeInputTasksInParallel
+
     /**
      * This method runs the periodic an IO task loop.
      *
@@ -603,7 +1311,17 @@ public class TrcTaskMgr
         {
             ioTaskLoopBegin.ioTaskCallback(runMode);
         }
-        executeTaskType(TaskType.INPUT_TASK, runMode, false);
+        // Read the pool only once, setInputTaskWorkers may replace it at any time. Keep using the groups while any
+        // of them is still running from a previous loop so that no task is run twice at the same time.
+        ExecutorService pool = inputTaskPool;
+        if (pool != null || isInputTaskGroupBusy())
+        {
+            executeInputTasksInParallel(pool, runMode);
+        }
+        else
+        {
+            executeTaskType(TaskType.INPUT_TASK, runMode, false);
+        }
         executeTaskType(TaskType.OUTPUT_TASK, runMode, false);
         if (ioTaskLoopEnd != null)
         {
@@ -611,6 +1329,54 @@ public class TrcTaskMgr
         }
     }   //ioTask
 
+    /**
+     * This method returns a snapshot of the elapsed time histogram of all tasks of the given task type. It can be
+     * called at any time without stopping the tasks.
+     *
+     * @param taskType specifies the task type.
+     * @return elapsed time histogram snapshot.
+     */
+    public static TrcLatencyHistogram.Snapshot getTaskTypePerformanceSnapshot(TaskType taskType)
+    {
+        return taskTypeElapsedTimeHistograms[taskType.value].getSnapshot();
+    }   //getTaskTypePerformanceSnapshot
+
+    /**
+     * This method resets the performance histograms of all task types. Per task histograms are not affected.
+     */
+    public static void resetTaskTypePerformanceMetrics()
+    {
+        for (TrcLatencyHistogram histogram : taskTypeElapsedTimeHistograms)
+        {
+            histogram.reset();
+        }
+    }   //resetTaskTypePerformanceMetrics
+
+    /**
+     * This method displays the performance metrics of each task type on the dashboard, one task type per line.
+     *
+     * @param dashboard specifies the dashboard to display on.
+     * @param startLine specifies the first dashboard line to display on.
+     */
+    public static void displayTaskTypePerformanceMetrics(TrcDashboard dashboard, int startLine)
+    {
+        int lineNum = startLine;
+
+        for (TaskType taskType : TaskType.values())
+        {
+            if (lineNum >= dashboard.getNumTextLines())
+            {
+                break;
+            }
+
+            TrcLatencyHistogram.Snapshot snapshot = getTaskTypePerformanceSnapshot(taskType);
+            dashboard.displayPrintf(
+                lineNum, "%s: p50=%.1f p99=%.1f max=%.1f ms, overruns=%d",
+                taskType, snapshot.p50*1000.0, snapshot.p99*1000.0, snapshot.max*1000.0, snapshot.overrunCount);
+            lineNum++;
+        }
+    }   //displayTaskTypePerformanceMetrics
+
     /**
      * This method prints the performance metrics of all tasks.
      */
@@ -623,21 +1389,47 @@ public class TrcTaskMgr
 
             for (TaskType taskType : TaskType.values())
             {
-                double taskElapsedTime = taskObj.getAverageTaskElapsedTime(taskType);
-                double taskInterval = taskObj.getAverageTaskInterval(taskType);
+                TrcLatencyHistogram.Snapshot snapshot = taskObj.getPerformanceSnapshot(taskType);
 
-                if (taskElapsedTime > 0.0)
+                if (snapshot != null && snapshot.count > 0)
                 {
                     taskTypeCounter++;
-                    msg.append(String.format(Locale.US, " %s=%.6f/%.6f", taskType, taskElapsedTime, taskInterval));
+                    msg.append(String.format(
+                        Locale.US,
+                        " %s=%.6f/%.6f(p50=%.6f,p99=%.6f,p999=%.6f,max=%.6f,overruns=%d,shed=%d,missed=%d)",
+                        taskType, snapshot.average, taskObj.getAverageTaskInterval(taskType), snapshot.p50,
+                        snapshot.p99, snapshot.p999, snapshot.max, snapshot.overrunCount,
+                        taskObj.getShedCount(taskType), taskObj.getDeadlineMissCount(taskType)));
                 }
             }
 
+            TrcPeriodicThread<Object> thread = taskObj.taskThread;
+            if (thread != null)
+            {
+                taskTypeCounter++;
+                msg.append(" thread(").append(thread.getLoopStats()).append(")");
+            }
+
             if (taskTypeCounter > 0)
             {
                 tracer.traceInfo(moduleName, msg.toString());
             }
         }
+
+        if (ioThread != null)
+        {
+            tracer.traceInfo(moduleName, ioThread + ": " + ioThread.getLoopStats());
+        }
+
+        for (TaskType taskType : TaskType.values())
+        {
+            TrcLatencyHistogram.Snapshot snapshot = getTaskTypePerformanceSnapshot(taskType);
+
+            if (snapshot.count > 0)
+            {
+                tracer.traceInfo(moduleName, taskType + ": " + snapshot);
+            }
+        }
     }   //printTaskPerformanceMetrics
 
     /**
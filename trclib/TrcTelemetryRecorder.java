@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * This class implements a telemetry recorder that records the post-state info of a state machine (robot pose, target
+ * pose, PID errors and battery voltage) as binary records into a memory-mapped file. Unlike
+ * TrcDbgTrace.tracePostStateInfo, it does not format any string on the robot thread, so it can record at full loop
+ * rate. The file starts with a schema header naming the columns, followed by fixed-size records of one double per
+ * column. The recorded file can be exported to CSV offline with exportToCsv.
+ */
+public class TrcTelemetryRecorder
+{
+    private static final String moduleName = TrcTelemetryRecorder.class.getSimpleName();
+
+    /**
+     * This enum specifies the columns of a telemetry record. Values that are not available in a record are NaN.
+     */
+    public enum Column
+    {
+        TIMESTAMP,
+        STATE,
+        ROBOT_X,
+        ROBOT_Y,
+        ROBOT_ANGLE,
+        TARGET_X,
+        TARGET_Y,
+        TARGET_ANGLE,
+        ROBOT_VEL_X,
+        ROBOT_VEL_Y,
+        ROBOT_VEL_ANGLE,
+        X_ERROR,
+        Y_ERROR,
+        TURN_ERROR,
+        VOLTAGE,
+        LOWEST_VOLTAGE
+    }   //enum Column
+
+    //
+    // File layout: MAGIC (int), VERSION (int), number of columns (int), max records (int), record count (int),
+    // number of state names (int), column names (NAME_LENGTH bytes each), state name table (MAX_STATE_NAMES entries
+    // of NAME_LENGTH bytes each), then the records. Names are ASCII padded with zeros.
+    //
+    private static final int MAGIC = 0x54726354;    //"TrcT"
+    private static final int VERSION = 1;
+    private static final int NAME_LENGTH = 32;
+    private static final int MAX_STATE_NAMES = 256;
+    private static final int RECORD_COUNT_OFFSET = 16;
+    private static final int NUM_STATE_NAMES_OFFSET = 20;
+    private static final int COLUMN_NAMES_OFFSET = 24;
+    private static final Column[] columns = Column.values();
+    private static final int NUM_COLUMNS = columns.length;
+    private static final int RECORD_SIZE = NUM_COLUMNS*Double.BYTES;
+    private static final int STATE_NAMES_OFFSET = COLUMN_NAMES_OFFSET + NUM_COLUMNS*NAME_LENGTH;
+    private static final int RECORDS_OFFSET = STATE_NAMES_OFFSET + MAX_STATE_NAMES*NAME_LENGTH;
+
+    private final TrcDbgTrace tracer;
+    private final String fileName;
+    private final int maxRecords;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    // State IDs by state machine instance name and state, since different state machines may use the same state.
+    private final HashMap<String, HashMap<Object, Integer>> stateIds = new HashMap<>();
+    private int numStateNames = 0;
+    private final double[] values = new double[NUM_COLUMNS];
+    private int recordCount = 0;
+    private int droppedRecords = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor: Create an instance of the object. The file is created with space for the given number of records,
+     * records beyond that are dropped.
+     *
+     * @param fileName specifies the telemetry file path name.
+     * @param maxRecords specifies the maximum number of records in the file.
+     * @throws IOException if the file cannot be created or mapped.
+     */
+    public TrcTelemetryRecorder(String fileName, int maxRecords) throws IOException
+    {
+        if (maxRecords <= 0)
+        {
+            throw new IllegalArgumentException("maxRecords must be positive.");
+        }
+
+        this.tracer = new TrcDbgTrace();
+        this.fileName = fileName;
+        this.maxRecords = maxRecords;
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(0);
+        buffer = file.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, RECORDS_OFFSET + (long)maxRecords*RECORD_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, NUM_COLUMNS);
+        buffer.putInt(12, maxRecords);
+        buffer.putInt(RECORD_COUNT_OFFSET, 0);
+        buffer.putInt(NUM_STATE_NAMES_OFFSET, 0);
+        for (int i = 0; i < NUM_COLUMNS; i++)
+        {
+            putName(COLUMN_NAMES_OFFSET + i*NAME_LENGTH, columns[i].toString());
+        }
+    }   //TrcTelemetryRecorder
+
+    /**
+     * This method returns the telemetry file name.
+     *
+     * @return telemetry file name.
+     */
+    @Override
+    public String toString()
+    {
+        return fileName;
+    }   //toString
+
+    /**
+     * This method returns the number of records recorded.
+     *
+     * @return number of records recorded.
+     */
+    public synchronized int getRecordCount()
+    {
+        return recordCount;
+    }   //getRecordCount
+
+    /**
+     * This method returns the number of records dropped because the file was full.
+     *
+     * @return number of records dropped.
+     */
+    public synchronized int getDroppedRecordCount()
+    {
+        return droppedRecords;
+    }   //getDroppedRecordCount
+
+    /**
+     * This method writes the records to the file and closes it. No more records can be recorded after this.
+     */
+    public synchronized void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            buffer.force();
+            try
+            {
+                file.close();
+            }
+            catch (IOException e)
+            {
+                tracer.traceWarn(moduleName, "Failed to close " + fileName + ": " + e.getMessage());
+            }
+        }
+    }   //close
+
+    /**
+     * This method records the post-state info of a state machine. It records the same information as
+     * TrcDbgTrace.tracePostStateInfo.
+     *
+     * @param name specifies the instance name of the state machine.
+     * @param state specifies the current state of the state machine.
+     * @param driveBase specifies the robot drive base, can be null if the state does not involve robot movement.
+     * @param pidDrive specifies the pidDrive object, can be null if the state does not involve robot movement.
+     * @param ppDrive specifies the purePursuitDrive object, can be null if the state does not involve pp drive.
+     * @param battery specifies the robot battery object, can be null if not interested in battery info.
+     */
+    public synchronized void recordStateInfo(
+        String name, Object state, TrcDriveBase driveBase, TrcPidDrive pidDrive, TrcPurePursuitDrive ppDrive,
+        TrcRobotBattery battery)
+    {
+        if (closed || state == null)
+        {
+            return;
+        }
+
+        if (recordCount >= maxRecords)
+        {
+            droppedRecords++;
+            return;
+        }
+
+        for (int i = 0; i < NUM_COLUMNS; i++)
+        {
+            values[i] = Double.NaN;
+        }
+        values[Column.TIMESTAMP.ordinal()] = TrcTimer.getModeElapsedTime();
+        values[Column.STATE.ordinal()] = getStateId(name, state);
+
+        if (driveBase != null)
+        {
+            if (pidDrive != null && pidDrive.isActive())
+            {
+                setPose(Column.ROBOT_X, driveBase.getFieldPosition());
+                setPose(Column.TARGET_X, pidDrive.getAbsoluteTargetPose());
+                setError(Column.X_ERROR, pidDrive.getXPidCtrl());
+                setError(Column.Y_ERROR, pidDrive.getYPidCtrl());
+                setError(Column.TURN_ERROR, pidDrive.getTurnPidCtrl());
+            }
+
+            if (ppDrive != null && ppDrive.isActive())
+            {
+                setPose(Column.ROBOT_X, driveBase.getFieldPosition());
+                setPose(Column.TARGET_X, ppDrive.getTargetFieldPosition());
+                setPose(Column.ROBOT_VEL_X, driveBase.getFieldVelocity());
+                setError(Column.X_ERROR, ppDrive.getXPosPidCtrl());
+                setError(Column.Y_ERROR, ppDrive.getYPosPidCtrl());
+                setError(Column.TURN_ERROR, ppDrive.getTurnPidCtrl());
+            }
+        }
+
+        if (battery != null)
+        {
+            values[Column.VOLTAGE.ordinal()] = battery.getVoltage();
+            values[Column.LOWEST_VOLTAGE.ordinal()] = battery.getLowestVoltage();
+        }
+
+        int offset = RECORDS_OFFSET + recordCount*RECORD_SIZE;
+        for (int i = 0; i < NUM_COLUMNS; i++)
+        {
+            buffer.putDouble(offset + i*Double.BYTES, values[i]);
+        }
+        recordCount++;
+        // Update the record count last so a partially written record is never counted.
+        buffer.putInt(RECORD_COUNT_OFFSET, recordCount);
+    }   //recordStateInfo
+
+    /**
+     * This method sets the x, y and angle columns starting at the given column from the given pose.
+     *
+     * @param xColumn specifies the x column, the y and angle columns must follow it.
+     * @param pose specifies the pose, can be null.
+     */
+    private void setPose(Column xColumn, TrcPose2D pose)
+    {
+        if (pose != null)
+        {
+            int index = xColumn.ordinal();
+            values[index] = pose.x;
+            values[index + 1] = pose.y;
+            values[index + 2] = pose.angle;
+        }
+    }   //setPose
+
+    /**
+     * This method sets the error column from the given PID controller.
+     *
+     * @param column specifies the error column.
+     * @param pidCtrl specifies the PID controller, can be null.
+     */
+    private void setError(Column column, TrcPidController pidCtrl)
+    {
+        if (pidCtrl != null)
+        {
+            values[column.ordinal()] = pidCtrl.getError();
+        }
+    }   //setError
+
+    /**
+     * This method returns the ID of the given state. If the state is seen for the first time, it is added to the
+     * state name table in the file.
+     *
+     * @param name specifies the instance name of the state machine.
+     * @param state specifies the state.
+     * @return state ID, -1 if the state name table is full.
+     */
+    private int getStateId(String name, Object state)
+    {
+        HashMap<Object, Integer> machineStateIds = stateIds.get(name);
+
+        if (machineStateIds == null)
+        {
+            machineStateIds = new HashMap<>();
+            stateIds.put(name, machineStateIds);
+        }
+
+        Integer stateId = machineStateIds.get(state);
+        if (stateId == null)
+        {
+            if (numStateNames < MAX_STATE_NAMES)
+            {
+                stateId = numStateNames;
+                putName(STATE_NAMES_OFFSET + stateId*NAME_LENGTH, name + "." + state);
+                numStateNames++;
+                buffer.putInt(NUM_STATE_NAMES_OFFSET, numStateNames);
+            }
+            else
+            {
+                stateId = -1;
+            }
+            machineStateIds.put(state, stateId);
+        }
+
+        return stateId;
+    }   //getStateId
+
+    /**
+     * This method writes a name into the file at the given offset, truncated to NAME_LENGTH - 1 ASCII characters.
+     *
+     * @param offset specifies the file offset.
+     * @param name specifies the name.
+     */
+    private void putName(int offset, String name)
+    {
+        int length = Math.min(name.length(), NAME_LENGTH - 1);
+
+        for (int i = 0; i < NAME_LENGTH; i++)
+        {
+            char ch = i < length? name.charAt(i): 0;
+            buffer.put(offset + i, (byte)(ch < 0x80? ch: '?'));
+        }
+    }   //putName
+
+    /**
+     * This method reads a zero padded name from the file at the given offset.
+     *
+     * @param buffer specifies the file buffer.
+     * @param offset specifies the file offset.
+     * @return name read.
+     */
+    private static String getName(MappedByteBuffer buffer, int offset)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < NAME_LENGTH; i++)
+        {
+            byte b = buffer.get(offset + i);
+            if (b == 0)
+            {
+                break;
+            }
+            sb.append((char)b);
+        }
+
+        return sb.toString();
+    }   //getName
+
+    /**
+     * This method exports a telemetry file to a CSV file. The first line contains the column names. The state
+     * column is exported as the state name.
+     *
+     * @param fileName specifies the telemetry file path name.
+     * @param csvFileName specifies the CSV file path name.
+     * @return number of records exported.
+     * @throws IOException if the files cannot be read or written, or the telemetry file is not valid.
+     */
+    public static int exportToCsv(String fileName, String csvFileName) throws IOException
+    {
+        int recordCount;
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+             PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvFileName))))
+        {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            {
+                throw new IOException(fileName + " is not a telemetry file.");
+            }
+
+            int numColumns = buffer.getInt(8);
+            int recordSize = numColumns*Double.BYTES;
+            int stateNamesOffset = COLUMN_NAMES_OFFSET + numColumns*NAME_LENGTH;
+            int recordsOffset = stateNamesOffset + MAX_STATE_NAMES*NAME_LENGTH;
+            int numStateNames = buffer.getInt(NUM_STATE_NAMES_OFFSET);
+            String[] stateNames = new String[numStateNames];
+            int stateColumn = -1;
+            StringBuilder line = new StringBuilder();
+
+            recordCount = buffer.getInt(RECORD_COUNT_OFFSET);
+            for (int i = 0; i < numStateNames; i++)
+            {
+                stateNames[i] = getName(buffer, stateNamesOffset + i*NAME_LENGTH);
+            }
+
+            for (int i = 0; i < numColumns; i++)
+            {
+                String columnName = getName(buffer, COLUMN_NAMES_OFFSET + i*NAME_LENGTH);
+                if (columnName.equals(Column.STATE.toString()))
+                {
+                    stateColumn = i;
+                }
+                line.append(i > 0? ",": "").append(columnName);
+            }
+            csv.println(line);
+
+            for (int r = 0; r < recordCount; r++)
+            {
+                int offset = recordsOffset + r*recordSize;
+
+                line.setLength(0);
+                for (int i = 0; i < numColumns; i++)
+                {
+                    double value = buffer.getDouble(offset + i*Double.BYTES);
+
+                    if (i > 0)
+                    {
+                        line.append(',');
+                    }
+
+                    if (i == stateColumn)
+                    {
+                        int stateId = (int)value;
+                        line.append(stateId >= 0 && stateId < numStateNames? stateNames[stateId]: "");
+                    }
+                    else if (!Double.isNaN(value))
+                    {
+                        line.append(value);
+                    }
+                }
+                csv.println(line);
+            }
+        }
+
+        return recordCount;
+    }   //exportToCsv
+
+}   //class TrcTelemetryRecorder
@@ -24,8 +24,10 @@ package TrcCommonLib.trclib;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -36,8 +38,99 @@ import java.util.concurrent.atomic.AtomicLong;
 public class TrcTimer
 {
     private static final String moduleName = TrcTimer.class.getSimpleName();
+    // The time source must be initialized before anything else that reads the time.
+    private static volatile TimeSource timeSource = new SystemTimeSource();
     private static final TrcDbgTrace staticTracer = new TrcDbgTrace();
 
+    /**
+     * This interface provides the time base of the library. All library code reads time and waits for time to pass
+     * through the time source, so replacing it (e.g. with TrcSimClock) lets code run on simulated time.
+     */
+    public interface TimeSource
+    {
+        /**
+         * This method returns the nano second timestamp since a fixed arbitrary time.
+         *
+         * @return current time in nano second.
+         */
+        long getNanoTime();
+
+        /**
+         * This method returns the current epoch time in msec.
+         *
+         * @return current time in msec.
+         */
+        long getCurrentTimeMillis();
+
+        /**
+         * This method parks the current thread until the given time has passed, it is unparked or interrupted. It
+         * has the same semantics as LockSupport.parkNanos, so it may also return spuriously.
+         *
+         * @param blocker specifies the object the thread is parked on.
+         * @param nanos specifies the time to park in nano seconds, negative to park until unparked.
+         */
+        void parkNanos(Object blocker, long nanos);
+
+        /**
+         * This method unparks the given thread if it is parked, or makes its next park return immediately.
+         *
+         * @param thread specifies the thread to unpark.
+         */
+        void unpark(Thread thread);
+
+        /**
+         * This method is called before a thread that waits on the time source is started, so a simulated time
+         * source knows about the thread before it first waits.
+         *
+         * @param thread specifies the thread about to be started.
+         */
+        void registerThread(Thread thread);
+
+    }   //interface TimeSource
+
+    /**
+     * This class implements the default time source using the system clock.
+     */
+    private static class SystemTimeSource implements TimeSource
+    {
+        @Override
+        public long getNanoTime()
+        {
+            return System.nanoTime();
+        }   //getNanoTime
+
+        @Override
+        public long getCurrentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }   //getCurrentTimeMillis
+
+        @Override
+        public void parkNanos(Object blocker, long nanos)
+        {
+            if (nanos < 0)
+            {
+                LockSupport.park(blocker);
+            }
+            else
+            {
+                LockSupport.parkNanos(blocker, nanos);
+            }
+        }   //parkNanos
+
+        @Override
+        public void unpark(Thread thread)
+        {
+            LockSupport.unpark(thread);
+        }   //unpark
+
+        @Override
+        public void registerThread(Thread thread)
+        {
+        }   //registerThread
+
+    }   //class SystemTimeSource
+
     /**
      * This class encapsulates the state of a timer that must be updated atomically. Therefore, when accessing this
      * object, you must acquire its synchronized lock.
@@ -48,6 +141,8 @@ public class TrcTimer
         AtomicBoolean expired = new AtomicBoolean(false);
         AtomicBoolean canceled = new AtomicBoolean(false);
         TrcEvent notifyEvent = null;
+        // Incremented every time the timer is set so a stale expiration of a previous arming can be told apart.
+        long armGeneration = 0;
 
         @Override
         public String toString()
@@ -103,6 +198,8 @@ public class TrcTimer
             throw new IllegalArgumentException("Either event or callback must not be null.");
         }
 
+        long armGeneration;
+
         if (event != null)
         {
             event.clear();
@@ -124,8 +221,9 @@ public class TrcTimer
             {
                 state.notifyEvent.setCallback(callback, callbackContext);
             }
+            armGeneration = ++state.armGeneration;
         }
-        addTimer(this);
+        addTimer(this, armGeneration);
         tracer.traceDebug(
             instanceName, "timer=%s, time=%.3f, event=%s, callback=%s, context=%s",
             this, time, event, callback != null, callbackContext != null);
@@ -260,15 +358,18 @@ public class TrcTimer
     }   //isActive
 
     /**
-     * This method is called when the timer has expired.
+     * This method is called when the timer has expired. The expiration is ignored if the timer has been canceled or
+     * set again after the timer thread removed it from the heap, since it belongs to the previous arming.
+     *
+     * @param armGeneration specifies the arming of the timer that expired.
      */
-    private void setExpired()
+    private void setExpired(long armGeneration)
     {
         TrcEvent event;
 
         synchronized (state)
         {
-            if (!state.canceled.get())
+            if (!state.canceled.get() && state.armGeneration == armGeneration)
             {
                 state.expiredTimeInMsec.set(0);
                 state.expired.set(true);
@@ -278,7 +379,8 @@ public class TrcTimer
             }
             else
             {
-                // Timer was canceled, event would have been notified already.
+                // Timer was canceled, event would have been notified already. Or it was re-armed, in which case
+                // the new arming is still in the heap.
                 event = null;
             }
         }
@@ -293,13 +395,26 @@ public class TrcTimer
     //
     // Timer Management: It is a singleton. Therefore, everything here are static.
     //
+    // Pending timers are kept in a binary min-heap ordered by expiration time. Each timer remembers its position in
+    // the heap so that both adding and canceling a timer are O(log n). The timer thread parks until the earliest
+    // timer is due, then expires all timers that are due in one batch. Adding a timer that expires sooner than the
+    // one the timer thread is parked on simply unparks the timer thread so it can recalculate its wait time.
+    //
 
     private static final TrcHighPrecisionTime modeStartTime = new TrcHighPrecisionTime("ModeStartTime");
-    private static final ArrayList<TrcTimer> timerList = new ArrayList<>();
-    private static Thread timerThread = null;
+    private static final int INITIAL_HEAP_CAPACITY = 32;
+    private static final Object timerHeapLock = new Object();
+    private static TrcTimer[] timerHeap = new TrcTimer[INITIAL_HEAP_CAPACITY];
+    private static int timerHeapSize = 0;
+    private static volatile Thread timerThread = null;
     private static volatile boolean shuttingDown = false;
-    private static volatile TrcTimer nextTimerToExpire = null;
-    private static volatile TrcTimer preemptingTimer = null;
+    // These are accessed only by the timer thread.
+    private static final ArrayList<TrcTimer> expiredTimers = new ArrayList<>();
+    private static long[] expiredArmGenerations = new long[INITIAL_HEAP_CAPACITY];
+    // These are protected by timerHeapLock.
+    private int heapIndex = -1;
+    private long heapExpiredTimeInMsec = 0;
+    private long heapArmGeneration = 0;
 
     /**
      * This method is called at the start of a competition mode to set the mode start timestamp so that
@@ -310,6 +425,62 @@ public class TrcTimer
         modeStartTime.recordTimestamp();
     }   //recordModeStartTime
 
+    /**
+     * This method sets the time source of the library. It should be called before any timer is set or any thread is
+     * started, typically at the start of a simulation, since pending waits are not carried over to the new time
+     * source. The mode start time is reset to the current time of the new time source.
+     *
+     * @param source specifies the new time source, null to restore the system clock.
+     */
+    public static void setTimeSource(TimeSource source)
+    {
+        timeSource = source != null? source: new SystemTimeSource();
+        modeStartTime.recordTimestamp();
+        staticTracer.traceInfo(moduleName, "Time source set to " + timeSource.getClass().getSimpleName() + ".");
+    }   //setTimeSource
+
+    /**
+     * This method returns the time source of the library.
+     *
+     * @return time source.
+     */
+    public static TimeSource getTimeSource()
+    {
+        return timeSource;
+    }   //getTimeSource
+
+    /**
+     * This method parks the current thread on the time source until the given time has passed, it is unparked or
+     * interrupted. It may also return spuriously, so the caller must check its wait condition again.
+     *
+     * @param blocker specifies the object the thread is parked on.
+     * @param nanos specifies the time to park in nano seconds, negative to park until unparked.
+     */
+    public static void parkNanos(Object blocker, long nanos)
+    {
+        timeSource.parkNanos(blocker, nanos);
+    }   //parkNanos
+
+    /**
+     * This method unparks the given thread parked on the time source.
+     *
+     * @param thread specifies the thread to unpark.
+     */
+    public static void unpark(Thread thread)
+    {
+        timeSource.unpark(thread);
+    }   //unpark
+
+    /**
+     * This method registers a thread that waits on the time source. It must be called before the thread is started.
+     *
+     * @param thread specifies the thread about to be started.
+     */
+    public static void registerThread(Thread thread)
+    {
+        timeSource.registerThread(thread);
+    }   //registerThread
+
     /**
      * This method returns the competition mode elapsed time by subtracting mode start time from the current time.
      * If this method is called before the competition mode is started, the system elapsed time is returned instead.
@@ -355,7 +526,7 @@ public class TrcTimer
      */
     public static long getNanoTime()
     {
-        return System.nanoTime();
+        return timeSource.getNanoTime();
     }   //getNanoTime
 
     /**
@@ -365,7 +536,7 @@ public class TrcTimer
      */
     public static long getCurrentTimeMillis()
     {
-        return System.currentTimeMillis();
+        return timeSource.getCurrentTimeMillis();
     }   //getCurrentTimeMillis
 
     /**
@@ -391,127 +562,212 @@ public class TrcTimer
     }   //getCurrentTimeString
 
     /**
-     * This method puts the current thread to sleep for the given time in msec. It handles InterruptException where
-     * it recalculates the remaining time and calls sleep again repeatedly until the specified sleep time has past.
+     * This method puts the current thread to sleep for the given time in msec on the time source. It ignores
+     * interrupts and keeps waiting until the specified sleep time has past.
      *
      * @param milliTime specifies sleep time in msec.
      */
     public static void sleep(long milliTime)
     {
-        long wakeupTime = System.currentTimeMillis() + milliTime;
+        long wakeupTime = getNanoTime() + milliTime*1000000L;
+        long remainingTime = milliTime*1000000L;
 
-        while (milliTime > 0)
+        while (remainingTime > 0)
         {
-            try
-            {
-                Thread.sleep(milliTime);
-                break;
-            }
-            catch (InterruptedException e)
-            {
-                milliTime = wakeupTime - System.currentTimeMillis();
-            }
+            parkNanos(TrcTimer.class, remainingTime);
+            // Park returns immediately while the interrupt flag is set, so clear it to keep waiting.
+            Thread.interrupted();
+            remainingTime = wakeupTime - getNanoTime();
         }
     }   //sleep
 
     /**
-     * This method adds the timer to the timer list in the order of expiration.
+     * This method adds the timer to the timer heap in the order of expiration. If the timer becomes the earliest
+     * one to expire, the timer thread is unparked so that it will recalculate its wait time.
      *
-     * @param timer specifies the timer to be added to the list.
+     * @param timer specifies the timer to be added to the heap.
+     * @param armGeneration specifies the arming of the timer.
      */
-    private static void addTimer(TrcTimer timer)
+    private static void addTimer(TrcTimer timer, long armGeneration)
     {
-        long expiredTimeInMsec = timer.getExpiredTimeInMsec();
+        Thread threadToUnpark = null;
 
-        synchronized (timerList)
+        synchronized (timerHeapLock)
         {
-            if (nextTimerToExpire != null && expiredTimeInMsec < nextTimerToExpire.getExpiredTimeInMsec())
+            if (timer.heapIndex != -1)
             {
-                staticTracer.traceDebug(moduleName, "Adding timer " + timer + " preempting " + nextTimerToExpire + ".");
-                //
-                // The added new timer expires sooner than the one we are sleeping on. Let's interrupt its sleep and
-                // process this one first.
-                //
-                preemptingTimer = timer;
-                timerThread.interrupt();
+                // The timer is still in the heap, should not happen since set always cancels it first.
+                removeHeapEntry(timer.heapIndex);
             }
-            else
+
+            if (timerHeapSize == timerHeap.length)
             {
-                // Default to end of list in case this timer is the last in the list or the only one in the list.
-                int position = timerList.size();
+                TrcTimer[] newHeap = new TrcTimer[timerHeap.length*2];
+                System.arraycopy(timerHeap, 0, newHeap, 0, timerHeapSize);
+                timerHeap = newHeap;
+            }
 
-                for (int i = 0; i < timerList.size(); i++)
-                {
-                    if (expiredTimeInMsec < timerList.get(i).getExpiredTimeInMsec())
-                    {
-                        position = i;
-                        break;
-                    }
-                }
+            timer.heapExpiredTimeInMsec = timer.getExpiredTimeInMsec();
+            timer.heapArmGeneration = armGeneration;
+            timer.heapIndex = timerHeapSize;
+            timerHeap[timerHeapSize] = timer;
+            timerHeapSize++;
+            siftUp(timer.heapIndex);
+            staticTracer.traceDebug(
+                moduleName, "Adding timer " + timer + " to heap position " + timer.heapIndex + ".");
 
-                staticTracer.traceDebug(moduleName, "Adding timer " + timer + " to queue position " + position + ".");
-                timerList.add(position, timer);
-                //
-                // In case this is the first and only timer in the list, kick start the timer thread.
-                //
-                timerList.notify();
+            if (timerThread == null)
+            {
+                // Timer thread does not exist, let's create one and start it.
+                timerThread = new Thread(TrcTimer::timerTask, moduleName);
+                registerThread(timerThread);
+                timerThread.start();
+            }
+            else if (timer.heapIndex == 0)
+            {
+                // This timer expires sooner than anything the timer thread is waiting on, wake it up.
+                threadToUnpark = timerThread;
             }
         }
 
-        if (timerThread == null)
+        if (threadToUnpark != null)
         {
-            // Timer thread does not exist, let's create one and start it.
-            timerThread = new Thread(TrcTimer::timerTask, moduleName);
-            timerThread.start();
+            unpark(threadToUnpark);
         }
     }   //addTimer
 
     /**
-     * This method removes a timer from the list.
+     * This method removes a timer from the heap.
      *
      * @param timer specifies the timer to be removed.
      */
     private static void removeTimer(TrcTimer timer)
     {
-        // Only do this if we are not shutting down. If we are shutting down, thread cleanup will take care of
-        // the timer list.
-        if (!shuttingDown)
+        synchronized (timerHeapLock)
         {
-            synchronized (timerList)
+            boolean inHeap = timer.heapIndex != -1;
+
+            if (inHeap)
             {
-                if (timer == nextTimerToExpire)
-                {
-                    timerThread.interrupt();
-                    staticTracer.traceDebug(moduleName, "Removing current active timer " + timer);
-                }
-                else
-                {
-                    boolean success = timerList.remove(timer);
-                    staticTracer.traceDebug(moduleName, "Removing timer " + timer + " in the list=" + success);
-                }
+                // If this was the earliest timer, the timer thread will wake up early, find nothing due and
+                // simply park again until the new earliest timer is due. There is no need to wake it up.
+                removeHeapEntry(timer.heapIndex);
             }
+            staticTracer.traceDebug(moduleName, "Removing timer " + timer + " in the heap=" + inHeap);
+        }
+    }   //removeTimer
+
+    /**
+     * This method removes the timer at the given heap position and restores the heap order. It must be called with
+     * timerHeapLock held.
+     *
+     * @param index specifies the heap position of the timer to be removed.
+     * @return removed timer.
+     */
+    private static TrcTimer removeHeapEntry(int index)
+    {
+        TrcTimer timer = timerHeap[index];
+        int lastIndex = timerHeapSize - 1;
+
+        if (index != lastIndex)
+        {
+            timerHeap[index] = timerHeap[lastIndex];
+            timerHeap[index].heapIndex = index;
         }
-        else
+        timerHeap[lastIndex] = null;
+        timerHeapSize--;
+
+        if (index < timerHeapSize)
         {
-            staticTracer.traceDebug(moduleName, "Shutdown in progress, not removing timer " + timer + ".");
+            // The moved timer may need to go either way.
+            siftDown(index);
+            siftUp(index);
         }
-    }   //removeTimer
+        timer.heapIndex = -1;
+
+        return timer;
+    }   //removeHeapEntry
+
+    /**
+     * This method moves the timer at the given heap position up until its parent expires no later than it does.
+     * It must be called with timerHeapLock held.
+     *
+     * @param index specifies the heap position of the timer.
+     */
+    private static void siftUp(int index)
+    {
+        TrcTimer timer = timerHeap[index];
+
+        while (index > 0)
+        {
+            int parentIndex = (index - 1) >>> 1;
+            TrcTimer parent = timerHeap[parentIndex];
+
+            if (parent.heapExpiredTimeInMsec <= timer.heapExpiredTimeInMsec)
+            {
+                break;
+            }
+            timerHeap[index] = parent;
+            parent.heapIndex = index;
+            index = parentIndex;
+        }
+        timerHeap[index] = timer;
+        timer.heapIndex = index;
+    }   //siftUp
+
+    /**
+     * This method moves the timer at the given heap position down until both of its children expire no sooner than
+     * it does. It must be called with timerHeapLock held.
+     *
+     * @param index specifies the heap position of the timer.
+     */
+    private static void siftDown(int index)
+    {
+        TrcTimer timer = timerHeap[index];
+        int halfSize = timerHeapSize >>> 1;
+
+        while (index < halfSize)
+        {
+            int childIndex = 2*index + 1;
+            int rightIndex = childIndex + 1;
+            TrcTimer child = timerHeap[childIndex];
+
+            if (rightIndex < timerHeapSize &&
+                timerHeap[rightIndex].heapExpiredTimeInMsec < child.heapExpiredTimeInMsec)
+            {
+                childIndex = rightIndex;
+                child = timerHeap[childIndex];
+            }
+
+            if (timer.heapExpiredTimeInMsec <= child.heapExpiredTimeInMsec)
+            {
+                break;
+            }
+            timerHeap[index] = child;
+            child.heapIndex = index;
+            index = childIndex;
+        }
+        timerHeap[index] = timer;
+        timer.heapIndex = index;
+    }   //siftDown
 
     /**
      * This method is called by the TrcTaskMgr to shut down the timer thread when it is exiting.
      */
     public static void shutdown()
     {
-        if (timerThread != null)
+        Thread thread = timerThread;
+
+        if (thread != null)
         {
             shuttingDown = true;
-            timerThread.interrupt();
+            unpark(thread);
         }
     }   //shutdown
 
     /**
-     * This method runs by the timer thread to wait for the next timer in the list and signal the timer object when
-     * it expires.
+     * This method runs by the timer thread to wait for the earliest timer in the heap and signal all timers that
+     * have expired.
      */
     private static void timerTask()
     {
@@ -519,135 +775,80 @@ public class TrcTimer
         TrcWatchdogMgr.Watchdog timerThreadWatchdog = TrcWatchdogMgr.registerWatchdog(moduleName);
         while (!shuttingDown)
         {
+            long sleepTimeInMsec;
+
             // Sending heartbeat will also unpause the watchdog if it was paused.
             timerThreadWatchdog.sendHeartBeat();
 
-            try
+            synchronized (timerHeapLock)
             {
-                long sleepTimeInMsec;
+                long currTimeInMsec = TrcTimer.getCurrentTimeMillis();
 
-                synchronized (timerList)
+                while (timerHeapSize > 0 && timerHeap[0].heapExpiredTimeInMsec <= currTimeInMsec)
                 {
-                    if (nextTimerToExpire == null && timerList.isEmpty())
-                    {
-                        staticTracer.traceDebug(moduleName, "Waiting for timer ...");
-                        // Must take the timerList lock before calling wait because it will release the ownership
-                        // and wait for notification.
-                        // We need to pause the watchdog before we wait because we can't send heartbeat while waiting.
-                        timerThreadWatchdog.pauseWatch();
-                        timerList.wait();
-                        timerThreadWatchdog.resumeWatch();
-                        staticTracer.traceDebug(moduleName, "New timer arrived.");
-                    }
+                    TrcTimer timer = removeHeapEntry(0);
 
-                    if (nextTimerToExpire == null)
+                    if (expiredTimers.size() == expiredArmGenerations.length)
                     {
-                        if (!timerList.isEmpty())
-                        {
-                            staticTracer.traceDebug(
-                                moduleName, "Get a timer from the queue (qSize=" + timerList.size() + ").");
-                            // There is no timer in progress, get one from the timer queue.
-                            nextTimerToExpire = timerList.remove(0);
-                            if (nextTimerToExpire.isCanceled())
-                            {
-                                // This timer has been canceled, skip it.
-                                nextTimerToExpire = null;
-                            }
-                        }
-                        else
-                        {
-                            // There should be a timer in the queue. If not, somebody has canceled it and taken it
-                            // out of the queue before we get to it. It's really not a problem but let's log a
-                            // warning and move on.
-                            staticTracer.traceWarn(moduleName, "Expecting a timer from the queue but there is none.");
-                        }
+                        expiredArmGenerations = Arrays.copyOf(expiredArmGenerations, expiredArmGenerations.length*2);
                     }
+                    // Remember which arming expired, the timer may be set again before we signal it.
+                    expiredArmGenerations[expiredTimers.size()] = timer.heapArmGeneration;
+                    expiredTimers.add(timer);
                 }
+                // A negative sleep time means there is no pending timer.
+                sleepTimeInMsec = timerHeapSize > 0? timerHeap[0].heapExpiredTimeInMsec - currTimeInMsec: -1;
+            }
 
-                // sleepTimeInMsec is not zero only if we have a pending timer to process.
-                sleepTimeInMsec = nextTimerToExpire != null?
-                    nextTimerToExpire.getExpiredTimeInMsec() - TrcTimer.getCurrentTimeMillis(): 0;
-                staticTracer.traceDebug(
-                    moduleName, "timer=" + nextTimerToExpire + ", sleepTimeInMsec=" + sleepTimeInMsec);
-
-                if (sleepTimeInMsec > 0)
-                {
-                    // We need to pause the watchdog before we go to sleep because we can't send heartbeat while
-                    // sleeping.
-                    timerThreadWatchdog.pauseWatch();
-                    Thread.sleep(sleepTimeInMsec);
-                    timerThreadWatchdog.resumeWatch();
-                }
-
-                if (nextTimerToExpire != null)
+            if (!expiredTimers.isEmpty())
+            {
+                // Signal the expired timers outside of the lock since the callbacks may set new timers.
+                for (int i = 0; i < expiredTimers.size(); i++)
                 {
-                    // Timer has expired, signal it.
-                    staticTracer.traceDebug(moduleName, "Timer " + nextTimerToExpire + " expired.");
-                    nextTimerToExpire.setExpired();
-                    nextTimerToExpire = null;
+                    TrcTimer timer = expiredTimers.get(i);
+                    staticTracer.traceDebug(moduleName, "Timer " + timer + " expired.");
+                    timer.setExpired(expiredArmGenerations[i]);
                 }
+                expiredTimers.clear();
             }
-            catch (InterruptedException e)
+            else
             {
-                // There are three reasons we get interrupted:
-                //  1. Somebody just added a preempting timer.
-                //  2. Somebody just canceled and removed the current active timer.
-                //  3. Somebody is shutting down the timer thread.
-                synchronized (timerList)
-                {
-                    if (preemptingTimer != null)
-                    {
-                        // Somebody just added a preempting timer.
-                        if (nextTimerToExpire != null)
-                        {
-                            // Somebody just added a timer that will expire sooner than the one we are sleeping on.
-                            // Push this timer back to the front of the list and continue the next loop so the
-                            // preempting timer will be processed first. If nextTimerToExpire is null, it means
-                            // the current timer has been canceled, so don't put it back in the timer queue.
-                            timerList.add(0, nextTimerToExpire);
-                        }
-
-                        staticTracer.traceDebug(
-                            moduleName, "Timer " + preemptingTimer + " is preempting " + nextTimerToExpire + ".");
-                        nextTimerToExpire = preemptingTimer;
-                        preemptingTimer = null;
-                    }
-                    else if (nextTimerToExpire != null && nextTimerToExpire.isCanceled())
-                    {
-                        // Somebody just canceled and removed the current active timer.
-                        staticTracer.traceDebug(moduleName, "timer " + nextTimerToExpire + " was canceled.");
-                        nextTimerToExpire = null;
-                    }
-                    else if (shuttingDown)
-                    {
-                        // Somebody is shutting down the timer thread.
-                        staticTracer.traceDebug(moduleName, "Terminating Timer thread.");
-                        break;
-                    }
-                }
+                staticTracer.traceDebug(moduleName, "Waiting for timer (sleepTimeInMsec=" + sleepTimeInMsec + ")");
+                // We need to pause the watchdog before we park because we can't send heartbeat while parked.
+                // If somebody unparks us before we get here, park will return immediately.
+                timerThreadWatchdog.pauseWatch();
+                parkNanos(timerHeapLock, sleepTimeInMsec < 0? -1: sleepTimeInMsec*1000000L);
+                timerThreadWatchdog.resumeWatch();
             }
         }
         //
         // The thread is terminating, cancel all pending timers before exiting.
         //
-        synchronized (timerList)
+        ArrayList<TrcTimer> pendingTimers = new ArrayList<>();
+        synchronized (timerHeapLock)
         {
-            staticTracer.traceDebug(moduleName, "Terminating: canceling " + timerList.size() + " timers.");
-            for (TrcTimer timer: timerList)
+            staticTracer.traceDebug(moduleName, "Terminating: canceling " + timerHeapSize + " timers.");
+            while (timerHeapSize > 0)
             {
-                staticTracer.traceDebug(moduleName, "Canceling " + timer);
-                timer.cancel();
+                pendingTimers.add(removeHeapEntry(timerHeapSize - 1));
             }
+        }
 
-            timerList.clear();
+        for (TrcTimer timer: pendingTimers)
+        {
+            staticTracer.traceDebug(moduleName, "Canceling " + timer);
+            timer.cancel();
         }
         staticTracer.traceDebug(moduleName, "Timer thread is terminated.");
         //
         // The thread is now terminated. Destroy this instance so we will recreate the thread the next time around.
         //
         timerThreadWatchdog.unregister();
-        timerThread = null;
-        shuttingDown = false;
+        synchronized (timerHeapLock)
+        {
+            timerThread = null;
+            shuttingDown = false;
+        }
     }   //timerTask
 
 }   //class TrcTimer
@@ -23,13 +23,56 @@
 package TrcCommonLib.trclib;
 
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * This class implements the trace logger. In text mode, messages are queued as strings and written to a text log
+ * file by the logger thread. In binary mode, messages are encoded into a preallocated ring buffer of fixed-size
+ * binary records by the calling threads without taking any lock and the logger thread drains the ring buffer into
+ * the log file through a FileChannel. The binary log can be converted to a text log with convertBinaryLog.
+ */
 public class TrcTraceLogger
 {
+    /**
+     * This enum specifies what a binary mode logger does when the ring buffer is full.
+     */
+    public enum BackPressure
+    {
+        DROP,
+        BLOCK
+    }   //enum BackPressure
+
+    //
+    // Binary log file layout: a header of BINLOG_MAGIC (int), BINLOG_VERSION (int) and the record size (int), followed
+    // by fixed-size records. Each record has a timestamp in msec (long), message level (byte), reserved (byte),
+    // instance ID (short), message length (short), reserved (short) followed by the ASCII message bytes. A record with
+    // level NAME_RECORD_LEVEL assigns the instance name in its message to its instance ID.
+    //
+    private static final int BINLOG_MAGIC = 0x5472634c;     //"TrcL"
+    private static final int BINLOG_VERSION = 1;
+    private static final int BINLOG_HEADER_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int NAME_RECORD_LEVEL = 0;
+    private static final int MAX_INSTANCE_ID = 0xffff;
+    private static final long RING_IDLE_PARK_NANOS = 10000000L;    //10 msec
+    private static final long RING_FULL_PARK_NANOS = 100000L;      //100 usec
+
     private final TrcDbgTrace tracer;
     private final String traceLogName;
     private final LinkedBlockingQueue<String> msgQueue;
@@ -39,6 +82,24 @@ public class TrcTraceLogger
     private volatile boolean enabled = false;
     private double totalNanoTime = 0.0;
     private int totalMessages = 0;
+    //
+    // Binary mode.
+    //
+    private final int recordSize;
+    private final int ringMask;
+    private final byte[] ringData;
+    private final AtomicLongArray ringSequences;
+    private final BackPressure backPressure;
+    private final AtomicLong ringTail = new AtomicLong(0);
+    // Number of callers between the enabled check and publishing their records, the logger thread waits for them
+    // before closing the file.
+    private final AtomicInteger activeProducers = new AtomicInteger(0);
+    private final AtomicLong droppedMessages = new AtomicLong(0);
+    private final AtomicLong loggedMessages = new AtomicLong(0);
+    private final ConcurrentHashMap<String, Integer> instanceIds = new ConcurrentHashMap<>();
+    private long ringHead = 0;
+    private FileChannel binLogChannel = null;
+    private ByteBuffer writeBuffer = null;
 
     /**
      * Constructor: Create an instance of the trace logger.
@@ -50,6 +111,46 @@ public class TrcTraceLogger
         this.tracer = new TrcDbgTrace();
         this.traceLogName = traceLogName;
         msgQueue = new LinkedBlockingQueue<>();
+        recordSize = 0;
+        ringMask = 0;
+        ringData = null;
+        ringSequences = null;
+        backPressure = null;
+    }   //TrcTraceLogger
+
+    /**
+     * Constructor: Create an instance of the binary mode trace logger.
+     *
+     * @param traceLogName specifies the log file name.
+     * @param numRecords specifies the number of records in the ring buffer, will be rounded up to a power of 2.
+     * @param maxMsgLength specifies the maximum message length in bytes, longer messages are truncated.
+     * @param backPressure specifies whether to drop the message or block the caller when the ring buffer is full.
+     */
+    public TrcTraceLogger(String traceLogName, int numRecords, int maxMsgLength, BackPressure backPressure)
+    {
+        if (numRecords <= 0 || maxMsgLength <= 0 || maxMsgLength > Short.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Invalid ring buffer size.");
+        }
+
+        int capacity = Integer.highestOneBit(numRecords);
+        if (capacity < numRecords)
+        {
+            capacity <<= 1;
+        }
+
+        this.tracer = new TrcDbgTrace();
+        this.traceLogName = traceLogName;
+        this.msgQueue = null;
+        this.recordSize = RECORD_HEADER_SIZE + maxMsgLength;
+        this.ringMask = capacity - 1;
+        this.ringData = new byte[capacity*recordSize];
+        this.ringSequences = new AtomicLongArray(capacity);
+        this.backPressure = backPressure;
+        for (int i = 0; i < capacity; i++)
+        {
+            ringSequences.set(i, i);
+        }
     }   //TrcTraceLogger
 
     /**
@@ -73,6 +174,36 @@ public class TrcTraceLogger
         tracer.setTraceLevel(msgLevel);
     }   //setTraceLevel
 
+    /**
+     * This method checks if the logger is in binary mode.
+     *
+     * @return true if binary mode, false if text mode.
+     */
+    public boolean isBinaryMode()
+    {
+        return ringData != null;
+    }   //isBinaryMode
+
+    /**
+     * This method returns the number of messages dropped because the ring buffer was full.
+     *
+     * @return number of dropped messages.
+     */
+    public long getDroppedMessageCount()
+    {
+        return droppedMessages.get();
+    }   //getDroppedMessageCount
+
+    /**
+     * This method returns the number of records written to the binary log file, including instance name records.
+     *
+     * @return number of logged records.
+     */
+    public long getLoggedMessageCount()
+    {
+        return loggedMessages.get();
+    }   //getLoggedMessageCount
+
     /**
      * This method enables/disables the trace logger thread.
      *
@@ -88,16 +219,23 @@ public class TrcTraceLogger
             //
             try
             {
-                traceLog = new PrintWriter(new BufferedWriter(new FileWriter(traceLogName, true)));
+                if (isBinaryMode())
+                {
+                    openBinaryLog();
+                }
+                else
+                {
+                    traceLog = new PrintWriter(new BufferedWriter(new FileWriter(traceLogName, true)));
+                }
             }
             catch (IOException e)
             {
                 e.printStackTrace();
                 throw new RuntimeException("Failed to open trace log file " + traceLogName);
             }
-            loggerThread = new Thread(this::loggerTask, traceLogName);
-            loggerThread.start();
+            loggerThread = new Thread(isBinaryMode()? this::binaryLoggerTask: this::loggerTask, traceLogName);
             this.enabled = true;
+            loggerThread.start();
         }
         else if (loggerThread != null && !enabled)
         {
@@ -113,7 +251,15 @@ public class TrcTraceLogger
                 // busy emptying its queue. So we don't need to double signal termination.
                 //
                 this.enabled = false;
-                loggerThread.interrupt();
+                if (isBinaryMode())
+                {
+                    // Don't interrupt the binary logger thread, interrupting it would close the FileChannel.
+                    LockSupport.unpark(loggerThread);
+                }
+                else
+                {
+                    loggerThread.interrupt();
+                }
             }
         }
     }   //setEnabled
@@ -123,7 +269,7 @@ public class TrcTraceLogger
      *
      * @return true if trace log is enabled, false if disabled.
      */
-    public synchronized boolean isEnabled()
+    public boolean isEnabled()
     {
         return enabled;
     }   //isEnabled
@@ -133,11 +279,47 @@ public class TrcTraceLogger
      *
      * @param msg specifies the message to be logged.
      */
-    public synchronized boolean logMessage(String msg)
+    public boolean logMessage(String msg)
+    {
+        return logMessage(null, TrcDbgTrace.MsgLevel.INFO, msg);
+    }   //logMessage
+
+    /**
+     * This method is called to log a message to the log file. In binary mode, the caller instance and the message
+     * level are recorded in the binary record.
+     *
+     * @param callerInstance specifies the name to identify the caller, can be null if none.
+     * @param level specifies the message level.
+     * @param msg specifies the message to be logged.
+     * @return true if the message is logged, false if the logger is disabled or the message was dropped.
+     */
+    public boolean logMessage(String callerInstance, TrcDbgTrace.MsgLevel level, String msg)
     {
         boolean success = false;
 
-        if (isEnabled())
+        if (isBinaryMode())
+        {
+            // Register as an active producer before checking enabled so the logger thread either sees us or we
+            // see it disabled.
+            activeProducers.incrementAndGet();
+            try
+            {
+                if (isEnabled())
+                {
+                    int instanceId = callerInstance != null? getInstanceId(callerInstance): 0;
+                    success = putRecord(level.value, instanceId, msg, backPressure);
+                    if (!success)
+                    {
+                        droppedMessages.incrementAndGet();
+                    }
+                }
+            }
+            finally
+            {
+                activeProducers.decrementAndGet();
+            }
+        }
+        else if (isEnabled())
         {
             success = msgQueue.add(msg);
         }
@@ -145,6 +327,109 @@ public class TrcTraceLogger
         return success;
     }   //logMessage
 
+    /**
+     * This method returns the instance ID of the given caller instance name. If the name doesn't have an ID yet,
+     * one is assigned and a name record is put in the ring buffer before any message record using that ID. The
+     * instance ID is 16-bit in the record, so once all IDs are used, new instance names are logged without one.
+     *
+     * @param callerInstance specifies the caller instance name.
+     * @return instance ID, 0 if none.
+     */
+    private int getInstanceId(String callerInstance)
+    {
+        Integer instanceId = instanceIds.get(callerInstance);
+
+        if (instanceId == null)
+        {
+            synchronized (instanceIds)
+            {
+                instanceId = instanceIds.get(callerInstance);
+                if (instanceId == null)
+                {
+                    if (instanceIds.size() >= MAX_INSTANCE_ID)
+                    {
+                        return 0;
+                    }
+                    // Instance IDs start from 1, 0 means no instance. Name records must not be dropped.
+                    instanceId = instanceIds.size() + 1;
+                    putRecord(NAME_RECORD_LEVEL, instanceId, callerInstance, BackPressure.BLOCK);
+                    instanceIds.put(callerInstance, instanceId);
+                }
+            }
+        }
+
+        return instanceId;
+    }   //getInstanceId
+
+    /**
+     * This method claims a slot in the ring buffer and encodes a record into it. Non-ASCII characters are replaced
+     * with '?' so that encoding does not allocate.
+     *
+     * @param level specifies the record level.
+     * @param instanceId specifies the instance ID.
+     * @param msg specifies the message.
+     * @param policy specifies what to do if the ring buffer is full.
+     * @return true if the record is put in the ring buffer, false if it was dropped.
+     */
+    private boolean putRecord(int level, int instanceId, String msg, BackPressure policy)
+    {
+        long ticket;
+        int index;
+
+        while (true)
+        {
+            ticket = ringTail.get();
+            index = (int)(ticket & ringMask);
+            long diff = ringSequences.get(index) - ticket;
+
+            if (diff == 0)
+            {
+                if (ringTail.compareAndSet(ticket, ticket + 1))
+                {
+                    break;
+                }
+            }
+            else if (diff < 0)
+            {
+                // The ring buffer is full.
+                if (policy == BackPressure.DROP || !enabled)
+                {
+                    return false;
+                }
+                LockSupport.unpark(loggerThread);
+                LockSupport.parkNanos(RING_FULL_PARK_NANOS);
+            }
+        }
+
+        int offset = index*recordSize;
+        int msgLength = Math.min(msg.length(), recordSize - RECORD_HEADER_SIZE);
+        long timestamp = TrcTimer.getCurrentTimeMillis();
+
+        for (int i = 7; i >= 0; i--)
+        {
+            ringData[offset + i] = (byte)timestamp;
+            timestamp >>>= 8;
+        }
+        ringData[offset + 8] = (byte)level;
+        ringData[offset + 9] = 0;
+        ringData[offset + 10] = (byte)(instanceId >>> 8);
+        ringData[offset + 11] = (byte)instanceId;
+        ringData[offset + 12] = (byte)(msgLength >>> 8);
+        ringData[offset + 13] = (byte)msgLength;
+        ringData[offset + 14] = 0;
+        ringData[offset + 15] = 0;
+        offset += RECORD_HEADER_SIZE;
+        for (int i = 0; i < msgLength; i++)
+        {
+            char ch = msg.charAt(i);
+            ringData[offset + i] = (byte)(ch < 0x80? ch: '?');
+        }
+        // Publish the record to the logger thread.
+        ringSequences.set(index, ticket + 1);
+
+        return true;
+    }   //putRecord
+
     /**
      * This method writes the message to the trace log and also keeps track of logging performance.
      *
@@ -219,4 +504,221 @@ public class TrcTraceLogger
         loggerThread = null;
     }   //loggerTask
 
+    //
+    // Binary mode.
+    //
+
+    /**
+     * This method opens the binary log file for append and writes the file header if the file is new. An existing
+     * file is only appended to if its header has the same version and record size as this logger.
+     *
+     * @throws IOException if the file cannot be opened or written, or the existing file is not compatible.
+     */
+    private void openBinaryLog() throws IOException
+    {
+        File binLogFile = new File(traceLogName);
+
+        if (binLogFile.length() > 0)
+        {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(binLogFile)))
+            {
+                if (binLogFile.length() < BINLOG_HEADER_SIZE ||
+                    in.readInt() != BINLOG_MAGIC || in.readInt() != BINLOG_VERSION || in.readInt() != recordSize)
+                {
+                    throw new IOException(
+                        traceLogName + " is not a binary trace log with record size " + recordSize + ".");
+                }
+            }
+        }
+
+        binLogChannel = new FileOutputStream(traceLogName, true).getChannel();
+        writeBuffer = ByteBuffer.allocateDirect(Math.max(recordSize*64, 64*1024));
+        if (binLogChannel.size() == 0)
+        {
+            writeBuffer.putInt(BINLOG_MAGIC).putInt(BINLOG_VERSION).putInt(recordSize);
+            flushWriteBuffer();
+        }
+    }   //openBinaryLog
+
+    /**
+     * This method writes the content of the write buffer to the binary log file.
+     */
+    private void flushWriteBuffer()
+    {
+        writeBuffer.flip();
+        try
+        {
+            while (writeBuffer.hasRemaining())
+            {
+                binLogChannel.write(writeBuffer);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        writeBuffer.clear();
+    }   //flushWriteBuffer
+
+    /**
+     * This method moves all published records from the ring buffer to the write buffer, flushing the write buffer
+     * to the file whenever it is full.
+     *
+     * @return number of records drained.
+     */
+    private int drainRing()
+    {
+        int count = 0;
+
+        while (true)
+        {
+            int index = (int)(ringHead & ringMask);
+
+            if (ringSequences.get(index) != ringHead + 1)
+            {
+                // Nothing more has been published.
+                break;
+            }
+
+            if (writeBuffer.remaining() < recordSize)
+            {
+                flushWriteBuffer();
+            }
+            writeBuffer.put(ringData, index*recordSize, recordSize);
+            // Release the slot back to the producers for the next lap.
+            ringSequences.set(index, ringHead + ringMask + 1);
+            ringHead++;
+            count++;
+        }
+
+        if (count > 0)
+        {
+            flushWriteBuffer();
+            loggedMessages.addAndGet(count);
+        }
+
+        return count;
+    }   //drainRing
+
+    /**
+     * This method is called when the binary logger thread is started. It periodically drains the ring buffer into
+     * the log file. When the logger is disabled, it drains the remaining records before closing the file.
+     */
+    private void binaryLoggerTask()
+    {
+        tracer.traceDebug(traceLogName, "Binary Trace Logger starting...");
+        while (enabled)
+        {
+            if (drainRing() == 0)
+            {
+                LockSupport.parkNanos(RING_IDLE_PARK_NANOS);
+            }
+        }
+        //
+        // The thread is terminating, empty the ring buffer before exiting. Callers that passed the enabled check
+        // may still be writing their records, so wait until all of them have published and been drained.
+        //
+        while (activeProducers.get() > 0 || ringHead != ringTail.get())
+        {
+            if (drainRing() == 0)
+            {
+                LockSupport.parkNanos(RING_FULL_PARK_NANOS);
+            }
+        }
+        tracer.traceDebug(
+            traceLogName, "Closing Binary Trace Log (logged=%d, dropped=%d)",
+            loggedMessages.get(), droppedMessages.get());
+        try
+        {
+            binLogChannel.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        binLogChannel = null;
+        writeBuffer = null;
+        loggerThread = null;
+    }   //binaryLoggerTask
+
+    /**
+     * This method converts a binary trace log to a text trace log in the same format as a text mode trace log.
+     *
+     * @param binLogName specifies the binary log file name.
+     * @param textLogName specifies the text log file name.
+     * @param instanceFilter specifies the caller instance name to convert messages for, null to convert all.
+     * @return number of messages converted.
+     * @throws IOException if the files cannot be read or written, or the binary log is not valid.
+     */
+    public static int convertBinaryLog(String binLogName, String textLogName, String instanceFilter)
+        throws IOException
+    {
+        int count = 0;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(binLogName));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(textLogName))))
+        {
+            if (in.readInt() != BINLOG_MAGIC || in.readInt() != BINLOG_VERSION)
+            {
+                throw new IOException(binLogName + " is not a binary trace log.");
+            }
+
+            int recordSize = in.readInt();
+            byte[] record = new byte[recordSize];
+            ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+            HashMap<Integer, String> instanceNames = new HashMap<>();
+
+            while (true)
+            {
+                try
+                {
+                    in.readFully(record);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                recordBuffer.clear();
+                recordBuffer.getLong();     //timestamp
+                int level = recordBuffer.get();
+                recordBuffer.get();
+                int instanceId = recordBuffer.getShort() & 0xffff;
+                int msgLength = recordBuffer.getShort() & 0xffff;
+
+                if (msgLength > recordSize - RECORD_HEADER_SIZE)
+                {
+                    throw new IOException(binLogName + " has a corrupted record.");
+                }
+
+                String msg = new String(record, RECORD_HEADER_SIZE, msgLength, "US-ASCII");
+
+                if (level == NAME_RECORD_LEVEL)
+                {
+                    instanceNames.put(instanceId, msg);
+                }
+                else if (instanceFilter == null || instanceFilter.equals(instanceNames.get(instanceId)))
+                {
+                    out.print(msg + "\r\n");
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }   //convertBinaryLog
+
+    /**
+     * This method converts a binary trace log to a text trace log in the same format as a text mode trace log.
+     *
+     * @param binLogName specifies the binary log file name.
+     * @param textLogName specifies the text log file name.
+     * @return number of messages converted.
+     * @throws IOException if the files cannot be read or written, or the binary log is not valid.
+     */
+    public static int convertBinaryLog(String binLogName, String textLogName) throws IOException
+    {
+        return convertBinaryLog(binLogName, textLogName, null);
+    }   //convertBinaryLog
+
 }   //class TrcTraceLogger
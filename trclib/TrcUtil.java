@@ -189,6 +189,19 @@ public class TrcUtil
         return nums.length == 0 ? 0.0 : sum(nums) / nums.length;
     }   //average
 
+    /**
+     * This method calculates the magnitude of the given x and y components. This is the common case of the variable
+     * argument version but doesn't allocate an argument array, so it is safe to call in periodic loops.
+     *
+     * @param x specifies the x component.
+     * @param y specifies the y component.
+     * @return magnitude of the x and y components.
+     */
+    public static double magnitude(double x, double y)
+    {
+        return Math.sqrt(x * x + y * y);
+    }   //magnitude
+
     /**
      * This method calculates the magnitudes of the given array of numbers.
      *
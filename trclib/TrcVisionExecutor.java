@@ -0,0 +1,742 @@
+/*
+ * Copyright (c) 2024 Titan Robotics Club (http://www.titanrobotics.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package TrcCommonLib.trclib;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class implements a vision executor that runs multiple OpenCV pipelines on frames from multiple cameras in
+ * parallel. Each camera has its own acquisition task grabbing frames into a ring of image buffers. Every acquired
+ * frame is fanned out to all pipelines added to that camera without copying, and the pipelines run on a fixed set of
+ * worker threads. Each pipeline is pinned to one worker thread, so the Mats a pipeline owns are only ever touched by
+ * that thread. When all pipelines of a camera are done with a frame, their results are merged into a FrameResult
+ * stamped with the frame number and acquisition time, and the image buffer is reused for a new frame.
+ * <p>
+ * Since the pipelines of a camera share the same input frame, they must treat it as read-only. In particular, they
+ * must not annotate the input frame.
+ */
+public class TrcVisionExecutor
+{
+    /**
+     * This class contains the merged results of all pipelines of a camera for one frame.
+     */
+    public static class FrameResult
+    {
+        public final String cameraName;
+        public final long frameNumber;
+        public final double timestamp;
+        private final String[] pipelineNames;
+        private final TrcOpenCvDetector.DetectedObject<?>[][] detectedObjects;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param cameraName specifies the name of the camera the frame came from.
+         * @param frameNumber specifies the frame number, counting from 1 since the executor was enabled.
+         * @param timestamp specifies the time the frame was acquired in seconds.
+         * @param pipelineNames specifies the names of the pipelines.
+         * @param detectedObjects specifies the detected objects of each pipeline, in the same order as the names.
+         */
+        private FrameResult(
+            String cameraName, long frameNumber, double timestamp, String[] pipelineNames,
+            TrcOpenCvDetector.DetectedObject<?>[][] detectedObjects)
+        {
+            this.cameraName = cameraName;
+            this.frameNumber = frameNumber;
+            this.timestamp = timestamp;
+            this.pipelineNames = pipelineNames;
+            this.detectedObjects = detectedObjects;
+        }   //FrameResult
+
+        /**
+         * This method returns the number of pipelines in the result.
+         *
+         * @return number of pipelines.
+         */
+        public int getNumPipelines()
+        {
+            return pipelineNames.length;
+        }   //getNumPipelines
+
+        /**
+         * This method returns the name of a pipeline in the result.
+         *
+         * @param index specifies the pipeline index in the order the pipelines were added to the camera.
+         * @return pipeline name.
+         */
+        public String getPipelineName(int index)
+        {
+            return pipelineNames[index];
+        }   //getPipelineName
+
+        /**
+         * This method returns the objects detected by a pipeline.
+         *
+         * @param index specifies the pipeline index in the order the pipelines were added to the camera.
+         * @return detected objects, null if none detected.
+         */
+        public TrcOpenCvDetector.DetectedObject<?>[] getDetectedObjects(int index)
+        {
+            return detectedObjects[index];
+        }   //getDetectedObjects
+
+        /**
+         * This method returns the objects detected by the named pipeline.
+         *
+         * @param pipelineName specifies the pipeline name.
+         * @return detected objects, null if none detected or the pipeline is not found.
+         */
+        public TrcOpenCvDetector.DetectedObject<?>[] getDetectedObjects(String pipelineName)
+        {
+            for (int i = 0; i < pipelineNames.length; i++)
+            {
+                if (pipelineNames[i].equals(pipelineName))
+                {
+                    return detectedObjects[i];
+                }
+            }
+
+            return null;
+        }   //getDetectedObjects
+
+        /**
+         * This method returns the string form of the frame result.
+         *
+         * @return string form of the frame result.
+         */
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder(
+                String.format(Locale.US, "%s#%d(timestamp=%.3f", cameraName, frameNumber, timestamp));
+
+            for (int i = 0; i < pipelineNames.length; i++)
+            {
+                sb.append(", ").append(pipelineNames[i]).append("=")
+                  .append(detectedObjects[i] != null? detectedObjects[i].length: 0);
+            }
+
+            return sb.append(")").toString();
+        }   //toString
+
+    }   //class FrameResult
+
+    /**
+     * This class encapsulates a pipeline added to a camera and the worker thread it is pinned to.
+     */
+    private static class PipelineInfo
+    {
+        final String pipelineName;
+        final TrcOpenCvPipeline<TrcOpenCvDetector.DetectedObject<?>> pipeline;
+        final Worker worker;
+        final TrcLatencyHistogram latencyHistogram;
+
+        PipelineInfo(
+            String pipelineName, TrcOpenCvPipeline<TrcOpenCvDetector.DetectedObject<?>> pipeline, Worker worker)
+        {
+            this.pipelineName = pipelineName;
+            this.pipeline = pipeline;
+            this.worker = worker;
+            this.latencyHistogram = new TrcLatencyHistogram(pipelineName, 0);
+        }   //PipelineInfo
+
+    }   //class PipelineInfo
+
+    /**
+     * This class encapsulates an image buffer of a camera and the per-frame state of its pipelines. It is owned by
+     * the acquisition task while free and shared read-only by the pipelines while they process it.
+     */
+    private static class FrameSlot
+    {
+        final Camera camera;
+        final Mat image = new Mat();
+        final AtomicInteger pendingCount = new AtomicInteger(0);
+        final TrcOpenCvDetector.DetectedObject<?>[][] results;
+        final PipelineJob[] jobs;
+        long frameNumber;
+        double timestamp;
+
+        FrameSlot(Camera camera, int numPipelines)
+        {
+            this.camera = camera;
+            results = new TrcOpenCvDetector.DetectedObject<?>[numPipelines][];
+            jobs = new PipelineJob[numPipelines];
+            for (int i = 0; i < numPipelines; i++)
+            {
+                jobs[i] = new PipelineJob(this, i);
+            }
+        }   //FrameSlot
+
+    }   //class FrameSlot
+
+    /**
+     * This class encapsulates the job of running one pipeline on one frame. Jobs are preallocated with their frame
+     * slot so that fanning out a frame doesn't allocate.
+     */
+    private static class PipelineJob
+    {
+        final FrameSlot slot;
+        final int pipelineIndex;
+
+        PipelineJob(FrameSlot slot, int pipelineIndex)
+        {
+            this.slot = slot;
+            this.pipelineIndex = pipelineIndex;
+        }   //PipelineJob
+
+    }   //class PipelineJob
+
+    /**
+     * This class implements a worker thread. It runs the jobs of the pipelines pinned to it in the order they
+     * arrive and waits when there is none.
+     */
+    private class Worker implements Runnable
+    {
+        private final String workerName;
+        private TrcRingQueue<PipelineJob> jobQueue = null;
+        private Thread thread = null;
+        private volatile boolean running = false;
+        private volatile boolean waiting = false;
+
+        Worker(String workerName)
+        {
+            this.workerName = workerName;
+        }   //Worker
+
+        /**
+         * This method starts the worker thread with a new job queue.
+         *
+         * @param queueCapacity specifies the job queue capacity, it must hold all jobs that can be outstanding.
+         */
+        void start(int queueCapacity)
+        {
+            jobQueue = new TrcRingQueue<>(queueCapacity);
+            running = true;
+            thread = new Thread(this, workerName);
+            thread.start();
+        }   //start
+
+        /**
+         * This method stops the worker thread and waits for it to finish its current job, so the image buffers can
+         * be released safely afterwards. Jobs still in the queue are not run, they are dropped on the next start.
+         */
+        void stop()
+        {
+            running = false;
+            LockSupport.unpark(thread);
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }   //stop
+
+        /**
+         * This method queues a job to the worker and wakes it up if it is waiting.
+         *
+         * @param job specifies the job.
+         */
+        void addJob(PipelineJob job)
+        {
+            jobQueue.offer(job);
+            if (waiting)
+            {
+                LockSupport.unpark(thread);
+            }
+        }   //addJob
+
+        /**
+         * This method runs the worker thread.
+         */
+        @Override
+        public void run()
+        {
+            TrcRingQueue<PipelineJob> queue = jobQueue;
+
+            while (running)
+            {
+                PipelineJob job = queue.poll();
+
+                if (job != null)
+                {
+                    runJob(job);
+                }
+                else
+                {
+                    waiting = true;
+                    if (running && queue.isEmpty())
+                    {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                }
+            }
+        }   //run
+
+    }   //class Worker
+
+    /**
+     * This class implements a camera of the executor. It has its own acquisition task and image buffers and a list
+     * of pipelines to run on every frame.
+     */
+    public class Camera
+    {
+        private final String cameraName;
+        private final TrcVideoSource<Mat> videoSource;
+        private final int numImageBuffers;
+        private final ArrayList<PipelineInfo> pipelines = new ArrayList<>();
+        private final TrcTaskMgr.TaskObject acquisitionTaskObj;
+        private final AtomicReference<FrameResult> latestResult = new AtomicReference<>();
+        private final AtomicLong droppedFrameCount = new AtomicLong(0);
+        private long processingInterval = 0;
+        private FrameSlot[] frameSlots = null;
+        private TrcRingQueue<FrameSlot> freeQueue = null;
+        private String[] pipelineNames = null;
+        private long frameCount = 0;
+        // The acquisition task runs with acquisitionLock held, so stop can wait for a run in progress by taking the
+        // lock. The lock also serializes a late run of the previous task thread, which TrcTaskMgr does not join on
+        // unregister, with the task thread of the next enable.
+        private final Object acquisitionLock = new Object();
+        private volatile boolean acquiring = false;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param cameraName specifies the camera name.
+         * @param videoSource specifies the video source to grab frames from.
+         * @param numImageBuffers specifies the number of image buffers, it limits how many frames can be in flight.
+         */
+        private Camera(String cameraName, TrcVideoSource<Mat> videoSource, int numImageBuffers)
+        {
+            this.cameraName = cameraName;
+            this.videoSource = videoSource;
+            this.numImageBuffers = numImageBuffers;
+            acquisitionTaskObj = TrcTaskMgr.createTask(
+                instanceName + "." + cameraName, (taskType, runMode, slowPeriodicLoop) -> acquisitionTask());
+        }   //Camera
+
+        /**
+         * This method returns the camera name.
+         *
+         * @return camera name.
+         */
+        @Override
+        public String toString()
+        {
+            return cameraName;
+        }   //toString
+
+        /**
+         * This method adds a pipeline to run on every frame of this camera. It must be called while the executor is
+         * disabled.
+         *
+         * @param pipelineName specifies the pipeline name.
+         * @param pipeline specifies the pipeline.
+         * @throws IllegalStateException if the executor is enabled.
+         */
+        public void addPipeline(String pipelineName, TrcOpenCvPipeline<TrcOpenCvDetector.DetectedObject<?>> pipeline)
+        {
+            synchronized (TrcVisionExecutor.this)
+            {
+                if (enabled)
+                {
+                    throw new IllegalStateException("Can't add pipelines while the executor is enabled.");
+                }
+                // Spread the pipelines of all cameras evenly over the workers.
+                pipelines.add(new PipelineInfo(pipelineName, pipeline, workers[numPipelines % workers.length]));
+                numPipelines++;
+            }
+        }   //addPipeline
+
+        /**
+         * This method sets the acquisition interval of the camera.
+         *
+         * @param interval specifies the interval in msec, 0 to acquire frames as fast as possible.
+         */
+        public void setProcessingInterval(long interval)
+        {
+            synchronized (TrcVisionExecutor.this)
+            {
+                processingInterval = interval;
+                acquisitionTaskObj.setTaskInterval(interval);
+            }
+        }   //setProcessingInterval
+
+        /**
+         * This method returns the latest merged result of the camera. Note that this call consumes the result,
+         * meaning if this method is called again before the next frame is finished processing, it will return null.
+         *
+         * @return latest frame result, null if there is no new result.
+         */
+        public FrameResult getLatestResult()
+        {
+            return latestResult.getAndSet(null);
+        }   //getLatestResult
+
+        /**
+         * This method returns the number of acquisition task runs that didn't grab a frame because all image buffers
+         * were still being processed. If the processing interval is 0, the acquisition task runs in a tight loop, so
+         * this counts loop iterations rather than camera frames.
+         *
+         * @return number of dropped acquisitions.
+         */
+        public long getDroppedFrameCount()
+        {
+            return droppedFrameCount.get();
+        }   //getDroppedFrameCount
+
+        /**
+         * This method returns the processing latency snapshot of a pipeline.
+         *
+         * @param pipelineName specifies the pipeline name.
+         * @return latency snapshot, null if the pipeline is not found.
+         */
+        public TrcLatencyHistogram.Snapshot getPipelineLatencySnapshot(String pipelineName)
+        {
+            synchronized (TrcVisionExecutor.this)
+            {
+                for (PipelineInfo info: pipelines)
+                {
+                    if (info.pipelineName.equals(pipelineName))
+                    {
+                        return info.latencyHistogram.getSnapshot();
+                    }
+                }
+            }
+
+            return null;
+        }   //getPipelineLatencySnapshot
+
+        /**
+         * This method prepares the frame slots and starts the acquisition task. It is called when the executor is
+         * enabled.
+         */
+        private void start()
+        {
+            if (!pipelines.isEmpty())
+            {
+                frameSlots = new FrameSlot[numImageBuffers];
+                freeQueue = new TrcRingQueue<>(numImageBuffers);
+                pipelineNames = new String[pipelines.size()];
+                for (int i = 0; i < pipelineNames.length; i++)
+                {
+                    pipelineNames[i] = pipelines.get(i).pipelineName;
+                }
+                for (int i = 0; i < frameSlots.length; i++)
+                {
+                    frameSlots[i] = new FrameSlot(this, pipelines.size());
+                    freeQueue.offer(frameSlots[i]);
+                }
+                frameCount = 0;
+                latestResult.set(null);
+                acquiring = true;
+                acquisitionTaskObj.registerTask(
+                    TrcTaskMgr.TaskType.STANDALONE_TASK, processingInterval, Thread.NORM_PRIORITY);
+            }
+        }   //start
+
+        /**
+         * This method stops the acquisition task and waits for a run that is in progress to finish, so no frame is
+         * grabbed or handed to a worker after this returns. It is called when the executor is disabled.
+         */
+        private void stop()
+        {
+            acquisitionTaskObj.unregisterTask();
+            synchronized (acquisitionLock)
+            {
+                // Any run after this will see acquiring cleared and return without touching the buffers.
+                acquiring = false;
+            }
+        }   //stop
+
+        /**
+         * This method releases the image buffers. It is called after the workers are stopped.
+         */
+        private void releaseFrameSlots()
+        {
+            if (frameSlots != null)
+            {
+                for (FrameSlot slot: frameSlots)
+                {
+                    slot.image.release();
+                }
+                frameSlots = null;
+            }
+        }   //releaseFrameSlots
+
+        /**
+         * This method runs periodically to acquire a frame into a free image buffer and fan it out to all pipelines.
+         */
+        private void acquisitionTask()
+        {
+            synchronized (acquisitionLock)
+            {
+                if (!acquiring)
+                {
+                    // The camera is being stopped, the image buffers may be released any time now.
+                    return;
+                }
+
+                TrcRingQueue<FrameSlot> queue = freeQueue;
+                FrameSlot slot = queue != null? queue.poll(): null;
+
+                if (slot == null)
+                {
+                    droppedFrameCount.incrementAndGet();
+                }
+                else if (videoSource.getFrame(slot.image))
+                {
+                    slot.frameNumber = ++frameCount;
+                    // getFrame may block until a new frame arrives, so stamp the frame when it returns. TrcVisionTask
+                    // uses the same convention.
+                    slot.timestamp = TrcTimer.getCurrentTime();
+                    slot.pendingCount.set(slot.jobs.length);
+                    for (int i = 0; i < slot.jobs.length; i++)
+                    {
+                        pipelines.get(i).worker.addJob(slot.jobs[i]);
+                    }
+                }
+                else
+                {
+                    queue.offer(slot);
+                }
+            }
+        }   //acquisitionTask
+
+        /**
+         * This method is called by the worker that finished the last pipeline of a frame. It publishes the merged
+         * result and frees the image buffer.
+         *
+         * @param slot specifies the frame slot.
+         */
+        private void completeFrame(FrameSlot slot)
+        {
+            TrcOpenCvDetector.DetectedObject<?>[][] results = slot.results.clone();
+
+            for (int i = 0; i < slot.results.length; i++)
+            {
+                slot.results[i] = null;
+            }
+            latestResult.set(new FrameResult(cameraName, slot.frameNumber, slot.timestamp, pipelineNames, results));
+            freeQueue.offer(slot);
+        }   //completeFrame
+
+    }   //class Camera
+
+    private final TrcDbgTrace tracer;
+    private final String instanceName;
+    private final Worker[] workers;
+    private final ArrayList<Camera> cameras = new ArrayList<>();
+    private int numPipelines = 0;
+    private boolean enabled = false;
+
+    /**
+     * Constructor: Create an instance of the object.
+     *
+     * @param instanceName specifies the instance name.
+     * @param numWorkers specifies the number of worker threads, typically no more than the number of CPU cores.
+     */
+    public TrcVisionExecutor(String instanceName, int numWorkers)
+    {
+        if (numWorkers <= 0)
+        {
+            throw new IllegalArgumentException("numWorkers must be greater than 0.");
+        }
+
+        this.tracer = new TrcDbgTrace();
+        this.instanceName = instanceName;
+        workers = new Worker[numWorkers];
+        for (int i = 0; i < numWorkers; i++)
+        {
+            workers[i] = new Worker(instanceName + ".worker" + i);
+        }
+    }   //TrcVisionExecutor
+
+    /**
+     * Constructor: Create an instance of the object with one worker thread per CPU core.
+     *
+     * @param instanceName specifies the instance name.
+     */
+    public TrcVisionExecutor(String instanceName)
+    {
+        this(instanceName, Runtime.getRuntime().availableProcessors());
+    }   //TrcVisionExecutor
+
+    /**
+     * This method returns the instance name.
+     *
+     * @return instance name.
+     */
+    @Override
+    public String toString()
+    {
+        return instanceName;
+    }   //toString
+
+    /**
+     * This method adds a camera to the executor. It must be called while the executor is disabled.
+     *
+     * @param cameraName specifies the camera name.
+     * @param videoSource specifies the video source to grab frames from.
+     * @param numImageBuffers specifies the number of image buffers for the camera, it limits how many frames of
+     *        the camera can be in flight at the same time.
+     * @return the camera object to add pipelines to.
+     * @throws IllegalStateException if the executor is enabled.
+     */
+    public synchronized Camera addCamera(String cameraName, TrcVideoSource<Mat> videoSource, int numImageBuffers)
+    {
+        if (enabled)
+        {
+            throw new IllegalStateException("Can't add cameras while the executor is enabled.");
+        }
+
+        if (numImageBuffers <= 0)
+        {
+            throw new IllegalArgumentException("numImageBuffers must be greater than 0.");
+        }
+
+        Camera camera = new Camera(cameraName, videoSource, numImageBuffers);
+        cameras.add(camera);
+
+        return camera;
+    }   //addCamera
+
+    /**
+     * This method enables/disables the executor. When enabled, the workers are started and every camera with
+     * pipelines starts acquiring frames. When disabled, the acquisition stops, the workers are stopped after
+     * finishing their current job and only then are the image buffers released.
+     *
+     * @param enabled specifies true to enable the executor, false to disable.
+     */
+    public synchronized void setEnabled(boolean enabled)
+    {
+        if (enabled && !this.enabled)
+        {
+            // Each worker job queue must be able to hold every job that can be outstanding at the same time.
+            int[] queueCapacities = new int[workers.length];
+            for (Camera camera: cameras)
+            {
+                for (PipelineInfo info: camera.pipelines)
+                {
+                    for (int i = 0; i < workers.length; i++)
+                    {
+                        if (workers[i] == info.worker)
+                        {
+                            queueCapacities[i] += camera.numImageBuffers;
+                        }
+                    }
+                }
+            }
+
+            for (int i = 0; i < workers.length; i++)
+            {
+                workers[i].start(Math.max(queueCapacities[i], 1));
+            }
+
+            for (Camera camera: cameras)
+            {
+                camera.start();
+            }
+            tracer.traceDebug(
+                instanceName, "Enabled: cameras=%d, pipelines=%d, workers=%d",
+                cameras.size(), numPipelines, workers.length);
+        }
+        else if (!enabled && this.enabled)
+        {
+            // Stop the acquisition first so that no more jobs are handed to the workers.
+            for (Camera camera: cameras)
+            {
+                camera.stop();
+            }
+
+            for (Worker worker: workers)
+            {
+                worker.stop();
+            }
+
+            for (Camera camera: cameras)
+            {
+                camera.releaseFrameSlots();
+            }
+            tracer.traceDebug(instanceName, "Disabled.");
+        }
+        this.enabled = enabled;
+    }   //setEnabled
+
+    /**
+     * This method checks if the executor is enabled.
+     *
+     * @return true if the executor is enabled, false otherwise.
+     */
+    public synchronized boolean isEnabled()
+    {
+        return enabled;
+    }   //isEnabled
+
+    /**
+     * This method is called on a worker thread to run a pipeline on a frame. The worker that finishes the last
+     * pipeline of the frame publishes the merged result. If the pipeline throws, the error is logged and the
+     * pipeline reports no detection for the frame, so the frame still completes and its image buffer is freed.
+     *
+     * @param job specifies the job to run.
+     */
+    private void runJob(PipelineJob job)
+    {
+        FrameSlot slot = job.slot;
+        PipelineInfo info = slot.camera.pipelines.get(job.pipelineIndex);
+        long startNanoTime = TrcTimer.getNanoTime();
+
+        try
+        {
+            slot.results[job.pipelineIndex] = info.pipeline.process(slot.image);
+        }
+        catch (Exception e)
+        {
+            slot.results[job.pipelineIndex] = null;
+            tracer.traceErr(
+                instanceName, "Pipeline " + slot.camera + "." + info.pipelineName + " failed on frame " +
+                slot.frameNumber + ": " + e);
+            TrcDbgTrace.printExceptionStack(e);
+        }
+        finally
+        {
+            info.latencyHistogram.recordValue(TrcTimer.getNanoTime() - startNanoTime);
+            // The atomic decrement makes the results of all pipelines visible to the worker that completes the frame.
+            if (slot.pendingCount.decrementAndGet() == 0)
+            {
+                slot.camera.completeFrame(slot);
+            }
+        }
+    }   //runJob
+
+}   //class TrcVisionExecutor
@@ -24,7 +24,8 @@ package TrcCommonLib.trclib;
 
 /**
  * This class implements Performance Metrics for Vision. It keeps track of the average time for vision to process a
- * frame as well as the process frame rate.
+ * frame as well as the process frame rate. Pipelines may also report the number of native Mats they allocate per
+ * frame so that memory churn can be compared between pipeline configurations.
  */
 public class TrcVisionPerformanceMetrics
 {
@@ -32,6 +33,7 @@ public class TrcVisionPerformanceMetrics
     private double sessionStartTime;
     private double totalProcessedTime;
     private long totalProcessedFrames;
+    private long totalMatAllocations;
 
     /**
      * Constructor: Create an instance of the object.
@@ -52,6 +54,7 @@ public class TrcVisionPerformanceMetrics
         sessionStartTime = TrcTimer.getCurrentTime();
         totalProcessedTime = 0.0;
         totalProcessedFrames = 0;
+        totalMatAllocations = 0;
     }   //reset
 
     /**
@@ -65,6 +68,26 @@ public class TrcVisionPerformanceMetrics
         totalProcessedFrames++;
     }   //logProcessingTime
 
+    /**
+     * This method is called to log the number of native Mats allocated by the pipeline while processing a frame.
+     *
+     * @param numAllocations specifies the number of native Mats allocated.
+     */
+    public void logMatAllocations(int numAllocations)
+    {
+        totalMatAllocations += numAllocations;
+    }   //logMatAllocations
+
+    /**
+     * This method returns the average number of native Mats allocated per processed frame.
+     *
+     * @return average number of Mat allocations per frame.
+     */
+    public double getAverageMatAllocations()
+    {
+        return totalProcessedFrames == 0? 0.0: (double)totalMatAllocations/totalProcessedFrames;
+    }   //getAverageMatAllocations
+
     /**
      * This method prints the pipeline performance metrics using the given tracer.
      *
@@ -73,8 +96,9 @@ public class TrcVisionPerformanceMetrics
     public void printMetrics(TrcDbgTrace tracer)
     {
         tracer.traceInfo(
-            instanceName, "AvgProcessTime=%.6f, FrameRate=%f",
-            totalProcessedTime/totalProcessedFrames, totalProcessedFrames/(TrcTimer.getCurrentTime() - sessionStartTime));
+            instanceName, "AvgProcessTime=%.6f, FrameRate=%f, MatAllocs=%d (%.1f/frame)",
+            totalProcessedTime/totalProcessedFrames, totalProcessedFrames/(TrcTimer.getCurrentTime() - sessionStartTime),
+            totalMatAllocations, getAverageMatAllocations());
     }   //printMetrics
 
 }   //class TrcVisionPerformanceMetrics
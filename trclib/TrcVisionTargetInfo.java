@@ -23,7 +23,6 @@
 
 package TrcCommonLib.trclib;
 
-import org.opencv.core.Point;
 import org.opencv.core.Rect;
 
 import java.util.Locale;
@@ -82,6 +81,12 @@ public class TrcVisionTargetInfo<O extends TrcVisionTargetInfo.ObjectInfo>
     public TrcPose2D objPose;
     public Double objWidth;
     public Double objDepth;
+    // Time the frame was captured in seconds, zero if unknown.
+    public double timestamp = 0.0;
+    // Robot field pose at the time the frame was captured, null if unknown.
+    public TrcPose2D robotPose = null;
+    // Object field pose corrected for the vision latency, null if unknown.
+    public TrcPose2D fieldPose = null;
 
     /**
      * Constructor: Create an instance of the object.
@@ -112,12 +117,16 @@ public class TrcVisionTargetInfo<O extends TrcVisionTargetInfo.ObjectInfo>
         else
         {
             // Caller provided homography mapper, we will use it to calculate the detected object pose.
-            Point topLeft = homographyMapper.mapPoint(new Point(objRect.x, objRect.y));
-            Point topRight = homographyMapper.mapPoint(new Point(objRect.x + objRect.width, objRect.y));
-            Point bottomLeft = homographyMapper.mapPoint(new Point(objRect.x, objRect.y + objRect.height));
-            Point bottomRight = homographyMapper.mapPoint(new Point(objRect.x + objRect.width, objRect.y + objRect.height));
-            double xDistanceFromCamera = (bottomLeft.x + bottomRight.x)/2.0;
-            double yDistanceFromCamera = (bottomLeft.y + bottomRight.y)/2.0;
+            // Map the four corners (topLeft, topRight, bottomLeft, bottomRight) in one batch.
+            double left = objRect.x, right = objRect.x + objRect.width;
+            double top = objRect.y, bottom = objRect.y + objRect.height;
+            double[] corners = {left, top, right, top, left, bottom, right, bottom};
+            homographyMapper.mapPoints(corners, corners, 4);
+            double topLeftY = corners[1], topRightY = corners[3];
+            double bottomLeftX = corners[4], bottomLeftY = corners[5];
+            double bottomRightX = corners[6], bottomRightY = corners[7];
+            double xDistanceFromCamera = (bottomLeftX + bottomRightX)/2.0;
+            double yDistanceFromCamera = (bottomLeftY + bottomRightY)/2.0;
             double horiAngleRadian = Math.atan2(xDistanceFromCamera, yDistanceFromCamera);
             double horizontalAngle = Math.toDegrees(horiAngleRadian);
             if (objHeightOffset > 0.0)
@@ -136,8 +145,8 @@ public class TrcVisionTargetInfo<O extends TrcVisionTargetInfo.ObjectInfo>
             }
             // Don't have enough info to determine pitch and roll.
             objPose = new TrcPose2D(xDistanceFromCamera, yDistanceFromCamera, horizontalAngle);
-            objWidth = bottomRight.x - bottomLeft.x;
-            objDepth = ((topLeft.y + topRight.y) - (bottomLeft.y + bottomRight.y))/2.0;
+            objWidth = bottomRightX - bottomLeftX;
+            objDepth = ((topLeftY + topRightY) - (bottomLeftY + bottomRightY))/2.0;
         }
     }   //TrcVisionTargetInfo
 
@@ -151,6 +160,25 @@ public class TrcVisionTargetInfo<O extends TrcVisionTargetInfo.ObjectInfo>
         this(detectedObj, null, 0.0, 0.0);
     }   //TrcVisionTargetInfo
 
+    /**
+     * This method sets the robot field pose at the time the frame was captured and calculates the field pose of the
+     * object from it. Since the robot may have moved while the frame was being processed, using the robot pose at
+     * capture time rather than the current robot pose corrects the object field pose for the vision latency. Note
+     * that the angle of the resulting field pose is the field heading from the camera to the object.
+     *
+     * @param robotPose specifies the robot field pose at the time the frame was captured.
+     * @param cameraPose specifies the camera pose relative to the robot, can be null if the camera is at the robot
+     *        center facing forward.
+     */
+    public void setFieldPose(TrcPose2D robotPose, TrcPose2D cameraPose)
+    {
+        this.robotPose = robotPose;
+        if (objPose != null)
+        {
+            fieldPose = robotPose.addRelativePose(cameraPose != null? cameraPose.addRelativePose(objPose): objPose);
+        }
+    }   //setFieldPose
+
     /**
      * This method returns the string form of the target info.
      *
@@ -160,8 +188,9 @@ public class TrcVisionTargetInfo<O extends TrcVisionTargetInfo.ObjectInfo>
     public String toString()
     {
         return String.format(
-            Locale.US, "(Obj=%s,rect=%s,area=%f,pose=%s,width=%f,depth=%f)",
-            detectedObj, objRect, objArea, objPose, objWidth != null? objWidth: 0.0, objDepth != null? objDepth: 0.0);
+            Locale.US, "(Obj=%s,rect=%s,area=%f,pose=%s,width=%f,depth=%f,fieldPose=%s)",
+            detectedObj, objRect, objArea, objPose, objWidth != null? objWidth: 0.0, objDepth != null? objDepth: 0.0,
+            fieldPose);
     }   //toString
 
 }   //class TrcVisionTargetInfo
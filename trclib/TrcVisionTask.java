@@ -22,26 +22,320 @@
 
 package TrcCommonLib.trclib;
 
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class implements a platform independent vision task. When enabled, it grabs a frame from the video source,
  * calls the provided vision processor to process the frame and overlays rectangles on the detected objects in the
  * image. This class is to be extended by a platform dependent vision processor.
+ * <p>
+ * By default, the vision task grabs, processes and streams a frame sequentially on one thread. In pipelined mode,
+ * frame acquisition stays on the vision task thread while processing and output streaming each run on their own
+ * thread. The stages pass image buffer indices to each other through bounded queues, so each image buffer is owned
+ * by exactly one stage at a time and the throughput approaches that of the slowest stage. Pipelined mode needs at
+ * least 3 image buffers to keep all stages busy.
+ * <p>
+ * Every processed frame also publishes a versioned detection snapshot. Unlike getDetectedObjects, reading the
+ * snapshot does not consume it, so multiple consumers can read the same detections. A consumer that needs fresh
+ * detections remembers the sequence number of the last snapshot it handled and calls notifyNewerSnapshot to have
+ * an event signaled when a newer one is published instead of polling for it.
  *
  * @param <I> specifies the type of the input image.
  * @param <O> specifies the type of the detected objects.
  */
 public class TrcVisionTask<I, O>
 {
+    /**
+     * This specifies the stages of vision processing for latency metrics.
+     */
+    public enum Stage
+    {
+        ACQUIRE,
+        PROCESS,
+        OUTPUT,
+        // From the start of frame acquisition to the end of its output.
+        END_TO_END
+    }   //enum Stage
+
+    /**
+     * This specifies what the acquisition stage does in pipelined mode when all image buffers are in use.
+     */
+    public enum FrameDropPolicy
+    {
+        // Take back the oldest frame still waiting to be processed and reuse its buffer for the new frame.
+        DROP_OLDEST,
+        // Skip acquiring a new frame until a buffer is freed.
+        DROP_NEWEST
+    }   //enum FrameDropPolicy
+
+    /**
+     * This class contains the detected objects of a processed frame. The sequence number increases by one for every
+     * processed frame, so consumers can tell whether they have already seen a snapshot.
+     *
+     * @param <O> specifies the type of the detected objects.
+     */
+    public static class DetectionSnapshot<O>
+    {
+        public final long sequence;
+        public final double timestamp;
+        public final O[] objects;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param sequence specifies the sequence number of the snapshot.
+         * @param timestamp specifies the time the frame was acquired in seconds.
+         * @param objects specifies the detected objects, null if none was detected.
+         */
+        public DetectionSnapshot(long sequence, double timestamp, O[] objects)
+        {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.objects = objects;
+        }   //DetectionSnapshot
+
+        /**
+         * This method returns the string form of the snapshot info.
+         *
+         * @return string form of the snapshot info.
+         */
+        @Override
+        public String toString()
+        {
+            return "{seq=" + sequence + ",timestamp=" + timestamp +
+                   ",numObjs=" + (objects != null? objects.length: 0) + "}";
+        }   //toString
+
+    }   //class DetectionSnapshot
+
+    /**
+     * This class keeps track of a consumer waiting for a snapshot newer than the one it has seen.
+     */
+    private class SnapshotWaiter
+    {
+        private final long sequence;
+        private final TrcEvent event;
+        private final TrcTimer timer;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param sequence specifies the sequence number of the last snapshot seen by the consumer.
+         * @param event specifies the event to signal when a newer snapshot is published.
+         * @param timeout specifies the maximum time in seconds to wait, zero if no timeout.
+         */
+        public SnapshotWaiter(long sequence, TrcEvent event, double timeout)
+        {
+            this.sequence = sequence;
+            this.event = event;
+            if (timeout > 0.0)
+            {
+                timer = new TrcTimer(instanceName + ".snapshotTimer");
+                timer.set(timeout, this::timeoutHandler, null);
+            }
+            else
+            {
+                timer = null;
+            }
+        }   //SnapshotWaiter
+
+        /**
+         * This method is called when a newer snapshot is published after the waiter is removed from the list.
+         */
+        public void notifyWaiter()
+        {
+            if (timer != null)
+            {
+                timer.cancel();
+            }
+            event.signal();
+        }   //notifyWaiter
+
+        /**
+         * This method is called when the wait timed out. It signals the event if no newer snapshot has been
+         * published in the meantime, so the consumer can check the snapshot sequence to tell the difference.
+         *
+         * @param context not used.
+         */
+        private void timeoutHandler(Object context)
+        {
+            synchronized (snapshotWaiters)
+            {
+                if (snapshotWaiters.remove(this))
+                {
+                    numSnapshotWaiters = snapshotWaiters.size();
+                    event.signal();
+                }
+            }
+        }   //timeoutHandler
+
+    }   //class SnapshotWaiter
+
+    /**
+     * This interface is implemented by the handler of a pipeline stage.
+     */
+    private interface StageHandler
+    {
+        void handleFrame(int bufferIndex);
+    }   //interface StageHandler
+
+    /**
+     * This class implements a pipeline stage thread. It waits for buffer indices to arrive in its queue and calls
+     * the stage handler for each of them.
+     */
+    private class PipelineStage implements Runnable
+    {
+        private final TrcRingQueue<Integer> frameQueue;
+        private final StageHandler handler;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean waiting = false;
+
+        /**
+         * Constructor: Create an instance of the object.
+         *
+         * @param stageName specifies the name of the stage thread.
+         * @param frameQueue specifies the queue of buffer indices to be handled by this stage.
+         * @param handler specifies the stage handler.
+         */
+        public PipelineStage(String stageName, TrcRingQueue<Integer> frameQueue, StageHandler handler)
+        {
+            this.frameQueue = frameQueue;
+            this.handler = handler;
+            thread = new Thread(this, stageName);
+        }   //PipelineStage
+
+        /**
+         * This method starts the stage thread.
+         */
+        public void start()
+        {
+            thread.start();
+        }   //start
+
+        /**
+         * This method wakes up the stage thread if it is waiting for frames.
+         */
+        public void wakeup()
+        {
+            if (waiting)
+            {
+                LockSupport.unpark(thread);
+            }
+        }   //wakeup
+
+        /**
+         * This method stops the stage thread and waits for it to finish handling its current frame.
+         */
+        public void stop()
+        {
+            running = false;
+            LockSupport.unpark(thread);
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }   //stop
+
+        /**
+         * This method runs the stage thread.
+         */
+        @Override
+        public void run()
+        {
+            while (running)
+            {
+                Integer bufferIndex = frameQueue.poll();
+
+                if (bufferIndex != null)
+                {
+                    handler.handleFrame(bufferIndex);
+                }
+                else
+                {
+                    waiting = true;
+                    if (running && frameQueue.isEmpty())
+                    {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                }
+            }
+        }   //run
+
+    }   //class PipelineStage
+
+    /**
+     * This class holds the frame queues and the stage threads of pipelined mode. A new one is created every time the
+     * vision task is enabled, so a late run of the previous acquisition task can't mix up the buffers of the new one.
+     */
+    private class FramePipeline
+    {
+        private final TrcRingQueue<Integer> freeQueue;
+        private final TrcRingQueue<Integer> processQueue;
+        private final TrcRingQueue<Integer> outputQueue;
+        private final PipelineStage processStage;
+        private final PipelineStage outputStage;
+
+        /**
+         * Constructor: Create an instance of the object. All image buffers start out free.
+         */
+        public FramePipeline()
+        {
+            freeQueue = new TrcRingQueue<>(imageBuffers.length);
+            processQueue = new TrcRingQueue<>(imageBuffers.length);
+            outputQueue = new TrcRingQueue<>(imageBuffers.length);
+            for (int i = 0; i < imageBuffers.length; i++)
+            {
+                freeQueue.offer(i);
+            }
+            processStage = new PipelineStage(
+                instanceName + ".process", processQueue, index -> processStageTask(this, index));
+            outputStage = new PipelineStage(
+                instanceName + ".output", outputQueue, index -> outputStageTask(this, index));
+            processStage.start();
+            outputStage.start();
+        }   //FramePipeline
+
+        /**
+         * This method stops the stage threads.
+         */
+        public void stop()
+        {
+            processStage.stop();
+            outputStage.stop();
+        }   //stop
+
+    }   //class FramePipeline
+
     private final TrcDbgTrace tracer;
     private final String instanceName;
     private final TrcVisionProcessor<I, O> visionProcessor;
     private final I[] imageBuffers;
     private final TrcTaskMgr.TaskObject visionTaskObj;
     private final AtomicReference<O[]> detectedObjects = new AtomicReference<>();
+    private final AtomicReference<DetectionSnapshot<O>> latestSnapshot = new AtomicReference<>();
+    private final ArrayList<SnapshotWaiter> snapshotWaiters = new ArrayList<>();
+    private volatile int numSnapshotWaiters = 0;
+    private long snapshotSequence = 0;
     private volatile boolean taskEnabled = false;
     private int imageIndex = 0;
+    // Pipelined mode.
+    private final TrcLatencyHistogram[] stageLatencies = new TrcLatencyHistogram[Stage.values().length];
+    private final long[] acquireNanoTimes;
+    private final double[] acquireTimestamps;
+    private final Object[] frameOutputs;
+    private final AtomicLong droppedFrameCount = new AtomicLong(0);
+    private boolean pipelinedMode = false;
+    private volatile FrameDropPolicy frameDropPolicy = FrameDropPolicy.DROP_OLDEST;
+    private volatile FramePipeline framePipeline = null;
 
     private double totalTime = 0.0;
     private long totalFrames = 0;
@@ -61,6 +355,13 @@ public class TrcVisionTask<I, O>
         this.instanceName = instanceName;
         this.visionProcessor = visionProcessor;
         this.imageBuffers = imageBuffers;
+        acquireNanoTimes = new long[imageBuffers.length];
+        acquireTimestamps = new double[imageBuffers.length];
+        frameOutputs = new Object[imageBuffers.length];
+        for (Stage stage: Stage.values())
+        {
+            stageLatencies[stage.ordinal()] = new TrcLatencyHistogram(instanceName + "." + stage, 0);
+        }
         visionTaskObj = TrcTaskMgr.createTask(instanceName, this::visionTask);
     }   //TrcVisionTask
 
@@ -98,16 +399,114 @@ public class TrcVisionTask<I, O>
             totalTime = 0.0;
             totalFrames = 0;
             taskStartTime = TrcTimer.getCurrentTime();
+            if (pipelinedMode)
+            {
+                framePipeline = new FramePipeline();
+            }
             visionTaskObj.registerTask(TrcTaskMgr.TaskType.STANDALONE_TASK);
         }
         else if (!enabled && taskEnabled)
         {
             visionTaskObj.unregisterTask();
+            if (framePipeline != null)
+            {
+                // The acquisition task is unregistered, so the stage threads can be stopped.
+                framePipeline.stop();
+                framePipeline = null;
+            }
         }
         detectedObjects.set(null);
         taskEnabled = enabled;
     }   //setTaskEnabled
 
+    /**
+     * This method enables/disables pipelined mode. If the vision task is enabled, it is restarted in the new mode.
+     *
+     * @param enabled specifies true to enable pipelined mode, false to process frames sequentially.
+     */
+    public synchronized void setPipelinedModeEnabled(boolean enabled)
+    {
+        if (enabled != pipelinedMode)
+        {
+            boolean wasEnabled = taskEnabled;
+
+            if (wasEnabled)
+            {
+                setTaskEnabled(false);
+            }
+            pipelinedMode = enabled;
+            if (wasEnabled)
+            {
+                setTaskEnabled(true);
+            }
+        }
+    }   //setPipelinedModeEnabled
+
+    /**
+     * This method checks if pipelined mode is enabled.
+     *
+     * @return true if pipelined mode is enabled, false otherwise.
+     */
+    public synchronized boolean isPipelinedModeEnabled()
+    {
+        return pipelinedMode;
+    }   //isPipelinedModeEnabled
+
+    /**
+     * This method sets what the acquisition stage does in pipelined mode when all image buffers are in use.
+     *
+     * @param policy specifies the frame drop policy, DROP_OLDEST by default.
+     */
+    public void setFrameDropPolicy(FrameDropPolicy policy)
+    {
+        frameDropPolicy = policy;
+    }   //setFrameDropPolicy
+
+    /**
+     * This method returns the number of frames dropped in pipelined mode because all image buffers were in use.
+     *
+     * @return number of dropped frames.
+     */
+    public long getDroppedFrameCount()
+    {
+        return droppedFrameCount.get();
+    }   //getDroppedFrameCount
+
+    /**
+     * This method returns the latency snapshot of a vision processing stage.
+     *
+     * @param stage specifies the stage.
+     * @return latency snapshot of the stage.
+     */
+    public TrcLatencyHistogram.Snapshot getStageLatencySnapshot(Stage stage)
+    {
+        return stageLatencies[stage.ordinal()].getSnapshot();
+    }   //getStageLatencySnapshot
+
+    /**
+     * This method clears the stage latency metrics and the dropped frame count.
+     */
+    public void resetStageLatencies()
+    {
+        for (TrcLatencyHistogram histogram: stageLatencies)
+        {
+            histogram.reset();
+        }
+        droppedFrameCount.set(0);
+    }   //resetStageLatencies
+
+    /**
+     * This method prints the stage latency metrics.
+     */
+    public void printStageLatencies()
+    {
+        for (TrcLatencyHistogram histogram: stageLatencies)
+        {
+            tracer.traceInfo(instanceName, histogram.toString());
+        }
+        tracer.traceInfo(instanceName, "DroppedFrames=%d", droppedFrameCount.get());
+    }   //printStageLatencies
+
     /**
      * This method returns the state of the vision task.
      *
@@ -149,6 +548,206 @@ public class TrcVisionTask<I, O>
         return detectedObjects.getAndSet(null);
     }   //getDetectedObjects
 
+    /**
+     * This method returns the latest detection snapshot. Unlike getDetectedObjects, it does not consume the
+     * snapshot, so it can be called by multiple consumers.
+     *
+     * @return latest detection snapshot, null if no frame has been processed yet.
+     */
+    public DetectionSnapshot<O> getDetectionSnapshot()
+    {
+        return latestSnapshot.get();
+    }   //getDetectionSnapshot
+
+    /**
+     * This method arranges for the given event to be signaled when a snapshot newer than the given sequence number
+     * is published. If there is already a newer one, the event is signaled right away. If the timeout expires
+     * before a newer snapshot arrives, the event is also signaled, so the caller should check the sequence number
+     * of getDetectionSnapshot to see if there is a newer snapshot.
+     *
+     * @param sequence specifies the sequence number of the last snapshot seen by the caller, -1 if none.
+     * @param event specifies the event to signal.
+     * @param timeout specifies the maximum time in seconds to wait, zero if no timeout.
+     */
+    public void notifyNewerSnapshot(long sequence, TrcEvent event, double timeout)
+    {
+        DetectionSnapshot<O> snapshot = latestSnapshot.get();
+
+        event.clear();
+        if (snapshot != null && snapshot.sequence > sequence)
+        {
+            event.signal();
+            return;
+        }
+
+        SnapshotWaiter waiter = new SnapshotWaiter(sequence, event, timeout);
+        synchronized (snapshotWaiters)
+        {
+            // Register the waiter before checking the latest snapshot so a snapshot published in between is not
+            // missed.
+            snapshotWaiters.add(waiter);
+            numSnapshotWaiters = snapshotWaiters.size();
+
+            snapshot = latestSnapshot.get();
+            if (snapshot != null && snapshot.sequence > sequence)
+            {
+                snapshotWaiters.remove(waiter);
+                numSnapshotWaiters = snapshotWaiters.size();
+                waiter.notifyWaiter();
+            }
+        }
+    }   //notifyNewerSnapshot
+
+    /**
+     * This method publishes the detected objects of a processed frame and signals the consumers waiting for it.
+     * It is only called by the thread processing the frames.
+     *
+     * @param timestamp specifies the time the frame was acquired in seconds.
+     * @param objects specifies the detected objects, null if none was detected.
+     */
+    private void publishSnapshot(double timestamp, O[] objects)
+    {
+        DetectionSnapshot<O> snapshot = new DetectionSnapshot<>(++snapshotSequence, timestamp, objects);
+
+        latestSnapshot.set(snapshot);
+        detectedObjects.set(objects);
+        // Only take the lock if there are consumers waiting.
+        if (numSnapshotWaiters > 0)
+        {
+            synchronized (snapshotWaiters)
+            {
+                for (int i = snapshotWaiters.size() - 1; i >= 0; i--)
+                {
+                    SnapshotWaiter waiter = snapshotWaiters.get(i);
+                    if (snapshot.sequence > waiter.sequence)
+                    {
+                        snapshotWaiters.remove(i);
+                        waiter.notifyWaiter();
+                    }
+                }
+                numSnapshotWaiters = snapshotWaiters.size();
+            }
+        }
+    }   //publishSnapshot
+
+    /**
+     * This method is the acquisition stage of pipelined mode, running on the vision task thread. It grabs a frame
+     * into a free image buffer and passes it to the processing stage.
+     *
+     * @param pipeline specifies the frame pipeline.
+     */
+    private void acquireStageTask(FramePipeline pipeline)
+    {
+        Integer bufferIndex = pipeline.freeQueue.poll();
+
+        if (bufferIndex == null)
+        {
+            // All buffers are in use, the processing stage is falling behind.
+            droppedFrameCount.incrementAndGet();
+            if (frameDropPolicy == FrameDropPolicy.DROP_OLDEST)
+            {
+                bufferIndex = pipeline.processQueue.poll();
+            }
+        }
+
+        if (bufferIndex != null)
+        {
+            long startNanoTime = TrcTimer.getNanoTime();
+
+            if (visionProcessor.getFrame(imageBuffers[bufferIndex]))
+            {
+                long currNanoTime = TrcTimer.getNanoTime();
+
+                stageLatencies[Stage.ACQUIRE.ordinal()].recordValue(currNanoTime - startNanoTime);
+                acquireNanoTimes[bufferIndex] = startNanoTime;
+                // getFrame may block until a new frame arrives, so stamp the frame when it returns.
+                acquireTimestamps[bufferIndex] = TrcTimer.getCurrentTime();
+                pipeline.processQueue.offer(bufferIndex);
+                pipeline.processStage.wakeup();
+            }
+            else
+            {
+                pipeline.freeQueue.offer(bufferIndex);
+            }
+        }
+    }   //acquireStageTask
+
+    /**
+     * This method is the processing stage of pipelined mode. It processes the frame and passes it to the output
+     * stage. If the selected output is not the frame itself but an intermediate image owned by the processor, the
+     * next frame would overwrite it, so it is streamed right here before the buffer is freed.
+     *
+     * @param pipeline specifies the frame pipeline.
+     * @param bufferIndex specifies the index of the image buffer to process.
+     */
+    private void processStageTask(FramePipeline pipeline, int bufferIndex)
+    {
+        I image = imageBuffers[bufferIndex];
+        double startTime = TrcTimer.getCurrentTime();
+        long startNanoTime = TrcTimer.getNanoTime();
+        O[] objects = visionProcessor.processFrame(image);
+        long endNanoTime = TrcTimer.getNanoTime();
+
+        stageLatencies[Stage.PROCESS.ordinal()].recordValue(endNanoTime - startNanoTime);
+        recordProcessingTime(startTime);
+        publishSnapshot(acquireTimestamps[bufferIndex], objects);
+
+        I output = visionProcessor.getSelectedOutput();
+        if (output == null || output == image)
+        {
+            frameOutputs[bufferIndex] = output;
+            pipeline.outputQueue.offer(bufferIndex);
+            pipeline.outputStage.wakeup();
+        }
+        else
+        {
+            visionProcessor.putFrame(output);
+            long currNanoTime = TrcTimer.getNanoTime();
+            stageLatencies[Stage.OUTPUT.ordinal()].recordValue(currNanoTime - endNanoTime);
+            stageLatencies[Stage.END_TO_END.ordinal()].recordValue(currNanoTime - acquireNanoTimes[bufferIndex]);
+            pipeline.freeQueue.offer(bufferIndex);
+        }
+    }   //processStageTask
+
+    /**
+     * This method is the output stage of pipelined mode. It streams the frame to the video output and frees its
+     * image buffer.
+     *
+     * @param pipeline specifies the frame pipeline.
+     * @param bufferIndex specifies the index of the image buffer to output.
+     */
+    @SuppressWarnings("unchecked")
+    private void outputStageTask(FramePipeline pipeline, int bufferIndex)
+    {
+        I output = (I)frameOutputs[bufferIndex];
+        long startNanoTime = TrcTimer.getNanoTime();
+
+        frameOutputs[bufferIndex] = null;
+        if (output != null)
+        {
+            visionProcessor.putFrame(output);
+        }
+        long currNanoTime = TrcTimer.getNanoTime();
+        stageLatencies[Stage.OUTPUT.ordinal()].recordValue(currNanoTime - startNanoTime);
+        stageLatencies[Stage.END_TO_END.ordinal()].recordValue(currNanoTime - acquireNanoTimes[bufferIndex]);
+        pipeline.freeQueue.offer(bufferIndex);
+    }   //outputStageTask
+
+    /**
+     * This method records the frame processing time for the average process time and frame rate trace.
+     *
+     * @param startTime specifies the time processing started in seconds.
+     */
+    private void recordProcessingTime(double startTime)
+    {
+        double elapsedTime = TrcTimer.getCurrentTime() - startTime;
+        totalTime += elapsedTime;
+        totalFrames++;
+        tracer.traceDebug(
+            instanceName, "AvgProcessTime=%.6f, FrameRate=%f",
+            totalTime/totalFrames, totalFrames/(TrcTimer.getCurrentTime() - taskStartTime));
+    }   //recordProcessingTime
+
     /**
      * This method runs periodically to do vision processing.
      *
@@ -160,29 +759,40 @@ public class TrcVisionTask<I, O>
     private void visionTask(
         TrcTaskMgr.TaskType taskType, TrcRobot.RunMode runMode, boolean slowPeriodicLoop)
     {
+        FramePipeline pipeline = framePipeline;
+
+        if (pipeline != null)
+        {
+            acquireStageTask(pipeline);
+            return;
+        }
+
+        long acquireNanoTime = TrcTimer.getNanoTime();
         if (visionProcessor.getFrame(imageBuffers[imageIndex]))
         {
+            // getFrame may block until a new frame arrives, so stamp the frame when it returns.
             double startTime = TrcTimer.getCurrentTime();
+            long startNanoTime = TrcTimer.getNanoTime();
+            stageLatencies[Stage.ACQUIRE.ordinal()].recordValue(startNanoTime - acquireNanoTime);
             //
             // Capture an image and subject it for object detection. The object detector produces an array of
             // rectangles representing objects detected.
             //
             O[] objects = visionProcessor.processFrame(imageBuffers[imageIndex]);
-
-            double elapsedTime = TrcTimer.getCurrentTime() - startTime;
-            totalTime += elapsedTime;
-            totalFrames++;
-            tracer.traceDebug(
-                instanceName, "AvgProcessTime=%.6f, FrameRate=%f",
-                totalTime/totalFrames, totalFrames/(TrcTimer.getCurrentTime() - taskStartTime));
+            long endNanoTime = TrcTimer.getNanoTime();
+            stageLatencies[Stage.PROCESS.ordinal()].recordValue(endNanoTime - startNanoTime);
+            recordProcessingTime(startTime);
 
             I output = visionProcessor.getSelectedOutput();
             if (output != null)
             {
                 visionProcessor.putFrame(output);
             }
+            long currNanoTime = TrcTimer.getNanoTime();
+            stageLatencies[Stage.OUTPUT.ordinal()].recordValue(currNanoTime - endNanoTime);
+            stageLatencies[Stage.END_TO_END.ordinal()].recordValue(currNanoTime - acquireNanoTime);
 
-            detectedObjects.set(objects);
+            publishSnapshot(startTime, objects);
             //
             // Switch to the next buffer so that we won't clobber the info while the client is accessing it.
             //
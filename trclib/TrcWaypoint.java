@@ -22,14 +22,7 @@
 
 package TrcCommonLib.trclib;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
 
 /**
  * This class implements a waypoint. A waypoint specifies a point on a path that consists of a relative time step
@@ -38,6 +31,8 @@ import java.util.Objects;
  */
 public class TrcWaypoint
 {
+    // Number of fields of a waypoint record: timeStep, x, y, heading, pos, vel, accel and jerk.
+    private static final int NUM_FIELDS = 8;
     public double timeStep;
     public TrcPose2D pose;
     public double encoderPosition;
@@ -155,6 +150,7 @@ public class TrcWaypoint
 
     /**
      * This method loads waypoint data from a CSV file either on the external file system or attached resources.
+     * The parsed data is cached, so loading the same file again does not parse it again.
      *
      * @param path specifies the file system path or resource name.
      * @param loadFromResources specifies true if the data is from attached resources, false if from file system.
@@ -162,56 +158,59 @@ public class TrcWaypoint
      */
     public static TrcWaypoint[] loadPointsFromCsv(String path, boolean loadFromResources)
     {
-        TrcWaypoint[] waypoints;
-
         if (!path.endsWith(".csv"))
         {
             throw new IllegalArgumentException(path + " is not a csv file!");
         }
 
-        try
-        {
-            BufferedReader in = new BufferedReader(
-                loadFromResources?
-                    new InputStreamReader(
-                        Objects.requireNonNull(TrcWaypoint.class.getClassLoader()).getResourceAsStream(path)):
-                    new FileReader(path));
-            List<TrcWaypoint> pointList = new ArrayList<>();
-            String line;
-
-            in.readLine();  // Get rid of the first header line
-            while ((line = in.readLine()) != null)
-            {
-                String[] tokens = line.split(",");
-
-                if (tokens.length != 8)
-                {
-                    throw new IllegalArgumentException("There must be 8 columns in the csv file!");
-                }
-
-                double[] elements = new double[tokens.length];
-
-                for (int i = 0; i < elements.length; i++)
-                {
-                    elements[i] = Double.parseDouble(tokens[i]);
-                }
-
-                TrcWaypoint point = new TrcWaypoint(
-                    elements[0], elements[1], elements[2], elements[3], elements[4], elements[5], elements[6],
-                    elements[7]);
-                pointList.add(point);
-            }
-            in.close();
-
-            waypoints = pointList.toArray(new TrcWaypoint[0]);
-        }
-        catch (IOException e)
+        return createWaypoints(TrcPathFile.loadCsvRecords(path, loadFromResources, NUM_FIELDS));
+    }   //loadPointsFromCsv
+
+    /**
+     * This method loads waypoint data from a binary path file (see TrcPathFile) either on the external file system or
+     * attached resources. The loaded data is cached, so loading the same file again does not read it again.
+     *
+     * @param path specifies the file system path or resource name.
+     * @param loadFromResources specifies true if the data is from attached resources, false if from file system.
+     * @return an array of waypoints.
+     */
+    public static TrcWaypoint[] loadPointsFromBinary(String path, boolean loadFromResources)
+    {
+        return createWaypoints(TrcPathFile.loadBinaryRecords(path, loadFromResources, NUM_FIELDS));
+    }   //loadPointsFromBinary
+
+    /**
+     * This method converts a waypoint CSV file to a binary path file.
+     *
+     * @param csvPath specifies the file system path or resource name of the CSV file.
+     * @param loadFromResources specifies true if the CSV file is from attached resources, false if from file system.
+     * @param binaryPath specifies the file system path of the binary file to create.
+     * @return number of waypoints converted.
+     */
+    public static int convertCsvToBinary(String csvPath, boolean loadFromResources, String binaryPath)
+    {
+        return TrcPathFile.convertCsvToBinary(csvPath, loadFromResources, NUM_FIELDS, binaryPath);
+    }   //convertCsvToBinary
+
+    /**
+     * This method creates waypoints from packed records of NUM_FIELDS values each.
+     *
+     * @param records specifies the packed records.
+     * @return an array of waypoints.
+     */
+    private static TrcWaypoint[] createWaypoints(double[] records)
+    {
+        TrcWaypoint[] waypoints = new TrcWaypoint[records.length/NUM_FIELDS];
+
+        for (int i = 0, j = 0; i < waypoints.length; i++, j += NUM_FIELDS)
         {
-            throw new RuntimeException(e);
+            waypoints[i] = new TrcWaypoint(
+                records[j], records[j + 1], records[j + 2], records[j + 3], records[j + 4], records[j + 5],
+                records[j + 6], records[j + 7]);
         }
 
         return waypoints;
-    }   //loadPointsFromCsv
+    }   //createWaypoints
 
     public TrcPose2D getPositionPose()
     {